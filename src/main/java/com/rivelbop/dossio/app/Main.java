@@ -1,12 +1,14 @@
 package com.rivelbop.dossio.app;
 
 import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.metrics.MetricsExporter;
 import com.rivelbop.dossio.networking.Network;
 import com.rivelbop.dossio.scene.StartScene;
 import java.awt.Taskbar;
 import java.awt.Taskbar.Feature;
 import java.awt.Toolkit;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.image.Image;
@@ -23,10 +25,20 @@ public final class Main extends Application {
   /** Access to server and client handlers. */
   public static final Network NETWORK = new Network();
 
+  /**
+   * The system property of the localhost port to serve the Prometheus metrics on, the endpoint is
+   * disabled unless it is set (e.g. {@code -Ddossio.metrics.port=9464}).
+   */
+  private static final String METRICS_PORT_PROPERTY = "dossio.metrics.port";
+
+  /** Whether the JavaFX application is running (alerts are only logged while headless). */
+  private static volatile boolean running;
+
   private Stage primaryStage;
 
   /**
-   * Shows an alert dialog with the given parameters.
+   * Shows an alert dialog with the given parameters. The alert is shown on the JavaFX application
+   * thread, and is skipped if the application isn't running (headless tools only log errors).
    *
    * @param type The type of alert.
    * @param title The title of the alert.
@@ -34,6 +46,14 @@ public final class Main extends Application {
    * @param content The content text of the alert.
    */
   public static void showAlert(AlertType type, String title, String header, String content) {
+    if (!running) {
+      return;
+    }
+    if (!Platform.isFxApplicationThread()) {
+      Platform.runLater(() -> showAlert(type, title, header, content));
+      return;
+    }
+
     Alert alert = new Alert(type);
     alert.setTitle(title);
     alert.setHeaderText(header);
@@ -55,6 +75,7 @@ public final class Main extends Application {
   @Override
   public void start(Stage primaryStage) {
     Log.set(Log.LEVEL_DEBUG); // TODO: Remove on release
+    running = true;
     this.primaryStage = primaryStage;
 
     // TODO: Change test icon
@@ -71,6 +92,8 @@ public final class Main extends Application {
       }
     }
 
+    MetricsExporter.start(Integer.getInteger(METRICS_PORT_PROPERTY, 0));
+
     StartScene startScene = new StartScene(this);
     primaryStage.setScene(startScene);
     primaryStage.setMinWidth(WINDOW_WIDTH);
@@ -81,6 +104,8 @@ public final class Main extends Application {
 
   @Override
   public void stop() throws Exception {
+    running = false;
+    MetricsExporter.stop();
     NETWORK.dispose();
     super.stop();
   }
@@ -0,0 +1,279 @@
+package com.rivelbop.dossio.app;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.base.Splitter;
+import com.rivelbop.dossio.metrics.MetricsExporter;
+import com.rivelbop.dossio.networking.Network;
+import com.rivelbop.dossio.networking.ServerHandler;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Launches a headless relay server, without loading JavaFX or any of the client classes.
+ *
+ * <p>Usage: {@code ServerLauncher [--config <file>] [--ip <address>] [--port <port>] [--log
+ * <level>] [--metrics-port <port>] [--journal <directory>] [--max-rooms <count>]
+ * [--max-room-clients <count>] [--max-room-bytes <bytes>] [--node-id <id>] [--peers
+ * <id@host:port,...>]}. The config file is a properties file with the same keys ({@code ip}, {@code
+ * port}, {@code log}, {@code metrics-port}, {@code journal}, {@code max-rooms}, {@code
+ * max-room-clients}, {@code max-room-bytes}, {@code node-id}, {@code peers}), flags override the
+ * values of the config file. The metrics are served on localhost only (a metrics port of 0 disables
+ * them). The edit journals are kept across restarts only if a journal directory is given (otherwise
+ * they are kept in temporary directories).
+ *
+ * <p>The server hosts a room per project session, a client past the room quotas is disconnected.
+ * The bytes queued for a room's clients are limited as well, the slowest clients of a room past it
+ * are resynced.
+ *
+ * <p>Servers given peers form a relay mesh, every node lists the IDs and addresses of all others.
+ */
+public final class ServerLauncher {
+  private static final String LOG_TAG = "ServerLauncher";
+
+  private static final String USAGE =
+      "Usage: ServerLauncher [--config <file>] [--ip <address>] [--port <port>] "
+          + "[--log <none|error|warn|info|debug|trace>] [--metrics-port <port>] "
+          + "[--journal <directory>] [--max-rooms <count>] [--max-room-clients <count>] "
+          + "[--max-room-bytes <bytes>] [--node-id <id>] [--peers <id@host:port,...>]";
+
+  private ServerLauncher() {}
+
+  /**
+   * Starts the relay server, it runs until the process is stopped.
+   *
+   * @param args Java Program Arguments
+   */
+  public static void main(String[] args) {
+    Properties config;
+    int port;
+    int metricsPort;
+    int logLevel;
+    int maxRooms;
+    int maxRoomClients;
+    long maxRoomBytes;
+    int nodeId;
+    Map<Integer, InetSocketAddress> peers;
+    try {
+      config = parseArgs(args);
+      port = parsePort(config.getProperty("port", "" + Network.DEFAULT_PORT));
+      metricsPort =
+          parsePort(config.getProperty("metrics-port", "" + MetricsExporter.DEFAULT_PORT));
+      logLevel = parseLogLevel(config.getProperty("log", "info"));
+      maxRooms =
+          parseCount(config.getProperty("max-rooms", "" + ServerHandler.DEFAULT_MAX_ROOMS));
+      maxRoomClients =
+          parseCount(
+              config.getProperty("max-room-clients", "" + ServerHandler.DEFAULT_MAX_ROOM_CLIENTS));
+      maxRoomBytes =
+          parseByteSize(
+              config.getProperty(
+                  "max-room-bytes", "" + ServerHandler.DEFAULT_MAX_ROOM_QUEUED_BYTES));
+      nodeId = parseNodeId(config.getProperty("node-id", "1"));
+      peers = parsePeers(config.getProperty("peers", ""));
+    } catch (IllegalArgumentException | IOException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+    Log.set(logLevel);
+
+    ServerHandler serverHandler = new ServerHandler();
+    Network.registerClasses(serverHandler.getKryo());
+    serverHandler.setIpAddress(config.getProperty("ip", Network.DEFAULT_IP_ADDRESS));
+    serverHandler.setPort(port);
+    serverHandler.setMaxRooms(maxRooms);
+    serverHandler.setMaxRoomClients(maxRoomClients);
+    serverHandler.setMaxRoomQueuedBytes(maxRoomBytes);
+    serverHandler.setNodeId(nodeId);
+    serverHandler.setPeers(peers);
+    String journalDirectory = config.getProperty("journal");
+    if (journalDirectory != null) {
+      serverHandler.setJournalDirectory(Path.of(journalDirectory));
+    }
+
+    try {
+      serverHandler.start();
+    } catch (RuntimeException e) {
+      System.exit(1);
+      return;
+    }
+
+    MetricsExporter.start(metricsPort);
+
+    // Stop the server when the process is stopped (the server's update thread keeps it running)
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  Log.info(LOG_TAG, "Stopping server");
+                  MetricsExporter.stop();
+                  serverHandler.stop();
+                  serverHandler.dispose();
+                },
+                "ServerShutdown"));
+
+    Log.info(
+        LOG_TAG, "Relaying on " + serverHandler.getIpAddress() + ":" + serverHandler.getPort());
+  }
+
+  /**
+   * Reads the config file (if one is given) and overrides its values with the flags.
+   *
+   * @param args The program arguments to parse.
+   * @return The server's config values.
+   * @throws IllegalArgumentException If a flag is unknown or is missing its value.
+   * @throws IOException If the config file fails to read.
+   */
+  private static Properties parseArgs(String[] args) throws IOException {
+    Properties config = new Properties();
+    Properties flags = new Properties();
+    for (int i = 0; i < args.length; i++) {
+      String key =
+          switch (args[i]) {
+            case "-c", "--config" -> "config";
+            case "-i", "--ip" -> "ip";
+            case "-p", "--port" -> "port";
+            case "-l", "--log" -> "log";
+            case "-m", "--metrics-port" -> "metrics-port";
+            case "-j", "--journal" -> "journal";
+            case "--max-rooms" -> "max-rooms";
+            case "--max-room-clients" -> "max-room-clients";
+            case "--max-room-bytes" -> "max-room-bytes";
+            case "--node-id" -> "node-id";
+            case "--peers" -> "peers";
+            default -> throw new IllegalArgumentException("Unknown flag: " + args[i]);
+          };
+      if (++i >= args.length) {
+        throw new IllegalArgumentException("Missing value for flag: " + args[i - 1]);
+      }
+      flags.setProperty(key, args[i]);
+    }
+
+    String configFile = flags.getProperty("config");
+    if (configFile != null) {
+      try (Reader reader = Files.newBufferedReader(Path.of(configFile))) {
+        config.load(reader);
+      }
+    }
+    config.putAll(flags);
+    return config;
+  }
+
+  /**
+   * Parses a port number.
+   *
+   * @param port The port text to parse.
+   * @return The parsed port.
+   * @throws IllegalArgumentException If the port is not a number.
+   */
+  private static int parsePort(String port) {
+    try {
+      return Integer.parseInt(port.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid port: " + port, e);
+    }
+  }
+
+  /**
+   * Parses a positive count.
+   *
+   * @param count The count text to parse.
+   * @return The parsed count.
+   * @throws IllegalArgumentException If the count is not a positive number.
+   */
+  private static int parseCount(String count) {
+    try {
+      int value = Integer.parseInt(count.trim());
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid count: " + count, e);
+    }
+    throw new IllegalArgumentException("Invalid count: " + count);
+  }
+
+  /**
+   * Parses a positive byte size (which may exceed the range of an int).
+   *
+   * @param byteSize The byte size text to parse.
+   * @return The parsed byte size.
+   * @throws IllegalArgumentException If the byte size is not a positive number.
+   */
+  private static long parseByteSize(String byteSize) {
+    try {
+      long value = Long.parseLong(byteSize.trim());
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid byte size: " + byteSize, e);
+    }
+    throw new IllegalArgumentException("Invalid byte size: " + byteSize);
+  }
+
+  /**
+   * Parses the ID of a relay mesh's node.
+   *
+   * @param nodeId The node ID text to parse.
+   * @return The parsed node ID.
+   * @throws IllegalArgumentException If the node ID is not a number in the valid range.
+   */
+  private static int parseNodeId(String nodeId) {
+    int value = parseCount(nodeId);
+    if (value > ServerHandler.MAX_NODE_ID) {
+      throw new IllegalArgumentException("Invalid node ID: " + nodeId);
+    }
+    return value;
+  }
+
+  /**
+   * Parses the other nodes of a relay mesh.
+   *
+   * @param peers The comma separated nodes to parse, each as "id@host:port".
+   * @return The addresses of the nodes (unresolved), by their node IDs.
+   * @throws IllegalArgumentException If a node is malformed.
+   */
+  private static Map<Integer, InetSocketAddress> parsePeers(String peers) {
+    LinkedHashMap<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+    for (String peer : Splitter.on(',').trimResults().omitEmptyStrings().split(peers)) {
+      int idEnd = peer.indexOf('@');
+      int portStart = peer.lastIndexOf(':');
+      if (idEnd <= 0 || portStart <= idEnd + 1) {
+        throw new IllegalArgumentException("Invalid peer (expected id@host:port): " + peer);
+      }
+      int id = parseNodeId(peer.substring(0, idEnd));
+      String host = peer.substring(idEnd + 1, portStart);
+      int port = parsePort(peer.substring(portStart + 1));
+      addresses.put(id, InetSocketAddress.createUnresolved(host, port));
+    }
+    return addresses;
+  }
+
+  /**
+   * Parses a minlog level name.
+   *
+   * @param level The level name to parse (case-insensitive).
+   * @return The minlog level.
+   * @throws IllegalArgumentException If the level name is unknown.
+   */
+  private static int parseLogLevel(String level) {
+    return switch (level.trim().toLowerCase(Locale.ROOT)) {
+      case "none" -> Log.LEVEL_NONE;
+      case "error" -> Log.LEVEL_ERROR;
+      case "warn" -> Log.LEVEL_WARN;
+      case "info" -> Log.LEVEL_INFO;
+      case "debug" -> Log.LEVEL_DEBUG;
+      case "trace" -> Log.LEVEL_TRACE;
+      default -> throw new IllegalArgumentException("Invalid log level: " + level);
+    };
+  }
+}
@@ -0,0 +1,256 @@
+package com.rivelbop.dossio.bench;
+
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.rivelbop.dossio.networking.Network;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.ServerHandler;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the relay throughput of a local relay mesh as the amount of nodes grows. The receiving
+ * clients are spread over the nodes, and a client on each node sends its share of the packets to
+ * a single room, which every node relays to its own clients.
+ *
+ * <p>Every receiver checks that the packets of each sender arrive in order and only once. Once
+ * delivered, the packets received by every client (on every node) are compared with the packets
+ * sent, so a node that lost or duplicated some of the room's packets shows up as diverged.
+ *
+ * <p>Usage: {@code FederationBenchmark [packets] [payloadBytes] [clients] [nodeCounts...]}. The
+ * nodes run in this process (each with its own update thread and queue threads), to measure
+ * separate processes run {@code ServerLauncher} with {@code --node-id} and {@code --peers}.
+ */
+public final class FederationBenchmark {
+  private static final String IP_ADDRESS = "127.0.0.1";
+  private static final int PORT = 54600;
+  private static final String ROOM = "bench";
+
+  /** The timeout for connecting to a node (milliseconds). */
+  private static final int TIMEOUT = 5000;
+
+  /** The maximum time to wait for the nodes to link, or for every packet to be delivered. */
+  private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+  private FederationBenchmark() {}
+
+  /**
+   * Runs the benchmark for each node count and prints the delivered packet throughput.
+   *
+   * @param args The packets to send, the payload byte size, the receiving clients, and the node
+   *     counts to measure.
+   * @throws IOException If a client fails to connect to a node.
+   */
+  public static void main(String[] args) throws IOException {
+    int packets = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    int[] nodeCounts = {1, 2, 3, 4};
+    if (args.length > 3) {
+      nodeCounts = new int[args.length - 3];
+      for (int i = 3; i < args.length; i++) {
+        nodeCounts[i - 3] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.printf(
+        "cores=%d packets=%d payload=%dB clients=%d%n",
+        Runtime.getRuntime().availableProcessors(), packets, payloadBytes, clients);
+    System.out.printf(
+        "%6s %14s %12s %12s %10s%n", "nodes", "delivered/s", "MB/s", "misordered", "diverged");
+    for (int nodeCount : nodeCounts) {
+      run(nodeCount, packets, payloadBytes, clients);
+    }
+  }
+
+  /**
+   * Relays packets from a sender on each node to every receiver, and prints the throughput once
+   * all are delivered.
+   *
+   * @param nodeCount The amount of nodes in the mesh.
+   * @param packets The amount of packets to send (split between the senders).
+   * @param payloadBytes The byte size of each packet's payload (at least 8).
+   * @param clientCount The amount of receiving clients (spread over the nodes).
+   * @throws IOException If a client fails to connect to a node.
+   */
+  private static void run(int nodeCount, int packets, int payloadBytes, int clientCount)
+      throws IOException {
+    ArrayList<ServerHandler> nodes = startMesh(nodeCount);
+
+    AtomicLong delivered = new AtomicLong();
+    AtomicLong misordered = new AtomicLong();
+    ArrayList<Client> receivers = new ArrayList<>(clientCount);
+    ArrayList<Set<Long>> receivedPackets = new ArrayList<>(clientCount);
+    ArrayList<Client> senders = new ArrayList<>(nodeCount);
+    try {
+      for (int i = 0; i < nodeCount; i++) {
+        senders.add(connect(PORT + i, null));
+      }
+      for (int i = 0; i < clientCount; i++) {
+        ConcurrentHashMap<Long, Long> lastSequences = new ConcurrentHashMap<>();
+        Set<Long> received = ConcurrentHashMap.newKeySet();
+        receivedPackets.add(received);
+        receivers.add(
+            connect(
+                PORT + i % nodeCount,
+                new Listener() {
+                  @Override
+                  public void received(Connection connection, Object object) {
+                    if (object instanceof RelayPacket p) {
+                      // The payload starts with the sender's index and the packet's sequence
+                      ByteBuffer payload = ByteBuffer.wrap(p.payload);
+                      long sender = payload.getInt();
+                      long sequence = payload.getInt();
+                      Long lastSequence = lastSequences.put(sender, sequence);
+                      if (lastSequence != null && lastSequence >= sequence) {
+                        misordered.incrementAndGet();
+                      }
+                      received.add(sender << 32 | sequence);
+                      delivered.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+
+      long expected = (long) packets / nodeCount * nodeCount * clientCount;
+      long startTime = System.nanoTime();
+      ArrayList<Thread> sendThreads = new ArrayList<>(nodeCount);
+      for (int i = 0; i < nodeCount; i++) {
+        int senderIndex = i;
+        Client sender = senders.get(i);
+        sendThreads.add(
+            Thread.ofPlatform()
+                .start(() -> send(sender, senderIndex, packets / nodeCount, payloadBytes)));
+      }
+      for (Thread thread : sendThreads) {
+        thread.join();
+      }
+      while (delivered.get() < expected && System.nanoTime() - startTime < DELIVERY_TIMEOUT) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+
+      // Every client must have received exactly the packets that were sent to the room
+      HashSet<Long> sentPackets = new HashSet<>();
+      for (long sender = 0; sender < nodeCount; sender++) {
+        for (long sequence = 0; sequence < packets / nodeCount; sequence++) {
+          sentPackets.add(sender << 32 | sequence);
+        }
+      }
+      long diverged = receivedPackets.stream().filter(r -> !r.equals(sentPackets)).count();
+
+      System.out.printf(
+          "%6d %14.0f %12.2f %12d %10d%s%n",
+          nodeCount,
+          delivered.get() / seconds,
+          delivered.get() * (double) payloadBytes / seconds / (1024 * 1024),
+          misordered.get(),
+          diverged,
+          delivered.get() < expected ? " (timed out)" : "");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (Client client : senders) {
+        client.stop();
+      }
+      for (Client client : receivers) {
+        client.stop();
+      }
+      for (ServerHandler node : nodes) {
+        node.stop();
+        node.dispose();
+      }
+    }
+  }
+
+  /**
+   * Starts the nodes of a local mesh, and waits until every node is linked to every other node.
+   *
+   * @param nodeCount The amount of nodes.
+   * @return The started nodes.
+   */
+  private static ArrayList<ServerHandler> startMesh(int nodeCount) {
+    ArrayList<ServerHandler> nodes = new ArrayList<>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      HashMap<Integer, InetSocketAddress> peers = new HashMap<>();
+      for (int j = 0; j < nodeCount; j++) {
+        if (j != i) {
+          peers.put(j + 1, InetSocketAddress.createUnresolved(IP_ADDRESS, PORT + j));
+        }
+      }
+
+      ServerHandler node = new ServerHandler();
+      Network.registerClasses(node.getKryo());
+      node.setIpAddress(IP_ADDRESS);
+      node.setPort(PORT + i);
+      node.setNodeId(i + 1);
+      node.setPeers(peers);
+      node.start();
+      nodes.add(node);
+    }
+
+    long startTime = System.nanoTime();
+    while (nodes.stream().anyMatch(node -> node.getLinkedNodeCount() < nodeCount - 1)
+        && System.nanoTime() - startTime < DELIVERY_TIMEOUT) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    return nodes;
+  }
+
+  /**
+   * Sends numbered relay packets from a client.
+   *
+   * @param sender The client to send the packets from.
+   * @param senderIndex The index of the sender (written to each payload).
+   * @param packets The amount of packets to send.
+   * @param payloadBytes The byte size of each packet's payload.
+   */
+  private static void send(Client sender, int senderIndex, int packets, int payloadBytes) {
+    for (int i = 0; i < packets; i++) {
+      RelayPacket packet = new RelayPacket();
+      packet.fileNames = new String[] {"bench.txt"};
+      packet.payload = new byte[Math.max(payloadBytes, 8)];
+      ByteBuffer.wrap(packet.payload).putInt(senderIndex).putInt(i);
+
+      // Avoid overflowing the sender's write buffer
+      while (sender.getTcpWriteBufferSize() > Network.BUFFER_SIZE / 2) {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+      }
+      sender.sendTCP(packet);
+    }
+  }
+
+  /**
+   * Starts and connects a benchmark client to a node, in the benchmark's room.
+   *
+   * @param port The port of the node.
+   * @param listener The listener to add to the client (null for no listener).
+   * @return The connected client.
+   * @throws IOException If the client fails to connect.
+   */
+  private static Client connect(int port, Listener listener) throws IOException {
+    Client client = new Client(Network.BUFFER_SIZE, Network.BUFFER_SIZE);
+    Network.registerClasses(client.getKryo());
+    if (listener != null) {
+      client.addListener(listener);
+    }
+    client.start();
+    client.connect(TIMEOUT, IP_ADDRESS, port, port);
+
+    CatchUpPacket catchUpPacket = new CatchUpPacket();
+    catchUpPacket.room = ROOM;
+    client.sendTCP(catchUpPacket);
+    return client;
+  }
+}
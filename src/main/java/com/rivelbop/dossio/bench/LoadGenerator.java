@@ -0,0 +1,625 @@
+package com.rivelbop.dossio.bench;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.io.FileHandler;
+import com.rivelbop.dossio.io.FileTransferer;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.ClientHandler;
+import com.rivelbop.dossio.networking.ClientListener;
+import com.rivelbop.dossio.networking.Network;
+import com.rivelbop.dossio.networking.ServerHandler;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Simulates a session of many collaborators against a local {@link ServerHandler}, to capacity plan
+ * the relay. Each virtual user is a headless {@link ClientHandler} and {@link FileHandler} with its
+ * own temporary project directory, which is edited by one of the workloads:
+ *
+ * <ul>
+ *   <li>{@code random} - Small line edits of random files, with the occasional file deletion.
+ *   <li>{@code bulk} - Creates new files, every tenth file is large enough to be transferred in
+ *       chunks.
+ *   <li>{@code storm} - {@code git checkout}-style bursts that rewrite, create, and delete about
+ *       half of the user's files at once.
+ * </ul>
+ *
+ * <p>Users only edit the files in their own subdirectory, as concurrent edits of the same file are
+ * not merged. Once the workload ends, the tool waits for every project directory to converge
+ * byte-for-byte and prints the throughput, the traced latency percentiles, and the bytes on the
+ * wire. The exit code is 1 if the directories didn't converge (their paths are printed and kept).
+ *
+ * <p>Usage: {@code LoadGenerator [--users <count>] [--workload <random|bulk|storm>] [--ops
+ * <count>] [--rate <ops/s>] [--files <count>] [--seed <seed>] [--timeout <seconds>]
+ * [--disconnects <count>]}. The ops and rate are per user, a rate of 0 runs the ops as fast as
+ * possible. Each user drops its connection the given amount of times during the workload, spread
+ * evenly over its ops, so the directories only converge if the reconnects catch up correctly.
+ */
+public final class LoadGenerator {
+  private static final String LOG_TAG = "LoadGenerator";
+
+  private static final String IP_ADDRESS = "127.0.0.1";
+  private static final int PORT = 54557;
+
+  private static final String USAGE =
+      "Usage: LoadGenerator [--users <count>] [--workload <random|bulk|storm>] [--ops <count>] "
+          + "[--rate <ops/s>] [--files <count>] [--seed <seed>] [--timeout <seconds>] "
+          + "[--disconnects <count>]";
+
+  /** The maximum time to wait for every user to join the session (nanoseconds). */
+  private static final long JOIN_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+  /** The time given to the file watchers to start watching before the workload (milliseconds). */
+  private static final long WATCHER_WARMUP = 1000;
+
+  /** The time between checks of whether the project directories converged (milliseconds). */
+  private static final long CONVERGENCE_POLL_INTERVAL = 250;
+
+  /** The characters that random lines are made of. */
+  private static final String LINE_CHARACTERS =
+      "abcdefghijklmnopqrstuvwxyz     (){};=+.,0123456789";
+
+  private LoadGenerator() {}
+
+  /**
+   * Runs the workload on every virtual user and reports the results.
+   *
+   * @param args The flags of the run (see the class documentation).
+   * @throws IOException If a project directory fails to be created or deleted.
+   */
+  public static void main(String[] args) throws IOException {
+    int userCount;
+    Workload workload;
+    int ops;
+    int rate;
+    int fileCount;
+    long seed;
+    int timeout;
+    int disconnects;
+    try {
+      Properties config = parseArgs(args);
+      userCount = parsePositive(config, "users", 8);
+      workload = Workload.parse(config.getProperty("workload", "random"));
+      ops = parsePositive(config, "ops", 200);
+      rate = parseInt(config, "rate", 20);
+      fileCount = parsePositive(config, "files", 10);
+      seed = Long.parseLong(config.getProperty("seed", "1").trim());
+      timeout = parsePositive(config, "timeout", 120);
+      disconnects = parseInt(config, "disconnects", 0);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+    Log.set(Log.LEVEL_WARN); // Every file event is logged at the info level
+
+    ServerHandler serverHandler = new ServerHandler();
+    Network.registerClasses(serverHandler.getKryo());
+    serverHandler.setIpAddress(IP_ADDRESS);
+    serverHandler.setPort(PORT);
+    serverHandler.start();
+
+    System.out.printf(
+        "cores=%d users=%d workload=%s ops=%d rate=%d/s files=%d seed=%d disconnects=%d%n",
+        Runtime.getRuntime().availableProcessors(),
+        userCount,
+        workload.name().toLowerCase(Locale.ROOT),
+        ops,
+        rate,
+        fileCount,
+        seed,
+        disconnects);
+
+    ArrayList<VirtualUser> users = new ArrayList<>(userCount);
+    boolean converged = false;
+    try {
+      for (int i = 0; i < userCount; i++) {
+        users.add(new VirtualUser(i));
+      }
+      for (VirtualUser user : users) {
+        user.connect();
+      }
+      awaitSession(users);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WATCHER_WARMUP));
+
+      // Run the workload of every user at the same time
+      AtomicLong completedOps = new AtomicLong();
+      long startTime = System.nanoTime();
+      ArrayList<Thread> threads = new ArrayList<>(userCount);
+      for (VirtualUser user : users) {
+        Random random = new Random(seed + user.index);
+        threads.add(
+            Thread.ofVirtual()
+                .name("LoadWorkload-" + user.index)
+                .start(
+                    () ->
+                        user.run(
+                            workload, random, ops, rate, fileCount, disconnects, completedOps)));
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      double workloadSeconds = (System.nanoTime() - startTime) / 1e9;
+
+      long convergeStartTime = System.nanoTime();
+      converged = awaitConvergence(users, TimeUnit.SECONDS.toNanos(timeout));
+      double convergeSeconds = (System.nanoTime() - convergeStartTime) / 1e9;
+
+      report(completedOps.get(), workloadSeconds, converged, convergeSeconds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (VirtualUser user : users) {
+        user.close();
+      }
+      serverHandler.stop();
+      serverHandler.dispose();
+
+      for (VirtualUser user : users) {
+        if (converged) {
+          FileUtils.delete(user.directory.toFile(), FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+        } else {
+          System.out.println("kept " + user.directory);
+        }
+      }
+    }
+
+    // The watcher and network threads would otherwise keep the process running
+    System.exit(converged ? 0 : 1);
+  }
+
+  /**
+   * Waits for every user to know about every other user in the session.
+   *
+   * @param users The users of the session.
+   * @throws IllegalStateException If the users fail to join in time.
+   */
+  private static void awaitSession(List<VirtualUser> users) {
+    long startTime = System.nanoTime();
+    for (VirtualUser user : users) {
+      while (user.clientHandler.getClients().size() < users.size() - 1) {
+        if (System.nanoTime() - startTime > JOIN_TIMEOUT) {
+          throw new IllegalStateException("Users failed to join the session in time!");
+        }
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+      }
+    }
+  }
+
+  /**
+   * Waits for every project directory to hold the same files with the same bytes.
+   *
+   * @param users The users whose project directories are compared.
+   * @param timeout The maximum time to wait (nanoseconds).
+   * @return Whether the project directories converged before the timeout.
+   */
+  private static boolean awaitConvergence(List<VirtualUser> users, long timeout) {
+    long startTime = System.nanoTime();
+    while (!isConverged(users)) {
+      if (System.nanoTime() - startTime > timeout) {
+        return false;
+      }
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CONVERGENCE_POLL_INTERVAL));
+    }
+    return true;
+  }
+
+  /**
+   * Compares the project directories of every user to the first user's directory, the files and
+   * their sizes are compared first and then their bytes.
+   *
+   * @param users The users whose project directories are compared.
+   * @return Whether every project directory holds the same files with the same bytes.
+   */
+  private static boolean isConverged(List<VirtualUser> users) {
+    Path expectedDirectory = users.getFirst().directory;
+    Map<String, Long> expectedFiles = listFiles(expectedDirectory);
+    if (expectedFiles == null) {
+      return false;
+    }
+
+    for (VirtualUser user : users.subList(1, users.size())) {
+      if (!expectedFiles.equals(listFiles(user.directory))) {
+        return false;
+      }
+    }
+
+    try {
+      for (String fileName : expectedFiles.keySet()) {
+        Path expectedFile = expectedDirectory.resolve(fileName);
+        for (VirtualUser user : users.subList(1, users.size())) {
+          if (Files.mismatch(expectedFile, user.directory.resolve(fileName)) != -1) {
+            return false;
+          }
+        }
+      }
+    } catch (IOException e) {
+      return false; // A file changed while being compared
+    }
+    return true;
+  }
+
+  /**
+   * Lists the synced files of a project directory (dotfiles, like the temporary directory, are
+   * never synced).
+   *
+   * @param directory The project directory to list the files of.
+   * @return The byte size of each file by its relative path, null if the directory changed while
+   *     being listed.
+   */
+  @CheckForNull
+  private static Map<String, Long> listFiles(Path directory) {
+    TreeMap<String, Long> files = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        Path relativePath = directory.relativize(path);
+        if (!Files.isRegularFile(path) || isDotfile(relativePath)) {
+          continue;
+        }
+        files.put(FileHandler.pathToNetworkString(relativePath), Files.size(path));
+      }
+    } catch (IOException | UncheckedIOException e) {
+      return null;
+    }
+    return files;
+  }
+
+  private static boolean isDotfile(Path relativePath) {
+    for (Path name : relativePath) {
+      if (name.toString().startsWith(".")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Prints the workload throughput, convergence time, bytes on the wire, and the traced latency of
+   * file changes (these metrics are shared by every user in this process).
+   *
+   * @param completedOps The amount of ops run by all users.
+   * @param workloadSeconds The time it took to run the workload.
+   * @param converged Whether the project directories converged.
+   * @param convergeSeconds The time it took to converge after the workload.
+   */
+  private static void report(
+      long completedOps, double workloadSeconds, boolean converged, double convergeSeconds) {
+    System.out.printf(
+        "workload: %d ops in %.2f s (%.0f ops/s)%n",
+        completedOps, workloadSeconds, completedOps / workloadSeconds);
+    System.out.printf(
+        "converged: %s after %.2f s%n", converged ? "yes" : "NO (timed out)", convergeSeconds);
+
+    double sentPackets = 0;
+    double sentBytes = 0;
+    double receivedBytes = 0;
+    TreeMap<String, Double> traceValues = new TreeMap<>();
+    for (Map.Entry<String, Double> entry : Metrics.getValues().entrySet()) {
+      String key = entry.getKey();
+      if (key.startsWith("dossio_packets_sent_total")) {
+        sentPackets += entry.getValue();
+      } else if (key.startsWith("dossio_bytes_sent_total")) {
+        sentBytes += entry.getValue();
+      } else if (key.startsWith("dossio_bytes_received_total")) {
+        receivedBytes += entry.getValue();
+      } else if (key.startsWith("dossio_trace_")) {
+        traceValues.put(key, entry.getValue());
+      }
+    }
+    double totalSeconds = workloadSeconds + convergeSeconds;
+    System.out.printf(
+        "sent: %.0f packets, %.2f MB (%.2f MB/s)%n",
+        sentPackets, sentBytes / (1024 * 1024), sentBytes / (1024 * 1024) / totalSeconds);
+    System.out.printf(
+        "received: %.2f MB of content (%.2f MB/s)%n",
+        receivedBytes / (1024 * 1024), receivedBytes / (1024 * 1024) / totalSeconds);
+
+    for (Map.Entry<String, Double> entry : traceValues.entrySet()) {
+      String key = entry.getKey();
+      if (key.endsWith(" p50") || key.endsWith(" p99")) {
+        System.out.printf("%-60s %10.2f ms%n", key, entry.getValue() * 1000);
+      } else if (key.endsWith(" count")) {
+        System.out.printf("%-60s %10.0f%n", key, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Reads the flags into their config values.
+   *
+   * @param args The program arguments to parse.
+   * @return The config values of the run.
+   * @throws IllegalArgumentException If a flag is unknown or is missing its value.
+   */
+  private static Properties parseArgs(String[] args) {
+    Properties config = new Properties();
+    for (int i = 0; i < args.length; i++) {
+      String key =
+          switch (args[i]) {
+            case "-u", "--users" -> "users";
+            case "-w", "--workload" -> "workload";
+            case "-o", "--ops" -> "ops";
+            case "-r", "--rate" -> "rate";
+            case "-f", "--files" -> "files";
+            case "-s", "--seed" -> "seed";
+            case "-t", "--timeout" -> "timeout";
+            case "-d", "--disconnects" -> "disconnects";
+            default -> throw new IllegalArgumentException("Unknown flag: " + args[i]);
+          };
+      if (++i >= args.length) {
+        throw new IllegalArgumentException("Missing value for flag: " + args[i - 1]);
+      }
+      config.setProperty(key, args[i]);
+    }
+    return config;
+  }
+
+  /**
+   * Parses a config value that can't be negative.
+   *
+   * @param config The config values.
+   * @param key The key of the value to parse.
+   * @param defaultValue The value to use if the key isn't set.
+   * @return The parsed value.
+   * @throws IllegalArgumentException If the value is not a number or is negative.
+   */
+  private static int parseInt(Properties config, String key, int defaultValue) {
+    String value = config.getProperty(key, "" + defaultValue);
+    try {
+      int number = Integer.parseInt(value.trim());
+      if (number < 0) {
+        throw new IllegalArgumentException("Negative " + key + ": " + value);
+      }
+      return number;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+    }
+  }
+
+  private static int parsePositive(Properties config, String key, int defaultValue) {
+    int number = parseInt(config, key, defaultValue);
+    if (number == 0) {
+      throw new IllegalArgumentException("The " + key + " must be positive!");
+    }
+    return number;
+  }
+
+  /** The editing workloads that the virtual users can run. */
+  private enum Workload {
+    RANDOM,
+    BULK,
+    STORM;
+
+    /**
+     * Parses a workload name.
+     *
+     * @param name The workload name to parse (case-insensitive).
+     * @return The workload.
+     * @throws IllegalArgumentException If the workload name is unknown.
+     */
+    private static Workload parse(String name) {
+      try {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid workload: " + name, e);
+      }
+    }
+  }
+
+  /** A simulated collaborator, with its own client, file handler, and project directory. */
+  private static final class VirtualUser {
+    private final int index;
+    private final Path directory;
+    private final Path ownDirectory;
+
+    private final ClientHandler clientHandler = new ClientHandler();
+    private final ExecutorService listenerExecutor;
+    private final FileHandler fileHandler;
+
+    /**
+     * Creates the user's project directory, file handler, and client (without connecting it).
+     *
+     * @param index The index of the user (used for its name, seed, and subdirectory).
+     * @throws IOException If the project directory fails to be created.
+     */
+    private VirtualUser(int index) throws IOException {
+      this.index = index;
+      directory = Files.createTempDirectory("dossio-load-");
+      ownDirectory = directory.resolve("user" + index);
+
+      Network.registerClasses(clientHandler.getKryo());
+      clientHandler.setIpAddress(IP_ADDRESS);
+      clientHandler.setPort(PORT);
+      clientHandler.setUsername("user" + index);
+
+      // Packets are handled on the user's own thread, in the order they are received
+      listenerExecutor =
+          Executors.newSingleThreadExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "LoadUser-" + index);
+                thread.setDaemon(true);
+                return thread;
+              });
+      clientHandler.setListenerExecutor(listenerExecutor);
+
+      fileHandler = new FileHandler(clientHandler, directory.toFile(), false);
+      clientHandler.setClientListener(
+          new ClientListener() {
+            @Override
+            public void connected(Connection connection) {
+              fileHandler.resumeTransfers();
+            }
+
+            @Override
+            public void received(Connection connection, Object object) {
+              fileHandler.receive(object);
+            }
+
+            @Override
+            public void disconnected(Connection connection) {
+              // Intentionally left empty
+            }
+          });
+    }
+
+    private void connect() {
+      clientHandler.connect();
+    }
+
+    /**
+     * Runs the user's workload, paced to the given rate.
+     *
+     * @param workload The workload to run.
+     * @param random The source of the user's edits.
+     * @param ops The amount of ops to run.
+     * @param rate The ops to run per second (0 to run them as fast as possible).
+     * @param fileCount The amount of files the user edits.
+     * @param disconnects The amount of times to drop the user's connection.
+     * @param completedOps The counter of the ops run by all users.
+     */
+    private void run(
+        Workload workload,
+        Random random,
+        int ops,
+        int rate,
+        int fileCount,
+        int disconnects,
+        AtomicLong completedOps) {
+      long interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+      long startTime = System.nanoTime();
+      int dropped = 0;
+      for (int op = 0; op < ops; op++) {
+        long delay = startTime + op * interval - System.nanoTime();
+        if (delay > 0) {
+          LockSupport.parkNanos(delay);
+        }
+
+        // Drop the connection at evenly spaced ops, the user keeps editing while it reconnects
+        if (dropped < disconnects && op >= (long) (dropped + 1) * ops / (disconnects + 1)) {
+          clientHandler.dropConnection();
+          dropped++;
+        }
+
+        try {
+          switch (workload) {
+            case RANDOM -> editRandomFile(random, fileCount);
+            case BULK -> createBulkFile(random, op);
+            case STORM -> checkout(random, fileCount);
+          }
+        } catch (IOException e) {
+          Log.error(LOG_TAG, "Failed to run op of user " + index + "!", e);
+          continue;
+        }
+        completedOps.incrementAndGet();
+      }
+    }
+
+    /** Edits a few lines of a random file (creating or deleting it at times). */
+    private void editRandomFile(Random random, int fileCount) throws IOException {
+      Path file = ownDirectory.resolve("file" + random.nextInt(fileCount) + ".txt");
+      if (!Files.exists(file)) {
+        write(file, randomLines(random, 1 + random.nextInt(40)));
+      } else if (random.nextInt(100) < 5) {
+        Files.delete(file);
+      } else {
+        editLines(file, random, 1 + random.nextInt(3));
+      }
+    }
+
+    /** Creates a new file, every tenth file is larger than the chunked transfer threshold. */
+    private void createBulkFile(Random random, int op) throws IOException {
+      int lineCount = 1 + random.nextInt(100);
+      if (op % 10 == 9) {
+        lineCount += FileTransferer.TRANSFER_THRESHOLD / 40; // Lines average 45 bytes
+      }
+      write(ownDirectory.resolve("bulk" + op + ".txt"), randomLines(random, lineCount));
+    }
+
+    /** Changes about half of the user's files at once, like switching to another branch. */
+    private void checkout(Random random, int fileCount) throws IOException {
+      for (int i = 0; i < fileCount; i++) {
+        if (random.nextBoolean()) {
+          continue;
+        }
+
+        Path file = ownDirectory.resolve("src" + i + ".txt");
+        if (!Files.exists(file)) {
+          write(file, randomLines(random, 1 + random.nextInt(200)));
+        } else if (random.nextInt(4) == 0) {
+          Files.delete(file);
+        } else {
+          editLines(file, random, 1 + random.nextInt(20));
+        }
+      }
+    }
+
+    /** Replaces, inserts, or deletes random lines of a file. */
+    private static void editLines(Path file, Random random, int edits) throws IOException {
+      ArrayList<String> lines = new ArrayList<>(Files.readAllLines(file));
+      for (int i = 0; i < edits; i++) {
+        int index = random.nextInt(lines.size() + 1);
+        int action = random.nextInt(3);
+        if (index == lines.size() || action == 0) {
+          lines.add(index, randomLine(random));
+        } else if (action == 1) {
+          lines.set(index, randomLine(random));
+        } else {
+          lines.remove(index);
+        }
+      }
+      write(file, lines);
+    }
+
+    private static void write(Path file, List<String> lines) throws IOException {
+      Files.createDirectories(file.getParent());
+      Files.write(file, lines);
+    }
+
+    private static List<String> randomLines(Random random, int count) {
+      ArrayList<String> lines = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        lines.add(randomLine(random));
+      }
+      return lines;
+    }
+
+    private static String randomLine(Random random) {
+      char[] line = new char[10 + random.nextInt(70)];
+      for (int i = 0; i < line.length; i++) {
+        line[i] = LINE_CHARACTERS.charAt(random.nextInt(LINE_CHARACTERS.length()));
+      }
+      return new String(line);
+    }
+
+    /** Stops the user's file handler and client. */
+    private void close() {
+      fileHandler.close();
+      clientHandler.stop();
+      try {
+        clientHandler.dispose();
+      } catch (RuntimeException e) {
+        Log.error(LOG_TAG, "Failed to dispose client of user " + index + "!", e);
+      }
+      listenerExecutor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.rivelbop.dossio.bench;
+
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.rivelbop.dossio.networking.Network;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.ServerHandler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.CheckForNull;
+
+/**
+ * Measures the relay throughput of a local {@link ServerHandler} as the amount of connected clients
+ * grows. A single client sends relay packets, which the server fans out to every other client.
+ *
+ * <p>Usage: {@code RelayBenchmark [packets] [payloadBytes] [clientCounts...]}. This measures how
+ * the fan-out holds up as clients are added, not how it scales with cores: the packets are read
+ * and deserialized by Kryonet's single update thread, and written through its shared (synchronized)
+ * serialization. The per-client queues only keep a slow client from stalling the others.
+ */
+public final class RelayBenchmark {
+  private static final String IP_ADDRESS = "127.0.0.1";
+  private static final int PORT = 54556;
+
+  /** The timeout for connecting to the server (milliseconds). */
+  private static final int TIMEOUT = 5000;
+
+  /** The maximum time to wait for every packet to be delivered (nanoseconds). */
+  private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+  private RelayBenchmark() {}
+
+  /**
+   * Runs the benchmark for each client count and prints the delivered packet throughput.
+   *
+   * @param args The packets to send, the payload byte size, and the client counts to measure.
+   * @throws IOException If a client fails to connect to the server.
+   */
+  public static void main(String[] args) throws IOException {
+    int packets = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    int[] clientCounts = {10, 50, 100, 250, 500};
+    if (args.length > 2) {
+      clientCounts = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        clientCounts[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.printf(
+        "cores=%d packets=%d payload=%dB%n",
+        Runtime.getRuntime().availableProcessors(), packets, payloadBytes);
+    System.out.printf("%8s %14s %12s%n", "clients", "delivered/s", "MB/s");
+    for (int clientCount : clientCounts) {
+      run(clientCount, packets, payloadBytes);
+    }
+  }
+
+  /**
+   * Relays packets from one client to the rest, and prints the throughput once all are delivered.
+   *
+   * @param clientCount The amount of receiving clients.
+   * @param packets The amount of packets to send.
+   * @param payloadBytes The byte size of each packet's payload.
+   * @throws IOException If a client fails to connect to the server.
+   */
+  private static void run(int clientCount, int packets, int payloadBytes) throws IOException {
+    ServerHandler serverHandler = new ServerHandler();
+    Network.registerClasses(serverHandler.getKryo());
+    serverHandler.setIpAddress(IP_ADDRESS);
+    serverHandler.setPort(PORT);
+    serverHandler.start();
+
+    AtomicLong delivered = new AtomicLong();
+    ArrayList<Client> receivers = new ArrayList<>(clientCount);
+    Client sender = connect(null);
+    try {
+      for (int i = 0; i < clientCount; i++) {
+        receivers.add(
+            connect(
+                new Listener() {
+                  @Override
+                  public void received(Connection connection, Object object) {
+                    if (object instanceof RelayPacket) {
+                      delivered.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+
+      RelayPacket packet = new RelayPacket();
+      packet.fileNames = new String[] {"bench.txt"};
+      packet.payload = new byte[payloadBytes];
+
+      long expected = (long) packets * clientCount;
+      long startTime = System.nanoTime();
+      for (int i = 0; i < packets; i++) {
+        // Avoid overflowing the sender's write buffer
+        while (sender.getTcpWriteBufferSize() > Network.BUFFER_SIZE / 2) {
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        sender.sendTCP(packet);
+      }
+      while (delivered.get() < expected && System.nanoTime() - startTime < DELIVERY_TIMEOUT) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+
+      System.out.printf(
+          "%8d %14.0f %12.2f%s%n",
+          clientCount,
+          delivered.get() / seconds,
+          delivered.get() * (double) payloadBytes / seconds / (1024 * 1024),
+          delivered.get() < expected ? " (timed out)" : "");
+    } finally {
+      sender.stop();
+      for (Client receiver : receivers) {
+        receiver.stop();
+      }
+      serverHandler.stop();
+      serverHandler.dispose();
+    }
+  }
+
+  /**
+   * Starts and connects a benchmark client to the local server.
+   *
+   * @param listener The listener to add to the client (null for no listener).
+   * @return The connected client.
+   * @throws IOException If the client fails to connect.
+   */
+  private static Client connect(@CheckForNull Listener listener) throws IOException {
+    Client client = new Client(Network.BUFFER_SIZE, Network.BUFFER_SIZE);
+    Network.registerClasses(client.getKryo());
+    if (listener != null) {
+      client.addListener(listener);
+    }
+    client.start();
+    client.connect(TIMEOUT, IP_ADDRESS, PORT, PORT);
+
+    // The server holds back relayed packets until a client asks to catch up (with nothing to
+    // catch up on, like a new client)
+    client.sendTCP(new CatchUpPacket());
+    return client;
+  }
+}
@@ -0,0 +1,255 @@
+package com.rivelbop.dossio.bench;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
+import com.rivelbop.dossio.io.ByteLine;
+import com.rivelbop.dossio.networking.Network;
+import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
+import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
+import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
+import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.DirectPacket;
+import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
+import com.rivelbop.dossio.networking.Packet.EditPacket;
+import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkAckPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import com.rivelbop.dossio.networking.Packet.ProbePacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.eclipse.jgit.diff.Edit;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+/**
+ * Compares the packet serializers of {@link Network#registerClasses(Kryo)} with Kryo's reflective
+ * field serializers, by the byte size of each sample packet and the time to write and read it.
+ *
+ * <p>Usage: {@code SerializerBenchmark [iterations]}. Each packet is written and read the given
+ * amount of times (after as many warmup iterations) with a reused output and input, the way
+ * Kryonet's connections reuse their buffers.
+ */
+public final class SerializerBenchmark {
+  private SerializerBenchmark() {}
+
+  /**
+   * Serializes each sample packet with both Kryo instances and prints the results.
+   *
+   * @param args The amount of iterations per packet.
+   */
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+    Kryo reflective = createReflectiveKryo();
+    Kryo tuned = new Kryo();
+    Network.registerClasses(tuned);
+
+    // Warm up every packet first, so the first rows aren't measured with less compiled code
+    Map<String, Object> samples = createSamples();
+    for (Object packet : samples.values()) {
+      measure(reflective, packet, iterations);
+      measure(tuned, packet, iterations);
+    }
+
+    System.out.printf(
+        "%-24s %10s %10s %12s %12s%n",
+        "packet", "field B", "tuned B", "field ns", "tuned ns");
+    for (Map.Entry<String, Object> sample : samples.entrySet()) {
+      Object packet = sample.getValue();
+      System.out.printf(
+          "%-24s %10d %10d %12.1f %12.1f%n",
+          sample.getKey(),
+          getByteSize(reflective, packet),
+          getByteSize(tuned, packet),
+          measure(reflective, packet, iterations),
+          measure(tuned, packet, iterations));
+    }
+  }
+
+  /**
+   * Creates a Kryo instance that serializes the packets with its default (reflective) serializers,
+   * registered in the same order as the network's classes (classes without a no-arg constructor
+   * are created through Objenesis).
+   *
+   * @return The created Kryo instance.
+   */
+  private static Kryo createReflectiveKryo() {
+    Kryo kryo = new Kryo();
+    kryo.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+    kryo.register(ClientDataPacket.class);
+    kryo.register(DisconnectClientPacket.class);
+    kryo.register(ProbePacket.class);
+    kryo.register(PresencePacket.class);
+    kryo.register(CreateFilePacket.class);
+    kryo.register(DeleteFilePacket.class);
+    kryo.register(MoveFilePacket.class);
+    kryo.register(CreateTreePacket.class);
+    kryo.register(BeginEditPacket.class);
+    kryo.register(Edit.Type.class);
+    kryo.register(String[].class);
+    kryo.register(byte[].class);
+    kryo.register(ByteLine.class);
+    kryo.register(ByteLine[].class);
+    kryo.register(EditPacket.class);
+    kryo.register(EditPacket[].class);
+    kryo.register(EndEditPacket.class);
+    kryo.register(EditBatchPacket.class);
+    kryo.register(EditBatchPacket[].class);
+    kryo.register(ChangesetPacket.class);
+    kryo.register(Trace.class);
+    kryo.register(FileChunkPacket.class);
+    kryo.register(FileChunkAckPacket.class);
+    kryo.register(FileChunkResumePacket.class);
+    kryo.register(RelayPacket.class);
+    kryo.register(DirectPacket.class);
+    kryo.register(ResyncPacket.class);
+    return kryo;
+  }
+
+  /**
+   * Creates a sample of each common packet, with typical field values.
+   *
+   * @return The sample packets by their names.
+   */
+  private static Map<String, Object> createSamples() {
+    Random random = new Random(1);
+    LinkedHashMap<String, Object> samples = new LinkedHashMap<>();
+
+    ClientDataPacket clientData = new ClientDataPacket();
+    clientData.username = "username";
+    clientData.id = 3;
+    samples.put("ClientData", clientData);
+
+    ProbePacket probe = new ProbePacket();
+    probe.clientTime = System.nanoTime();
+    probe.serverTime = System.nanoTime();
+    samples.put("Probe", probe);
+
+    PresencePacket presence = new PresencePacket();
+    presence.id = 3;
+    presence.sequence = 1200;
+    presence.fileHash = random.nextInt();
+    presence.line = 140;
+    presence.lineCount = 3;
+    presence.idleTime = 800;
+    samples.put("Presence", presence);
+
+    CreateFilePacket createFile = new CreateFilePacket();
+    createFile.fileName = "src/main/java/Example.java";
+    samples.put("CreateFile", createFile);
+
+    MoveFilePacket moveFile = new MoveFilePacket();
+    moveFile.fileName = "src/main/java/Example.java";
+    moveFile.newFileName = "src/main/java/Renamed.java";
+    samples.put("MoveFile", moveFile);
+
+    EditPacket replace = createEdit(Edit.Type.REPLACE, 140, 141, "    return example + 1;");
+    EditPacket insert = createEdit(Edit.Type.INSERT, 150, 150, "", "  // Example", "  }");
+    EditPacket delete = createEdit(Edit.Type.DELETE, 160, 162);
+    samples.put("Edit", replace);
+
+    EditBatchPacket batch = new EditBatchPacket();
+    batch.fileName = replace.fileName;
+    batch.edits = new EditPacket[] {replace, insert, delete};
+    samples.put("EditBatch", batch);
+
+    Trace trace = new Trace();
+    trace.traceId = random.nextLong();
+    trace.detectTime = System.currentTimeMillis() * 1000;
+    trace.diffTime = trace.detectTime + 150;
+    trace.sendTime = trace.diffTime + 40;
+    EndEditPacket endEdit = new EndEditPacket();
+    endEdit.fileName = replace.fileName;
+    endEdit.trace = trace;
+    samples.put("EndEdit (traced)", endEdit);
+
+    ChangesetPacket changeset = new ChangesetPacket();
+    changeset.batches = new EditBatchPacket[] {batch, batch};
+    samples.put("Changeset", changeset);
+
+    FileChunkPacket chunk = new FileChunkPacket();
+    chunk.fileName = createFile.fileName;
+    chunk.transferId = random.nextLong();
+    chunk.senderKey = random.nextInt();
+    chunk.offset = 32768;
+    chunk.fileSize = 100000;
+    chunk.checksum = random.nextInt();
+    chunk.data = new byte[256];
+    random.nextBytes(chunk.data);
+    samples.put("FileChunk (256 B)", chunk);
+
+    FileChunkAckPacket ack = new FileChunkAckPacket();
+    ack.transferId = chunk.transferId;
+    ack.offset = chunk.offset;
+    samples.put("FileChunkAck", ack);
+
+    ResyncPacket resync = new ResyncPacket();
+    resync.fileNames = new String[] {createFile.fileName, moveFile.newFileName};
+    resync.targetId = 3;
+    samples.put("Resync", resync);
+    return samples;
+  }
+
+  private static EditPacket createEdit(Edit.Type type, int start, int end, String... lines) {
+    EditPacket packet = new EditPacket();
+    packet.fileName = "src/main/java/Example.java";
+    packet.type = type;
+    packet.start = start;
+    packet.end = end;
+    if (type != Edit.Type.DELETE) {
+      packet.lines = new ByteLine[lines.length];
+      for (int i = 0; i < lines.length; i++) {
+        packet.lines[i] = ByteLine.of((lines[i] + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return packet;
+  }
+
+  private static int getByteSize(Kryo kryo, Object packet) {
+    Output output = new Output(Network.BUFFER_SIZE);
+    kryo.writeClassAndObject(output, packet);
+    return output.position();
+  }
+
+  /**
+   * Writes and reads a packet many times with a reused output and input.
+   *
+   * @param kryo The Kryo instance to serialize the packet with.
+   * @param packet The packet to serialize.
+   * @param iterations The amount of measured iterations.
+   * @return The average time to write and read the packet once (nanoseconds).
+   */
+  private static double measure(Kryo kryo, Object packet, int iterations) {
+    Output output = new Output(Network.BUFFER_SIZE);
+    Input input = new Input(output.getBuffer());
+    long checksum = 0;
+    long startTime = 0;
+    for (int i = -iterations; i < iterations; i++) {
+      if (i == 0) {
+        startTime = System.nanoTime();
+      }
+      output.reset();
+      kryo.writeClassAndObject(output, packet);
+      input.setPosition(0);
+      input.setLimit(output.position());
+      checksum += kryo.readClassAndObject(input).hashCode() & 1;
+    }
+    long time = System.nanoTime() - startTime;
+    if (checksum < 0) {
+      System.out.println(checksum); // Keeps the reads from being optimized away
+    }
+    return (double) time / iterations;
+  }
+}
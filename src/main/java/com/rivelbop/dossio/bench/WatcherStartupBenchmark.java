@@ -0,0 +1,131 @@
+package com.rivelbop.dossio.bench;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.rivelbop.dossio.io.FastFileHasher;
+import io.methvin.watcher.DirectoryWatcher;
+import io.methvin.watcher.hashing.FileHasher;
+import io.methvin.watcher.visitor.DefaultFileTreeVisitor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import javax.annotation.CheckForNull;
+
+/**
+ * Measures the startup time of the project's directory watcher on a large generated tree, with
+ * each file hasher. The watcher registers (and hashes) every file before it starts watching, which
+ * DossIO waits for when a project is opened.
+ *
+ * <p>Usage: {@code WatcherStartupBenchmark [files] [fileBytes] [largeFiles] [largeFileBytes]}.
+ * The first run of each hasher reads from the page cache that the tree was just written to, so the
+ * times are of a warm cache (the cost of hashing, not of the disk).
+ */
+public final class WatcherStartupBenchmark {
+  /** The amount of files in each generated directory. */
+  private static final int FILES_PER_DIRECTORY = 100;
+
+  /** The amount of times the watcher is started with each hasher. */
+  private static final int RUNS = 3;
+
+  private WatcherStartupBenchmark() {}
+
+  /**
+   * Generates the tree, starts a watcher on it with each file hasher, and prints the startup times.
+   *
+   * @param args The amount of small files, their byte size, the amount of large files, and their
+   *     byte size.
+   * @throws IOException If the tree fails to be generated or watched.
+   */
+  public static void main(String[] args) throws IOException {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int fileBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+    int largeFiles = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+    int largeFileBytes = args.length > 3 ? Integer.parseInt(args[3]) : 32 * 1024 * 1024;
+
+    Path tree = Files.createTempDirectory("dossio-watcher-bench");
+    try {
+      generate(tree, files, fileBytes, largeFiles, largeFileBytes);
+      System.out.printf(
+          "files=%d x %dB, large=%d x %dB%n", files, fileBytes, largeFiles, largeFileBytes);
+      System.out.printf("%-24s %10s %10s%n", "hasher", "best ms", "median ms");
+
+      run(tree, "murmur3 (default)", FileHasher.DEFAULT_FILE_HASHER);
+      run(tree, "crc32c", new FastFileHasher(Long.MAX_VALUE));
+      run(
+          tree,
+          "crc32c + metadata",
+          new FastFileHasher(FastFileHasher.DEFAULT_CONTENT_HASH_LIMIT));
+      run(tree, "last modified", FileHasher.LAST_MODIFIED_TIME);
+      run(tree, "none", null);
+    } finally {
+      MoreFiles.deleteRecursively(tree, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  /**
+   * Generates a tree of files with random content.
+   *
+   * @param tree The directory to generate the files in.
+   * @param files The amount of small files.
+   * @param fileBytes The byte size of each small file.
+   * @param largeFiles The amount of large files.
+   * @param largeFileBytes The byte size of each large file.
+   * @throws IOException If a file fails to be written.
+   */
+  private static void generate(
+      Path tree, int files, int fileBytes, int largeFiles, int largeFileBytes) throws IOException {
+    Random random = new Random(1);
+    byte[] bytes = new byte[fileBytes];
+    for (int i = 0; i < files; i++) {
+      Path directory = Files.createDirectories(tree.resolve("dir" + i / FILES_PER_DIRECTORY));
+      random.nextBytes(bytes);
+      Files.write(directory.resolve("file" + i + ".txt"), bytes);
+    }
+
+    byte[] chunk = new byte[1024 * 1024];
+    Path largeDirectory = Files.createDirectories(tree.resolve("large"));
+    for (int i = 0; i < largeFiles; i++) {
+      try (OutputStream out = Files.newOutputStream(largeDirectory.resolve("large" + i + ".bin"))) {
+        for (int written = 0; written < largeFileBytes; written += chunk.length) {
+          random.nextBytes(chunk);
+          out.write(chunk, 0, Math.min(chunk.length, largeFileBytes - written));
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts and closes a watcher on the tree several times, and prints the startup times.
+   *
+   * @param tree The directory to watch.
+   * @param name The name of the file hasher.
+   * @param hasher The file hasher of the watcher (null to disable file hashing).
+   * @throws IOException If the watcher fails to be created.
+   */
+  private static void run(Path tree, String name, @CheckForNull FileHasher hasher)
+      throws IOException {
+    double[] times = new double[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      DirectoryWatcher.Builder builder =
+          DirectoryWatcher.builder()
+              .path(tree)
+              .listener(event -> {})
+              .fileTreeVisitor(new DefaultFileTreeVisitor());
+      DirectoryWatcher watcher =
+          hasher != null
+              ? builder.fileHasher(hasher).build()
+              : builder.fileHashing(false).build();
+
+      long startTime = System.nanoTime();
+      watcher.watchAsync(); // Returns once every file is registered (and hashed)
+      times[i] = (System.nanoTime() - startTime) / 1e6;
+      watcher.close();
+    }
+
+    Arrays.sort(times);
+    System.out.printf("%-24s %10.1f %10.1f%n", name, times[0], times[RUNS / 2]);
+  }
+}
@@ -0,0 +1,283 @@
+package com.rivelbop.dossio.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+
+/**
+ * Persists the baselines (the temporary copies that file changes are compared to) of a project
+ * between sessions, so they don't need to be copied again when the project is reopened.
+ *
+ * <p>The baselines are stored in the project's {@value #DATA_DIRECTORY} directory, along with an
+ * index of the size, modification time, and content hash of each file when its baseline was saved.
+ * On load, a baseline is reused if its file still has the same size and modification time (a
+ * single stat call), or the same content if it was only touched. The index is deleted once loaded
+ * and is saved again when the project is closed, so the baselines of a session that crashed are
+ * never trusted.
+ */
+final class BaselineIndex {
+  /** The name of the project directory that DossIO's persistent data is stored in. */
+  static final String DATA_DIRECTORY = ".dossio";
+
+  private static final String LOG_TAG = "BaselineIndex";
+
+  private static final int MAGIC = 0x444F5349; // "DOSI"
+  private static final int VERSION = 1;
+
+  private final Path projectDirectory;
+  private final Path baselineDirectory;
+  private final Path indexPath;
+
+  /** The entries that were loaded, their hashes are reused when saving unchanged files. */
+  private final HashMap<String, Entry> loadedEntries = new HashMap<>();
+
+  /**
+   * Creates the index of a project (without loading it).
+   *
+   * @param projectDirectory The project directory.
+   * @throws IOException If the baseline directory fails to be created.
+   */
+  BaselineIndex(Path projectDirectory) throws IOException {
+    this.projectDirectory = projectDirectory;
+    Path dataDirectory = projectDirectory.resolve(DATA_DIRECTORY);
+    baselineDirectory = Files.createDirectories(dataDirectory.resolve("baselines"));
+    indexPath = dataDirectory.resolve("index");
+  }
+
+  /**
+   * Gets the directory to store the baselines in.
+   *
+   * @return The baseline directory.
+   */
+  Path getBaselineDirectory() {
+    return baselineDirectory;
+  }
+
+  /**
+   * Loads the index and validates the baseline of each file, the baselines of changed files (and
+   * baselines without an entry) are deleted.
+   *
+   * @return The reusable baseline path of each file (by the file's absolute path).
+   */
+  Map<Path, Path> load() {
+    List<Entry> entries = read();
+    try {
+      Files.deleteIfExists(indexPath); // Only a cleanly saved index is trusted
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to delete loaded baseline index!", e);
+    }
+
+    HashMap<Path, Path> baselines = new HashMap<>();
+    for (Entry entry : entries) {
+      Path file =
+          projectDirectory.resolve(FileHandler.networkPathStringToLocalPathString(entry.fileName));
+      Path baseline = baselineDirectory.resolve(entry.baselineName);
+      Entry validEntry = validate(entry, file, baseline);
+      if (validEntry != null) {
+        baselines.put(file, baseline);
+        loadedEntries.put(entry.fileName, validEntry);
+      }
+    }
+
+    // Delete the baselines that can't be reused
+    HashSet<Path> reusedBaselines = new HashSet<>(baselines.values());
+    try (Stream<Path> paths = Files.list(baselineDirectory)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (!reusedBaselines.contains(path)) {
+          Files.deleteIfExists(path);
+        }
+      }
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to delete outdated baselines!", e);
+    }
+
+    Log.info(LOG_TAG, "Reused " + baselines.size() + "/" + entries.size() + " baselines");
+    return baselines;
+  }
+
+  /**
+   * Saves the index of the current baselines, to be reused when the project is reopened. Only the
+   * baselines of files that changed since the index was loaded are hashed.
+   *
+   * @param baselines The baseline path of each file (by the file's absolute path).
+   */
+  void save(Map<Path, Path> baselines) {
+    ArrayList<Entry> entries = new ArrayList<>(baselines.size());
+    for (Map.Entry<Path, Path> baseline : baselines.entrySet()) {
+      Path file = baseline.getKey();
+      String fileName = FileHandler.pathToNetworkString(projectDirectory.relativize(file));
+      String baselineName = baseline.getValue().getFileName().toString();
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        Entry loadedEntry = loadedEntries.get(fileName);
+        long hash =
+            loadedEntry != null
+                    && loadedEntry.size == attributes.size()
+                    && loadedEntry.lastModified == lastModified
+                    && loadedEntry.baselineName.equals(baselineName)
+                ? loadedEntry.hash
+                : hash(baseline.getValue());
+        entries.add(new Entry(fileName, attributes.size(), lastModified, hash, baselineName));
+      } catch (NoSuchFileException e) {
+        // The file (or its baseline) was deleted, it isn't indexed
+      } catch (IOException e) {
+        Log.error(LOG_TAG, "Failed to index baseline of " + fileName + "!", e);
+      }
+    }
+
+    Path tempPath = indexPath.resolveSibling("index.tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          writeString(out, entry.fileName);
+          out.writeLong(entry.size);
+          out.writeLong(entry.lastModified);
+          out.writeLong(entry.hash);
+          writeString(out, entry.baselineName);
+        }
+      }
+      try {
+        Files.move(tempPath, indexPath, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempPath, indexPath, REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to save baseline index!", e);
+    }
+  }
+
+  /**
+   * Reads the entries of the index file, in a single read.
+   *
+   * <p>NOTE: The index isn't memory-mapped, as Windows can't delete or replace a mapped file until
+   * the mapping is garbage collected.
+   *
+   * @return The entries of the index, empty if there is no index or it is invalid.
+   */
+  private List<Entry> read() {
+    ArrayList<Entry> entries = new ArrayList<>();
+    if (!Files.exists(indexPath)) {
+      return entries;
+    }
+
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        Log.warn(LOG_TAG, "Ignoring baseline index of another format");
+        return entries;
+      }
+
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        String fileName = readString(buffer);
+        long size = buffer.getLong();
+        long lastModified = buffer.getLong();
+        long hash = buffer.getLong();
+        String baselineName = readString(buffer);
+        entries.add(new Entry(fileName, size, lastModified, hash, baselineName));
+      }
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      Log.error(LOG_TAG, "Failed to read baseline index!", e);
+      entries.clear();
+    }
+    return entries;
+  }
+
+  /**
+   * Checks if a file is unchanged since its baseline was indexed.
+   *
+   * @param entry The index entry of the file.
+   * @param file The path to the file.
+   * @param baseline The path to the file's baseline.
+   * @return The entry to keep for the file (updated if the file was only touched), null if the
+   *     baseline can't be reused.
+   */
+  @CheckForNull
+  private static Entry validate(Entry entry, Path file, Path baseline) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()
+          || attributes.size() != entry.size
+          || !Files.isRegularFile(baseline)) {
+        return null;
+      }
+
+      long lastModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+      if (lastModified == entry.lastModified) {
+        return entry;
+      }
+
+      // The file was touched (or rewritten with the same size), its content decides
+      return hash(file) == entry.hash
+          ? new Entry(entry.fileName, entry.size, lastModified, entry.hash, entry.baselineName)
+          : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static long hash(Path path) throws IOException {
+    return MoreFiles.asByteSource(path).hash(Hashing.murmur3_128()).asLong();
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid string length in baseline index: " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** The indexed state of a file when its baseline was saved. */
+  private static final class Entry {
+    private final String fileName;
+    private final long size;
+    private final long lastModified; // Nanoseconds
+    private final long hash;
+    private final String baselineName;
+
+    private Entry(String fileName, long size, long lastModified, long hash, String baselineName) {
+      this.fileName = fileName;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+      this.baselineName = baselineName;
+    }
+  }
+}
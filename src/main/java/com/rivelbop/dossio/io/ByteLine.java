@@ -0,0 +1,84 @@
+package com.rivelbop.dossio.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A line of a file as a slice of a byte buffer that is shared with other lines (the content of the
+ * file, or the lines of a received edit).
+ *
+ * <p>The slice includes the line's separator ("\n" or "\r\n", none for a last line without one).
+ * Lines are never decoded, so a file is written back with exactly the bytes it was read with,
+ * whatever its charset and line separators are.
+ */
+public final class ByteLine {
+  private final byte[] buffer;
+  private final int offset;
+  private final int length;
+
+  /**
+   * Creates a line from a slice of a buffer (the buffer is shared, not copied).
+   *
+   * @param buffer The buffer that holds the line.
+   * @param offset The offset of the line in the buffer.
+   * @param length The byte length of the line (including its separator).
+   */
+  public ByteLine(byte[] buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Creates a line from a whole buffer (the buffer is shared, not copied).
+   *
+   * @param bytes The bytes of the line (including its separator).
+   * @return The created line.
+   */
+  public static ByteLine of(byte[] bytes) {
+    return new ByteLine(bytes, 0, bytes.length);
+  }
+
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the byte length of the line, including its separator.
+   *
+   * @return The byte length of the line.
+   */
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ByteLine line
+        && Arrays.equals(
+            buffer, offset, offset + length, line.buffer, line.offset, line.offset + line.length);
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 1;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + buffer[i];
+    }
+    return hash;
+  }
+
+  /**
+   * Decodes the line as UTF-8 (only used to display the line).
+   *
+   * @return The decoded line, including its separator.
+   */
+  @Override
+  public String toString() {
+    return new String(buffer, offset, length, StandardCharsets.UTF_8);
+  }
+}
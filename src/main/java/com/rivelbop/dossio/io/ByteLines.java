@@ -0,0 +1,117 @@
+package com.rivelbop.dossio.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import org.eclipse.jgit.diff.Sequence;
+
+/**
+ * The content of a file split into lines, without decoding it. Each line ends after its "\n" (so
+ * a "\r\n" separator stays part of the line), and a last line without a separator is kept as is.
+ *
+ * <p>The lines are a sequence for the diff algorithm, see {@link FileComparer}.
+ */
+public final class ByteLines extends Sequence {
+  /** The lines of an empty file. */
+  public static final ByteLines EMPTY = new ByteLines(new byte[0]);
+
+  private final byte[] content;
+  private final int[] starts; // The start of each line, followed by the end of the content
+
+  /**
+   * Splits content into lines (the content is shared, not copied).
+   *
+   * @param content The content to split.
+   */
+  public ByteLines(byte[] content) {
+    this.content = content;
+
+    int size = 0;
+    for (byte b : content) {
+      if (b == '\n') {
+        size++;
+      }
+    }
+    if (content.length > 0 && content[content.length - 1] != '\n') {
+      size++;
+    }
+
+    starts = new int[size + 1];
+    int line = 1;
+    for (int i = 0; i < content.length - 1; i++) {
+      if (content[i] == '\n') {
+        starts[line++] = i + 1;
+      }
+    }
+    starts[size] = content.length;
+  }
+
+  /**
+   * Reads the content of a file and splits it into lines.
+   *
+   * @param path The path to the file.
+   * @return The lines of the file.
+   * @throws IOException If the file fails to be read.
+   */
+  public static ByteLines read(Path path) throws IOException {
+    return new ByteLines(Files.readAllBytes(path));
+  }
+
+  @Override
+  public int size() {
+    return starts.length - 1;
+  }
+
+  /**
+   * Returns the content that the lines are split from.
+   *
+   * @return The whole content of the lines.
+   */
+  public byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * Returns the offset of a line in the content.
+   *
+   * @param index The index of the line.
+   * @return The offset of the line's first byte.
+   */
+  public int getStart(int index) {
+    return starts[index];
+  }
+
+  /**
+   * Returns the end offset of a line in the content.
+   *
+   * @param index The index of the line.
+   * @return The offset after the line's last byte (after its separator).
+   */
+  public int getEnd(int index) {
+    return starts[index + 1];
+  }
+
+  /**
+   * Returns a line as a slice of the content.
+   *
+   * @param index The index of the line.
+   * @return The line at the index.
+   */
+  public ByteLine get(int index) {
+    return new ByteLine(content, starts[index], starts[index + 1] - starts[index]);
+  }
+
+  /**
+   * Returns all lines as slices of the content, in a list that edits can be applied to.
+   *
+   * @return A new list of the lines.
+   */
+  public ArrayList<ByteLine> toList() {
+    ArrayList<ByteLine> lines = new ArrayList<>(size());
+    for (int i = 0; i < size(); i++) {
+      lines.add(get(i));
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,31 @@
+package com.rivelbop.dossio.io;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
+import com.rivelbop.dossio.networking.Packet.EditPacket;
+
+/** Serializes edit batches, the file name is written once instead of once per edit packet. */
+public final class EditBatchSerializer extends Serializer<EditBatchPacket> {
+  @Override
+  public void write(Kryo kryo, Output output, EditBatchPacket packet) {
+    output.writeString(packet.fileName);
+    output.writeInt(packet.edits.length, true);
+    for (EditPacket edit : packet.edits) {
+      EditSerializer.writeEdit(kryo, output, edit);
+    }
+  }
+
+  @Override
+  public EditBatchPacket read(Kryo kryo, Input input, Class<? extends EditBatchPacket> type) {
+    EditBatchPacket packet = new EditBatchPacket();
+    packet.fileName = input.readString();
+    packet.edits = new EditPacket[input.readInt(true)];
+    for (int i = 0; i < packet.edits.length; i++) {
+      packet.edits[i] = EditSerializer.readEdit(kryo, input, packet.fileName);
+    }
+    return packet;
+  }
+}
@@ -2,13 +2,18 @@ package com.rivelbop.dossio.io;
 
 import com.google.common.collect.ObjectArrays;
 import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
 import com.rivelbop.dossio.networking.Packet.EditPacket;
 import com.rivelbop.dossio.networking.Packet.EndEditPacket;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 
-/** Interprets and consolidates edit packets before applying them to a file's lines. */
+/**
+ * Interprets and consolidates edit packets before applying them to a file's lines, the fragments of
+ * a line larger than a packet are joined back into the line.
+ */
 public final class EditInterpreter {
   private final HashMap<String, List<EditPacket>> pendingEdits = new HashMap<>();
 
@@ -27,19 +32,11 @@ public final class EditInterpreter {
    * @param edit The edit packet to insert.
    */
   public void insert(EditPacket edit) {
+    // The edits of a discarded sequence are ignored
     List<EditPacket> edits = pendingEdits.get(edit.fileName);
-
-    // Check if the previous edit can be merged with the current edit
-    if (!edits.isEmpty()) {
-      EditPacket prevEdit = edits.getLast();
-      if (prevEdit.type == edit.type && prevEdit.end == edit.start) {
-        prevEdit.lines = ObjectArrays.concat(prevEdit.lines, edit.lines, String.class);
-        prevEdit.end = edit.end;
-        return;
-      }
+    if (edits != null) {
+      merge(edits, edit);
     }
-    // Otherwise, just add the edit normally
-    edits.add(edit);
   }
 
   /**
@@ -49,7 +46,37 @@ public final class EditInterpreter {
    * @return The list of consolidated edit packets for the file.
    */
   public List<EditPacket> end(EndEditPacket packet) {
-    return pendingEdits.remove(packet.fileName).reversed();
+    List<EditPacket> edits = pendingEdits.remove(packet.fileName);
+    if (edits == null) {
+      return List.of();
+    }
+    edits.forEach(EditInterpreter::joinFragments);
+    return edits.reversed();
+  }
+
+  /**
+   * Stops tracking edits for a specific file, dropping its pending edits (for example, when the
+   * rest of the edit sequence will never arrive).
+   *
+   * @param fileName The name of the file to discard the pending edits of.
+   */
+  public void discard(String fileName) {
+    pendingEdits.remove(fileName);
+  }
+
+  /**
+   * Consolidates the edits of an edit batch (same result as a begin/insert/end sequence).
+   *
+   * @param packet The edit batch packet containing the file's edits.
+   * @return The list of consolidated edit packets for the file.
+   */
+  public List<EditPacket> interpret(EditBatchPacket packet) {
+    ArrayList<EditPacket> edits = new ArrayList<>(packet.edits.length);
+    for (EditPacket edit : packet.edits) {
+      merge(edits, edit);
+    }
+    edits.forEach(EditInterpreter::joinFragments);
+    return edits.reversed();
   }
 
   /**
@@ -58,7 +85,7 @@ public final class EditInterpreter {
    * @param finalizedEdits The list of finalized edit packets to apply.
    * @param lines The lines to apply the edits to.
    */
-  public void apply(List<EditPacket> finalizedEdits, List<String> lines) {
+  public void apply(List<EditPacket> finalizedEdits, List<ByteLine> lines) {
     for (EditPacket edit : finalizedEdits) {
       switch (edit.type) {
         case REPLACE:
@@ -83,4 +110,75 @@ public final class EditInterpreter {
       }
     }
   }
+
+  /**
+   * Adds an edit to a list of edits, merging it with the previous edit when possible.
+   *
+   * @param edits The list of edits to add the edit to.
+   * @param edit The edit packet to add.
+   */
+  private static void merge(List<EditPacket> edits, EditPacket edit) {
+    // Check if the previous edit can be merged with the current edit
+    if (!edits.isEmpty()) {
+      EditPacket prevEdit = edits.getLast();
+      if (prevEdit.type == edit.type && prevEdit.end == edit.start) {
+        if (prevEdit.lines != null) { // Deletions have no lines
+          // Mark the fragment to join with the next line (they are joined once all arrived)
+          if (prevEdit.isFragment) {
+            if (prevEdit.fragmentedLines == null) {
+              prevEdit.fragmentedLines = new BitSet();
+            }
+            prevEdit.fragmentedLines.set(prevEdit.lines.length - 1);
+          }
+          prevEdit.lines = ObjectArrays.concat(prevEdit.lines, edit.lines, ByteLine.class);
+        }
+        prevEdit.end = edit.end;
+        prevEdit.isFragment = edit.isFragment;
+        return;
+      }
+    }
+    // Otherwise, just add the edit normally
+    edits.add(edit);
+  }
+
+  /**
+   * Joins the marked fragments of a merged edit's lines into the lines they were split from.
+   *
+   * @param edit The merged edit to join the fragments of.
+   */
+  private static void joinFragments(EditPacket edit) {
+    BitSet fragmentedLines = edit.fragmentedLines;
+    if (fragmentedLines == null) {
+      return;
+    }
+    edit.fragmentedLines = null;
+
+    ArrayList<ByteLine> lines = new ArrayList<>(edit.lines.length);
+    for (int i = 0; i < edit.lines.length; i++) {
+      if (!fragmentedLines.get(i)) {
+        lines.add(edit.lines[i]);
+        continue;
+      }
+
+      // Copy the fragments up to the line's last one into a single buffer
+      int last = fragmentedLines.nextClearBit(i);
+      if (last >= edit.lines.length) {
+        last = edit.lines.length - 1; // The line's last fragment never arrived
+      }
+      int byteSize = 0;
+      for (int j = i; j <= last; j++) {
+        byteSize += edit.lines[j].length();
+      }
+      byte[] buffer = new byte[byteSize];
+      for (int j = i, offset = 0; j <= last; j++) {
+        ByteLine fragment = edit.lines[j];
+        System.arraycopy(
+            fragment.getBuffer(), fragment.getOffset(), buffer, offset, fragment.length());
+        offset += fragment.length();
+      }
+      lines.add(ByteLine.of(buffer));
+      i = last;
+    }
+    edit.lines = lines.toArray(new ByteLine[0]);
+  }
 }
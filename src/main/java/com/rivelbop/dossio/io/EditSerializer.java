@@ -1,20 +1,33 @@
 package com.rivelbop.dossio.io;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.KryoBufferOverflowException;
 import com.esotericsoftware.kryo.io.Output;
 import com.rivelbop.dossio.networking.Network;
 import com.rivelbop.dossio.networking.Packet.EditPacket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.CheckForNull;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.EditList;
 
 /** Serializes and interprets edits into edit packets to send over the network. */
 public final class EditSerializer extends Serializer<EditPacket> {
+  /**
+   * The maximum byte size of a line sent in a single edit packet, larger lines are fragmented (a
+   * packet of lines stays under the buffer size once it is wrapped in a relay packet).
+   */
+  public static final int MAX_LINE_BYTE_SIZE = Network.BUFFER_SIZE / 4;
+
+  /** The edit types by ordinal (an edit's type is written as a single byte). */
+  private static final Edit.Type[] EDIT_TYPES = Edit.Type.values();
+
+  /** The bit of the type byte that marks an edit packet as a line fragment. */
+  private static final int FRAGMENT_FLAG = 0x40;
+
   /**
    * Gets the byte size of a string (takes ASCII and UTF_8 into consideration).
    *
@@ -37,7 +50,7 @@ public final class EditSerializer extends Serializer<EditPacket> {
    * @return The resulting edit packets from edit data.
    */
   public static List<EditPacket> toEditPackets(
-      String fileName, List<String> newFileLines, EditList edits) {
+      String fileName, ByteLines newFileLines, EditList edits) {
     ArrayList<EditPacket> packets = new ArrayList<>();
     for (Edit e : edits) {
       packets.addAll(toEditPackets(fileName, newFileLines, e));
@@ -46,7 +59,8 @@ public final class EditSerializer extends Serializer<EditPacket> {
   }
 
   /**
-   * Converts an edit into a list of edit packets (accounts for buffer overflow).
+   * Converts an edit into a list of edit packets (accounts for buffer overflow, lines larger than
+   * {@link #MAX_LINE_BYTE_SIZE} are split into fragments).
    *
    * @param fileName The name of the file to put the edits into.
    * @param newFileLines The altered lines to gather new line data from.
@@ -54,7 +68,7 @@ public final class EditSerializer extends Serializer<EditPacket> {
    * @return The resulting edit packet(s) from edit.
    */
   public static List<EditPacket> toEditPackets(
-      String fileName, List<String> newFileLines, Edit edit) {
+      String fileName, ByteLines newFileLines, Edit edit) {
     // Keep track of all the edit packets that need to be sent from the given edit
     ArrayList<EditPacket> packets = new ArrayList<>();
 
@@ -69,17 +83,43 @@ public final class EditSerializer extends Serializer<EditPacket> {
         int packetBeginIndex = edit.getBeginB();
 
         // Keep track of the lines that will be sent with the current edit packet
-        ArrayList<String> packetLines = new ArrayList<>();
+        ArrayList<ByteLine> packetLines = new ArrayList<>();
         int packetLinesByteSize = 0;
 
         // Loop through the new line changes
         for (int i = packetBeginIndex; i < edit.getEndB(); i++) {
-          String line = newFileLines.get(i);
+          ByteLine line = newFileLines.get(i);
+
+          // Send a line larger than a packet as fragments, after the lines before it
+          int currLineByteSize = line.length();
+          if (currLineByteSize > MAX_LINE_BYTE_SIZE) {
+            int lineStart = edit.getBeginA() + (i - edit.getBeginB());
+            if (!packetLines.isEmpty()) {
+              EditPacket packet = new EditPacket();
+              packet.fileName = fileName;
+              packet.type = type;
+              packet.lines = packetLines.toArray(new ByteLine[0]);
+              if (type == Edit.Type.REPLACE) {
+                packet.start = edit.getBeginA() + (packetBeginIndex - edit.getBeginB());
+                packet.end = lineStart;
+              } else {
+                packet.start = packet.end = edit.getBeginA();
+              }
+              packets.add(packet);
+
+              packetLinesByteSize = 0;
+              packetLines.clear();
+            }
 
-          // Check if the current line is larger than the network buffer size
-          int currLineByteSize = getStringByteSize(line);
-          if (currLineByteSize >= Network.BUFFER_SIZE) {
-            throw new KryoBufferOverflowException("Line [" + i + "] from new file is too large!");
+            if (type == Edit.Type.REPLACE) {
+              // The last line of the edit replaces the rest of the old lines
+              int lineEnd = i == edit.getEndB() - 1 ? edit.getEndA() : lineStart + 1;
+              addFragments(packets, fileName, type, line, lineStart, lineEnd);
+            } else {
+              addFragments(packets, fileName, type, line, edit.getBeginA(), edit.getBeginA());
+            }
+            packetBeginIndex = i + 1;
+            continue;
           }
 
           // Keep track of the packet's total byte size
@@ -97,8 +137,8 @@ public final class EditSerializer extends Serializer<EditPacket> {
             packet.fileName = fileName;
             packet.type = type;
 
-            // Convert the lines array list to a normal string array
-            packet.lines = packetLines.toArray(new String[0]);
+            // Convert the lines array list to a normal line array
+            packet.lines = packetLines.toArray(new ByteLine[0]);
 
             int overflowIndex = overflowsBuffer ? 0 : 1;
             if (type == Edit.Type.REPLACE) {
@@ -134,7 +174,7 @@ public final class EditSerializer extends Serializer<EditPacket> {
           EditPacket packet = new EditPacket();
           packet.fileName = fileName;
           packet.type = type;
-          packet.lines = packetLines.toArray(new String[0]);
+          packet.lines = packetLines.toArray(new ByteLine[0]);
           if (type == Edit.Type.REPLACE) {
             packet.start = edit.getBeginA() + (packetBeginIndex - edit.getBeginB());
             packet.end = edit.getEndA();
@@ -157,23 +197,95 @@ public final class EditSerializer extends Serializer<EditPacket> {
     return packets;
   }
 
-  @Override
-  public void write(Kryo kryo, Output output, EditPacket packet) {
-    output.writeString(packet.fileName);
-    kryo.writeObject(output, packet.type);
-    kryo.writeObjectOrNull(output, packet.lines, String[].class);
+  /**
+   * Splits a line into fragments of {@link #MAX_LINE_BYTE_SIZE}, each sent as the single line of
+   * its own edit packet (the fragments are slices of the line, not copies).
+   *
+   * @param packets The list to add the fragments' edit packets to.
+   * @param fileName The name of the file to put the edits into.
+   * @param type The type of the edit.
+   * @param line The line to split.
+   * @param start The start of the line's edit (in the old file).
+   * @param end The end of the line's edit (in the old file), only the last fragment replaces the
+   *     old lines.
+   */
+  private static void addFragments(
+      List<EditPacket> packets,
+      String fileName,
+      Edit.Type type,
+      ByteLine line,
+      int start,
+      int end) {
+    for (int offset = 0; offset < line.length(); offset += MAX_LINE_BYTE_SIZE) {
+      int length = Math.min(MAX_LINE_BYTE_SIZE, line.length() - offset);
+      EditPacket packet = new EditPacket();
+      packet.fileName = fileName;
+      packet.type = type;
+      packet.lines =
+          new ByteLine[] {new ByteLine(line.getBuffer(), line.getOffset() + offset, length)};
+      packet.isFragment = offset + length < line.length();
+      packet.start = start;
+      packet.end = packet.isFragment ? start : end;
+      packets.add(packet);
+    }
+  }
+
+  /**
+   * Estimates the serialized byte size of a file's edit packets.
+   *
+   * @param fileName The name of the file the edits belong to.
+   * @param edits The edit packets to estimate the size of.
+   * @return The estimated amount of bytes the edits take up when sent together.
+   */
+  public static int getByteSize(String fileName, List<EditPacket> edits) {
+    int byteSize = getStringByteSize(fileName);
+    for (EditPacket edit : edits) {
+      byteSize += 16; // Type, line count, start, and end
+      if (edit.lines != null) {
+        for (ByteLine line : edit.lines) {
+          byteSize += line.length() + 5; // Line and its length
+        }
+      }
+    }
+    return byteSize;
+  }
+
+  /**
+   * Writes the edit data of an edit packet (everything except the file name).
+   *
+   * @param kryo The kryo instance to write with.
+   * @param output The output to write to.
+   * @param packet The edit packet to write.
+   */
+  static void writeEdit(Kryo kryo, Output output, EditPacket packet) {
+    output.writeByte(packet.type.ordinal() | (packet.isFragment ? FRAGMENT_FLAG : 0));
+    writeLines(output, packet.lines);
     output.writeInt(packet.start, true);
     if (packet.type != Edit.Type.INSERT) {
       output.writeInt(packet.end, true);
     }
   }
 
-  @Override
-  public EditPacket read(Kryo kryo, Input input, Class<? extends EditPacket> type) {
+  /**
+   * Reads the edit data of an edit packet (everything except the file name).
+   *
+   * @param kryo The kryo instance to read with.
+   * @param input The input to read from.
+   * @param fileName The name of the file the edit belongs to.
+   * @return The read edit packet.
+   * @throws KryoException If the edit type is invalid.
+   */
+  static EditPacket readEdit(Kryo kryo, Input input, String fileName) {
     EditPacket packet = new EditPacket();
-    packet.fileName = input.readString();
-    packet.type = kryo.readObject(input, Edit.Type.class);
-    packet.lines = kryo.readObjectOrNull(input, String[].class);
+    packet.fileName = fileName;
+    int type = input.readByteUnsigned();
+    int typeIndex = type & ~FRAGMENT_FLAG;
+    if (typeIndex >= EDIT_TYPES.length) {
+      throw new KryoException("Invalid edit type: " + typeIndex);
+    }
+    packet.type = EDIT_TYPES[typeIndex];
+    packet.isFragment = (type & FRAGMENT_FLAG) != 0;
+    packet.lines = readLines(input);
     packet.start = input.readInt(true);
     if (packet.type == Edit.Type.INSERT) {
       packet.end = packet.start;
@@ -182,4 +294,63 @@ public final class EditSerializer extends Serializer<EditPacket> {
     }
     return packet;
   }
+
+  /**
+   * Writes the lines of an edit (or null) as their count, their byte lengths, and then their bytes.
+   *
+   * @param output The output to write to.
+   * @param lines The lines to write (may be null).
+   */
+  private static void writeLines(Output output, @CheckForNull ByteLine[] lines) {
+    if (lines == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(lines.length + 1, true);
+    for (ByteLine line : lines) {
+      output.writeInt(line.length(), true);
+    }
+    for (ByteLine line : lines) {
+      output.writeBytes(line.getBuffer(), line.getOffset(), line.length());
+    }
+  }
+
+  /**
+   * Reads the lines of an edit written by {@link #writeLines(Output, ByteLine[])}, the lines are
+   * slices of a single buffer.
+   *
+   * @param input The input to read from.
+   * @return The read lines (may be null).
+   */
+  @CheckForNull
+  private static ByteLine[] readLines(Input input) {
+    int count = input.readInt(true) - 1;
+    if (count < 0) {
+      return null;
+    }
+    int[] lengths = new int[count];
+    int byteSize = 0;
+    for (int i = 0; i < count; i++) {
+      lengths[i] = input.readInt(true);
+      byteSize += lengths[i];
+    }
+
+    byte[] buffer = input.readBytes(byteSize);
+    ByteLine[] lines = new ByteLine[count];
+    for (int i = 0, offset = 0; i < count; offset += lengths[i], i++) {
+      lines[i] = new ByteLine(buffer, offset, lengths[i]);
+    }
+    return lines;
+  }
+
+  @Override
+  public void write(Kryo kryo, Output output, EditPacket packet) {
+    output.writeString(packet.fileName);
+    writeEdit(kryo, output, packet);
+  }
+
+  @Override
+  public EditPacket read(Kryo kryo, Input input, Class<? extends EditPacket> type) {
+    return readEdit(kryo, input, input.readString());
+  }
 }
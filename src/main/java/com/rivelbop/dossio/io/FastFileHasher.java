@@ -0,0 +1,197 @@
+package com.rivelbop.dossio.io;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
+import io.methvin.watcher.hashing.FileHash;
+import io.methvin.watcher.hashing.FileHasher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Hashes files for the directory watcher, which compares the hashes to skip events of files whose
+ * content didn't change.
+ *
+ * <p>Files up to the content hash limit are hashed with CRC32C (hardware accelerated on most CPUs)
+ * over their memory-mapped content, along with their size. Larger files are only compared by their
+ * size and modification time.
+ *
+ * <p>The modification time is never part of a content hash (touching a file doesn't change it), it
+ * is only used to skip rehashing: a file with the same size and modification time as when it was
+ * last hashed keeps its hash. The cached hash is only kept if the file was last modified well
+ * before it was hashed, so a rewrite within the file system's time granularity is still hashed.
+ * Cached hashes are dropped when their files are deleted (see {@link #evict(Path, boolean)}).
+ *
+ * <p>NOTE: Small files (and all files on Windows, which can't delete or replace a file while it is
+ * mapped) are read into a buffer instead.
+ */
+public final class FastFileHasher implements FileHasher {
+  /** The default byte size of the largest file that has its content hashed. */
+  public static final long DEFAULT_CONTENT_HASH_LIMIT = 16 * 1024 * 1024;
+
+  /** The byte size of the largest file that is read into a buffer instead of being mapped. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The byte size of each mapped region of a file. */
+  private static final long MAP_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * The time a file must have been unmodified for before it was hashed to cache its hash, this
+   * covers the coarsest time granularity of common file systems (milliseconds).
+   */
+  private static final long CACHE_MODIFIED_AGE = 2000;
+
+  private static final boolean CAN_MAP_FILES =
+      !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+
+  private static final String HASH_NAME = "dossio_watcher_hash_seconds";
+  private static final String HASH_HELP = "Time spent hashing a file for the directory watcher.";
+  private static final Histogram CONTENT_HASH_SECONDS =
+      Metrics.histogram(HASH_NAME, HASH_HELP, Histogram.DURATION_BUCKETS, "mode", "content");
+  private static final Histogram METADATA_HASH_SECONDS =
+      Metrics.histogram(HASH_NAME, HASH_HELP, Histogram.DURATION_BUCKETS, "mode", "metadata");
+  private static final Counter HASHED_BYTES =
+      Metrics.counter(
+          "dossio_watcher_hashed_bytes_total", "File content bytes hashed for the watcher.");
+  private static final Counter CACHED_HASHES =
+      Metrics.counter(
+          "dossio_watcher_cached_hashes_total",
+          "Files not rehashed because their size and modification time didn't change.");
+
+  private static final ThreadLocal<ByteBuffer> BUFFERS =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+  private final long contentHashLimit;
+  private final ConcurrentHashMap<Path, CachedHash> cachedHashes = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a file hasher.
+   *
+   * @param contentHashLimit The byte size of the largest file that has its content hashed (larger
+   *     files are only compared by their size and modification time).
+   */
+  public FastFileHasher(long contentHashLimit) {
+    this.contentHashLimit = contentHashLimit;
+  }
+
+  @Override
+  public FileHash hash(Path path) throws IOException {
+    long startTime = System.nanoTime();
+    long hashTime = System.currentTimeMillis();
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      cachedHashes.remove(path);
+      throw e;
+    }
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+    if (size > contentHashLimit) {
+      ByteBuffer hash = ByteBuffer.allocate(2 * Long.BYTES);
+      hash.putLong(size).putLong(lastModified);
+      METADATA_HASH_SECONDS.observeSince(startTime);
+      return FileHash.fromBytes(hash.array());
+    }
+
+    // Skip rehashing a file whose size and modification time didn't change
+    CachedHash cachedHash = cachedHashes.get(path);
+    if (cachedHash != null && cachedHash.size == size && cachedHash.lastModified == lastModified) {
+      CACHED_HASHES.inc();
+      return cachedHash.hash;
+    }
+
+    CRC32C checksum = new CRC32C();
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      long hashedBytes;
+      if (size <= BUFFER_SIZE || !CAN_MAP_FILES) {
+        hashedBytes = update(checksum, channel);
+      } else {
+        hashedBytes = 0;
+        long channelSize = channel.size(); // The file may have changed since its size was read
+        for (long position = 0; position < channelSize; position += MAP_SIZE) {
+          long mapSize = Math.min(MAP_SIZE, channelSize - position);
+          checksum.update(channel.map(MapMode.READ_ONLY, position, mapSize));
+          hashedBytes += mapSize;
+        }
+      }
+      HASHED_BYTES.add(hashedBytes);
+    } catch (IOException e) {
+      cachedHashes.remove(path);
+      throw e;
+    }
+
+    ByteBuffer hashBuffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+    hashBuffer.putInt((int) checksum.getValue()).putLong(size);
+    FileHash hash = FileHash.fromBytes(hashBuffer.array());
+
+    // A file modified right before it was hashed may be rewritten with the same modification time
+    if (TimeUnit.NANOSECONDS.toMillis(lastModified) <= hashTime - CACHE_MODIFIED_AGE) {
+      cachedHashes.put(path, new CachedHash(size, lastModified, hash));
+    } else {
+      cachedHashes.remove(path);
+    }
+    CONTENT_HASH_SECONDS.observeSince(startTime);
+    return hash;
+  }
+
+  /**
+   * Drops the cached hashes of a deleted file, or of all files under a deleted directory.
+   *
+   * @param path The path of the deleted file or directory (as passed to {@link #hash(Path)}).
+   * @param isDirectory Whether the path was a directory.
+   */
+  public void evict(Path path, boolean isDirectory) {
+    if (isDirectory) {
+      cachedHashes.keySet().removeIf(cachedPath -> cachedPath.startsWith(path));
+    } else {
+      cachedHashes.remove(path);
+    }
+  }
+
+  /**
+   * Updates a checksum with the content of a channel, read through the thread's buffer.
+   *
+   * @param checksum The checksum to update.
+   * @param channel The channel to read the content of.
+   * @return The amount of read bytes.
+   * @throws IOException If the channel fails to be read.
+   */
+  private static long update(CRC32C checksum, FileChannel channel) throws IOException {
+    ByteBuffer buffer = BUFFERS.get();
+    long readBytes = 0;
+    buffer.clear();
+    while (channel.read(buffer) >= 0) {
+      buffer.flip();
+      readBytes += buffer.remaining();
+      checksum.update(buffer);
+      buffer.clear();
+    }
+    return readBytes;
+  }
+
+  /** Stores the content hash of a file along with the size and modification time it had. */
+  private static final class CachedHash {
+    private final long size;
+    private final long lastModified;
+    private final FileHash hash;
+
+    private CachedHash(long size, long lastModified, FileHash hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+}
@@ -1,17 +1,24 @@
 package com.rivelbop.dossio.io;
 
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
+import java.util.Arrays;
 import org.eclipse.jgit.diff.EditList;
 import org.eclipse.jgit.diff.MyersDiff;
-import org.eclipse.jgit.diff.Sequence;
 import org.eclipse.jgit.diff.SequenceComparator;
 
-/** A utility class for efficient file comparisons. */
+/**
+ * A utility class for efficient file comparisons. Lines are compared by their bytes (separators
+ * included), so files are never decoded and a change of line separators is a change of lines.
+ */
 public final class FileComparer {
-  private static final StringSequenceComparator STRING_COMPARATOR = new StringSequenceComparator();
+  private static final ByteLinesComparator BYTE_LINES_COMPARATOR = new ByteLinesComparator();
+
+  private static final Histogram DIFF_SECONDS =
+      Metrics.histogram(
+          "dossio_diff_seconds", "Time spent diffing file lines.", Histogram.DURATION_BUCKETS);
 
   private FileComparer() {}
 
@@ -22,13 +29,12 @@ public final class FileComparer {
    * @param linesB The lines from source B.
    * @return The list of edits required to transform lines A to lines B.
    */
-  public static EditList compareText(List<String> linesA, List<String> linesB) {
-    // Create sequences from the lines
-    StringListSequence seqA = new StringListSequence(linesA);
-    StringListSequence seqB = new StringListSequence(linesB);
-
+  public static EditList compareText(ByteLines linesA, ByteLines linesB) {
     // Get the list of edits using MyersDiff
-    return MyersDiff.INSTANCE.diff(STRING_COMPARATOR, seqA, seqB);
+    long startTime = System.nanoTime();
+    EditList editList = MyersDiff.INSTANCE.diff(BYTE_LINES_COMPARATOR, linesA, linesB);
+    DIFF_SECONDS.observeSince(startTime);
+    return editList;
   }
 
   /**
@@ -41,52 +47,33 @@ public final class FileComparer {
    */
   public static EditList compareText(Path absPathA, Path absPathB) throws IOException {
     // Read text from files A+B and compare text
-    return compareText(Files.readAllLines(absPathA), Files.readAllLines(absPathB));
-  }
-
-  /** A string list sequence for MyersDiff algorithm. */
-  public static final class StringListSequence extends Sequence {
-    private final List<String> lines;
-
-    /**
-     * Stores a list of strings to serve as lines to compare.
-     *
-     * @param lines The "lines" of strings to serve as a sequence.
-     */
-    public StringListSequence(List<String> lines) {
-      this.lines = lines;
-    }
-
-    @Override
-    public int size() {
-      return lines.size();
-    }
-
-    /**
-     * Returns the string at the provided line index (from the string list).
-     *
-     * @param index The line index to retrieve the string from.
-     * @return The string at indexed line.
-     */
-    public String get(int index) {
-      return lines.get(index);
-    }
+    return compareText(ByteLines.read(absPathA), ByteLines.read(absPathB));
   }
 
   /**
-   * Used to compare portions of two string list sequences and discover the minimal edits required
-   * to transform from one sequence to the other.
+   * Used to compare portions of two byte line sequences and discover the minimal edits required to
+   * transform from one sequence to the other.
    */
-  public static final class StringSequenceComparator
-      extends SequenceComparator<StringListSequence> {
+  public static final class ByteLinesComparator extends SequenceComparator<ByteLines> {
     @Override
-    public boolean equals(StringListSequence a, int ai, StringListSequence b, int bi) {
-      return a.get(ai).equals(b.get(bi));
+    public boolean equals(ByteLines a, int ai, ByteLines b, int bi) {
+      return Arrays.equals(
+          a.getContent(),
+          a.getStart(ai),
+          a.getEnd(ai),
+          b.getContent(),
+          b.getStart(bi),
+          b.getEnd(bi));
     }
 
     @Override
-    public int hash(StringListSequence seq, int i) {
-      return seq.get(i).hashCode();
+    public int hash(ByteLines seq, int i) {
+      byte[] content = seq.getContent();
+      int hash = 5381;
+      for (int j = seq.getStart(i); j < seq.getEnd(i); j++) {
+        hash = (hash << 5) + hash + (content[j] & 0xff);
+      }
+      return hash;
     }
   }
 }
@@ -9,18 +9,35 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.annotation.CheckForNull;
 import org.eclipse.jgit.ignore.IgnoreNode;
 import org.eclipse.jgit.ignore.IgnoreNode.MatchResult;
 
-/** Filters files in a directory based on the provided .gitignore and .dosshide files. */
+/**
+ * Filters files in a directory based on the provided .gitignore and .dosshide files, and the
+ * subtrees subscribed to in the .dosssubscribe file.
+ *
+ * <p>The .dosssubscribe file lists a directory or file per line (relative to the project directory,
+ * '#' starts a comment). Only the subscribed files are sent and received, without one (or with an
+ * empty one) the whole project is.
+ */
 public final class FileFilter {
+  /** The maximum amount of subscribed subtrees (the rest are ignored). */
+  public static final int MAX_SUBSCRIPTIONS = 256;
+
   private static final String LOG_TAG = "FileFilter";
 
+  private static final String[] WHOLE_PROJECT = {""};
+
   private final IgnoreNode ignoreNode = new IgnoreNode();
   private final Path tempDirectory;
+  private final String[] subscriptions;
 
   /**
-   * Creates a file filter for the project directory using .dosshide and .gitignore files.
+   * Creates a file filter for the project directory using .dosshide, .gitignore and
+   * .dosssubscribe files.
    *
    * @param projectDirectory The base project directory to filter.
    * @param tempDirectory The temporary file directory to ignore.
@@ -48,10 +65,42 @@ public final class FileFilter {
       }
     }
 
+    // Parse the .dosssubscribe file (it is optional)
+    Path subscribeFile = projectDirectory.resolve(".dosssubscribe");
+    if (Files.exists(subscribeFile)) {
+      subscriptions =
+          normalizeSubscriptions(
+              Files.readAllLines(subscribeFile, StandardCharsets.UTF_8).stream()
+                  .map(line -> line.contains("#") ? line.substring(0, line.indexOf('#')) : line)
+                  .filter(line -> !line.isBlank())
+                  .toArray(String[]::new));
+    } else {
+      subscriptions = WHOLE_PROJECT.clone();
+    }
+
     // Store the temporary directory to help ignore temporary file events
     this.tempDirectory = tempDirectory;
   }
 
+  /**
+   * Returns the subscribed subtrees, to be sent to the server.
+   *
+   * @return The names of the subscribed directories and files (empty for the whole project).
+   */
+  public String[] getSubscriptions() {
+    return Arrays.equals(subscriptions, WHOLE_PROJECT) ? new String[0] : subscriptions.clone();
+  }
+
+  /**
+   * Checks if a file is in (or contains) the subscribed subtrees.
+   *
+   * @param fileName The name of the file (relative to project directory).
+   * @return Whether the file is subscribed to.
+   */
+  public boolean isSubscribed(String fileName) {
+    return isSubscribed(subscriptions, fileName);
+  }
+
   /**
    * Checks if a file path is ignored based on .dosshide and/or .gitignore, or if it is temporary.
    *
@@ -77,6 +126,11 @@ public final class FileFilter {
       return true;
     }
 
+    // If the file isn't subscribed to, it is neither sent nor received
+    if (!isSubscribed(FileHandler.pathToNetworkString(relativeFilePath))) {
+      return true;
+    }
+
     // Check if the file is ignored by the parsed ignore files
     Path relativeIterator = relativeFilePath;
     Path absoluteIterator = absoluteFilePath;
@@ -95,6 +149,68 @@ public final class FileFilter {
     return false;
   }
 
+  /**
+   * Checks if subscriptions include a file: one of them is the whole project, the file, a directory
+   * containing it, or a file in it (the changes of a directory, such as its deletion, change the
+   * subscribed files in it).
+   *
+   * @param subscriptions The normalized subscriptions.
+   * @param fileName The name of the file (relative to project directory).
+   * @return Whether the file is subscribed to.
+   */
+  public static boolean isSubscribed(String[] subscriptions, String fileName) {
+    if (fileName.isEmpty()) {
+      return true; // The project directory
+    }
+    for (String subscription : subscriptions) {
+      if (subscription.isEmpty()
+          || isInTree(fileName, subscription)
+          || isInTree(subscription, fileName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Normalizes subscriptions: separators are turned into '/', leading and trailing separators are
+   * removed, and duplicates are dropped. A blank subscription is the whole project.
+   *
+   * @param subscriptions The subscriptions to normalize (null or empty for the whole project).
+   * @return The normalized subscriptions ({@code {""}} for the whole project).
+   */
+  public static String[] normalizeSubscriptions(@CheckForNull String[] subscriptions) {
+    if (subscriptions == null || subscriptions.length == 0) {
+      return WHOLE_PROJECT.clone();
+    }
+
+    ArrayList<String> normalized = new ArrayList<>();
+    for (int i = 0; i < subscriptions.length && i < MAX_SUBSCRIPTIONS; i++) {
+      String subscription =
+          subscriptions[i] == null ? "" : subscriptions[i].strip().replace('\\', '/');
+      int start = 0;
+      int end = subscription.length();
+      while (start < end && subscription.charAt(start) == '/') {
+        start++;
+      }
+      while (end > start && subscription.charAt(end - 1) == '/') {
+        end--;
+      }
+      subscription = subscription.substring(start, end);
+      if (subscription.isEmpty()) {
+        return WHOLE_PROJECT.clone();
+      } else if (!normalized.contains(subscription)) {
+        normalized.add(subscription);
+      }
+    }
+    return normalized.toArray(new String[0]);
+  }
+
+  private static boolean isInTree(String fileName, String treeName) {
+    return fileName.startsWith(treeName)
+        && (fileName.length() == treeName.length() || fileName.charAt(treeName.length()) == '/');
+  }
+
   /**
    * Loads default ignore patterns for common temporary editor files into the ignoreNode. This
    * prevents temporary save files (like from vim or emacs) from being synced.
@@ -111,7 +227,8 @@ public final class FileFilter {
             + "*.bak\n" // General backup
             + "*.tmp\n" // General temp file
             + ".*.swp\n" // Vim swap files
-            + ".*.swo\n"; // Vim swap files
+            + ".*.swo\n" // Vim swap files
+            + "/" + BaselineIndex.DATA_DIRECTORY + "/\n"; // DossIO's persistent data
 
     // Parse the string as if it were an ignore file
     try (InputStream in =
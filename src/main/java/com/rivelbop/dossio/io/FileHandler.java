@@ -2,26 +2,49 @@ package com.rivelbop.dossio.io;
 
 import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 import com.esotericsoftware.minlog.Log;
 import com.rivelbop.dossio.app.Main;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
 import com.rivelbop.dossio.networking.ClientHandler;
 import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
 import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
 import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
 import com.rivelbop.dossio.networking.Packet.EditPacket;
 import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkAckPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import com.rivelbop.dossio.networking.Tracer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 import javax.annotation.CheckForNull;
 import org.eclipse.jgit.diff.EditList;
 import org.eclipse.jgit.util.FileUtils;
@@ -32,26 +55,61 @@ import org.eclipse.jgit.util.FileUtils;
  */
 public final class FileHandler {
   private static final String LOG_TAG = "FileHandler";
-  private static final String DE_SYNC_WARNING = "WARNING: THIS WILL CAUSE DESYNCHRONIZATION!\n\n";
+  static final String DE_SYNC_WARNING = "WARNING: THIS WILL CAUSE DESYNCHRONIZATION!\n\n";
+
+  private static final Counter FILTERED_EVENTS =
+      Metrics.counter("dossio_watcher_filtered_total", "File events ignored by the file filter.");
+  private static final Counter UNSUBSCRIBED_PACKETS =
+      Metrics.counter(
+          "dossio_client_unsubscribed_packets_total",
+          "Received file packets dropped because their files aren't subscribed to.");
+  private static final Counter OWN_WRITE_EVENTS =
+      Metrics.counter(
+          "dossio_watcher_own_writes_total",
+          "File events skipped as caused by writes from the network.");
+  private static final Counter APPLIED_EDITS =
+      Metrics.counter("dossio_edits_applied_total", "Consolidated edits applied to local files.");
+  private static final Histogram APPLY_SECONDS =
+      Metrics.histogram(
+          "dossio_apply_seconds",
+          "Time spent applying received edits to a local file.",
+          Histogram.DURATION_BUCKETS);
+  private static final Counter TREE_FILES =
+      Metrics.counter(
+          "dossio_tree_files_sent_total", "Files of created directories sent as tree archives.");
+
+  /** The amount of files in a created directory from which they are sent as a tree archive. */
+  private static final int TREE_FILE_THRESHOLD = 16;
 
   private final Path projectDirectoryPath;
 
   private final Path tempDirectoryPath;
   private final ConcurrentHashMap<Path, Path> cachedTempPaths = new ConcurrentHashMap<>();
+  private final BaselineIndex baselineIndex;
 
   private final FileWatcher fileWatcher;
   private final FileFilter fileFilter;
 
   private final EditInterpreter editInterpreter = new EditInterpreter();
 
-  private final ClientHandler clientHandler = Main.NETWORK.getClientHandler();
-  private final Set<String> filesMarkedForCreation = Collections.synchronizedSet(new HashSet<>());
-  private final Set<String> filesMarkedForModification =
-      Collections.synchronizedSet(new HashSet<>());
+  private final ClientHandler clientHandler;
+  private final FileTransferer fileTransferer;
+  private final WriteTracker writeTracker = new WriteTracker();
   private final Set<String> filesMarkedForDeletion = Collections.synchronizedSet(new HashSet<>());
 
+  // The files sent in the archive of a created directory whose creation wasn't detected yet, their
+  // creation only sends their changes since the archive was written
+  private final Set<Path> treeSentFiles = ConcurrentHashMap.newKeySet();
+
+  // The trees (directories) whose archives are being received, the packets of their files are
+  // held until they are extracted (only accessed by the client's listener thread)
+  private final HashSet<String> receivingTrees = new HashSet<>();
+  private final ArrayList<Object> heldPackets = new ArrayList<>();
+  private boolean isTreeExtracted;
+
   /**
-   * Creates a file handler (initializes the watcher and filter).
+   * Creates a file handler (initializes the watcher and filter) that sends changes through the
+   * application's client handler.
    *
    * @param projectDirectoryFile The base project directory to be shared and updated.
    * @param checkGitignore Whether a ".gitignore" file can be used to ignore certain file changes.
@@ -59,6 +117,22 @@ public final class FileHandler {
    * @throws RuntimeException If temporary directory, file watcher, or file filter fail to create.
    */
   public FileHandler(File projectDirectoryFile, boolean checkGitignore) {
+    this(Main.NETWORK.getClientHandler(), projectDirectoryFile, checkGitignore);
+  }
+
+  /**
+   * Creates a file handler (initializes the watcher and filter).
+   *
+   * @param clientHandler The client handler to send file changes through.
+   * @param projectDirectoryFile The base project directory to be shared and updated.
+   * @param checkGitignore Whether a ".gitignore" file can be used to ignore certain file changes.
+   * @throws IllegalArgumentException If the selected file is not a directory.
+   * @throws RuntimeException If temporary directory, file watcher, or file filter fail to create.
+   */
+  public FileHandler(
+      ClientHandler clientHandler, File projectDirectoryFile, boolean checkGitignore) {
+    this.clientHandler = clientHandler;
+
     // Ensure the selected file is a directory
     if (!projectDirectoryFile.isDirectory()) {
       throw new IllegalArgumentException("Selected file must be a directory!");
@@ -82,6 +156,23 @@ public final class FileHandler {
     }
     tempDirectoryPath.toFile().deleteOnExit(); // Remove temporary directory when JVM terminates
 
+    // Reuse the temporary text files of the last session (those of unchanged files)
+    try {
+      baselineIndex = new BaselineIndex(projectDirectoryPath);
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "IO error occurred when creating baseline directory!", e);
+
+      Main.showErrorAlert(
+          "Baseline Directory Creation Error",
+          "Failed to Create Baseline Directory",
+          "Unable to call Files.createDirectories() to create the directory of temporary text "
+              + "files!");
+
+      throw new RuntimeException(e);
+    }
+    cachedTempPaths.putAll(baselineIndex.load());
+    fileTransferer = new FileTransferer(clientHandler, tempDirectoryPath, this::onTransferComplete);
+
     // Initialize the file watcher and filter
     try {
       fileWatcher = new FileWatcher(projectDirectoryPath, this);
@@ -96,6 +187,7 @@ public final class FileHandler {
 
       throw new RuntimeException(e);
     }
+    clientHandler.setSubscriptions(fileFilter.getSubscriptions());
     fileWatcher.start(); // Start watching for file changes on a separate thread
   }
 
@@ -184,19 +276,29 @@ public final class FileHandler {
 
     // Check if file is ignored
     if (fileFilter.isIgnored(relativeFilePath, absoluteFilePath)) {
+      FILTERED_EVENTS.inc();
       return;
     }
 
     Log.info(LOG_TAG, "CREATED: " + absoluteFilePath);
+    long detectTime = Tracer.now();
 
-    // Ensure no further checks/events if you received a packet to create this file
+    // Ensure no further checks/events if the file was created from the network
     String relativePathStr = pathToNetworkString(relativeFilePath);
-    if (filesMarkedForCreation.remove(relativePathStr)) {
+    if (writeTracker.isOwnWrite(relativePathStr, absoluteFilePath)) {
+      OWN_WRITE_EVENTS.inc();
+      return;
+    }
+
+    // The file was already sent (in the archive of a created directory), only its changes since are
+    if (treeSentFiles.remove(absoluteFilePath)) {
+      onModify(absoluteFilePath);
       return;
     }
 
     // Create a temporary file (if the path is to a text file)
-    boolean isTextFile = getTempPath(absoluteFilePath) != null;
+    Path tempFile = getTempPath(absoluteFilePath);
+    boolean isTextFile = tempFile != null;
 
     // Ensure directory isn't sent to network
     if (!isTextFile && Files.isDirectory(absoluteFilePath)) {
@@ -213,10 +315,29 @@ public final class FileHandler {
       return;
     }
 
+    // Send large files as a chunked transfer (reads from the temporary copy of the file)
+    try {
+      if (Files.size(tempFile) > FileTransferer.TRANSFER_THRESHOLD) {
+        fileTransferer.send(relativePathStr, tempFile);
+        return;
+      }
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to start chunked transfer of created file!", e);
+
+      Main.showErrorAlert(
+          "File Creation Error",
+          "Failed to Transfer Created File",
+          DE_SYNC_WARNING
+              + "Unable to call Files.size() and/or FileChannel.open() on the temporary text file "
+              + "to send its contents over network!");
+
+      return;
+    }
+
     // Read new lines from created file
-    List<String> newLines;
+    ByteLines newLines;
     try {
-      newLines = Files.readAllLines(absoluteFilePath);
+      newLines = ByteLines.read(absoluteFilePath);
     } catch (IOException e) {
       Log.error(LOG_TAG, "Failed to read created file lines!", e);
 
@@ -224,36 +345,24 @@ public final class FileHandler {
           "File Creation Error",
           "Failed to Read Created File",
           DE_SYNC_WARNING
-              + "Unable to call Files.readAllLines() on created file to send contents over "
+              + "Unable to call Files.readAllBytes() on created file to send contents over "
               + "network!");
 
       return;
     }
 
     // If no text data was in the created file, don't send
-    EditList editList = FileComparer.compareText(new ArrayList<>(), newLines);
+    EditList editList = FileComparer.compareText(ByteLines.EMPTY, newLines);
     if (editList.isEmpty()) {
       return;
     }
+    Trace trace = Tracer.begin(detectTime);
+    trace.diffTime = Tracer.now();
 
-    // Convert the lines into edit packets
+    // Convert the lines into edit packets and send them to the server
     List<EditPacket> editPackets =
         EditSerializer.toEditPackets(relativePathStr, newLines, editList);
-
-    // Begin sending edit packets to the server
-    BeginEditPacket beginPacket = new BeginEditPacket();
-    beginPacket.fileName = relativePathStr;
-    clientHandler.sendTcp(beginPacket);
-
-    // Send the edit packets
-    for (EditPacket p : editPackets) {
-      clientHandler.sendTcp(p);
-    }
-
-    // Finish sending the edit packets to the server
-    EndEditPacket endPacket = new EndEditPacket();
-    endPacket.fileName = relativePathStr;
-    clientHandler.sendTcp(endPacket);
+    clientHandler.sendEdits(relativePathStr, editPackets, trace);
   }
 
   /**
@@ -266,18 +375,25 @@ public final class FileHandler {
     Path relativeFilePath = projectDirectoryPath.relativize(absoluteFilePath);
     String fileName = pathToNetworkString(relativeFilePath);
 
-    // This avoids checking the changes in a modification from the network, while also avoiding
-    // potential issues when a file is deleted before onModify is called
-    if (filesMarkedForModification.remove(fileName) || !Files.exists(absoluteFilePath)) {
+    // Avoid potential issues when a file is deleted before onModify is called
+    if (!Files.exists(absoluteFilePath)) {
+      return;
+    }
+
+    // This avoids reading and checking the changes of a modification from the network
+    if (writeTracker.isOwnWrite(fileName, absoluteFilePath)) {
+      OWN_WRITE_EVENTS.inc();
       return;
     }
 
     // Check if file is ignored
     if (fileFilter.isIgnored(relativeFilePath, absoluteFilePath)) {
+      FILTERED_EVENTS.inc();
       return;
     }
 
     Log.info(LOG_TAG, "MODIFIED: " + absoluteFilePath);
+    long detectTime = Tracer.now();
 
     // Get the temporary text file (if it exists) and check for mismatches
     Path tempFile = getTempPath(absoluteFilePath);
@@ -285,12 +401,32 @@ public final class FileHandler {
       return;
     }
 
+    // A file that is still being transferred is resent as a whole, otherwise its edits would be
+    // applied to a partially received file
+    if (fileTransferer.isSending(fileName)) {
+      fileTransferer.cancel(fileName);
+      try {
+        Files.copy(absoluteFilePath, tempFile, REPLACE_EXISTING, COPY_ATTRIBUTES);
+        fileTransferer.send(fileName, tempFile);
+      } catch (IOException e) {
+        Log.error(LOG_TAG, "Failed to restart chunked transfer of modified file!", e);
+
+        Main.showErrorAlert(
+            "File Modification Error",
+            "Failed to Transfer Modified File",
+            DE_SYNC_WARNING
+                + "Unable to call Files.copy() and/or FileChannel.open() to resend the modified "
+                + "file over network!");
+      }
+      return;
+    }
+
     // Get the file changes
-    List<String> oldLines;
-    List<String> newLines;
+    ByteLines oldLines;
+    ByteLines newLines;
     try {
-      oldLines = Files.readAllLines(tempFile);
-      newLines = Files.readAllLines(absoluteFilePath);
+      oldLines = ByteLines.read(tempFile);
+      newLines = ByteLines.read(absoluteFilePath);
     } catch (IOException e) {
       Log.error(LOG_TAG, "Failed to read old and/or new modified file lines!", e);
 
@@ -298,12 +434,20 @@ public final class FileHandler {
           "File Modification Error",
           "Failed to Read Modified File",
           DE_SYNC_WARNING
-              + "Unable to call Files.readAllLines() on temporary text file and/or the newly "
+              + "Unable to call Files.readAllBytes() on temporary text file and/or the newly "
               + "modified file to send changes over network!");
 
       return;
     }
+
+    // The file may only have been touched since it was written from the network
+    if (writeTracker.isOwnContent(fileName, newLines)) {
+      OWN_WRITE_EVENTS.inc();
+      return;
+    }
     EditList editList = FileComparer.compareText(oldLines, newLines);
+    Trace trace = Tracer.begin(detectTime);
+    trace.diffTime = Tracer.now();
 
     // If no differences were detected, don't proceed
     // This is useful when interpreting edit packet data (which results in modifying the file)
@@ -311,23 +455,9 @@ public final class FileHandler {
       return;
     }
 
-    // Convert the changes into packets
+    // Convert the changes into packets and send them to the server
     List<EditPacket> editPackets = EditSerializer.toEditPackets(fileName, newLines, editList);
-
-    // Begin sending edit packets to the server
-    BeginEditPacket beginPacket = new BeginEditPacket();
-    beginPacket.fileName = fileName;
-    clientHandler.sendTcp(beginPacket);
-
-    // Send the edit packets
-    for (EditPacket p : editPackets) {
-      clientHandler.sendTcp(p);
-    }
-
-    // Finish sending the edit packets to the server
-    EndEditPacket endPacket = new EndEditPacket();
-    endPacket.fileName = fileName;
-    clientHandler.sendTcp(endPacket);
+    clientHandler.sendEdits(fileName, editPackets, trace);
 
     // Copy the new file's contents into the old temporary file (for future comparisons)
     try {
@@ -356,6 +486,7 @@ public final class FileHandler {
 
     // Check if file is ignored
     if (fileFilter.isIgnored(relativeFilePath, absoluteFilePath)) {
+      FILTERED_EVENTS.inc();
       return;
     }
 
@@ -365,9 +496,13 @@ public final class FileHandler {
       return;
     }
 
-    // Get the temporary text file (if it exists)
-    // Automatically deletes the file (if the file at absoluteFilePath doesn't exist)
-    getTempPath(absoluteFilePath);
+    // Stop sending the deleted file's content (or the content of the deleted directory's files),
+    // a file created again at the same path is sent as a new file
+    fileTransferer.cancelTree(relativePathStr);
+    treeSentFiles.removeIf(path -> path.startsWith(absoluteFilePath));
+
+    // Delete the temporary text files (if they exist)
+    removeTempPaths(absoluteFilePath);
 
     // Send delete file packet to server
     if (Files.exists(absoluteFilePath.getParent())) {
@@ -377,6 +512,107 @@ public final class FileHandler {
     }
   }
 
+  /**
+   * Called when a file (or directory) move is detected, which is a deletion and creation paired by
+   * the move correlator. The file's temporary text file moves with it, so only the move is sent.
+   *
+   * @param absoluteSourcePath The absolute path the file was moved from.
+   * @param absoluteTargetPath The absolute path the file was moved to.
+   */
+  public void onMove(Path absoluteSourcePath, Path absoluteTargetPath) {
+    Path relativeSourcePath = projectDirectoryPath.relativize(absoluteSourcePath);
+    Path relativeTargetPath = projectDirectoryPath.relativize(absoluteTargetPath);
+    String sourceName = pathToNetworkString(relativeSourcePath);
+    String targetName = pathToNetworkString(relativeTargetPath);
+
+    // Ensure no further checks/events if the file was moved from the network
+    if (writeTracker.isOwnWrite(targetName, absoluteTargetPath)) {
+      filesMarkedForDeletion.remove(sourceName);
+      OWN_WRITE_EVENTS.inc();
+      return;
+    }
+
+    // A move out of or into the ignored files (or of a file that is still being sent) is sent as
+    // a deletion and a creation
+    if (fileFilter.isIgnored(relativeSourcePath, absoluteSourcePath)
+        || fileFilter.isIgnored(relativeTargetPath, absoluteTargetPath)
+        || fileTransferer.isSending(sourceName)) {
+      onDelete(absoluteSourcePath);
+      onCreateTree(absoluteTargetPath);
+      return;
+    }
+
+    Log.info(LOG_TAG, "MOVED: " + absoluteSourcePath + " -> " + absoluteTargetPath);
+    moveTempPaths(absoluteSourcePath, absoluteTargetPath);
+    moveTreeSentFiles(absoluteSourcePath, absoluteTargetPath);
+
+    // Send move file packet to server
+    MoveFilePacket movePacket = new MoveFilePacket();
+    movePacket.fileName = sourceName;
+    movePacket.newFileName = targetName;
+    clientHandler.sendTcp(movePacket);
+  }
+
+  /**
+   * Handles a file packet received from the server (creations, edits, transfers, deletions, moves,
+   * and resyncs), any other packet is ignored.
+   *
+   * @param o The packet to handle.
+   */
+  public void receive(Object o) {
+    // The server only filters the packets relayed after it received the subscriptions
+    List<String> fileNames = getFileNames(o);
+    if (!fileNames.isEmpty() && fileNames.stream().noneMatch(fileFilter::isSubscribed)) {
+      UNSUBSCRIBED_PACKETS.inc();
+      return;
+    }
+
+    if (o instanceof DeleteFilePacket p) {
+      cancelReceivingTrees(p.fileName);
+    }
+    if (!receivingTrees.isEmpty() && isInReceivingTree(o)) {
+      heldPackets.add(o);
+      return;
+    }
+
+    if (o instanceof CreateFilePacket p) {
+      // Create the specified file
+      createFile(p.fileName);
+    } else if (o instanceof BeginEditPacket
+        || o instanceof EditPacket
+        || o instanceof EndEditPacket
+        || o instanceof EditBatchPacket
+        || o instanceof ChangesetPacket) {
+      // Interpret received edit packet data
+      interpretEdit(o);
+    } else if (o instanceof FileChunkPacket
+        || o instanceof FileChunkAckPacket
+        || o instanceof FileChunkResumePacket) {
+      // Handle chunked file transfer data
+      handleTransfer(o);
+    } else if (o instanceof DeleteFilePacket p) {
+      // Delete the specified file
+      deleteFile(p.fileName);
+    } else if (o instanceof MoveFilePacket p) {
+      // Move the specified file
+      moveFile(p.fileName, p.newFileName);
+    } else if (o instanceof CreateTreePacket p) {
+      // Hold the packets of the tree's files until its archive is received
+      receivingTrees.add(p.fileName);
+    } else if (o instanceof ResyncPacket p) {
+      // Resync files that a slow client missed packets of
+      resync(p);
+    }
+
+    // Handle the packets that were held until the received tree was extracted
+    if (isTreeExtracted) {
+      isTreeExtracted = false;
+      ArrayList<Object> packets = new ArrayList<>(heldPackets);
+      heldPackets.clear();
+      packets.forEach(this::receive);
+    }
+  }
+
   /**
    * Interprets an edit packet received from the server and applies the changes to the local file.
    *
@@ -389,53 +625,103 @@ public final class FileHandler {
     } else if (o instanceof EditPacket p) {
       editInterpreter.insert(p);
     } else if (o instanceof EndEditPacket p) {
-      Path absFilePath =
-          projectDirectoryPath.resolve(networkPathStringToLocalPathString(p.fileName));
-      List<String> lines;
+      applyEdits(p.fileName, editInterpreter.end(p), p.trace);
+    } else if (o instanceof EditBatchPacket p) {
+      applyEdits(p.fileName, editInterpreter.interpret(p), p.trace);
+    } else if (o instanceof ChangesetPacket p) {
+      // The changeset is traced once, when its last batch is written
+      for (int i = 0; i < p.batches.length; i++) {
+        EditBatchPacket batch = p.batches[i];
+        Trace trace = i == p.batches.length - 1 ? p.trace : null;
+        applyEdits(batch.fileName, editInterpreter.interpret(batch), trace);
+      }
+    }
+  }
 
-      // Read file lines and apply the edits
-      try {
-        lines = Files.readAllLines(absFilePath);
-      } catch (IOException e) {
-        Log.error(LOG_TAG, "Failed to read lines from file when interpreting edit!", e);
+  /**
+   * Handles a chunked transfer packet received from the server.
+   *
+   * @param o The transfer packet to handle.
+   */
+  public void handleTransfer(Object o) {
+    if (o instanceof FileChunkPacket p) {
+      fileTransferer.receive(p);
+    } else if (o instanceof FileChunkAckPacket p) {
+      fileTransferer.acknowledge(p);
+    } else if (o instanceof FileChunkResumePacket p) {
+      // Only the sender has the transfer, if it has already finished the file is sent again
+      if (!fileTransferer.resume(p) && p.senderKey == clientHandler.getClientKey()) {
+        resendFile(p.fileName);
+      }
+    }
+  }
 
-        Main.showErrorAlert(
-            "File Edit Interpretation Error",
-            "Failed to Read File to Modify",
-            DE_SYNC_WARNING
-                + "Unable to call Files.readAllLines() on file to apply edits received by "
-                + "network!");
+  /**
+   * Handles a resync packet from the server, sent when a client fell too far behind and had its
+   * queued file packets dropped. The slow client forgets the partial edits and transfers of those
+   * files, the client picked by the server resends the files to it.
+   *
+   * @param packet The resync packet to handle.
+   */
+  public void resync(ResyncPacket packet) {
+    if (packet.targetId == clientHandler.getId()) {
+      for (String fileName : packet.fileNames) {
+        editInterpreter.discard(fileName);
+        fileTransferer.cancelReceiving(fileName);
+
+        // The tree is resent, the held packets of its files are older than it
+        if (receivingTrees.contains(fileName)) {
+          heldPackets.removeIf(
+              o -> getFileNames(o).stream().allMatch(name -> isInTree(name, fileName)));
+        }
+      }
+      return;
+    }
 
-        return;
+    for (String fileName : packet.fileNames) {
+      if (!fileFilter.isSubscribed(fileName)) {
+        continue; // Not having the file doesn't mean it was deleted
+      }
+
+      Path absFilePath =
+          projectDirectoryPath.resolve(networkPathStringToLocalPathString(fileName));
+      if (!Files.exists(absFilePath)) {
+        DeleteFilePacket deletePacket = new DeleteFilePacket();
+        deletePacket.fileName = fileName;
+        clientHandler.sendTcpTo(packet.targetId, deletePacket);
+        continue;
+      } else if (Files.isDirectory(absFilePath)) {
+        sendTree(fileName, absFilePath, packet.targetId);
+        continue;
       }
-      editInterpreter.apply(editInterpreter.end(p), lines);
 
-      filesMarkedForModification.add(p.fileName);
+      CreateFilePacket createPacket = new CreateFilePacket();
+      createPacket.fileName = fileName;
+      clientHandler.sendTcpTo(packet.targetId, createPacket);
 
-      // Write the updated lines to both the temporary and actual files
+      Path tempFile = getTempPath(absFilePath);
+      if (tempFile == null) {
+        continue;
+      }
       try {
-        Files.write(absFilePath, lines);
-
-        // Write the changes to the temporary file
-        Path tempFile = getTempPath(absFilePath);
-        if (tempFile != null) {
-          Files.write(tempFile, lines);
-        }
+        fileTransferer.send(fileName, tempFile, packet.targetId);
       } catch (IOException e) {
-        Log.error(LOG_TAG, "Failed to write updated lines to file when interpreting edit!", e);
+        Log.error(LOG_TAG, "Failed to resend file to resync client!", e);
 
         Main.showErrorAlert(
-            "File Edit Interpretation Error",
-            "Failed to Write Modified File",
+            "File Transfer Error",
+            "Failed to Resync File",
             DE_SYNC_WARNING
-                + "Unable to call Files.write() on file and/or temporary text file to apply edits "
-                + "received by network!");
-
-        throw new RuntimeException(e);
+                + "Unable to call FileChannel.open() to resend a file to a client over network!");
       }
     }
   }
 
+  /** Resumes any interrupted chunked transfers (after reconnecting to the server). */
+  public void resumeTransfers() {
+    fileTransferer.resumeAll();
+  }
+
   /**
    * Creates a specified relative project file.
    *
@@ -449,10 +735,11 @@ public final class FileHandler {
       return;
     }
 
-    filesMarkedForCreation.add(fileName);
+    writeTracker.begin(fileName);
     try {
       Files.createDirectories(absFilePath.getParent()); // Ensure parent directories exist
       Files.createFile(absFilePath);
+      writeTracker.end(fileName, absFilePath, WriteTracker.hash(List.of()));
 
       // Create temp copy if this is a text file
       try {
@@ -467,6 +754,7 @@ public final class FileHandler {
                 + "Unable to create temporary text file for file created from network!");
       }
     } catch (IOException e) {
+      writeTracker.end(fileName, absFilePath, null);
       Log.error(LOG_TAG, "Failed to create file!", e);
 
       Main.showErrorAlert(
@@ -488,12 +776,13 @@ public final class FileHandler {
   public void deleteFile(String fileName) {
     Path absFilePath = projectDirectoryPath.resolve(networkPathStringToLocalPathString(fileName));
     if (!Files.exists(absFilePath)) {
-      // Remove temp file if it exists (this is handled automatically)
-      getTempPath(absFilePath);
+      // Remove temp files if they exist
+      removeTempPaths(absFilePath);
       return;
     }
 
     filesMarkedForDeletion.add(fileName);
+    fileTransferer.cancelTree(fileName);
     try {
       // Delete if directory
       FileUtils.delete(absFilePath.toFile(), FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
@@ -501,8 +790,8 @@ public final class FileHandler {
       // Delete if file (in the case that FileUtils didn't delete it)
       Files.deleteIfExists(absFilePath);
 
-      // Remove temp file if it exists (this is handled automatically)
-      getTempPath(absFilePath);
+      // Remove temp files if they exist
+      removeTempPaths(absFilePath);
     } catch (IOException e) {
       Log.error(LOG_TAG, "Failed to delete file!", e);
 
@@ -515,9 +804,615 @@ public final class FileHandler {
     }
   }
 
-  /** Ends the file watch update thread. */
+  /**
+   * Moves (renames) a specified relative project file or directory, along with its temporary text
+   * files.
+   *
+   * <p>NOTE: This is supposed to be used to move a file from the network.
+   *
+   * @param fileName The name of the file to move (relative to project directory).
+   * @param newFileName The name to move the file to (relative to project directory).
+   */
+  public void moveFile(String fileName, String newFileName) {
+    Path absFilePath = projectDirectoryPath.resolve(networkPathStringToLocalPathString(fileName));
+    Path absNewFilePath =
+        projectDirectoryPath.resolve(networkPathStringToLocalPathString(newFileName));
+    if (!Files.exists(absFilePath)) {
+      Log.error(LOG_TAG, "Failed to move file, it doesn't exist: " + fileName);
+
+      Main.showErrorAlert(
+          "File Move Error",
+          "Failed to Move Network File",
+          DE_SYNC_WARNING + "The file moved from network doesn't exist in the project directory!");
+
+      return;
+    }
+
+    // Mark every moved file as written, so their events are recognized even if they aren't paired
+    ArrayList<Path> movedPaths = new ArrayList<>();
+    try (Stream<Path> paths = Files.walk(absFilePath)) {
+      paths.forEach(path -> movedPaths.add(absNewFilePath.resolve(absFilePath.relativize(path))));
+    } catch (IOException | UncheckedIOException e) {
+      movedPaths.add(absNewFilePath); // Only the moved file (or directory) itself is recognized
+    }
+    for (Path path : movedPaths) {
+      writeTracker.begin(pathToNetworkString(projectDirectoryPath.relativize(path)));
+    }
+
+    filesMarkedForDeletion.add(fileName);
+    fileTransferer.cancel(fileName);
+    try {
+      Files.createDirectories(absNewFilePath.getParent()); // Ensure parent directories exist
+      Files.move(absFilePath, absNewFilePath);
+      moveTempPaths(absFilePath, absNewFilePath);
+    } catch (IOException e) {
+      filesMarkedForDeletion.remove(fileName);
+      Log.error(LOG_TAG, "Failed to move file!", e);
+
+      Main.showErrorAlert(
+          "File Move Error",
+          "Failed to Move Network File",
+          DE_SYNC_WARNING
+              + "Unable to call Files.createDirectories() and/or Files.move() to move file from "
+              + "network!");
+    } finally {
+      for (Path path : movedPaths) {
+        writeTracker.end(pathToNetworkString(projectDirectoryPath.relativize(path)), path, null);
+      }
+    }
+  }
+
+  /**
+   * Ends the file watch update thread, cancels any chunked transfers, and saves the index of the
+   * temporary text files (to reuse them when the project is reopened).
+   */
   public void close() {
     fileWatcher.end();
+    fileTransferer.close();
+    baselineIndex.save(cachedTempPaths);
+  }
+
+  /**
+   * Applies consolidated edits to a local file (and its temporary file).
+   *
+   * @param fileName The name of the file to apply the edits to (relative to project directory).
+   * @param edits The consolidated edit packets to apply.
+   * @param trace The trace of the change (null if the change isn't traced).
+   * @throws RuntimeException If an IO error occurs when writing the file.
+   */
+  private void applyEdits(String fileName, List<EditPacket> edits, @CheckForNull Trace trace) {
+    if (edits.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+
+    Path absFilePath = projectDirectoryPath.resolve(networkPathStringToLocalPathString(fileName));
+    List<ByteLine> lines;
+
+    // Read file lines and apply the edits
+    try {
+      lines = ByteLines.read(absFilePath).toList();
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to read lines from file when interpreting edit!", e);
+
+      Main.showErrorAlert(
+          "File Edit Interpretation Error",
+          "Failed to Read File to Modify",
+          DE_SYNC_WARNING
+              + "Unable to call Files.readAllBytes() on file to apply edits received by "
+              + "network!");
+
+      return;
+    }
+    int firstLine = getFirstLine(edits);
+    long oldByteSize = RegionWriter.getByteSize(lines);
+    editInterpreter.apply(edits, lines);
+    long applyTime = Tracer.now();
+
+    // Write the updated lines to both the actual and temporary files, only the region from the
+    // first changed line is rewritten (unless the file is replaced as a whole)
+    long writeTime;
+    writeTracker.begin(fileName);
+    try {
+      long offset = RegionWriter.getRegionOffset(absFilePath, lines, firstLine, oldByteSize);
+      if (offset >= 0) {
+        RegionWriter.writeRegion(absFilePath, lines, firstLine, offset);
+      } else {
+        RegionWriter.replace(absFilePath, lines, tempDirectoryPath);
+      }
+      writeTime = Tracer.now();
+      writeTracker.end(fileName, absFilePath, WriteTracker.hash(lines));
+
+      // Write the changes to the temporary file
+      Path tempFile = getTempPath(absFilePath);
+      if (tempFile != null) {
+        RegionWriter.write(tempFile, lines, firstLine, oldByteSize, tempDirectoryPath);
+      }
+    } catch (IOException e) {
+      writeTracker.end(fileName, absFilePath, null);
+      Log.error(LOG_TAG, "Failed to write updated lines to file when interpreting edit!", e);
+
+      Main.showErrorAlert(
+          "File Edit Interpretation Error",
+          "Failed to Write Modified File",
+          DE_SYNC_WARNING
+              + "Unable to write the changed region of the file and/or temporary text file to "
+              + "apply edits received by network!");
+
+      throw new RuntimeException(e);
+    }
+    APPLIED_EDITS.add(edits.size());
+    APPLY_SECONDS.observeSince(startTime);
+    if (trace != null) {
+      Tracer.record(trace, applyTime, writeTime);
+    }
+  }
+
+  /**
+   * Gets the index of the first line changed by consolidated edits (the lines before it are kept
+   * as is).
+   *
+   * @param edits The consolidated edit packets.
+   * @return The index of the first changed line.
+   */
+  private static int getFirstLine(List<EditPacket> edits) {
+    int firstLine = Integer.MAX_VALUE;
+    for (EditPacket edit : edits) {
+      firstLine = Math.min(firstLine, edit.start);
+    }
+    return firstLine;
+  }
+
+  /**
+   * Sends the whole content of a file as a chunked transfer.
+   *
+   * @param fileName The name of the file to send (relative to project directory).
+   */
+  private void resendFile(String fileName) {
+    Path absFilePath = projectDirectoryPath.resolve(networkPathStringToLocalPathString(fileName));
+    Path tempFile = getTempPath(absFilePath);
+    if (tempFile == null) {
+      return;
+    }
+
+    try {
+      fileTransferer.send(fileName, tempFile);
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to resend file as chunked transfer!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Resend File",
+          DE_SYNC_WARNING + "Unable to call FileChannel.open() to resend a file over network!");
+    }
+  }
+
+  /**
+   * Called when a chunked transfer from the network is complete, replaces the content of the
+   * project file (and its temporary file) with the received content.
+   *
+   * @param fileName The name of the received file (relative to project directory).
+   * @param contentPath The path to the received content.
+   */
+  private void onTransferComplete(String fileName, Path contentPath) {
+    if (receivingTrees.remove(fileName)) {
+      extractTree(fileName, contentPath);
+      isTreeExtracted = true; // The held packets are handled after the transfer packet
+      return;
+    }
+
+    Path absFilePath = projectDirectoryPath.resolve(networkPathStringToLocalPathString(fileName));
+    writeTracker.begin(fileName);
+    try {
+      Files.createDirectories(absFilePath.getParent()); // Ensure parent directories exist
+      overwrite(contentPath, absFilePath);
+      writeTracker.end(fileName, absFilePath, null);
+
+      // Write the content to the temporary file
+      Path tempFile = getTempPath(absFilePath);
+      if (tempFile != null) {
+        overwrite(contentPath, tempFile);
+      }
+    } catch (IOException e) {
+      writeTracker.end(fileName, absFilePath, null);
+      Log.error(LOG_TAG, "Failed to write received content to file!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Write Received File",
+          DE_SYNC_WARNING
+              + "Unable to call FileChannel.transferTo() on file and/or temporary text file to "
+              + "write content received by network!");
+    }
+  }
+
+  /**
+   * Called when a directory of new files is created (copied into the project, or moved in from the
+   * ignored files). Its files are sent as a single tree archive, unless there are only a few.
+   *
+   * @param absolutePath The absolute path of the created directory (or file).
+   */
+  public void onCreateTree(Path absolutePath) {
+    if (!Files.isDirectory(absolutePath)) {
+      onCreate(absolutePath);
+      return;
+    }
+    Path relativePath = projectDirectoryPath.relativize(absolutePath);
+
+    // Check if directory is ignored
+    if (fileFilter.isIgnored(relativePath, absolutePath)) {
+      FILTERED_EVENTS.inc();
+      return;
+    }
+
+    // Ensure no further checks/events if the directory was extracted from the network
+    String directoryName = pathToNetworkString(relativePath);
+    if (writeTracker.isOwnWrite(directoryName, absolutePath)) {
+      OWN_WRITE_EVENTS.inc();
+      return;
+    }
+
+    ArrayList<Path> directories = new ArrayList<>();
+    ArrayList<Path> files = new ArrayList<>();
+    try {
+      collectTree(absolutePath, directories, files);
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to walk created directory!", e);
+
+      Main.showErrorAlert(
+          "File Creation Error",
+          "Failed to Read Created Directory",
+          DE_SYNC_WARNING
+              + "Unable to call Files.walkFileTree() on created directory to send its files over "
+              + "network!");
+
+      return;
+    }
+
+    // Skip the files written from the network (the directory may have changed since it was)
+    files.removeIf(
+        file -> {
+          boolean isOwnWrite = writeTracker.isOwnWrite(getFileName(file), file);
+          if (isOwnWrite) {
+            OWN_WRITE_EVENTS.inc();
+          }
+          return isOwnWrite;
+        });
+    if (files.isEmpty()) {
+      return;
+    } else if (files.size() < TREE_FILE_THRESHOLD) {
+      files.forEach(this::onCreate);
+      return;
+    }
+    Log.info(LOG_TAG, "CREATED TREE: " + absolutePath + " (" + files.size() + " files)");
+    sendTree(directoryName, absolutePath, directories, files, 0);
+  }
+
+  /**
+   * Sends a directory's files as a tree archive.
+   *
+   * @param directoryName The name of the directory to send (relative to project directory).
+   * @param absolutePath The absolute path of the directory.
+   * @param targetId The ID of the client to send the tree to (0 to send it to every client).
+   */
+  private void sendTree(String directoryName, Path absolutePath, int targetId) {
+    ArrayList<Path> directories = new ArrayList<>();
+    ArrayList<Path> files = new ArrayList<>();
+    try {
+      collectTree(absolutePath, directories, files);
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to walk directory to resend!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Resync Directory",
+          DE_SYNC_WARNING
+              + "Unable to call Files.walkFileTree() to resend a directory to a client over "
+              + "network!");
+
+      return;
+    }
+    sendTree(directoryName, absolutePath, directories, files, targetId);
+  }
+
+  /**
+   * Sends a directory's files as a tree archive of their temporary text files (non-text files are
+   * created empty, as they are when created one by one).
+   *
+   * @param directoryName The name of the directory to send (relative to project directory).
+   * @param absolutePath The absolute path of the directory.
+   * @param directories The absolute paths of the directory's subdirectories.
+   * @param files The absolute paths of the directory's files.
+   * @param targetId The ID of the client to send the tree to (0 to send it to every client).
+   */
+  private void sendTree(
+      String directoryName,
+      Path absolutePath,
+      List<Path> directories,
+      List<Path> files,
+      int targetId) {
+    Path archivePath = null;
+    try {
+      archivePath = Files.createTempFile(tempDirectoryPath, "tree", ".zip");
+      TreeArchive.write(archivePath, absolutePath, directories, files, this::getTempPath);
+
+      // The tree is created before the transfer starts, so the packets of its files wait for it
+      CreateTreePacket treePacket = new CreateTreePacket();
+      treePacket.fileName = directoryName;
+      if (targetId == 0) {
+        clientHandler.sendTcp(treePacket);
+        treeSentFiles.addAll(files);
+      } else {
+        clientHandler.sendTcpTo(targetId, treePacket);
+      }
+
+      // The transferer deletes the archive once the transfer finishes (or fails to start)
+      Path transferredArchivePath = archivePath;
+      archivePath = null;
+      fileTransferer.send(directoryName, transferredArchivePath, targetId, true);
+      TREE_FILES.add(files.size());
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to send directory as tree archive!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Send Created Directory",
+          DE_SYNC_WARNING
+              + "Unable to write the archive of a created directory and/or call FileChannel.open() "
+              + "to send it over network!");
+    } finally {
+      // The archive failed to be written
+      if (archivePath != null) {
+        try {
+          Files.deleteIfExists(archivePath);
+        } catch (IOException e) {
+          archivePath.toFile().deleteOnExit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Collects the subdirectories and files of a directory that aren't ignored.
+   *
+   * @param absolutePath The absolute path of the directory.
+   * @param directories The list to add the absolute paths of the subdirectories to.
+   * @param files The list to add the absolute paths of the files to.
+   * @throws IOException If the directory fails to be walked.
+   */
+  private void collectTree(Path absolutePath, List<Path> directories, List<Path> files)
+      throws IOException {
+    Files.walkFileTree(
+        absolutePath,
+        new SimpleFileVisitor<>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+            if (dir.equals(absolutePath)) {
+              return FileVisitResult.CONTINUE;
+            } else if (fileFilter.isIgnored(projectDirectoryPath.relativize(dir), dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            directories.add(dir);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            if (attributes.isRegularFile()
+                && !fileFilter.isIgnored(projectDirectoryPath.relativize(file), file)) {
+              files.add(file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            return FileVisitResult.CONTINUE; // Deleted while walking, its deletion is detected
+          }
+        });
+  }
+
+  /**
+   * Extracts a received tree archive into the project directory, creating the temporary text files
+   * of its files.
+   *
+   * @param directoryName The name of the received directory (relative to project directory).
+   * @param archivePath The path to the received archive.
+   */
+  private void extractTree(String directoryName, Path archivePath) {
+    Path absDirectoryPath =
+        projectDirectoryPath.resolve(networkPathStringToLocalPathString(directoryName));
+    writeTracker.begin(directoryName);
+    try {
+      int files =
+          TreeArchive.extract(
+              archivePath,
+              absDirectoryPath,
+              path -> fileFilter.isSubscribed(getFileName(path)),
+              path -> writeTracker.begin(getFileName(path)),
+              path -> {
+                writeTracker.end(getFileName(path), path, null);
+                getTempPath(path);
+              });
+      Log.info(LOG_TAG, "Extracted tree " + directoryName + " (" + files + " files)");
+    } catch (IOException | RuntimeException e) {
+      Log.error(LOG_TAG, "Failed to extract received tree archive!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Extract Received Directory",
+          DE_SYNC_WARNING
+              + "Unable to extract the archive of a directory created from network into the "
+              + "project directory!");
+    } finally {
+      writeTracker.end(directoryName, absDirectoryPath, null);
+    }
+  }
+
+  /**
+   * Cancels receiving the trees in (or of) a deleted file, dropping the held packets of their
+   * files.
+   *
+   * @param fileName The name of the deleted file (relative to project directory).
+   */
+  private void cancelReceivingTrees(String fileName) {
+    for (String tree : List.copyOf(receivingTrees)) {
+      if (isInTree(tree, fileName)) {
+        receivingTrees.remove(tree);
+        fileTransferer.cancelReceiving(tree);
+        heldPackets.removeIf(o -> getFileNames(o).stream().allMatch(name -> isInTree(name, tree)));
+      }
+    }
+  }
+
+  /**
+   * Checks if a packet is of a file in a tree that is still being received (other than the
+   * transfer of the tree's archive itself).
+   *
+   * @param o The packet to check.
+   * @return Whether the packet must be held until the tree is extracted.
+   */
+  private boolean isInReceivingTree(Object o) {
+    if ((o instanceof FileChunkPacket p && receivingTrees.contains(p.fileName))
+        || (o instanceof CreateTreePacket t && receivingTrees.contains(t.fileName))) {
+      return false;
+    }
+    for (String name : getFileNames(o)) {
+      for (String tree : receivingTrees) {
+        if (isInTree(name, tree)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the names of the files a received packet changes (none for the packets that aren't of a
+   * specific file, such as acknowledgements and resyncs).
+   *
+   * @param o The received packet.
+   * @return The names of the files the packet changes.
+   */
+  private static List<String> getFileNames(Object o) {
+    if (o instanceof CreateFilePacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof DeleteFilePacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof MoveFilePacket p) {
+      return List.of(p.fileName, p.newFileName);
+    } else if (o instanceof CreateTreePacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof BeginEditPacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof EditPacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof EndEditPacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof EditBatchPacket p) {
+      return List.of(p.fileName);
+    } else if (o instanceof ChangesetPacket p) {
+      ArrayList<String> fileNames = new ArrayList<>(p.batches.length);
+      for (EditBatchPacket batch : p.batches) {
+        fileNames.add(batch.fileName);
+      }
+      return fileNames;
+    } else if (o instanceof FileChunkPacket p) {
+      return List.of(p.fileName);
+    }
+    return List.of();
+  }
+
+  private String getFileName(Path absolutePath) {
+    return pathToNetworkString(projectDirectoryPath.relativize(absolutePath));
+  }
+
+  private static boolean isInTree(String fileName, String treeName) {
+    // The tree of the project directory is the snapshot that a late joiner is sent
+    return treeName.isEmpty() || fileName.equals(treeName) || fileName.startsWith(treeName + "/");
+  }
+
+  /**
+   * Moves the temporary text file of a moved file (or those of the files in a moved directory), so
+   * the moved files are still compared to their last synchronized content.
+   *
+   * @param absoluteSourcePath The absolute path the file was moved from.
+   * @param absoluteTargetPath The absolute path the file was moved to.
+   */
+  private void moveTempPaths(Path absoluteSourcePath, Path absoluteTargetPath) {
+    List<Path> paths =
+        cachedTempPaths.containsKey(absoluteSourcePath)
+            ? List.of(absoluteSourcePath)
+            : List.copyOf(cachedTempPaths.keySet());
+    for (Path path : paths) {
+      if (!path.startsWith(absoluteSourcePath)) {
+        continue;
+      }
+      Path tempPath = cachedTempPaths.remove(path);
+      if (tempPath == null) {
+        continue;
+      }
+
+      Path movedPath = absoluteTargetPath.resolve(absoluteSourcePath.relativize(path));
+      try {
+        cachedTempPaths.put(
+            movedPath, Files.move(tempPath, getBaselinePath(movedPath), REPLACE_EXISTING));
+      } catch (IOException e) {
+        // The temporary text file is created from the moved file when it's needed
+        Log.error(LOG_TAG, "Failed to move temporary text file!", e);
+      }
+    }
+  }
+
+  /**
+   * Moves the files sent in a tree archive whose creation wasn't detected yet along with a moved
+   * file (or directory), the receivers move them too.
+   *
+   * @param absoluteSourcePath The absolute path the file was moved from.
+   * @param absoluteTargetPath The absolute path the file was moved to.
+   */
+  private void moveTreeSentFiles(Path absoluteSourcePath, Path absoluteTargetPath) {
+    for (Path path : List.copyOf(treeSentFiles)) {
+      if (path.startsWith(absoluteSourcePath) && treeSentFiles.remove(path)) {
+        treeSentFiles.add(absoluteTargetPath.resolve(absoluteSourcePath.relativize(path)));
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary text file of a deleted file (or those of the files in a deleted
+   * directory).
+   *
+   * @param absolutePath The absolute path of the deleted file.
+   */
+  private void removeTempPaths(Path absolutePath) {
+    if (getTempPath(absolutePath) != null) {
+      return; // The text file still exists
+    }
+    for (Path path : List.copyOf(cachedTempPaths.keySet())) {
+      if (path.startsWith(absolutePath)) {
+        getTempPath(path);
+      }
+    }
+  }
+
+  /**
+   * Replaces the content of a file in place (unlike a copy, the file is never deleted, so the
+   * watcher only detects a modification).
+   *
+   * @param source The path to the file to read the new content from.
+   * @param target The path to the file to overwrite.
+   * @throws IOException If either file fails to open, read, or write.
+   */
+  private static void overwrite(Path source, Path target) throws IOException {
+    try (FileChannel in = FileChannel.open(source, READ);
+        FileChannel out = FileChannel.open(target, WRITE, CREATE, TRUNCATE_EXISTING)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position += in.transferTo(position, size - position, out);
+      }
+    }
   }
 
   /**
@@ -552,26 +1447,11 @@ public final class FileHandler {
     return cachedTempPaths.computeIfAbsent(
         absolutePath,
         path -> {
-          // Get the name of the path relative to the project directory path
-          String relativePathName = projectDirectoryPath.relativize(path).toString();
-
-          // Remove any "special" characters from the file name
-          String safePathName =
-              relativePathName.replace(File.separatorChar, '_').replaceAll("[^a-zA-Z0-9._-]", "_");
-
-          // Ensure file name under 250 chars (Windows limit)
-          // Under 200 here to append the hash
-          if (safePathName.length() > 200) {
-            safePathName = safePathName.substring(0, 200);
-          }
-
           // Create the temporary path if it wasn't already cached
-          String tempPathName = safePathName + "_" + relativePathName.hashCode() + ".tmp";
-
           Path tempFilePath;
           try {
             tempFilePath =
-                Files.copy(path, tempDirectoryPath.resolve(tempPathName), COPY_ATTRIBUTES);
+                Files.copy(path, getBaselinePath(path), REPLACE_EXISTING, COPY_ATTRIBUTES);
           } catch (IOException e) {
             Log.error(LOG_TAG, "Failed to copy data to temporary text file!", e);
 
@@ -582,8 +1462,31 @@ public final class FileHandler {
 
             throw new RuntimeException(e); // Can't just return null, may cause issues later
           }
-          tempFilePath.toFile().deleteOnExit();
           return tempFilePath;
         });
   }
+
+  /**
+   * Gets the path of a file's temporary text file in the baseline directory, which is named after
+   * the file's path relative to the project directory.
+   *
+   * @param absolutePath The absolute path to the file.
+   * @return The path to the file's temporary text file (which may not exist).
+   */
+  private Path getBaselinePath(Path absolutePath) {
+    // Get the name of the path relative to the project directory path
+    String relativePathName = projectDirectoryPath.relativize(absolutePath).toString();
+
+    // Remove any "special" characters from the file name
+    String safePathName =
+        relativePathName.replace(File.separatorChar, '_').replaceAll("[^a-zA-Z0-9._-]", "_");
+
+    // Ensure file name under 250 chars (Windows limit)
+    // Under 200 here to append the hash
+    if (safePathName.length() > 200) {
+      safePathName = safePathName.substring(0, 200);
+    }
+    String tempPathName = safePathName + "_" + relativePathName.hashCode() + ".tmp";
+    return baselineIndex.getBaselineDirectory().resolve(tempPathName);
+  }
 }
@@ -0,0 +1,563 @@
+package com.rivelbop.dossio.io;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.app.Main;
+import com.rivelbop.dossio.networking.ClientHandler;
+import com.rivelbop.dossio.networking.Network;
+import com.rivelbop.dossio.networking.Packet.FileChunkAckPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import javax.annotation.CheckForNull;
+
+/**
+ * Handles chunked file transfers - splits file content into checksummed chunks, limits the amount
+ * of unacknowledged chunks in flight, and reassembles received chunks into a partial file until
+ * the transfer is complete.
+ *
+ * <p>Chunks are written positionally, so a transfer can be resumed from any offset (after a lost
+ * or corrupted chunk, or a reconnect) without restarting the whole file. The partial file only
+ * replaces the project file once every chunk has been received.
+ */
+public final class FileTransferer {
+  /** The file byte size above which file content is sent through a chunked transfer. */
+  public static final int TRANSFER_THRESHOLD = Network.BUFFER_SIZE / 2;
+
+  /**
+   * The maximum unacknowledged bytes in flight per transfer. The window covers the bandwidth-delay
+   * product of fast links (2 MiB is about 40 MB/s at a 50 ms round trip), while staying below the
+   * queued byte size at which the server resyncs a receiving client. The chunks wait in the
+   * outbound scheduler's bulk lane, so a full window never overflows the write buffer.
+   */
+  public static final int WINDOW_BYTES = 32 * Network.BUFFER_SIZE;
+
+  private static final String LOG_TAG = "FileTransferer";
+
+  private final ClientHandler clientHandler;
+  private final Path tempDirectoryPath;
+  private final BiConsumer<String, Path> completionListener;
+
+  private final HashMap<Long, OutboundTransfer> outboundTransfers = new HashMap<>();
+  private final HashMap<Long, InboundTransfer> inboundTransfers = new HashMap<>();
+
+  /**
+   * Creates a file transferer that stores partially received files in the temporary directory.
+   *
+   * @param clientHandler The client handler to send chunks through.
+   * @param tempDirectoryPath The temporary directory to store partially received files in.
+   * @param completionListener Called with the file name and the path to the received content once
+   *     an inbound transfer is complete (the content file is deleted after the call).
+   */
+  public FileTransferer(
+      ClientHandler clientHandler,
+      Path tempDirectoryPath,
+      BiConsumer<String, Path> completionListener) {
+    this.clientHandler = clientHandler;
+    this.tempDirectoryPath = tempDirectoryPath;
+    this.completionListener = completionListener;
+  }
+
+  /**
+   * Starts sending a file's content as a chunked transfer, any previous outbound transfer of the
+   * same file is cancelled.
+   *
+   * <p>NOTE: The source file must not be replaced while the transfer is in progress (cancel it
+   * first).
+   *
+   * @param fileName The network name of the file being transferred.
+   * @param sourcePath The path to read the transferred content from.
+   * @throws IOException If the source file fails to open or read.
+   */
+  public synchronized void send(String fileName, Path sourcePath) throws IOException {
+    send(fileName, sourcePath, 0);
+  }
+
+  /**
+   * Starts sending a file's content as a chunked transfer to a single client (0 to send it to
+   * every client). Any previous outbound transfer of the same file to the same client is
+   * cancelled, a transfer to every client cancels all of them.
+   *
+   * <p>NOTE: The source file must not be replaced while the transfer is in progress (cancel it
+   * first).
+   *
+   * @param fileName The network name of the file being transferred.
+   * @param sourcePath The path to read the transferred content from.
+   * @param targetId The ID of the client to send the file to (0 to send it to every client).
+   * @throws IOException If the source file fails to open or read.
+   */
+  public synchronized void send(String fileName, Path sourcePath, int targetId)
+      throws IOException {
+    send(fileName, sourcePath, targetId, false);
+  }
+
+  /**
+   * Starts sending a file's content as a chunked transfer to a single client (0 to send it to
+   * every client), like {@link #send(String, Path, int)}, optionally taking ownership of the
+   * source file.
+   *
+   * @param fileName The network name of the file being transferred.
+   * @param sourcePath The path to read the transferred content from.
+   * @param targetId The ID of the client to send the file to (0 to send it to every client).
+   * @param deleteSource Whether to delete the source file once the transfer finishes (it completes,
+   *     fails, or is cancelled), for sources that are only written for the transfer.
+   * @throws IOException If the source file fails to open or read (it is then deleted too).
+   */
+  public synchronized void send(
+      String fileName, Path sourcePath, int targetId, boolean deleteSource) throws IOException {
+    for (OutboundTransfer transfer : new ArrayList<>(outboundTransfers.values())) {
+      if (transfer.fileName.equals(fileName)
+          && (targetId == 0 || transfer.targetId == targetId)) {
+        finish(transfer);
+      }
+    }
+
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(sourcePath, READ);
+    } catch (IOException e) {
+      if (deleteSource) {
+        deleteQuietly(sourcePath);
+      }
+      throw e;
+    }
+    OutboundTransfer transfer =
+        new OutboundTransfer(
+            fileName,
+            ThreadLocalRandom.current().nextLong(),
+            targetId,
+            deleteSource ? sourcePath : null,
+            channel,
+            channel.size());
+    if (transfer.fileSize == 0) {
+      // An empty file is sent as a single empty chunk, so the receiver truncates its copy
+      finish(transfer);
+      sendChunk(transfer, new byte[0]);
+      return;
+    }
+    outboundTransfers.put(transfer.transferId, transfer);
+
+    Log.info(LOG_TAG, "Sending " + fileName + " (" + transfer.fileSize + " bytes)");
+    try {
+      pump(transfer);
+    } catch (IOException e) {
+      finish(transfer);
+      throw e;
+    }
+  }
+
+  /**
+   * Checks if a file is currently being sent.
+   *
+   * @param fileName The network name of the file.
+   * @return Whether an outbound transfer of the file is in progress.
+   */
+  public synchronized boolean isSending(String fileName) {
+    for (OutboundTransfer transfer : outboundTransfers.values()) {
+      if (transfer.fileName.equals(fileName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves the window of an outbound transfer after the server relayed one of its chunks.
+   *
+   * @param packet The acknowledgment received from the server.
+   */
+  public synchronized void acknowledge(FileChunkAckPacket packet) {
+    OutboundTransfer transfer = outboundTransfers.get(packet.transferId);
+    if (transfer == null) {
+      return;
+    }
+
+    transfer.ackedOffset = Math.max(transfer.ackedOffset, packet.offset);
+    if (transfer.ackedOffset >= transfer.fileSize) {
+      Log.info(LOG_TAG, "Sent " + transfer.fileName);
+      finish(transfer);
+      return;
+    }
+    pumpOrAbort(transfer);
+  }
+
+  /**
+   * Rewinds an outbound transfer to the offset requested by a receiver.
+   *
+   * @param packet The resume request received from the server.
+   * @return Whether the transfer exists (it may have already finished or been cancelled).
+   */
+  public synchronized boolean resume(FileChunkResumePacket packet) {
+    OutboundTransfer transfer = outboundTransfers.get(packet.transferId);
+    if (transfer == null) {
+      return false;
+    }
+
+    if (packet.offset < transfer.sentOffset) {
+      Log.debug(LOG_TAG, "Resuming " + transfer.fileName + " from offset " + packet.offset);
+      transfer.sentOffset = packet.offset;
+      transfer.ackedOffset = packet.offset;
+    }
+    pumpOrAbort(transfer);
+    return true;
+  }
+
+  /**
+   * Resumes all transfers after reconnecting to the server. Outbound transfers are resent from the
+   * last chunk that the server relayed (the server acknowledges chunks, not the receivers), and
+   * inbound transfers ask their sender for the chunks they are missing, by transfer ID.
+   */
+  public synchronized void resumeAll() {
+    for (OutboundTransfer transfer : new ArrayList<>(outboundTransfers.values())) {
+      transfer.sentOffset = transfer.ackedOffset;
+      pumpOrAbort(transfer);
+    }
+    for (InboundTransfer transfer : inboundTransfers.values()) {
+      transfer.requestedOffset = -1;
+      requestResume(transfer);
+    }
+  }
+
+  /**
+   * Writes a received chunk into its partial file, completing the transfer if it was the last
+   * chunk. Chunks that are out of order or fail the checksum are requested again.
+   *
+   * @param packet The chunk received from the server.
+   */
+  public synchronized void receive(FileChunkPacket packet) {
+    InboundTransfer transfer = inboundTransfers.get(packet.transferId);
+    if (transfer == null) {
+      // A newer transfer of the same file replaces the old one, unless this is a leftover chunk
+      // from the middle of a transfer that was already replaced (after a resync)
+      if (packet.offset > 0 && isReceiving(packet.fileName)) {
+        return;
+      }
+      cancelInbound(packet.fileName);
+
+      Path partPath = tempDirectoryPath.resolve(Long.toHexString(packet.transferId) + ".part");
+      try {
+        transfer =
+            new InboundTransfer(
+                packet.fileName,
+                packet.transferId,
+                packet.senderKey,
+                partPath,
+                FileChannel.open(partPath, CREATE, WRITE, TRUNCATE_EXISTING),
+                packet.fileSize);
+      } catch (IOException e) {
+        Log.error(LOG_TAG, "Failed to create partial transfer file!", e);
+
+        Main.showErrorAlert(
+            "File Transfer Error",
+            "Failed to Create Partial File",
+            FileHandler.DE_SYNC_WARNING
+                + "Unable to call FileChannel.open() to store a file received from network!");
+
+        return;
+      }
+      partPath.toFile().deleteOnExit();
+      inboundTransfers.put(transfer.transferId, transfer);
+    }
+
+    // Ignore chunks that were already received (resent after a rewind), the single empty chunk
+    // of an empty file completes it
+    if (packet.offset + packet.data.length <= transfer.receivedOffset && transfer.fileSize > 0) {
+      return;
+    }
+
+    // Request any missing or corrupted chunks to be resent
+    if (packet.offset > transfer.receivedOffset
+        || Network.checksum(packet.data) != packet.checksum) {
+      requestResume(transfer);
+      return;
+    }
+
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(packet.data);
+      while (buffer.hasRemaining()) {
+        transfer.channel.write(buffer, packet.offset + buffer.position());
+      }
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to write chunk to partial transfer file!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Write Partial File",
+          FileHandler.DE_SYNC_WARNING
+              + "Unable to call FileChannel.write() to store a file received from network!");
+
+      cancelInbound(transfer.fileName);
+      return;
+    }
+    transfer.receivedOffset = packet.offset + packet.data.length;
+    transfer.requestedOffset = -1;
+
+    if (transfer.receivedOffset >= transfer.fileSize) {
+      Log.info(LOG_TAG, "Received " + transfer.fileName);
+      inboundTransfers.remove(transfer.transferId);
+      closeQuietly(transfer.channel);
+      completionListener.accept(transfer.fileName, transfer.partPath);
+      deleteQuietly(transfer.partPath);
+    }
+  }
+
+  /**
+   * Cancels all inbound and outbound transfers of a file (for example, when it is deleted).
+   *
+   * @param fileName The network name of the file.
+   */
+  public synchronized void cancel(String fileName) {
+    cancelOutbound(fileName);
+    cancelInbound(fileName);
+  }
+
+  /**
+   * Cancels all inbound and outbound transfers of a directory's files, and of the directory itself
+   * (its tree archive), for example, when the directory is deleted.
+   *
+   * @param directoryName The network name of the directory.
+   */
+  public synchronized void cancelTree(String directoryName) {
+    String prefix = directoryName + "/";
+    for (OutboundTransfer transfer : new ArrayList<>(outboundTransfers.values())) {
+      if (transfer.fileName.equals(directoryName) || transfer.fileName.startsWith(prefix)) {
+        finish(transfer);
+      }
+    }
+    for (InboundTransfer transfer : new ArrayList<>(inboundTransfers.values())) {
+      if (transfer.fileName.equals(directoryName) || transfer.fileName.startsWith(prefix)) {
+        abort(transfer);
+      }
+    }
+  }
+
+  /**
+   * Cancels the inbound transfers of a file (for example, when the file will be resent).
+   *
+   * @param fileName The network name of the file.
+   */
+  public synchronized void cancelReceiving(String fileName) {
+    cancelInbound(fileName);
+  }
+
+  /** Cancels all transfers and releases their files. */
+  public synchronized void close() {
+    for (OutboundTransfer transfer : new ArrayList<>(outboundTransfers.values())) {
+      finish(transfer);
+    }
+
+    for (InboundTransfer transfer : inboundTransfers.values()) {
+      closeQuietly(transfer.channel);
+      deleteQuietly(transfer.partPath);
+    }
+    inboundTransfers.clear();
+  }
+
+  /**
+   * Sends chunks of an outbound transfer until the window is full or all chunks are sent.
+   *
+   * @param transfer The transfer to send chunks of.
+   * @throws IOException If the source file fails to read.
+   */
+  private void pump(OutboundTransfer transfer) throws IOException {
+    while (transfer.sentOffset < transfer.fileSize
+        && transfer.sentOffset - transfer.ackedOffset < WINDOW_BYTES) {
+      int length = (int) Math.min(Network.CHUNK_SIZE, transfer.fileSize - transfer.sentOffset);
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+        if (transfer.channel.read(buffer, transfer.sentOffset + buffer.position()) < 0) {
+          throw new EOFException("Transfer source is smaller than expected!");
+        }
+      }
+
+      sendChunk(transfer, buffer.array());
+      transfer.sentOffset += length;
+    }
+  }
+
+  /**
+   * Sends a chunk of an outbound transfer from its sent offset.
+   *
+   * @param transfer The transfer the chunk belongs to.
+   * @param data The chunk's data.
+   */
+  private void sendChunk(OutboundTransfer transfer, byte[] data) {
+    FileChunkPacket packet = new FileChunkPacket();
+    packet.fileName = transfer.fileName;
+    packet.transferId = transfer.transferId;
+    packet.senderKey = clientHandler.getClientKey();
+    packet.offset = transfer.sentOffset;
+    packet.fileSize = transfer.fileSize;
+    packet.data = data;
+    packet.checksum = Network.checksum(packet.data);
+    if (transfer.targetId != 0) {
+      clientHandler.sendTcpTo(transfer.targetId, packet);
+    } else {
+      clientHandler.sendTcp(packet);
+    }
+  }
+
+  /**
+   * Sends chunks of an outbound transfer, the transfer is aborted if the source fails to read.
+   *
+   * @param transfer The transfer to send chunks of.
+   */
+  private void pumpOrAbort(OutboundTransfer transfer) {
+    try {
+      pump(transfer);
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to read chunk from transfer source!", e);
+
+      Main.showErrorAlert(
+          "File Transfer Error",
+          "Failed to Send File",
+          FileHandler.DE_SYNC_WARNING
+              + "Unable to call FileChannel.read() to send a file over network!");
+
+      finish(transfer);
+    }
+  }
+
+  /**
+   * Sends a request to resend an inbound transfer from its received offset (once per offset).
+   *
+   * @param transfer The inbound transfer that is missing chunks.
+   */
+  private void requestResume(InboundTransfer transfer) {
+    if (transfer.requestedOffset == transfer.receivedOffset) {
+      return;
+    }
+    transfer.requestedOffset = transfer.receivedOffset;
+
+    FileChunkResumePacket packet = new FileChunkResumePacket();
+    packet.fileName = transfer.fileName;
+    packet.transferId = transfer.transferId;
+    packet.senderKey = transfer.senderKey;
+    packet.offset = transfer.receivedOffset;
+    clientHandler.sendTcp(packet);
+  }
+
+  private void finish(OutboundTransfer transfer) {
+    outboundTransfers.remove(transfer.transferId);
+    closeQuietly(transfer.channel);
+    if (transfer.deletedSourcePath != null) {
+      deleteQuietly(transfer.deletedSourcePath);
+    }
+  }
+
+  private void cancelOutbound(String fileName) {
+    for (OutboundTransfer transfer : new ArrayList<>(outboundTransfers.values())) {
+      if (transfer.fileName.equals(fileName)) {
+        finish(transfer);
+      }
+    }
+  }
+
+  private boolean isReceiving(String fileName) {
+    for (InboundTransfer transfer : inboundTransfers.values()) {
+      if (transfer.fileName.equals(fileName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void cancelInbound(String fileName) {
+    for (InboundTransfer transfer : new ArrayList<>(inboundTransfers.values())) {
+      if (transfer.fileName.equals(fileName)) {
+        abort(transfer);
+      }
+    }
+  }
+
+  private void abort(InboundTransfer transfer) {
+    inboundTransfers.remove(transfer.transferId);
+    closeQuietly(transfer.channel);
+    deleteQuietly(transfer.partPath);
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to close transfer file channel!", e);
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to delete transfer file!", e);
+    }
+  }
+
+  /** Stores the state of a file being sent. */
+  private static final class OutboundTransfer {
+    private final String fileName;
+    private final long transferId;
+    private final int targetId;
+    @CheckForNull private final Path deletedSourcePath; // Deleted once the transfer finishes
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private long sentOffset;
+    private long ackedOffset;
+
+    private OutboundTransfer(
+        String fileName,
+        long transferId,
+        int targetId,
+        @CheckForNull Path deletedSourcePath,
+        FileChannel channel,
+        long fileSize) {
+      this.fileName = fileName;
+      this.transferId = transferId;
+      this.targetId = targetId;
+      this.deletedSourcePath = deletedSourcePath;
+      this.channel = channel;
+      this.fileSize = fileSize;
+    }
+  }
+
+  /** Stores the state of a file being received. */
+  private static final class InboundTransfer {
+    private final String fileName;
+    private final long transferId;
+    private final int senderKey;
+    private final Path partPath;
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private long receivedOffset;
+    private long requestedOffset = -1;
+
+    private InboundTransfer(
+        String fileName,
+        long transferId,
+        int senderKey,
+        Path partPath,
+        FileChannel channel,
+        long fileSize) {
+      this.fileName = fileName;
+      this.transferId = transferId;
+      this.senderKey = senderKey;
+      this.partPath = partPath;
+      this.channel = channel;
+      this.fileSize = fileSize;
+    }
+  }
+}
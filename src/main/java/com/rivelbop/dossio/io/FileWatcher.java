@@ -2,6 +2,8 @@ package com.rivelbop.dossio.io;
 
 import com.esotericsoftware.minlog.Log;
 import com.rivelbop.dossio.app.Main;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
 import io.methvin.watcher.DirectoryWatcher;
 import io.methvin.watcher.visitor.DefaultFileTreeVisitor;
 import java.io.IOException;
@@ -12,7 +14,24 @@ import java.util.concurrent.CompletableFuture;
 public final class FileWatcher {
   private static final String LOG_TAG = "FileWatcher";
 
+  private static final String EVENTS_NAME = "dossio_watcher_events_total";
+  private static final String EVENTS_HELP = "File events detected by the watcher.";
+  private static final Counter CREATE_EVENTS =
+      Metrics.counter(EVENTS_NAME, EVENTS_HELP, "type", "create");
+  private static final Counter MODIFY_EVENTS =
+      Metrics.counter(EVENTS_NAME, EVENTS_HELP, "type", "modify");
+  private static final Counter DELETE_EVENTS =
+      Metrics.counter(EVENTS_NAME, EVENTS_HELP, "type", "delete");
+
+  /**
+   * The byte size of the largest file that has its content hashed, larger files are only compared
+   * by their size and modification time (set with {@code -Ddossio.watcher.hashLimit=<bytes>}).
+   */
+  private static final long CONTENT_HASH_LIMIT =
+      Long.getLong("dossio.watcher.hashLimit", FastFileHasher.DEFAULT_CONTENT_HASH_LIMIT);
+
   private final DirectoryWatcher watcher;
+  private final MoveCorrelator moveCorrelator;
   private CompletableFuture<Void> watchFuture;
 
   /**
@@ -24,26 +43,49 @@ public final class FileWatcher {
    */
   public FileWatcher(Path projectDirectory, FileHandler handler) throws IOException {
     // FIXME: Make a custom tree visitor that takes the ignore files into account
+    moveCorrelator = new MoveCorrelator(handler);
+    FastFileHasher fileHasher = new FastFileHasher(CONTENT_HASH_LIMIT);
     watcher =
         DirectoryWatcher.builder()
             .path(projectDirectory)
             .listener(
                 event -> {
                   switch (event.eventType()) {
-                    case CREATE -> handler.onCreate(projectDirectory.resolve(event.path()));
-                    case MODIFY -> handler.onModify(projectDirectory.resolve(event.path()));
-                    case DELETE -> handler.onDelete(projectDirectory.resolve(event.path()));
+                    case CREATE -> {
+                      CREATE_EVENTS.inc();
+                      Path path = projectDirectory.resolve(event.path());
+                      moveCorrelator.onCreate(path, event.isDirectory(), event.hash());
+                    }
+                    case MODIFY -> {
+                      MODIFY_EVENTS.inc();
+                      moveCorrelator.onModify(projectDirectory.resolve(event.path()), event.hash());
+                    }
+                    case DELETE -> {
+                      DELETE_EVENTS.inc();
+                      fileHasher.evict(event.path(), event.isDirectory());
+                      Path path = projectDirectory.resolve(event.path());
+                      moveCorrelator.onDelete(path, event.isDirectory());
+                    }
                     default -> {}
                   }
                 })
             .fileTreeVisitor(new DefaultFileTreeVisitor())
+            .fileHasher(fileHasher)
             .build();
   }
 
-  /** Starts the file watcher thread. */
+  /**
+   * Starts the file watcher thread, the detected events are handled on the move correlator's
+   * thread.
+   */
   public void start() {
     Log.info(LOG_TAG, "Starting file watcher...");
-    watchFuture = watcher.watchAsync();
+    long startTime = System.nanoTime();
+    watchFuture = watcher.watchAsync(); // Registers (and hashes) the project files before returning
+    Log.info(
+        LOG_TAG,
+        "Started file watcher in " + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+    moveCorrelator.seed(watcher.pathHashes());
     watchFuture.whenComplete(
         (result, exception) -> {
           if (exception != null) {
@@ -66,5 +108,6 @@ public final class FileWatcher {
       Log.error(LOG_TAG, "Failed to close watch service!", e);
       Main.showErrorAlert("File Watcher Error", "Failed to Close File Watcher", e.toString());
     }
+    moveCorrelator.close(); // Handles the held events
   }
 }
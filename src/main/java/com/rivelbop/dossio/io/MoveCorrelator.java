@@ -0,0 +1,490 @@
+package com.rivelbop.dossio.io;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
+import io.methvin.watcher.hashing.FileHash;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+
+/**
+ * Pairs the deletions and creations detected by the file watcher into moves, so that a renamed file
+ * (or directory) is sent as a move instead of a deletion and the whole content of a new file.
+ *
+ * <p>Creations and deletions are held until no other one is detected for {@link #WINDOW} (or for
+ * at most {@link #MAX_DELAY}). A created file is then paired with a deleted file of the same hash
+ * (the watcher's hash is the CRC32C of the content along with the size, see {@link
+ * FastFileHasher}), preferring a file of the same name. As the hash only covers the content, files
+ * of identical content (including empty files) may be paired even if one wasn't moved to the other.
+ * A created directory whose files all moved from the same relative paths in a deleted directory is
+ * sent as a single move of the directory. A creation and deletion of the same path (such as a
+ * temporary file) cancel out.
+ *
+ * <p>A created directory that no file was moved into is reported as a single tree creation, and a
+ * deleted directory as a single deletion, instead of an event per file.
+ *
+ * <p>All events are handled on the correlator's thread in the order they were detected, and the
+ * modifications of held creations are handled after them.
+ */
+final class MoveCorrelator {
+  /** The time that creations and deletions are held after the last one (nanoseconds). */
+  static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /** The maximum time that a creation or deletion is held (nanoseconds). */
+  static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+  private static final String LOG_TAG = "MoveCorrelator";
+
+  private static final Counter MOVES =
+      Metrics.counter(
+          "dossio_watcher_moves_total", "File and directory moves paired by the move correlator.");
+
+  private final FileHandler handler;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "MoveCorrelator");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  // Only accessed on the correlator's thread
+  private final HashMap<Path, FileHash> hashes = new HashMap<>();
+  private final ArrayList<Event> events = new ArrayList<>();
+  private final HashMap<Path, Event> creations = new HashMap<>();
+  private final LinkedHashSet<Path> heldModifications = new LinkedHashSet<>();
+  private long firstEventTime;
+  private long lastEventTime;
+  private boolean isFlushScheduled;
+
+  /**
+   * Creates a move correlator.
+   *
+   * @param handler The file handler to report the file updates to.
+   */
+  MoveCorrelator(FileHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Adds the hashes of the files registered to the watcher (the hashes of deleted files are looked
+   * up here, as deletion events don't have one). Hashes of later events are kept.
+   *
+   * @param pathHashes The watcher's hash of each registered path (a concurrent map).
+   */
+  void seed(Map<Path, FileHash> pathHashes) {
+    execute(() -> pathHashes.forEach(hashes::putIfAbsent));
+  }
+
+  /**
+   * Called when a file creation is detected, it is held to be paired with a deletion.
+   *
+   * @param path The absolute path of the created file.
+   * @param isDirectory Whether the created file is a directory.
+   * @param hash The watcher's hash of the created file (null if it wasn't hashed).
+   */
+  void onCreate(Path path, boolean isDirectory, @CheckForNull FileHash hash) {
+    execute(
+        () -> {
+          if (hash != null) {
+            hashes.put(path, hash);
+          }
+          Event creation = new Event(true, path, isDirectory, hash);
+          creations.put(path, creation);
+          add(creation);
+        });
+  }
+
+  /**
+   * Called when a file modification is detected, it is held if the file's creation is held.
+   *
+   * @param path The absolute path of the modified file.
+   * @param hash The watcher's hash of the modified file (null if it wasn't hashed).
+   */
+  void onModify(Path path, @CheckForNull FileHash hash) {
+    execute(
+        () -> {
+          if (hash != null) {
+            hashes.put(path, hash);
+          }
+          if (creations.containsKey(path)) {
+            heldModifications.add(path);
+          } else {
+            handler.onModify(path);
+          }
+        });
+  }
+
+  /**
+   * Called when a file deletion is detected, it is held to be paired with a creation (or cancels
+   * out the held creation of the file).
+   *
+   * @param path The absolute path of the deleted file.
+   * @param isDirectory Whether the deleted file was a directory.
+   */
+  void onDelete(Path path, boolean isDirectory) {
+    execute(
+        () -> {
+          FileHash hash = hashes.remove(path);
+          Event creation = creations.remove(path);
+          if (creation != null) {
+            events.remove(creation);
+            heldModifications.remove(path);
+            return;
+          }
+          add(new Event(false, path, isDirectory, hash));
+        });
+  }
+
+  /** Handles the held events and stops the correlator's thread. */
+  void close() {
+    execute(this::flush);
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(MAX_DELAY * 2, TimeUnit.NANOSECONDS)) {
+        Log.warn(LOG_TAG, "Timed out waiting for held file events to be handled");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Holds a creation or deletion, and schedules the held events to be handled.
+   *
+   * @param event The creation or deletion to hold.
+   */
+  private void add(Event event) {
+    long now = System.nanoTime();
+    if (events.isEmpty()) {
+      firstEventTime = now;
+    }
+    lastEventTime = now;
+    events.add(event);
+
+    if (!isFlushScheduled) {
+      isFlushScheduled = true;
+      schedule(this::flushIfQuiet, WINDOW);
+    }
+  }
+
+  /** Handles the held events if the window has passed, otherwise checks again when it ends. */
+  private void flushIfQuiet() {
+    long now = System.nanoTime();
+    long quietTime = now - lastEventTime;
+    if (quietTime >= WINDOW || now - firstEventTime >= MAX_DELAY || events.isEmpty()) {
+      isFlushScheduled = false;
+      flush();
+    } else {
+      schedule(this::flushIfQuiet, WINDOW - quietTime);
+    }
+  }
+
+  /** Pairs the held creations and deletions into moves, and reports them to the file handler. */
+  private void flush() {
+    // Pair each created file with a deleted file of the same hash
+    HashMap<FileHash, ArrayList<Event>> deletedFiles = new HashMap<>();
+    for (Event event : events) {
+      if (!event.isCreation && !event.isDirectory && event.hash != null) {
+        deletedFiles.computeIfAbsent(event.hash, hash -> new ArrayList<>()).add(event);
+      }
+    }
+    IdentityHashMap<Event, Event> moves = new IdentityHashMap<>(); // By creation
+    for (Event event : events) {
+      if (event.isCreation && !event.isDirectory && event.hash != null) {
+        Event deletion = pickDeletion(event, deletedFiles.get(event.hash));
+        if (deletion != null) {
+          deletedFiles.get(event.hash).remove(deletion);
+          moves.put(event, deletion);
+        }
+      }
+    }
+
+    // Collapse the moves of a directory's files into a move of the directory (outermost first)
+    HashSet<Event> pairedEvents = new HashSet<>();
+    HashSet<Event> collapsedEvents = new HashSet<>();
+    for (Map.Entry<Event, Event> move : moves.entrySet()) {
+      pairedEvents.add(move.getKey());
+      pairedEvents.add(move.getValue());
+    }
+    List<Event> createdDirectories =
+        events.stream()
+            .filter(event -> event.isCreation && event.isDirectory)
+            .sorted(Comparator.comparingInt(event -> event.path.getNameCount()))
+            .toList();
+    for (Event createdDirectory : createdDirectories) {
+      if (collapsedEvents.contains(createdDirectory)) {
+        continue;
+      }
+      Event deletedDirectory = findMovedDirectory(createdDirectory, moves);
+      if (deletedDirectory != null) {
+        collapse(deletedDirectory, createdDirectory, moves, pairedEvents, collapsedEvents);
+      }
+    }
+
+    // Report new and deleted directories as a whole, without the events of their files
+    HashSet<Event> trees = new HashSet<>();
+    List<Event> directoryEvents =
+        events.stream()
+            .filter(event -> event.isDirectory)
+            .sorted(Comparator.comparingInt(event -> event.path.getNameCount()))
+            .toList();
+    for (Event directoryEvent : directoryEvents) {
+      if (!collapsedEvents.contains(directoryEvent) && !moves.containsKey(directoryEvent)) {
+        consumeTree(directoryEvent, moves, pairedEvents, collapsedEvents, trees);
+      }
+    }
+
+    // A deleted directory is reported after the files that were moved out of it
+    ArrayList<Event> handledEvents = new ArrayList<>(events);
+    for (Event event : events) {
+      if (event.isCreation || !event.isDirectory || collapsedEvents.contains(event)) {
+        continue;
+      }
+      int lastMoveIndex = -1;
+      for (int i = 0; i < handledEvents.size(); i++) {
+        Event deletion = moves.get(handledEvents.get(i));
+        if (deletion != null && deletion.path.startsWith(event.path)) {
+          lastMoveIndex = i;
+        }
+      }
+      if (lastMoveIndex > handledEvents.indexOf(event)) {
+        handledEvents.remove(event);
+        handledEvents.add(lastMoveIndex, event);
+      }
+    }
+
+    // Report the events in the order they were detected (a move is ordered by its later event)
+    events.clear();
+    creations.clear();
+    for (Event event : handledEvents) {
+      if (collapsedEvents.contains(event) || pairedEvents.contains(event) && !event.isCreation) {
+        continue;
+      }
+
+      try {
+        Event deletion = moves.get(event);
+        if (deletion != null) {
+          MOVES.inc();
+          handler.onMove(deletion.path, event.path);
+        } else if (trees.contains(event)) {
+          handler.onCreateTree(event.path);
+        } else if (event.isCreation) {
+          handler.onCreate(event.path);
+        } else {
+          handler.onDelete(event.path);
+        }
+      } catch (RuntimeException e) {
+        Log.error(LOG_TAG, "Failed to handle file event of " + event.path + "!", e);
+      }
+    }
+
+    // The held modifications may have changed the created (or moved) files since their events
+    ArrayList<Path> modifiedPaths = new ArrayList<>(heldModifications);
+    heldModifications.clear();
+    for (Path path : modifiedPaths) {
+      handler.onModify(path);
+    }
+  }
+
+  /**
+   * Picks the deleted file that a created file was most likely moved from.
+   *
+   * @param creation The creation of the file.
+   * @param candidates The deletions of files with the same hash (null if there are none).
+   * @return The deletion of a file with the same name, or else the first deletion (null if there
+   *     are no candidates).
+   */
+  @CheckForNull
+  private static Event pickDeletion(Event creation, @CheckForNull List<Event> candidates) {
+    if (candidates == null || candidates.isEmpty()) {
+      return null;
+    }
+    for (Event candidate : candidates) {
+      if (candidate.path.getFileName().equals(creation.path.getFileName())) {
+        return candidate;
+      }
+    }
+    return candidates.getFirst();
+  }
+
+  /**
+   * Finds the deleted directory that a created directory was moved from, if every file moved into
+   * the created directory came from the same relative path in it, and every file deleted from it
+   * was moved there (files that were only created in the created directory are still reported).
+   *
+   * @param createdDirectory The creation of the directory.
+   * @param moves The paired deletion of each created file.
+   * @return The deletion of the directory that was moved, null if it wasn't a directory move.
+   */
+  @CheckForNull
+  private Event findMovedDirectory(Event createdDirectory, Map<Event, Event> moves) {
+    Path target = createdDirectory.path;
+    Path source = null;
+    HashSet<Event> movedDeletions = new HashSet<>();
+    for (Map.Entry<Event, Event> move : moves.entrySet()) {
+      Path movedTarget = move.getKey().path;
+      Path movedSource = move.getValue().path;
+      if (!movedTarget.startsWith(target)) {
+        continue;
+      }
+
+      // The source directory is the moved file's source without the file's relative path
+      Path relativePath = target.relativize(movedTarget);
+      if (source == null) {
+        if (movedSource.getNameCount() <= relativePath.getNameCount()) {
+          return null;
+        }
+        source = movedSource;
+        for (int i = 0; i < relativePath.getNameCount(); i++) {
+          source = source.getParent();
+        }
+      }
+      if (!movedSource.equals(source.resolve(relativePath))) {
+        return null;
+      }
+      movedDeletions.add(move.getValue());
+    }
+    if (source == null) {
+      return null; // No files were moved into the directory
+    }
+
+    Event deletedDirectory = null;
+    for (Event event : events) {
+      if (event.isDirectory) {
+        if (!event.isCreation && event.path.equals(source)) {
+          deletedDirectory = event;
+        }
+      } else if (!event.isCreation
+          && event.path.startsWith(source)
+          && !movedDeletions.contains(event)) {
+        return null; // A file was deleted from the directory (or moved elsewhere)
+      }
+    }
+    return deletedDirectory;
+  }
+
+  /**
+   * Replaces the moves of a directory's files (and the creations and deletions of its
+   * subdirectories) with a move of the directory.
+   *
+   * @param deletedDirectory The deletion of the moved directory.
+   * @param createdDirectory The creation of the moved directory.
+   * @param moves The paired deletion of each created file.
+   * @param pairedEvents The events that are paired into moves.
+   * @param collapsedEvents The events that are replaced by directory moves.
+   */
+  private void collapse(
+      Event deletedDirectory,
+      Event createdDirectory,
+      Map<Event, Event> moves,
+      HashSet<Event> pairedEvents,
+      HashSet<Event> collapsedEvents) {
+    for (Event event : events) {
+      Path directory = event.isCreation ? createdDirectory.path : deletedDirectory.path;
+      if (event.path.startsWith(directory)
+          && (event.isDirectory || pairedEvents.contains(event))) {
+        collapsedEvents.add(event);
+        moves.remove(event);
+      }
+    }
+
+    // The directory move is reported in place of the later of its events
+    Event laterEvent =
+        events.indexOf(deletedDirectory) > events.indexOf(createdDirectory)
+            ? deletedDirectory
+            : createdDirectory;
+    Event directoryCreation =
+        new Event(true, createdDirectory.path, true, createdDirectory.hash);
+    events.set(events.indexOf(laterEvent), directoryCreation);
+    moves.put(directoryCreation, deletedDirectory);
+  }
+
+  /**
+   * Consumes the events in a created directory if none of its files were moved (it is then reported
+   * as a tree), or the deletions in a deleted directory that weren't moved elsewhere.
+   *
+   * @param directoryEvent The creation or deletion of the directory.
+   * @param moves The paired deletion of each created file.
+   * @param pairedEvents The events that are paired into moves.
+   * @param consumedEvents The events that are replaced by directory moves (and trees).
+   * @param trees The created directories that are reported as trees.
+   */
+  private void consumeTree(
+      Event directoryEvent,
+      Map<Event, Event> moves,
+      HashSet<Event> pairedEvents,
+      HashSet<Event> consumedEvents,
+      HashSet<Event> trees) {
+    Path directory = directoryEvent.path;
+    ArrayList<Event> treeEvents = new ArrayList<>();
+    for (Event event : events) {
+      if (event == directoryEvent
+          || !event.path.startsWith(directory)
+          || consumedEvents.contains(event)) {
+        continue;
+      }
+      if (pairedEvents.contains(event) || moves.containsKey(event)) {
+        if (directoryEvent.isCreation) {
+          return; // A file was moved into (or out of) the created directory
+        }
+      } else if (directoryEvent.isCreation || !event.isCreation) {
+        treeEvents.add(event); // Files deleted from a new directory were never sent
+      }
+    }
+
+    consumedEvents.addAll(treeEvents);
+    if (directoryEvent.isCreation) {
+      trees.add(directoryEvent);
+      heldModifications.removeIf(path -> path.startsWith(directory)); // Sent with the tree
+    }
+  }
+
+  /**
+   * Runs a task on the correlator's thread, logging any exception it throws (which would otherwise
+   * be swallowed by the executor).
+   *
+   * @param task The task to run.
+   */
+  private void execute(Runnable task) {
+    executor.execute(() -> run(task));
+  }
+
+  private void schedule(Runnable task, long delay) {
+    executor.schedule(() -> run(task), delay, TimeUnit.NANOSECONDS);
+  }
+
+  private static void run(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      Log.error(LOG_TAG, "Failed to handle file event!", e);
+    }
+  }
+
+  /** A held creation or deletion of a file. */
+  private static final class Event {
+    private final boolean isCreation;
+    private final Path path;
+    private final boolean isDirectory;
+    @CheckForNull private final FileHash hash;
+
+    private Event(boolean isCreation, Path path, boolean isDirectory, @CheckForNull FileHash hash) {
+      this.isCreation = isCreation;
+      this.path = path;
+      this.isDirectory = isDirectory;
+      this.hash = hash;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.rivelbop.dossio.io;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes edited lines back to a file, rewriting only the region from the first changed line.
+ *
+ * <p>Files are written as the exact bytes of their lines (each line keeps its own separator, see
+ * {@link ByteLine}). The region is rewritten in place when the file on disk is still the file the
+ * lines were read from and at least half of it is kept. Otherwise (the change is near the head of
+ * the file, or the file changed in the meantime) the whole file is written to a temporary file that
+ * atomically replaces it, small files are simply rewritten in place.
+ */
+final class RegionWriter {
+  /** The byte size of the buffer that rewritten lines are encoded into. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The byte size of files that are always rewritten in place (the I/O is negligible). */
+  private static final long SMALL_FILE_SIZE = 64 * 1024;
+
+  private RegionWriter() {}
+
+  /**
+   * Returns the written byte size of lines.
+   *
+   * @param lines The lines to get the byte size of.
+   * @return The written byte size of the lines.
+   */
+  static long getByteSize(List<ByteLine> lines) {
+    long byteSize = 0;
+    for (ByteLine line : lines) {
+      byteSize += line.length();
+    }
+    return byteSize;
+  }
+
+  /**
+   * Writes edited lines to a file, either by rewriting the changed region in place or by replacing
+   * the whole file.
+   *
+   * @param file The file to write.
+   * @param lines The edited lines of the file.
+   * @param firstLine The index of the first changed line.
+   * @param oldByteSize The byte size of the file's lines before they were edited.
+   * @param tempDirectory The directory to write the replacing temporary file in (on the same file
+   *     system as the file).
+   * @throws IOException If the file fails to be written.
+   */
+  static void write(
+      Path file, List<ByteLine> lines, int firstLine, long oldByteSize, Path tempDirectory)
+      throws IOException {
+    long offset = getRegionOffset(file, lines, firstLine, oldByteSize);
+    if (offset >= 0) {
+      writeRegion(file, lines, firstLine, offset);
+    } else {
+      replace(file, lines, tempDirectory);
+    }
+  }
+
+  /**
+   * Finds the byte offset that the changed region of a file starts at.
+   *
+   * @param file The file to find the changed region of.
+   * @param lines The edited lines of the file.
+   * @param firstLine The index of the first changed line.
+   * @param oldByteSize The byte size of the file's lines before they were edited.
+   * @return The byte offset of the first changed line (0 to rewrite a small file as a whole), -1
+   *     if the file should be replaced instead.
+   * @throws IOException If the file fails to be read.
+   */
+  static long getRegionOffset(Path file, List<ByteLine> lines, int firstLine, long oldByteSize)
+      throws IOException {
+    long offset = getByteSize(lines.subList(0, firstLine));
+    long newByteSize = getByteSize(lines);
+    try (FileChannel channel = FileChannel.open(file, READ)) {
+      boolean isSmall = channel.size() <= SMALL_FILE_SIZE && newByteSize <= SMALL_FILE_SIZE;
+      boolean isUnchanged = channel.size() == oldByteSize && isLineStart(channel, offset);
+      if (!isUnchanged) {
+        return isSmall ? 0 : -1;
+      }
+      return isSmall || offset >= newByteSize - offset ? offset : -1;
+    }
+  }
+
+  /**
+   * Rewrites a file in place from the byte offset of its first changed line, and truncates any
+   * leftover bytes. An offset of 0 rewrites the whole file.
+   *
+   * @param file The file to rewrite.
+   * @param lines The edited lines of the file.
+   * @param firstLine The index of the first changed line.
+   * @param offset The byte offset of the first changed line (see {@link #getRegionOffset}).
+   * @throws IOException If the file fails to be written.
+   */
+  static void writeRegion(Path file, List<ByteLine> lines, int firstLine, long offset)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(file, WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      long position = offset;
+      int fromLine = offset == 0 ? 0 : firstLine;
+      for (ByteLine line : lines.subList(fromLine, lines.size())) {
+        if (buffer.remaining() < line.length()) {
+          position += flush(channel, buffer, position);
+        }
+
+        // Lines that don't fit in the buffer are written directly
+        if (buffer.remaining() < line.length()) {
+          ByteBuffer bytes = ByteBuffer.wrap(line.getBuffer(), line.getOffset(), line.length());
+          position += writeFully(channel, bytes, position);
+        } else {
+          buffer.put(line.getBuffer(), line.getOffset(), line.length());
+        }
+      }
+      position += flush(channel, buffer, position);
+      channel.truncate(position);
+    }
+  }
+
+  /**
+   * Replaces a file with the edited lines, written to a temporary file and then moved over the
+   * file (atomically, if the file system supports it).
+   *
+   * @param file The file to replace.
+   * @param lines The edited lines of the file.
+   * @param tempDirectory The directory to write the temporary file in (on the same file system as
+   *     the file).
+   * @throws IOException If the temporary file fails to be written or moved.
+   */
+  static void replace(Path file, List<ByteLine> lines, Path tempDirectory) throws IOException {
+    Path tempFile = Files.createTempFile(tempDirectory, "replace", ".tmp");
+    try {
+      writeRegion(tempFile, lines, 0, 0);
+      try {
+        Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(file));
+      } catch (UnsupportedOperationException e) {
+        // Not a POSIX file system, the file keeps the default permissions
+      }
+      try {
+        Files.move(tempFile, file, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile, file, REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Checks if a byte offset of a file is right after a "\n" (or is the start of the file). A file
+   * that changed since its lines were read is mostly caught by its byte size, this catches the rare
+   * case of the size staying the same.
+   *
+   * @param channel The channel of the file to check.
+   * @param offset The byte offset to check.
+   * @return Whether the offset is the start of a line.
+   * @throws IOException If the file fails to be read.
+   */
+  private static boolean isLineStart(FileChannel channel, long offset) throws IOException {
+    if (offset == 0) {
+      return true;
+    }
+
+    ByteBuffer separator = ByteBuffer.allocate(1);
+    return channel.read(separator, offset - 1) == 1 && separator.get(0) == '\n';
+  }
+
+  /**
+   * Writes the bytes put in a buffer to a channel at a position, and clears the buffer.
+   *
+   * @param channel The channel to write to.
+   * @param buffer The buffer of the bytes to write.
+   * @param position The position in the channel to write the bytes at.
+   * @return The amount of written bytes.
+   * @throws IOException If the channel fails to be written.
+   */
+  private static int flush(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    buffer.flip();
+    int written = writeFully(channel, buffer, position);
+    buffer.clear();
+    return written;
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer to a channel at a position.
+   *
+   * @param channel The channel to write to.
+   * @param buffer The buffer of the bytes to write.
+   * @param position The position in the channel to write the bytes at.
+   * @return The amount of written bytes.
+   * @throws IOException If the channel fails to be written.
+   */
+  private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int written = 0;
+    while (buffer.hasRemaining()) {
+      written += channel.write(buffer, position + written);
+    }
+    return written;
+  }
+}
@@ -0,0 +1,119 @@
+package com.rivelbop.dossio.io;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes and extracts the archive that the files of a created directory are sent as, a single
+ * chunked transfer instead of a creation (and edits) per file.
+ *
+ * <p>The archive is a deflated ZIP of the directory's subdirectories and files, named by their
+ * network paths relative to the directory (subdirectories end with a slash).
+ */
+final class TreeArchive {
+  private TreeArchive() {}
+
+  /**
+   * Writes the archive of a directory.
+   *
+   * @param archivePath The path to write the archive to.
+   * @param directory The absolute path of the archived directory.
+   * @param subdirectories The absolute paths of the subdirectories to archive.
+   * @param files The absolute paths of the files to archive.
+   * @param contentSource Gets the path to read a file's content from (null to archive the file as
+   *     empty).
+   * @throws IOException If the archive fails to be written, or a file's content fails to be read.
+   */
+  static void write(
+      Path archivePath,
+      Path directory,
+      List<Path> subdirectories,
+      List<Path> files,
+      Function<Path, Path> contentSource)
+      throws IOException {
+    try (ZipOutputStream out =
+        new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(archivePath)))) {
+      out.setLevel(Deflater.BEST_SPEED); // The archive is sent right away
+      for (Path subdirectory : subdirectories) {
+        out.putNextEntry(new ZipEntry(getEntryName(directory, subdirectory) + "/"));
+        out.closeEntry();
+      }
+      for (Path file : files) {
+        Path contentPath = contentSource.apply(file);
+        out.putNextEntry(new ZipEntry(getEntryName(directory, file)));
+        if (contentPath != null) {
+          Files.copy(contentPath, out);
+        }
+        out.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Extracts the archive of a directory, replacing any existing files.
+   *
+   * @param archivePath The path to the archive.
+   * @param directory The absolute path of the directory to extract the archive into.
+   * @param filter Tests whether a file (by its path) is extracted, the others are skipped.
+   * @param beforeWrite Called with the path of each file before it is written.
+   * @param afterWrite Called with the path of each file after it is written (or failed to be).
+   * @return The amount of extracted files.
+   * @throws IOException If the archive fails to be read, or a file fails to be written.
+   */
+  static int extract(
+      Path archivePath,
+      Path directory,
+      Predicate<Path> filter,
+      Consumer<Path> beforeWrite,
+      Consumer<Path> afterWrite)
+      throws IOException {
+    Path root = directory.normalize();
+    Files.createDirectories(root);
+
+    int files = 0;
+    try (ZipInputStream in =
+        new ZipInputStream(new BufferedInputStream(Files.newInputStream(archivePath)))) {
+      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        Path path =
+            root.resolve(FileHandler.networkPathStringToLocalPathString(entry.getName()))
+                .normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+          throw new IOException("Archive entry is outside of its directory: " + entry.getName());
+        }
+
+        if (entry.isDirectory()) {
+          Files.createDirectories(path);
+          continue;
+        } else if (!filter.test(path)) {
+          continue;
+        }
+        Files.createDirectories(path.getParent());
+        beforeWrite.accept(path);
+        try {
+          Files.copy(in, path, REPLACE_EXISTING);
+        } finally {
+          afterWrite.accept(path);
+        }
+        files++;
+      }
+    }
+    return files;
+  }
+
+  private static String getEntryName(Path directory, Path path) {
+    return FileHandler.pathToNetworkString(directory.relativize(path));
+  }
+}
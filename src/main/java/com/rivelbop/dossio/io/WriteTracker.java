@@ -0,0 +1,187 @@
+package com.rivelbop.dossio.io;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+
+/**
+ * Tracks the files written from the network, so that the watcher events caused by those writes
+ * are recognized and skipped.
+ *
+ * <p>Each write leaves a generation of the file: its size and modification time after the write
+ * (and the hash of its lines, if known). Any amount of events for the same write are recognized by
+ * a stat call without reading the file, while a later local change gets a new size or modification
+ * time. Generations expire after {@link #EXPIRY}, events that arrive later are caught by the diff
+ * against the temporary copy instead.
+ *
+ * <p>A local change of the same size within the same modification time tick as the write keeps the
+ * stat of the write, so until a check happens after {@link #MODIFIED_GRANULARITY} has passed, the
+ * content of the file is compared to the hash of the write instead.
+ */
+final class WriteTracker {
+  /** The time a generation is kept after its write (nanoseconds). */
+  static final long EXPIRY = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * The time after a file's modification time at which any further write gets a new modification
+   * time, this covers the coarsest time granularity of common file systems (milliseconds).
+   */
+  static final long MODIFIED_GRANULARITY = 2000;
+
+  private final ConcurrentHashMap<String, Generation> generations = new ConcurrentHashMap<>();
+
+  /**
+   * Hashes the lines of a file.
+   *
+   * @param lines The lines to hash.
+   * @return The hash of the lines.
+   */
+  static HashCode hash(List<ByteLine> lines) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (ByteLine line : lines) {
+      hasher.putBytes(line.getBuffer(), line.getOffset(), line.length());
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * Hashes the lines of a file (same hash as the list of the lines).
+   *
+   * @param lines The lines to hash.
+   * @return The hash of the lines.
+   */
+  static HashCode hash(ByteLines lines) {
+    return Hashing.murmur3_128().hashBytes(lines.getContent());
+  }
+
+  /**
+   * Marks a file as being written, any events of the file are recognized until the write ends.
+   *
+   * <p>NOTE: This must be called before the file is written, as the watcher may detect the write
+   * before it ends.
+   *
+   * @param fileName The name of the file that is written.
+   */
+  void begin(String fileName) {
+    long now = System.nanoTime();
+    generations.values().removeIf(generation -> generation.isExpired(now));
+    generations.put(fileName, new Generation(now, -1, null, null));
+  }
+
+  /**
+   * Ends the write of a file and stores its new generation.
+   *
+   * @param fileName The name of the written file.
+   * @param path The path to the written file.
+   * @param hash The hash of the written lines (null if unknown, it is then read from the file).
+   */
+  void end(String fileName, Path path, @CheckForNull HashCode hash) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (hash == null && attributes.isRegularFile()) {
+        hash = hashContent(path);
+      }
+      Generation generation =
+          new Generation(System.nanoTime(), attributes.size(), attributes.lastModifiedTime(), hash);
+      generations.put(fileName, generation);
+    } catch (IOException e) {
+      generations.remove(fileName); // The file is already gone, its events aren't from the write
+    }
+  }
+
+  /**
+   * Checks if a file event is caused by a write from the network, by comparing the file's size and
+   * modification time to its generation (without reading the file, unless the modification time
+   * tick of the write may still be open).
+   *
+   * @param fileName The name of the file.
+   * @param path The path to the file.
+   * @return Whether the file is unchanged since it was written from the network.
+   */
+  boolean isOwnWrite(String fileName, Path path) {
+    Generation generation = getGeneration(fileName);
+    if (generation == null) {
+      return false;
+    } else if (generation.lastModified == null) {
+      return true; // Still being written
+    }
+
+    try {
+      long checkTime = System.currentTimeMillis();
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (attributes.size() != generation.size
+          || !attributes.lastModifiedTime().equals(generation.lastModified)) {
+        return false;
+      } else if (generation.isVerified || attributes.isDirectory()) {
+        return true;
+      } else if (generation.hash == null || !generation.hash.equals(hashContent(path))) {
+        return false;
+      }
+
+      // Once the tick has passed, a later write can't keep the modification time of the write
+      long lastModified = generation.lastModified.toMillis();
+      generation.isVerified = lastModified <= checkTime - MODIFIED_GRANULARITY;
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Checks if the lines of a file are the lines written from the network (for example, after the
+   * file was only touched), which avoids diffing them.
+   *
+   * @param fileName The name of the file.
+   * @param lines The current lines of the file.
+   * @return Whether the lines hash to the last lines written from the network.
+   */
+  boolean isOwnContent(String fileName, ByteLines lines) {
+    Generation generation = getGeneration(fileName);
+    return generation != null && generation.hash != null && generation.hash.equals(hash(lines));
+  }
+
+  private static HashCode hashContent(Path path) throws IOException {
+    return MoreFiles.asByteSource(path).hash(Hashing.murmur3_128()); // Same hash as its lines
+  }
+
+  @CheckForNull
+  private Generation getGeneration(String fileName) {
+    Generation generation = generations.get(fileName);
+    if (generation != null && generation.isExpired(System.nanoTime())) {
+      generations.remove(fileName, generation);
+      return null;
+    }
+    return generation;
+  }
+
+  /** The state of a file after a write from the network. */
+  private static final class Generation {
+    private final long time;
+    private final long size;
+    @CheckForNull private final FileTime lastModified; // Null while the file is being written
+    @CheckForNull private final HashCode hash;
+    private volatile boolean isVerified; // Whether the stat alone identifies the write
+
+    private Generation(
+        long time, long size, @CheckForNull FileTime lastModified, @CheckForNull HashCode hash) {
+      this.time = time;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+
+    private boolean isExpired(long now) {
+      return now - time > EXPIRY;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.rivelbop.dossio.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A metric that only ever increases (events, packets, bytes, etc.). */
+public final class Counter implements Metric {
+  private final LongAdder value = new LongAdder();
+
+  Counter() {}
+
+  /** Increases the counter by one. */
+  public void inc() {
+    value.increment();
+  }
+
+  /**
+   * Increases the counter.
+   *
+   * @param amount The amount to increase the counter by (must not be negative).
+   */
+  public void add(long amount) {
+    value.add(amount);
+  }
+
+  public long get() {
+    return value.sum();
+  }
+
+  @Override
+  public String getType() {
+    return "counter";
+  }
+
+  @Override
+  public void writeSamples(StringBuilder builder, String name, String labels) {
+    Metric.writeSample(builder, name, labels, get());
+  }
+
+  @Override
+  public void putValues(Map<String, Double> values, String key) {
+    values.put(key, (double) get());
+  }
+}
@@ -0,0 +1,33 @@
+package com.rivelbop.dossio.metrics;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/** A metric whose value is read when it is exported (queue depths, client counts, etc.). */
+final class Gauge implements Metric {
+  private final LongSupplier supplier;
+
+  /**
+   * Creates a gauge that reads its value from a supplier.
+   *
+   * @param supplier The supplier of the gauge's current value.
+   */
+  Gauge(LongSupplier supplier) {
+    this.supplier = supplier;
+  }
+
+  @Override
+  public String getType() {
+    return "gauge";
+  }
+
+  @Override
+  public void writeSamples(StringBuilder builder, String name, String labels) {
+    Metric.writeSample(builder, name, labels, supplier.getAsLong());
+  }
+
+  @Override
+  public void putValues(Map<String, Double> values, String key) {
+    values.put(key, (double) supplier.getAsLong());
+  }
+}
@@ -0,0 +1,118 @@
+package com.rivelbop.dossio.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A metric that counts observed values into buckets (durations, sizes, etc.). */
+public final class Histogram implements Metric {
+  /** Duration buckets from 10 microseconds to 10 seconds (in seconds). */
+  public static final double[] DURATION_BUCKETS = {
+    0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10
+  };
+
+  /** Count buckets from 1 to 10000. */
+  public static final double[] COUNT_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 10000};
+
+  private final double[] bounds;
+  private final LongAdder[] bucketCounts;
+  private final LongAdder count = new LongAdder();
+  private final DoubleAdder sum = new DoubleAdder();
+
+  /**
+   * Creates an empty histogram.
+   *
+   * @param bounds The inclusive upper bounds of the buckets (in ascending order).
+   */
+  Histogram(double[] bounds) {
+    this.bounds = bounds.clone();
+    bucketCounts = new LongAdder[bounds.length];
+    for (int i = 0; i < bucketCounts.length; i++) {
+      bucketCounts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Counts a value into its bucket.
+   *
+   * @param value The observed value.
+   */
+  public void observe(double value) {
+    for (int i = 0; i < bounds.length; i++) {
+      if (value <= bounds[i]) {
+        bucketCounts[i].increment();
+        break;
+      }
+    }
+    count.increment();
+    sum.add(value);
+  }
+
+  /**
+   * Counts the time since a start time (in seconds).
+   *
+   * @param startNanos The start time, from {@link System#nanoTime()}.
+   */
+  public void observeSince(long startNanos) {
+    observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Estimates a quantile of the observed values, as the upper bound of the bucket it falls in.
+   *
+   * @param quantile The quantile to estimate (0-1).
+   * @return The estimated quantile, 0 if nothing was observed.
+   */
+  public double getQuantile(double quantile) {
+    long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(quantile * total);
+    long cumulative = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      cumulative += bucketCounts[i].sum();
+      if (cumulative >= rank) {
+        return bounds[i];
+      }
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  @Override
+  public String getType() {
+    return "histogram";
+  }
+
+  @Override
+  public void writeSamples(StringBuilder builder, String name, String labels) {
+    String separator = labels.isEmpty() ? "" : labels + ",";
+    long cumulative = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      cumulative += bucketCounts[i].sum();
+      Metric.writeSample(
+          builder, name + "_bucket", separator + "le=\"" + bounds[i] + "\"", cumulative);
+    }
+    Metric.writeSample(builder, name + "_bucket", separator + "le=\"+Inf\"", getCount());
+    Metric.writeSample(builder, name + "_sum", labels, getSum());
+    Metric.writeSample(builder, name + "_count", labels, getCount());
+  }
+
+  @Override
+  public void putValues(Map<String, Double> values, String key) {
+    values.put(key + " count", (double) getCount());
+    values.put(key + " sum", getSum());
+    values.put(key + " p50", getQuantile(0.5));
+    values.put(key + " p99", getQuantile(0.99));
+  }
+}
@@ -0,0 +1,52 @@
+package com.rivelbop.dossio.metrics;
+
+import java.util.Map;
+
+/** A single labeled metric that can be exported in the Prometheus text format. */
+interface Metric {
+  /**
+   * Returns the Prometheus type of the metric.
+   *
+   * @return The metric type (counter, gauge, or histogram).
+   */
+  String getType();
+
+  /**
+   * Writes the Prometheus samples of the metric.
+   *
+   * @param builder The builder to write the samples to.
+   * @param name The name of the metric.
+   * @param labels The labels of the metric (without braces, empty if the metric has no labels).
+   */
+  void writeSamples(StringBuilder builder, String name, String labels);
+
+  /**
+   * Puts the current values of the metric into a map (used by JMX and the stats panel).
+   *
+   * @param values The map to put the values into.
+   * @param key The key of the metric (its name and labels).
+   */
+  void putValues(Map<String, Double> values, String key);
+
+  /**
+   * Writes a single Prometheus sample line.
+   *
+   * @param builder The builder to write the sample to.
+   * @param name The name of the sample.
+   * @param labels The labels of the sample (without braces, empty if the sample has no labels).
+   * @param value The value of the sample.
+   */
+  static void writeSample(StringBuilder builder, String name, String labels, double value) {
+    builder.append(name);
+    if (!labels.isEmpty()) {
+      builder.append('{').append(labels).append('}');
+    }
+    builder.append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      builder.append((long) value);
+    } else {
+      builder.append(value);
+    }
+    builder.append('\n');
+  }
+}
@@ -0,0 +1,181 @@
+package com.rivelbop.dossio.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The registry of all runtime metrics. Metrics are identified by a Prometheus name and optional
+ * label pairs, registering the same name and labels again returns the existing metric.
+ *
+ * <p>NOTE: Look up metrics once and keep them (or use {@link #counterPerType(String, String)}), the
+ * lookup is not meant for hot paths.
+ */
+public final class Metrics {
+  private static final ConcurrentSkipListMap<String, Entry> METRICS =
+      new ConcurrentSkipListMap<>();
+  private static final ConcurrentHashMap<String, String> HELP = new ConcurrentHashMap<>();
+
+  private Metrics() {}
+
+  /**
+   * Gets or registers a counter.
+   *
+   * @param name The Prometheus name of the counter (ending in "_total").
+   * @param help The description of the counter.
+   * @param labels The label names and values (in pairs).
+   * @return The registered counter.
+   * @throws IllegalArgumentException If the name and labels are registered to another type.
+   */
+  public static Counter counter(String name, String help, String... labels) {
+    return register(name, help, labels, Counter.class, Counter::new);
+  }
+
+  /**
+   * Gets or registers a histogram.
+   *
+   * @param name The Prometheus name of the histogram.
+   * @param help The description of the histogram.
+   * @param buckets The inclusive upper bounds of the buckets (in ascending order).
+   * @param labels The label names and values (in pairs).
+   * @return The registered histogram.
+   * @throws IllegalArgumentException If the name and labels are registered to another type.
+   */
+  public static Histogram histogram(
+      String name, String help, double[] buckets, String... labels) {
+    return register(name, help, labels, Histogram.class, () -> new Histogram(buckets));
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge with the same name and labels.
+   *
+   * @param name The Prometheus name of the gauge.
+   * @param help The description of the gauge.
+   * @param supplier The supplier of the gauge's current value.
+   * @param labels The label names and values (in pairs).
+   */
+  public static void gauge(String name, String help, LongSupplier supplier, String... labels) {
+    HELP.putIfAbsent(name, help);
+    METRICS.put(getKey(name, labels), new Entry(name, formatLabels(labels), new Gauge(supplier)));
+  }
+
+  /**
+   * Removes a metric (of a closed resource), a removed counter keeps counting but is no longer
+   * exported.
+   *
+   * @param name The Prometheus name of the metric.
+   * @param labels The label names and values (in pairs).
+   */
+  public static void remove(String name, String... labels) {
+    METRICS.remove(getKey(name, labels));
+  }
+
+  /**
+   * Creates a lookup of counters labeled by packet (or any object) type, the counter of each type
+   * is registered once and then cached by its class.
+   *
+   * @param name The Prometheus name of the counters (ending in "_total").
+   * @param help The description of the counters.
+   * @return The per-type counter lookup.
+   */
+  public static ClassValue<Counter> counterPerType(String name, String help) {
+    return new ClassValue<>() {
+      @Override
+      protected Counter computeValue(Class<?> type) {
+        return counter(name, help, "type", type.getSimpleName());
+      }
+    };
+  }
+
+  /**
+   * Formats all metrics in the Prometheus text exposition format.
+   *
+   * @return The Prometheus text of all metrics.
+   */
+  public static String toPrometheus() {
+    StringBuilder builder = new StringBuilder();
+    String prevName = null;
+    for (Entry entry : METRICS.values()) {
+      if (!entry.name.equals(prevName)) {
+        builder.append("# HELP ").append(entry.name).append(' ');
+        builder.append(HELP.getOrDefault(entry.name, "")).append('\n');
+        builder.append("# TYPE ").append(entry.name).append(' ');
+        builder.append(entry.metric.getType()).append('\n');
+        prevName = entry.name;
+      }
+      entry.metric.writeSamples(builder, entry.name, entry.labels);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the current values of all metrics, histograms are summarized by their count, sum, and
+   * estimated quantiles.
+   *
+   * @return The metric values (by name and labels, in sorted order).
+   */
+  public static Map<String, Double> getValues() {
+    LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+    METRICS.forEach((key, entry) -> entry.metric.putValues(values, key));
+    return values;
+  }
+
+  private static <T extends Metric> T register(
+      String name,
+      String help,
+      String[] labels,
+      Class<T> type,
+      Supplier<T> factory) {
+    HELP.putIfAbsent(name, help);
+    Entry entry =
+        METRICS.computeIfAbsent(
+            getKey(name, labels), key -> new Entry(name, formatLabels(labels), factory.get()));
+    if (!type.isInstance(entry.metric)) {
+      throw new IllegalArgumentException(name + " is already registered as a different type!");
+    }
+    return type.cast(entry.metric);
+  }
+
+  private static String getKey(String name, String[] labels) {
+    return labels.length == 0 ? name : name + "{" + formatLabels(labels) + "}";
+  }
+
+  /**
+   * Formats label pairs as Prometheus labels (without braces).
+   *
+   * @param labels The label names and values (in pairs).
+   * @return The formatted labels, empty if there are no labels.
+   * @throws IllegalArgumentException If a label is missing its value.
+   */
+  private static String formatLabels(String[] labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be name and value pairs!");
+    }
+
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(labels[i]).append("=\"");
+      builder.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return builder.toString();
+  }
+
+  /** Stores a registered metric along with its name and formatted labels. */
+  private static final class Entry {
+    private final String name;
+    private final String labels;
+    private final Metric metric;
+
+    private Entry(String name, String labels, Metric metric) {
+      this.name = name;
+      this.labels = labels;
+      this.metric = metric;
+    }
+  }
+}
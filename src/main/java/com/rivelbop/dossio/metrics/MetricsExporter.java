@@ -0,0 +1,98 @@
+package com.rivelbop.dossio.metrics;
+
+import com.esotericsoftware.minlog.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exports the runtime metrics through JMX and a Prometheus endpoint. The endpoint is only bound to
+ * the loopback address, so the metrics are never exposed to the network.
+ */
+public final class MetricsExporter {
+  /** The default port of the Prometheus endpoint. */
+  public static final int DEFAULT_PORT = 9464;
+
+  private static final String LOG_TAG = "MetricsExporter";
+  private static final String OBJECT_NAME = "com.rivelbop.dossio:type=Metrics";
+
+  @CheckForNull private static HttpServer httpServer;
+
+  private MetricsExporter() {}
+
+  /**
+   * Registers the metrics MBean and starts the Prometheus endpoint ("/metrics"). Failing to bind
+   * the endpoint is only logged, since the metrics are still available through JMX.
+   *
+   * @param port The localhost port to serve the endpoint on (0 to not serve the endpoint).
+   */
+  public static synchronized void start(int port) {
+    registerMBean();
+    if (httpServer != null || port == 0) {
+      return;
+    }
+
+    try {
+      HttpServer server =
+          HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/metrics", MetricsExporter::handleScrape);
+      server.start();
+      httpServer = server;
+      Log.info(LOG_TAG, "Serving metrics on http://localhost:" + port + "/metrics");
+    } catch (IOException e) {
+      Log.warn(LOG_TAG, "Failed to bind the metrics endpoint to port " + port + "!", e);
+    }
+  }
+
+  /** Stops the Prometheus endpoint (the MBean stays registered). */
+  public static synchronized void stop() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+      httpServer = null;
+    }
+  }
+
+  private static void registerMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(OBJECT_NAME);
+      if (!mbeanServer.isRegistered(objectName)) {
+        mbeanServer.registerMBean(new MetricsBean(), objectName);
+      }
+    } catch (JMException e) {
+      Log.warn(LOG_TAG, "Failed to register the metrics MBean!", e);
+    }
+  }
+
+  private static void handleScrape(HttpExchange exchange) throws IOException {
+    byte[] body = Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /** The JMX view of the metrics registry. */
+  private static final class MetricsBean implements MetricsMXBean {
+    @Override
+    public Map<String, Double> getValues() {
+      return Metrics.getValues();
+    }
+
+    @Override
+    public String getPrometheusText() {
+      return Metrics.toPrometheus();
+    }
+  }
+}
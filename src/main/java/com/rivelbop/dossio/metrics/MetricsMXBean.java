@@ -0,0 +1,20 @@
+package com.rivelbop.dossio.metrics;
+
+import java.util.Map;
+
+/** Exposes the runtime metrics through JMX (as "com.rivelbop.dossio:type=Metrics"). */
+public interface MetricsMXBean {
+  /**
+   * Returns the current values of all metrics.
+   *
+   * @return The metric values (by name and labels).
+   */
+  Map<String, Double> getValues();
+
+  /**
+   * Returns all metrics in the Prometheus text exposition format.
+   *
+   * @return The Prometheus text of all metrics.
+   */
+  String getPrometheusText();
+}
@@ -6,11 +6,47 @@ import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
 import com.esotericsoftware.minlog.Log;
 import com.rivelbop.dossio.app.Main;
+import com.rivelbop.dossio.io.EditSerializer;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
+import com.rivelbop.dossio.networking.OutboundScheduler.Lane;
 import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
+import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
+import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.DirectPacket;
 import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
+import com.rivelbop.dossio.networking.Packet.EditPacket;
+import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import com.rivelbop.dossio.networking.Packet.JoinedPacket;
+import com.rivelbop.dossio.networking.Packet.JournalPacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import com.rivelbop.dossio.networking.Packet.ProbePacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import com.rivelbop.dossio.networking.Packet.SubscribePacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javafx.application.Platform;
 import javax.annotation.CheckForNull;
 
@@ -21,15 +57,116 @@ public final class ClientHandler {
   /** The timeout for connecting to a server (milliseconds). */
   private static final int TIMEOUT = 5000;
 
+  /** The time to wait before the first reconnect attempt after losing the connection (ms). */
+  private static final long RECONNECT_INTERVAL = 1000;
+
+  /** The maximum time between reconnect attempts, the wait doubles after each failure (ms). */
+  private static final long MAX_RECONNECT_INTERVAL = 30_000;
+
+  /** The time an edit batch waits to be packed with other edit batches (milliseconds). */
+  private static final int BATCH_WINDOW = 5;
+
+  /** The estimated byte size limit of batched edits (larger edits are sent as a sequence). */
+  private static final int BATCH_BYTE_LIMIT = Network.BUFFER_SIZE / 4;
+
+  /** The estimated byte size of packets without any file content. */
+  private static final int SMALL_PACKET_BYTE_SIZE = 64;
+
+  /** The time between probes of the round trip time and clock offset to the server (seconds). */
+  private static final int PROBE_INTERVAL = 2;
+
+  /** The minimum time between presence updates sent after edits (milliseconds). */
+  private static final int PRESENCE_INTERVAL = 100;
+
+  /** The time between presence heartbeats, sent even without edits (seconds). */
+  private static final int PRESENCE_HEARTBEAT_INTERVAL = 2;
+
+  private static final String QUEUE_DEPTH_METRIC = "dossio_outbound_queue_depth";
+  private static final String CLIENTS_METRIC = "dossio_clients";
+
+  /** The amount of created client handlers, each labels its metrics with its own number. */
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+  private static final ClassValue<Counter> RECEIVED_PACKETS =
+      Metrics.counterPerType("dossio_packets_received_total", "Packets received from the server.");
+  private static final ClassValue<Counter> RECEIVED_BYTES =
+      Metrics.counterPerType(
+          "dossio_bytes_received_total",
+          "Content bytes received from the server (relayed edits and file chunks).");
+  private static final Histogram EDITS_PER_CHANGE =
+      Metrics.histogram(
+          "dossio_edits_per_change", "Edit packets per sent file change.", Histogram.COUNT_BUCKETS);
+
+  private final String instance = String.valueOf(INSTANCES.incrementAndGet());
   private final Client client = new Client(Network.BUFFER_SIZE, Network.BUFFER_SIZE);
+  private final OutboundScheduler outboundScheduler = new OutboundScheduler(client);
   private final HashMap<Integer, ClientDataPacket> clients = new HashMap<>();
 
+  private final ScheduledExecutorService batchExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "EditBatcher");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final ArrayList<EditBatchPacket> pendingBatches = new ArrayList<>();
+  private int pendingBatchByteSize;
+
+  // The local client's presence (guarded by its own lock), sent over UDP
+  private final PresencePacket presence = new PresencePacket();
+  private final PresenceTracker presenceTracker = new PresenceTracker();
+  private long lastEditTime;
+  private long lastPresenceTime;
+  private boolean isPresenceScheduled;
+
+  // The last journal offset received from the server, sent back to catch up after reconnecting
+  private volatile long journalId;
+  private volatile long journalOffset = -1;
+  private int previousId;
+  private final int clientKey = ThreadLocalRandom.current().nextInt();
+
+  // The subtrees of the project that the client receives packets of (empty for the whole project)
+  private volatile String[] subscriptions = new String[0];
+
+  @CheckForNull private ScheduledFuture<?> probeFuture;
+  @CheckForNull private ScheduledFuture<?> heartbeatFuture;
+  @CheckForNull private volatile ScheduledFuture<?> reconnectFuture;
+  private volatile boolean isStopped;
+  private volatile boolean isJoined; // Whether the server acknowledged the room join
+  private volatile boolean isDropping; // Whether to close the connection once its buffer is sent
+
   private String ipAddress = Network.DEFAULT_IP_ADDRESS;
   private int port = Network.DEFAULT_PORT;
+  private String room = Network.DEFAULT_ROOM;
 
   private String username = "CLIENT";
 
   @CheckForNull private ClientListener clientListener;
+  private Executor listenerExecutor = Platform::runLater;
+
+  /**
+   * Creates a client handler and registers its queue metrics, labeled by the handler's number so
+   * that several handlers in the same process (like the load generator's users) keep separate
+   * metrics.
+   */
+  public ClientHandler() {
+    for (Lane lane : Lane.values()) {
+      Metrics.gauge(
+          QUEUE_DEPTH_METRIC,
+          "Packets queued to be sent to the server.",
+          () -> outboundScheduler.getQueueSize(lane),
+          "client",
+          instance,
+          "lane",
+          lane.name().toLowerCase(Locale.ROOT));
+    }
+    Metrics.gauge(
+        CLIENTS_METRIC,
+        "Clients connected to the session.",
+        () -> clients.size(),
+        "client",
+        instance);
+  }
 
   /**
    * Sets the listener, starts, and connects the client. Throws exception if fails.
@@ -42,42 +179,140 @@ public final class ClientHandler {
         new Listener() {
           @Override
           public void connected(Connection connection) {
+            isJoined = false;
+            stopProbes();
+
+            // Ask the server to replay the packets missed while disconnected (this must be the
+            // first packet, the server holds back the current packets until it is received)
+            CatchUpPacket catchUpPacket = new CatchUpPacket();
+            catchUpPacket.room = room;
+            catchUpPacket.journalId = journalId;
+            catchUpPacket.offset = journalOffset;
+            catchUpPacket.previousId = previousId;
+            previousId = connection.getID();
+            outboundScheduler.enqueue(
+                catchUpPacket, Lane.CONTROL, null, SMALL_PACKET_BYTE_SIZE, CatchUpPacket.class);
+            if (subscriptions.length > 0) {
+              sendSubscriptions();
+            }
+
             // Send current client's data to server
             ClientDataPacket clientDataPacket = new ClientDataPacket();
             clientDataPacket.id = connection.getID();
             clientDataPacket.username = username;
-            client.sendTCP(clientDataPacket);
+            outboundScheduler.enqueue(
+                clientDataPacket,
+                Lane.CONTROL,
+                null,
+                SMALL_PACKET_BYTE_SIZE,
+                ClientDataPacket.class);
+
+            // The control packets above go first, then the packets queued while disconnected
+            outboundScheduler.setConnected(true);
 
             if (clientListener != null) {
-              Platform.runLater(() -> clientListener.connected(connection));
+              listenerExecutor.execute(() -> clientListener.connected(connection));
             }
           }
 
           @Override
           public void received(Connection connection, Object object) {
-            if (object instanceof ClientDataPacket p) {
+            if (object instanceof ProbePacket p) {
+              Tracer.receiveProbe(p);
+              return;
+            }
+
+            // The server only handles the presence and probes of a client that joined its room
+            if (object instanceof JoinedPacket) {
+              isJoined = true;
+              startProbes();
+              return;
+            }
+
+            if (object instanceof JournalPacket p) {
+              journalId = p.journalId;
+              journalOffset = p.offset;
+              return;
+            }
+
+            // Presence is received over UDP, only the latest presence of each client is handled
+            if (object instanceof PresencePacket p) {
+              RECEIVED_PACKETS.get(PresencePacket.class).inc();
+              if (presenceTracker.update(p) && clientListener != null) {
+                listenerExecutor.execute(() -> clientListener.received(connection, p));
+              }
+              return;
+            }
+            presenceTracker.learn(ClientQueue.getFileNames(object));
+
+            // Decode relayed packets back into the packets they carry
+            Object packet =
+                object instanceof RelayPacket p ? PacketCodec.decode(p.payload) : object;
+
+            // Stamp traced changes with the time they are received, the relay packet's trace is
+            // moved to the packet it carries
+            Trace trace = Tracer.getTrace(object);
+            if (trace != null) {
+              trace.receiveTime = Tracer.now();
+              if (packet instanceof EditBatchPacket p) {
+                p.trace = trace;
+              } else if (packet instanceof ChangesetPacket p) {
+                p.trace = trace;
+              }
+            }
+
+            RECEIVED_PACKETS.get(packet.getClass()).inc();
+            if (object instanceof RelayPacket p) {
+              RECEIVED_BYTES.get(packet.getClass()).add(p.payload.length);
+            } else if (object instanceof FileChunkPacket p) {
+              RECEIVED_BYTES.get(FileChunkPacket.class).add(p.data.length);
+            }
+
+            if (packet instanceof ClientDataPacket p) {
               clients.put(p.id, p);
-            } else if (object instanceof DisconnectClientPacket p) {
+            } else if (packet instanceof DisconnectClientPacket p) {
               clients.remove(p.id);
+              presenceTracker.remove(p.id);
             }
 
             if (clientListener != null) {
-              Platform.runLater(() -> clientListener.received(connection, object));
+              listenerExecutor.execute(() -> clientListener.received(connection, packet));
             }
           }
 
+          @Override
+          public void idle(Connection connection) {
+            if (isDropping && client.getTcpWriteBufferSize() == 0) {
+              isDropping = false;
+              connection.close();
+              return;
+            }
+            outboundScheduler.onIdle();
+          }
+
           @Override
           public void disconnected(Connection connection) {
+            isJoined = false;
+            isDropping = false;
             clients.clear();
+            presenceTracker.clear();
+            stopProbes();
+
+            // Keep the queued changes for the next connection, but not its control packets
+            outboundScheduler.setConnected(false);
+            outboundScheduler.clear(Lane.CONTROL);
+            scheduleReconnect(RECONNECT_INTERVAL);
 
             if (clientListener != null) {
-              Platform.runLater(() -> clientListener.disconnected(connection));
+              listenerExecutor.execute(() -> clientListener.disconnected(connection));
             }
           }
         });
 
     // Start
+    isStopped = false;
     client.start();
+    outboundScheduler.start();
 
     // Connect
     try {
@@ -95,25 +330,168 @@ public final class ClientHandler {
   }
 
   /**
-   * Sends a TCP packet to the server.
+   * Tries to reconnect to the server after a delay, the attempts continue with a doubled delay
+   * until one succeeds or the client is stopped. The handler keeps its journal offset, so the
+   * server replays the packets missed while disconnected.
+   *
+   * @param delay The time to wait before the attempt (milliseconds).
+   */
+  private void scheduleReconnect(long delay) {
+    if (isStopped || batchExecutor.isShutdown()) {
+      return;
+    }
+    reconnectFuture =
+        batchExecutor.schedule(
+            () -> {
+              if (isStopped || client.isConnected()) {
+                return;
+              }
+              try {
+                client.reconnect(TIMEOUT);
+              } catch (IOException e) {
+                Log.warn(LOG_TAG, "Failed to reconnect to the server, retrying.", e);
+                scheduleReconnect(Math.min(delay * 2, MAX_RECONNECT_INTERVAL));
+              }
+            },
+            delay,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues a TCP packet to be sent to the server, the lane is picked based on the packet type.
+   * Any pending edit batches are queued first to keep the order of packets.
    *
    * @param o The packet to send.
    */
   public void sendTcp(Object o) {
-    client.sendTCP(o);
+    synchronized (pendingBatches) {
+      flushBatches();
+      enqueue(o, getLane(o), getFileName(o));
+    }
+  }
+
+  /**
+   * Queues a TCP packet to be sent to a single client through the server, instead of being relayed
+   * to every client.
+   *
+   * @param targetId The ID of the client to send the packet to.
+   * @param o The packet to send.
+   */
+  public void sendTcpTo(int targetId, Object o) {
+    synchronized (pendingBatches) {
+      flushBatches();
+      enqueue(o, getLane(o), getFileName(o), targetId);
+    }
+  }
+
+  /**
+   * Sends the edits of a file change to the server.
+   *
+   * <p>Small changes are sent as a single edit batch in the interactive lane, which waits for
+   * {@link #BATCH_WINDOW} milliseconds so that the batches of other files changed at the same time
+   * can share a single changeset packet. Larger changes are sent as a begin/edit/end sequence in
+   * the bulk lane.
+   *
+   * @param fileName The name of the changed file.
+   * @param edits The edit packets of the file change.
+   * @param trace The trace of the file change (null if the change isn't traced).
+   */
+  public void sendEdits(String fileName, List<EditPacket> edits, @CheckForNull Trace trace) {
+    int byteSize = EditSerializer.getByteSize(fileName, edits);
+    EDITS_PER_CHANGE.observe(edits.size());
+    updatePresence(fileName, edits);
+    synchronized (pendingBatches) {
+      if (byteSize > BATCH_BYTE_LIMIT) {
+        flushBatches();
+
+        BeginEditPacket beginPacket = new BeginEditPacket();
+        beginPacket.fileName = fileName;
+        enqueue(beginPacket, Lane.BULK, fileName);
+
+        for (EditPacket p : edits) {
+          enqueue(p, Lane.BULK, fileName);
+        }
+
+        EndEditPacket endPacket = new EndEditPacket();
+        endPacket.fileName = fileName;
+        endPacket.trace = trace;
+        enqueue(endPacket, Lane.BULK, fileName);
+        return;
+      }
+
+      // Make room for the batch if it doesn't fit with the pending batches
+      if (pendingBatchByteSize + byteSize > BATCH_BYTE_LIMIT) {
+        flushBatches();
+      }
+
+      EditBatchPacket batchPacket = new EditBatchPacket();
+      batchPacket.fileName = fileName;
+      batchPacket.edits = edits.toArray(new EditPacket[0]);
+      batchPacket.trace = trace;
+
+      // The batch can't share a changeset while the file has packets queued in the bulk lane
+      if (outboundScheduler.hasQueuedBulk(fileName)) {
+        enqueue(batchPacket, Lane.INTERACTIVE, fileName);
+        return;
+      }
+      pendingBatches.add(batchPacket);
+      pendingBatchByteSize += byteSize;
+
+      // The first pending batch opens the batching window
+      if (pendingBatches.size() == 1) {
+        batchExecutor.schedule(
+            () -> {
+              synchronized (pendingBatches) {
+                flushBatches();
+              }
+            },
+            BATCH_WINDOW,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Closes the connection as if it was lost, the client then reconnects and catches up on the
+   * packets it missed. The packets already given to the connection are sent before closing it (on
+   * the client's update thread, once its write buffer is empty), this returns without waiting.
+   */
+  public void dropConnection() {
+    if (client.isConnected()) {
+      outboundScheduler.setConnected(false);
+      isDropping = true;
+    }
   }
 
   /** Stops the Kryonet client from running. */
   public void stop() {
+    isStopped = true;
+    ScheduledFuture<?> future = reconnectFuture;
+    if (future != null) {
+      future.cancel(false);
+    }
+    stopProbes();
+    synchronized (pendingBatches) {
+      pendingBatches.clear();
+      pendingBatchByteSize = 0;
+    }
+    outboundScheduler.stop();
     client.stop();
   }
 
   /**
-   * Calls the client's dispose method. Throws exception if fails.
+   * Calls the client's dispose method and removes the handler's metrics. Throws exception if
+   * fails.
    *
    * @throws RuntimeException If client fails to release resources.
    */
   public void dispose() {
+    batchExecutor.shutdownNow();
+    for (Lane lane : Lane.values()) {
+      Metrics.remove(
+          QUEUE_DEPTH_METRIC, "client", instance, "lane", lane.name().toLowerCase(Locale.ROOT));
+    }
+    Metrics.remove(CLIENTS_METRIC, "client", instance);
     try {
       client.dispose();
     } catch (IOException e) {
@@ -154,6 +532,43 @@ public final class ClientHandler {
     this.port = Network.validatePort(port);
   }
 
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * Validates and sets the room that the client joins, a client joining another room forgets its
+   * journal offset (the room has its own journal).
+   *
+   * @param room The name of the room to join (blank for the default room).
+   */
+  public void setRoom(String room) {
+    String validRoom = Network.validateRoom(room);
+    if (!validRoom.equals(this.room)) {
+      this.room = validRoom;
+      journalId = 0;
+      journalOffset = -1;
+    }
+  }
+
+  public String[] getSubscriptions() {
+    return subscriptions.clone();
+  }
+
+  /**
+   * Sets the subtrees of the project that the client receives the file packets of, and sends them
+   * to the server if the client is connected.
+   *
+   * @param prefixes The names of the subscribed directories and files (empty for the whole
+   *     project).
+   */
+  public void setSubscriptions(String[] prefixes) {
+    subscriptions = prefixes.clone();
+    if (client.isConnected()) {
+      sendSubscriptions();
+    }
+  }
+
   public String getUsername() {
     return username;
   }
@@ -173,10 +588,24 @@ public final class ClientHandler {
     return client.getID();
   }
 
+  /**
+   * Returns the client's key, it identifies the client's transfers across reconnects (unlike its
+   * connection ID, which changes with every connection).
+   *
+   * @return The random client key.
+   */
+  public int getClientKey() {
+    return clientKey;
+  }
+
   public Map<Integer, ClientDataPacket> getClients() {
     return clients;
   }
 
+  public PresenceTracker getPresenceTracker() {
+    return presenceTracker;
+  }
+
   public Kryo getKryo() {
     return client.getKryo();
   }
@@ -184,4 +613,276 @@ public final class ClientHandler {
   public void setClientListener(@CheckForNull ClientListener clientListener) {
     this.clientListener = clientListener;
   }
+
+  /**
+   * Sets the executor that the client listener is called on, which is the JavaFX application
+   * thread by default (headless clients call it on their own thread instead).
+   *
+   * <p>NOTE: The executor must run tasks in order, one at a time.
+   *
+   * @param listenerExecutor The executor to call the client listener on.
+   */
+  public void setListenerExecutor(Executor listenerExecutor) {
+    this.listenerExecutor = listenerExecutor;
+  }
+
+  /**
+   * Starts measuring the round trip time and clock offset to the server, and sending the presence
+   * periodically (so it recovers from lost packets).
+   */
+  private void startProbes() {
+    stopProbes();
+    probeFuture =
+        batchExecutor.scheduleAtFixedRate(
+            () ->
+                outboundScheduler.enqueue(
+                    Tracer.createProbe(),
+                    Lane.CONTROL,
+                    null,
+                    SMALL_PACKET_BYTE_SIZE,
+                    ProbePacket.class),
+            0,
+            PROBE_INTERVAL,
+            TimeUnit.SECONDS);
+    heartbeatFuture =
+        batchExecutor.scheduleAtFixedRate(
+            () -> sendPresence(false), 0, PRESENCE_HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+  }
+
+  private void stopProbes() {
+    ScheduledFuture<?> future = probeFuture;
+    if (future != null) {
+      future.cancel(false);
+      probeFuture = null;
+    }
+    future = heartbeatFuture;
+    if (future != null) {
+      future.cancel(false);
+      heartbeatFuture = null;
+    }
+  }
+
+  /**
+   * Updates the local presence to the region of a file change, and sends it once at least
+   * {@link #PRESENCE_INTERVAL} milliseconds passed since the last presence was sent.
+   *
+   * @param fileName The name of the changed file.
+   * @param edits The edit packets of the file change.
+   */
+  private void updatePresence(String fileName, List<EditPacket> edits) {
+    int line = Integer.MAX_VALUE;
+    int endLine = 0;
+    for (EditPacket edit : edits) {
+      line = Math.min(line, edit.start);
+      endLine = Math.max(endLine, Math.max(edit.end, edit.start + lineCount(edit)));
+    }
+
+    synchronized (presence) {
+      presence.fileHash = PresenceTracker.hash(fileName);
+      presence.line = line;
+      presence.lineCount = Math.max(endLine - line, 1);
+      lastEditTime = System.nanoTime();
+      if (isPresenceScheduled) {
+        return; // The latest presence is sent when the interval ends
+      }
+
+      long waitTime =
+          lastPresenceTime + TimeUnit.MILLISECONDS.toNanos(PRESENCE_INTERVAL) - lastEditTime;
+      isPresenceScheduled = true;
+      batchExecutor.schedule(() -> sendPresence(true), waitTime, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Sends the local presence to the server over UDP (a lost packet is replaced by the next one).
+   *
+   * @param isScheduled Whether this is the presence update scheduled after an edit (otherwise it
+   *     is a heartbeat).
+   */
+  private void sendPresence(boolean isScheduled) {
+    PresencePacket packet = new PresencePacket();
+    synchronized (presence) {
+      if (isScheduled) {
+        isPresenceScheduled = false;
+      }
+      long now = System.nanoTime();
+      lastPresenceTime = now;
+
+      presence.sequence++;
+      packet.sequence = presence.sequence;
+      packet.fileHash = presence.fileHash;
+      packet.line = presence.line;
+      packet.lineCount = presence.lineCount;
+      packet.idleTime =
+          presence.fileHash != 0
+              ? (int) Math.min(TimeUnit.NANOSECONDS.toMillis(now - lastEditTime), Integer.MAX_VALUE)
+              : Integer.MAX_VALUE;
+    }
+
+    if (!isJoined || !client.isConnected()) {
+      return;
+    }
+    try {
+      client.sendUDP(packet);
+    } catch (RuntimeException e) {
+      Log.debug(LOG_TAG, "Failed to send presence", e); // Only the latest presence matters
+    }
+  }
+
+  private void sendSubscriptions() {
+    SubscribePacket subscribePacket = new SubscribePacket();
+    subscribePacket.prefixes = subscriptions;
+    outboundScheduler.enqueue(
+        subscribePacket, Lane.CONTROL, null, SMALL_PACKET_BYTE_SIZE, SubscribePacket.class);
+  }
+
+  private static int lineCount(EditPacket edit) {
+    return edit.lines != null ? edit.lines.length : 0;
+  }
+
+  /**
+   * Sends the pending edit batches, a single batch is sent on its own and multiple batches are
+   * packed into a changeset packet.
+   *
+   * <p>NOTE: The caller must hold the lock on the pending batches.
+   */
+  private void flushBatches() {
+    if (pendingBatches.isEmpty()) {
+      return;
+    }
+
+    if (pendingBatches.size() == 1) {
+      EditBatchPacket batchPacket = pendingBatches.getFirst();
+      enqueue(batchPacket, Lane.INTERACTIVE, batchPacket.fileName);
+    } else {
+      ChangesetPacket changesetPacket = new ChangesetPacket();
+      changesetPacket.batches = pendingBatches.toArray(new EditBatchPacket[0]);
+      changesetPacket.trace = pendingBatches.getFirst().trace; // Traces the longest wait
+      enqueue(changesetPacket, Lane.INTERACTIVE, null);
+    }
+    pendingBatches.clear();
+    pendingBatchByteSize = 0;
+  }
+
+  /**
+   * Queues a packet in the outbound scheduler, to be relayed to every client.
+   *
+   * @param o The packet to queue.
+   * @param lane The lane to queue the packet in.
+   * @param fileName The name of the file the packet belongs to (null if it isn't file related).
+   */
+  private void enqueue(Object o, Lane lane, @CheckForNull String fileName) {
+    enqueue(o, lane, fileName, 0);
+  }
+
+  /**
+   * Queues a packet in the outbound scheduler. Edit packets are encoded into a relay packet first,
+   * so the server can relay them without decoding their lines.
+   *
+   * @param o The packet to queue.
+   * @param lane The lane to queue the packet in.
+   * @param fileName The name of the file the packet belongs to (null if it isn't file related).
+   * @param targetId The ID of the client to send the packet to (0 to send it to every client).
+   */
+  private void enqueue(Object o, Lane lane, @CheckForNull String fileName, int targetId) {
+    Object packet = o;
+    String[] fileNames = getFileNames(o, fileName);
+    int byteSize = SMALL_PACKET_BYTE_SIZE;
+    if (o instanceof EditPacket || o instanceof EditBatchPacket || o instanceof ChangesetPacket) {
+      RelayPacket relayPacket = new RelayPacket();
+      relayPacket.fileNames = fileNames;
+      relayPacket.trace = Tracer.getTrace(o);
+      relayPacket.payload = PacketCodec.encode(o);
+      packet = relayPacket;
+      byteSize += relayPacket.payload.length;
+    } else if (o instanceof FileChunkPacket p) {
+      byteSize += p.data.length;
+    }
+
+    if (targetId != 0) {
+      DirectPacket directPacket = new DirectPacket();
+      directPacket.targetId = targetId;
+      directPacket.packet = packet;
+      packet = directPacket;
+    }
+    outboundScheduler.enqueue(packet, lane, fileNames, isBarrier(o), byteSize, o.getClass());
+  }
+
+  /**
+   * Gets the names of the files a packet belongs to, a changeset belongs to the files of all its
+   * batches and a move belongs to both of its names.
+   *
+   * @param o The packet to get the file names of.
+   * @param fileName The name of the file the packet belongs to (null if it isn't file related).
+   * @return The packet's file names.
+   */
+  private static String[] getFileNames(Object o, @CheckForNull String fileName) {
+    if (o instanceof ChangesetPacket p) {
+      String[] fileNames = new String[p.batches.length];
+      for (int i = 0; i < fileNames.length; i++) {
+        fileNames[i] = p.batches[i].fileName;
+      }
+      return fileNames;
+    } else if (o instanceof MoveFilePacket p) {
+      return new String[] {p.fileName, p.newFileName};
+    }
+    return fileName != null ? new String[] {fileName} : new String[0];
+  }
+
+  /**
+   * Checks if a packet creates, deletes, or moves its files, so it keeps its order with the packets
+   * of every file in (or containing) them.
+   *
+   * @param o The packet to check.
+   * @return Whether the packet is an ordering barrier for its files.
+   */
+  private static boolean isBarrier(Object o) {
+    return o instanceof CreateFilePacket
+        || o instanceof DeleteFilePacket
+        || o instanceof MoveFilePacket
+        || o instanceof CreateTreePacket;
+  }
+
+  /**
+   * Picks the outbound lane of a packet based on its type.
+   *
+   * @param o The packet to pick the lane of.
+   * @return The lane to queue the packet in.
+   */
+  private static Lane getLane(Object o) {
+    if (o instanceof ClientDataPacket
+        || o instanceof FileChunkResumePacket
+        || o instanceof ResyncPacket) {
+      return Lane.CONTROL;
+    } else if (o instanceof FileChunkPacket) {
+      return Lane.BULK;
+    }
+    return Lane.INTERACTIVE;
+  }
+
+  /**
+   * Gets the name of the file a packet belongs to.
+   *
+   * @param o The packet to get the file name of.
+   * @return The packet's file name, null if the packet doesn't belong to a file.
+   */
+  @CheckForNull
+  private static String getFileName(Object o) {
+    if (o instanceof CreateFilePacket p) {
+      return p.fileName;
+    } else if (o instanceof DeleteFilePacket p) {
+      return p.fileName;
+    } else if (o instanceof MoveFilePacket p) {
+      return p.fileName;
+    } else if (o instanceof CreateTreePacket p) {
+      return p.fileName;
+    } else if (o instanceof EditPacket p) {
+      return p.fileName;
+    } else if (o instanceof EditBatchPacket p) {
+      return p.fileName;
+    } else if (o instanceof FileChunkPacket p) {
+      return p.fileName;
+    }
+    return null;
+  }
 }
@@ -0,0 +1,444 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
+import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import com.rivelbop.dossio.networking.Packet.JournalPacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import javax.annotation.CheckForNull;
+
+/**
+ * Queues the outbound packets of a single server connection. Packets are only written while the
+ * connection's write buffer has room, so a slow client builds up its own queue instead of
+ * stalling (or failing) the sends of every other client.
+ *
+ * <p>Each queue is sent by its own virtual thread, so a client waiting for room in its write buffer
+ * never blocks the server's update thread or the other clients. The writes themselves are still
+ * serialized by Kryonet (its serialization is shared by every connection), which stays cheap since
+ * relayed edits are already encoded by their sender and only their header is written. The queue
+ * itself is lock-free, and a relayed packet is shared by every queue instead of being copied per
+ * client.
+ *
+ * <p>A sender thread waiting for room is woken up by {@link #onIdle()}, which the server calls once
+ * the connection's write buffer drained below {@link #WRITE_BUFFER_LIMIT}.
+ *
+ * <p>Journaled packets carry their {@link EditJournal} offset. Whenever the queue drains, the
+ * client is told the offset of the last journaled packet it was sent (with a {@link
+ * JournalPacket}). A new client's journaled packets are held until it caught up on the packets it
+ * missed.
+ */
+public final class ClientQueue {
+  /** The write buffer byte size that queued packets wait under before being sent. */
+  private static final int WRITE_BUFFER_LIMIT = Network.BUFFER_SIZE / 2;
+
+  /** The estimated byte size of packets without any file content. */
+  private static final int SMALL_PACKET_BYTE_SIZE = 64;
+
+  private static final String[] NO_FILE_NAMES = new String[0];
+
+  private final Connection connection;
+  private final long journalId;
+  private final ConcurrentLinkedQueue<QueuedPacket> packets = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong byteSize = new AtomicLong();
+
+  @CheckForNull private volatile Thread senderThread;
+  private volatile boolean isAwaitingRoom;
+
+  // The journaled packets held until the client caught up (guarded by the queue's lock)
+  @CheckForNull private ArrayList<QueuedPacket> heldPackets;
+  private long heldOffset = -1;
+  private boolean isCatchingUp;
+
+  // The journal offsets of the last sent packet and the last sent journal packet (sender thread)
+  private long sentJournalOffset = -1;
+  private long markedJournalOffset = -1;
+
+  /**
+   * Creates an empty queue for a connection.
+   *
+   * @param connection The connection to send the queued packets through.
+   * @param journalId The ID of the server's edit journal, 0 if the server has none.
+   */
+  public ClientQueue(Connection connection, long journalId) {
+    this.connection = connection;
+    this.journalId = journalId;
+
+    // The connection is idle (and wakes up the sender) once its write buffer is below the limit
+    connection.setIdleThreshold((float) WRITE_BUFFER_LIMIT / Network.BUFFER_SIZE);
+  }
+
+  /**
+   * Gets the names of the files a relayed packet belongs to.
+   *
+   * @param packet The packet to get the file names of.
+   * @return The packet's file names, empty if the packet doesn't belong to any files.
+   */
+  public static String[] getFileNames(Object packet) {
+    if (packet instanceof RelayPacket p) {
+      return p.fileNames;
+    } else if (packet instanceof BeginEditPacket p) {
+      return new String[] {p.fileName};
+    } else if (packet instanceof EndEditPacket p) {
+      return new String[] {p.fileName};
+    } else if (packet instanceof CreateFilePacket p) {
+      return new String[] {p.fileName};
+    } else if (packet instanceof DeleteFilePacket p) {
+      return new String[] {p.fileName};
+    } else if (packet instanceof MoveFilePacket p) {
+      return new String[] {p.fileName, p.newFileName};
+    } else if (packet instanceof CreateTreePacket p) {
+      return new String[] {p.fileName};
+    } else if (packet instanceof FileChunkPacket p) {
+      return new String[] {p.fileName};
+    } else if (packet instanceof FileChunkResumePacket p) {
+      return new String[] {p.fileName};
+    }
+    return NO_FILE_NAMES;
+  }
+
+  /** Starts the virtual thread that sends the queued packets (if it isn't already running). */
+  public synchronized void start() {
+    if (senderThread == null) {
+      senderThread = Thread.ofVirtual().name("ClientQueue-" + connection.getID()).start(this::run);
+    }
+  }
+
+  /** Stops the sender thread and drops all queued packets. */
+  public synchronized void stop() {
+    if (senderThread != null) {
+      senderThread.interrupt();
+      senderThread = null;
+    }
+    packets.clear();
+    size.set(0);
+    byteSize.set(0);
+    heldPackets = null;
+  }
+
+  /**
+   * Adds a packet to the end of the queue and wakes up the sender thread.
+   *
+   * @param packet The packet to queue.
+   */
+  public void add(Object packet) {
+    add(packet, -1);
+  }
+
+  /**
+   * Adds a journaled packet to the end of the queue (or holds it while the client catches up).
+   *
+   * @param packet The packet to queue.
+   * @param journalOffset The journal's end offset after the packet, -1 if it isn't journaled.
+   */
+  public void add(Object packet, long journalOffset) {
+    QueuedPacket queuedPacket = new QueuedPacket(packet, estimateByteSize(packet), journalOffset);
+    if (journalOffset < 0 || !hold(queuedPacket)) {
+      enqueue(queuedPacket);
+    }
+  }
+
+  /**
+   * Marks a journaled packet that isn't sent to the client, because the client sent it. The
+   * client's journal offset still moves past it once the packets before it are sent.
+   *
+   * @param journalOffset The journal's end offset after the packet.
+   */
+  public void skip(long journalOffset) {
+    QueuedPacket queuedPacket = new QueuedPacket(null, 0, journalOffset);
+    if (!hold(queuedPacket)) {
+      enqueue(queuedPacket);
+    }
+  }
+
+  /**
+   * Adds a journaled packet that the client missed, it isn't held while the client catches up.
+   *
+   * @param packet The replayed packet.
+   * @param journalOffset The journal's end offset after the packet.
+   */
+  public void addReplayed(Object packet, long journalOffset) {
+    enqueue(new QueuedPacket(packet, estimateByteSize(packet), journalOffset));
+  }
+
+  /**
+   * Holds the journaled packets added from now on, until {@link #release()} is called.
+   *
+   * @param journalOffset The journal's end offset, the first held packet starts at it.
+   */
+  public synchronized void hold(long journalOffset) {
+    heldPackets = new ArrayList<>();
+    heldOffset = journalOffset;
+    isCatchingUp = false;
+  }
+
+  /**
+   * Marks the start of the client's catch up, which must release the queue once it is done.
+   *
+   * @return Whether the queue is held and its catch up hasn't started before.
+   */
+  public synchronized boolean beginCatchUp() {
+    if (heldPackets == null || isCatchingUp) {
+      return false;
+    }
+    isCatchingUp = true;
+    return true;
+  }
+
+  /**
+   * Returns the journal offset that the queue started holding packets at.
+   *
+   * @return The held journal offset, -1 if the queue was never held.
+   */
+  public synchronized long getHeldOffset() {
+    return heldOffset;
+  }
+
+  /**
+   * Queues the held packets after the replayed ones, the client has received the journal up to
+   * the held offset once the replayed packets are sent.
+   */
+  public void release() {
+    release(-1, fileName -> false);
+  }
+
+  /**
+   * Queues the held packets after a snapshot (and the replayed packets after it). The held packets
+   * that the snapshot includes are dropped, which are the packets up to its offset whose files were
+   * all sent with it. The other held packets up to its offset are still sent (the snapshot doesn't
+   * keep every file), before the client is told it has caught up to the snapshot's offset.
+   *
+   * @param snapshotOffset The journal offset that the sent snapshot includes the packets up to.
+   * @param isInSnapshot Tests whether a file (by name) was sent with the snapshot.
+   */
+  public synchronized void release(long snapshotOffset, Predicate<String> isInSnapshot) {
+    if (heldPackets == null) {
+      return;
+    }
+    int index = 0;
+    for (; index < heldPackets.size(); index++) {
+      QueuedPacket queuedPacket = heldPackets.get(index);
+      if (queuedPacket.journalOffset > snapshotOffset) {
+        break;
+      }
+      if (queuedPacket.packet != null && !isIncluded(queuedPacket.packet, isInSnapshot)) {
+        enqueue(queuedPacket);
+      }
+    }
+    enqueue(new QueuedPacket(null, 0, Math.max(heldOffset, snapshotOffset)));
+    for (; index < heldPackets.size(); index++) {
+      enqueue(heldPackets.get(index));
+    }
+    heldPackets = null;
+  }
+
+  /**
+   * Checks if a snapshot includes a packet, it must belong to files that were all sent with it.
+   *
+   * @param packet The packet to check.
+   * @param isInSnapshot Tests whether a file (by name) was sent with the snapshot.
+   * @return Whether the packet's files are all in the snapshot.
+   */
+  private static boolean isIncluded(Object packet, Predicate<String> isInSnapshot) {
+    String[] fileNames = getFileNames(packet);
+    if (fileNames.length == 0) {
+      return false;
+    }
+    for (String fileName : fileNames) {
+      if (!isInSnapshot.test(fileName)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes all queued packets that belong to files (this is used to resync a slow client).
+   *
+   * @return The names of the files that had packets removed.
+   */
+  public Set<String> removeFilePackets() {
+    LinkedHashSet<String> fileNames = new LinkedHashSet<>();
+    for (QueuedPacket queuedPacket : packets) {
+      String[] packetFileNames = getFileNames(queuedPacket.packet);
+      if (packetFileNames.length > 0 && packets.remove(queuedPacket)) {
+        Collections.addAll(fileNames, packetFileNames);
+        size.decrementAndGet();
+        byteSize.addAndGet(-queuedPacket.byteSize);
+      }
+    }
+    return fileNames;
+  }
+
+  /**
+   * Wakes up the sender thread if it is waiting for room in the write buffer, this is called by the
+   * server's update thread while the connection is idle.
+   */
+  public void onIdle() {
+    Thread thread = senderThread;
+    if (thread != null && isAwaitingRoom) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Returns the amount of queued packets.
+   *
+   * @return The queue depth.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Returns the estimated byte size of all queued packets.
+   *
+   * @return The queued byte size.
+   */
+  public long getByteSize() {
+    return byteSize.get();
+  }
+
+  public Connection getConnection() {
+    return connection;
+  }
+
+  private static int estimateByteSize(Object packet) {
+    if (packet instanceof RelayPacket p) {
+      return SMALL_PACKET_BYTE_SIZE + p.payload.length;
+    } else if (packet instanceof FileChunkPacket p) {
+      return SMALL_PACKET_BYTE_SIZE + p.data.length;
+    }
+    return SMALL_PACKET_BYTE_SIZE;
+  }
+
+  /**
+   * Holds a journaled packet if the queue is held.
+   *
+   * @param queuedPacket The packet to hold.
+   * @return Whether the packet was held.
+   */
+  private synchronized boolean hold(QueuedPacket queuedPacket) {
+    if (heldPackets == null) {
+      return false;
+    }
+    heldPackets.add(queuedPacket);
+    return true;
+  }
+
+  private void enqueue(QueuedPacket queuedPacket) {
+    packets.add(queuedPacket);
+    if (queuedPacket.packet != null) {
+      size.incrementAndGet();
+      byteSize.addAndGet(queuedPacket.byteSize);
+    }
+
+    Thread thread = senderThread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /** Sends queued packets while the write buffer has room, parks while the queue is empty. */
+  private void run() {
+    Thread currentThread = Thread.currentThread();
+    while (!currentThread.isInterrupted()) {
+      QueuedPacket queuedPacket = packets.peek();
+      if (queuedPacket == null) {
+        // Tell the client how far it has received the journal, once per drained queue
+        if (sentJournalOffset <= markedJournalOffset) {
+          LockSupport.park(this);
+        } else if (hasRoom(SMALL_PACKET_BYTE_SIZE)) {
+          JournalPacket journalPacket = new JournalPacket();
+          journalPacket.journalId = journalId;
+          journalPacket.offset = sentJournalOffset;
+          connection.sendTCP(journalPacket);
+          markedJournalOffset = sentJournalOffset;
+        } else {
+          awaitRoom(SMALL_PACKET_BYTE_SIZE);
+        }
+        continue;
+      }
+
+      // Skipped packets only move the client's journal offset
+      if (queuedPacket.packet == null) {
+        if (packets.remove(queuedPacket)) {
+          sentJournalOffset = Math.max(sentJournalOffset, queuedPacket.journalOffset);
+        }
+        continue;
+      }
+
+      // Wait for the write buffer to drain enough to hold the packet
+      if (!hasRoom(queuedPacket.byteSize)) {
+        awaitRoom(queuedPacket.byteSize);
+        continue;
+      }
+
+      // The packet may have been removed by a resync in the meantime
+      if (packets.remove(queuedPacket)) {
+        size.decrementAndGet();
+        byteSize.addAndGet(-queuedPacket.byteSize);
+        connection.sendTCP(queuedPacket.packet);
+        sentJournalOffset = Math.max(sentJournalOffset, queuedPacket.journalOffset);
+      }
+    }
+  }
+
+  /**
+   * Parks the sender thread until the connection becomes idle (or a packet is queued), unless the
+   * write buffer already has room for a packet.
+   *
+   * @param packetByteSize The estimated byte size of the packet.
+   */
+  private void awaitRoom(int packetByteSize) {
+    isAwaitingRoom = true;
+    if (!hasRoom(packetByteSize)) {
+      LockSupport.park(this);
+    }
+    isAwaitingRoom = false;
+  }
+
+  /**
+   * Checks if the connection's write buffer has room for a packet.
+   *
+   * @param packetByteSize The estimated byte size of the packet.
+   * @return Whether the packet can be sent without waiting.
+   */
+  private boolean hasRoom(int packetByteSize) {
+    int bufferSize = connection.getTcpWriteBufferSize();
+    return !connection.isConnected()
+        || bufferSize <= 0
+        || bufferSize + packetByteSize <= WRITE_BUFFER_LIMIT;
+  }
+
+  /**
+   * Stores a queued packet along with its estimated byte size and journal offset (a packet of null
+   * only moves the client's journal offset).
+   */
+  private static final class QueuedPacket {
+    @CheckForNull private final Object packet;
+    private final int byteSize;
+    private final long journalOffset;
+
+    private QueuedPacket(@CheckForNull Object packet, int byteSize, long journalOffset) {
+      this.packet = packet;
+      this.byteSize = byteSize;
+      this.journalOffset = journalOffset;
+    }
+  }
+}
@@ -0,0 +1,486 @@
+package com.rivelbop.dossio.networking;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import javax.annotation.CheckForNull;
+
+/**
+ * An append-only journal of the file packets (and client leaves) relayed by the server, a
+ * reconnecting client catches up by replaying the records after the last offset it received
+ * (instead of being resynced).
+ *
+ * <p>The journal is split into segment files of {@link #SEGMENT_SIZE} bytes that are memory-mapped
+ * while the journal is open. A record is appended by copying it into the mapped segment, so the
+ * relay never waits for the disk. The records appended within {@link #COMMIT_INTERVAL} are forced
+ * to the disk together by a single commit (group commit), a crash loses at most the records of the
+ * last interval. A torn record is detected by its checksum when the journal is reopened, and a
+ * reopened journal appends to a new segment (the offsets of lost records are never reused).
+ *
+ * <p>Records are addressed by the journal offset they start at, offsets keep increasing across
+ * segments (a segment's file is named after the offset of its first record). The segments that are
+ * compacted into a snapshot (see {@link JournalCompactor}) are deleted, except for the last {@link
+ * #TAIL_SEGMENTS}, and never more than {@link #MAX_SEGMENTS} segments are kept. Each record is its
+ * byte length, the CRC32C of the rest of the record, the connection ID of the client that sent the
+ * packet, and the encoded packet.
+ */
+final class EditJournal implements Closeable {
+  /** The byte size of a segment file. */
+  static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /** The amount of segments that are kept, older segments are deleted even if not compacted. */
+  static final int MAX_SEGMENTS = 16;
+
+  /** The amount of segments that are kept after they are compacted, to catch up clients from. */
+  static final int TAIL_SEGMENTS = 2;
+
+  /** The time between commits of the appended records (milliseconds). */
+  static final int COMMIT_INTERVAL = 5;
+
+  private static final String LOG_TAG = "EditJournal";
+
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String ID_FILE = "journal.id";
+
+  /** The byte size of a record's length, checksum, and origin ID. */
+  private static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+  private static final Counter APPENDED_BYTES =
+      Metrics.counter("dossio_server_journal_bytes_total", "Bytes appended to the edit journal.");
+  private static final Counter COMMITS =
+      Metrics.counter("dossio_server_journal_commits_total", "Commits of the edit journal.");
+  private static final Histogram COMMIT_SECONDS =
+      Metrics.histogram(
+          "dossio_server_journal_commit_seconds",
+          "Time spent forcing appended records to the disk.",
+          Histogram.DURATION_BUCKETS);
+
+  private final Path directory;
+  private final long id;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>(); // Oldest first
+  private final ArrayList<Segment> rolledSegments = new ArrayList<>(); // Not fully committed
+  private final ScheduledExecutorService committer =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "EditJournal");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private long openOffset;
+  private volatile long committedOffset;
+
+  private EditJournal(Path directory, long id) {
+    this.directory = directory;
+    this.id = id;
+  }
+
+  /**
+   * Opens the journal of a directory (a new journal is created if it has none). The segments are
+   * recovered up to their last intact record.
+   *
+   * @param directory The directory of the journal.
+   * @return The opened journal.
+   * @throws IOException If the journal fails to be created or its segments fail to be mapped.
+   */
+  static EditJournal open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    EditJournal journal = new EditJournal(directory, readId(directory));
+
+    ArrayList<Long> baseOffsets = new ArrayList<>();
+    try (Stream<Path> paths = Files.list(directory)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          String baseOffset = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+          baseOffsets.add(Long.parseLong(baseOffset));
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid journal segment name in " + directory, e);
+    }
+    baseOffsets.sort(null);
+
+    for (long baseOffset : baseOffsets) {
+      Segment segment = journal.map(baseOffset);
+      segment.recover();
+      journal.segments.add(segment);
+    }
+    if (journal.segments.isEmpty()) {
+      journal.segments.add(journal.map(0));
+    } else {
+      journal.roll(journal.segments.getLast().baseOffset + SEGMENT_SIZE);
+    }
+    journal.openOffset = journal.getEndOffset();
+    journal.committedOffset = journal.openOffset;
+
+    journal.committer.scheduleWithFixedDelay(
+        journal::commit, COMMIT_INTERVAL, COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+    Log.info(
+        LOG_TAG,
+        "Opened journal "
+            + Long.toHexString(journal.id)
+            + " at offsets "
+            + journal.getStartOffset()
+            + "-"
+            + journal.getEndOffset());
+    return journal;
+  }
+
+  /**
+   * Returns the ID of the journal, which tells the offsets of different journals apart (it is kept
+   * when the journal is reopened).
+   *
+   * @return The journal's ID (never 0).
+   */
+  long getId() {
+    return id;
+  }
+
+  /**
+   * Returns the offset of the oldest kept record.
+   *
+   * @return The start offset of the journal.
+   */
+  synchronized long getStartOffset() {
+    return segments.getFirst().baseOffset;
+  }
+
+  /**
+   * Returns the end offset of the journal when it was opened, the records after it were appended
+   * since then (connection IDs restart with the server, so they are only unique after it).
+   *
+   * @return The open offset of the journal.
+   */
+  long getOpenOffset() {
+    return openOffset;
+  }
+
+  /**
+   * Returns the offset that the next record is appended at.
+   *
+   * @return The end offset of the journal.
+   */
+  synchronized long getEndOffset() {
+    Segment head = segments.getLast();
+    return head.baseOffset + head.position;
+  }
+
+  /**
+   * Returns the offset up to which the records are forced to the disk.
+   *
+   * @return The committed offset of the journal.
+   */
+  long getCommittedOffset() {
+    return committedOffset;
+  }
+
+  /**
+   * Appends a record (it is committed along with the other records of the commit interval).
+   *
+   * @param originId The connection ID of the client that sent the packet.
+   * @param packet The encoded packet.
+   * @return The end offset of the appended record.
+   * @throws IOException If the record is larger than a segment, or a new segment fails to be
+   *     mapped.
+   */
+  synchronized long append(int originId, byte[] packet) throws IOException {
+    if (packet.length > SEGMENT_SIZE - HEADER_SIZE) {
+      throw new IOException("Journal record is larger than a segment: " + packet.length);
+    }
+
+    Segment head = segments.getLast();
+    if (head.position + HEADER_SIZE + packet.length > SEGMENT_SIZE) {
+      head = roll(head.baseOffset + head.position);
+    }
+
+    // The length is written last, a record without it is never read (even if it was torn)
+    MappedByteBuffer buffer = head.buffer;
+    int position = head.position;
+    buffer.putInt(position + 2 * Integer.BYTES, originId);
+    buffer.put(position + HEADER_SIZE, packet);
+    buffer.putInt(position + Integer.BYTES, checksum(buffer, position, packet.length));
+    buffer.putInt(position, packet.length);
+    head.position += HEADER_SIZE + packet.length;
+
+    APPENDED_BYTES.add(HEADER_SIZE + packet.length);
+    return head.baseOffset + head.position;
+  }
+
+  /**
+   * Reads the record at an offset.
+   *
+   * @param offset The offset of the record (the end offset of the previous record).
+   * @return The record at the offset, null if the offset is the end of the journal or isn't kept.
+   */
+  @CheckForNull
+  synchronized Record read(long offset) {
+    long recordOffset = seek(offset);
+    for (Segment segment : segments) {
+      if (recordOffset >= segment.baseOffset
+          && recordOffset < segment.baseOffset + segment.position) {
+        int position = (int) (recordOffset - segment.baseOffset);
+        int length = segment.buffer.getInt(position);
+        byte[] packet = new byte[length];
+        segment.buffer.get(position + HEADER_SIZE, packet);
+        int originId = segment.buffer.getInt(position + 2 * Integer.BYTES);
+        return new Record(originId, packet, recordOffset, recordOffset + HEADER_SIZE + length);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks if the records after an offset can be replayed (the offset is the end of a kept record,
+   * or the end of the journal). Only offsets returned by the journal are valid, an offset within a
+   * record isn't detected.
+   *
+   * @param offset The offset to check.
+   * @return Whether the journal can be read from the offset.
+   */
+  synchronized boolean isReadable(long offset) {
+    return seek(offset) >= 0;
+  }
+
+  /**
+   * Deletes the oldest segments whose records all end before an offset (their records are
+   * compacted into a snapshot), the last {@link #TAIL_SEGMENTS} segments are always kept.
+   *
+   * @param offset The offset up to which the records are compacted.
+   * @return The amount of deleted segments.
+   */
+  synchronized int compact(long offset) {
+    int deletedSegments = 0;
+    while (segments.size() > TAIL_SEGMENTS) {
+      Segment oldest = segments.getFirst();
+      if (oldest.baseOffset + oldest.position > offset) {
+        break;
+      }
+      delete(segments.removeFirst());
+      deletedSegments++;
+    }
+    return deletedSegments;
+  }
+
+  /** Stops the committer and commits the appended records. */
+  @Override
+  public void close() {
+    committer.shutdown();
+    try {
+      committer.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    commit();
+  }
+
+  /** Forces the appended records (of the head and any rolled segments) to the disk. */
+  private void commit() {
+    List<Segment> forcedSegments;
+    Segment head;
+    int from;
+    int to;
+    long endOffset;
+    synchronized (this) {
+      endOffset = getEndOffset();
+      if (endOffset == committedOffset) {
+        return;
+      }
+      forcedSegments = new ArrayList<>(rolledSegments);
+      rolledSegments.clear();
+      head = segments.getLast();
+      from = head.committedPosition;
+      to = head.position;
+      head.committedPosition = to;
+    }
+
+    long startTime = System.nanoTime();
+    for (Segment segment : forcedSegments) {
+      segment.buffer.force();
+    }
+    head.buffer.force(from, to - from);
+    committedOffset = endOffset;
+    COMMITS.inc();
+    COMMIT_SECONDS.observeSince(startTime);
+  }
+
+  /**
+   * Finds the offset of the record at an offset. The end of a segment is followed by the first
+   * record of the next segment (segments don't start where the previous one ends after it rolled
+   * or the journal was reopened).
+   *
+   * @param offset The offset of the record.
+   * @return The offset of the record, the end offset if the offset is the end of the journal, -1 if
+   *     the offset isn't kept.
+   */
+  private long seek(long offset) {
+    Segment previous = null;
+    for (Segment segment : segments) {
+      if (previous != null && offset == previous.baseOffset + previous.position) {
+        offset = segment.baseOffset;
+      }
+      if (offset >= segment.baseOffset && offset < segment.baseOffset + segment.position) {
+        return offset;
+      }
+      previous = segment;
+    }
+    return offset == getEndOffset() ? offset : -1;
+  }
+
+  /**
+   * Starts a new head segment, and deletes the oldest segments past {@link #MAX_SEGMENTS}.
+   *
+   * @param baseOffset The offset of the new segment's first record.
+   * @return The new head segment.
+   * @throws IOException If the new segment fails to be mapped.
+   */
+  private Segment roll(long baseOffset) throws IOException {
+    Segment head = segments.getLast();
+    Segment newHead = map(baseOffset);
+    if (head.committedPosition < head.position) {
+      rolledSegments.add(head);
+    }
+    segments.add(newHead);
+
+    while (segments.size() > MAX_SEGMENTS) {
+      delete(segments.removeFirst());
+    }
+    return newHead;
+  }
+
+  /**
+   * Deletes the file of a segment that was removed from the journal.
+   *
+   * @param segment The removed segment.
+   */
+  private void delete(Segment segment) {
+    rolledSegments.remove(segment);
+    try {
+      Files.deleteIfExists(getSegmentPath(segment.baseOffset));
+    } catch (IOException e) {
+      // The file may still be mapped (on Windows), it is left behind
+      Log.debug(LOG_TAG, "Failed to delete old journal segment " + segment.baseOffset, e);
+    }
+  }
+
+  /**
+   * Maps a segment file (created if it doesn't exist).
+   *
+   * @param baseOffset The offset of the segment's first record.
+   * @return The mapped segment.
+   * @throws IOException If the segment fails to be created or mapped.
+   */
+  private Segment map(long baseOffset) throws IOException {
+    try (FileChannel channel = FileChannel.open(getSegmentPath(baseOffset), CREATE, READ, WRITE)) {
+      return new Segment(baseOffset, channel.map(MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+    }
+  }
+
+  private Path getSegmentPath(long baseOffset) {
+    return directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Reads the ID of a journal directory, or creates one.
+   *
+   * @param directory The journal directory.
+   * @return The journal's ID.
+   * @throws IOException If the ID file fails to be read or written.
+   */
+  private static long readId(Path directory) throws IOException {
+    Path idPath = directory.resolve(ID_FILE);
+    if (Files.exists(idPath)) {
+      try {
+        return Long.parseUnsignedLong(Files.readString(idPath).trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid journal ID in " + idPath, e);
+      }
+    }
+
+    long id = ThreadLocalRandom.current().nextLong();
+    if (id == 0) {
+      id = 1;
+    }
+    Files.writeString(idPath, Long.toHexString(id), StandardCharsets.US_ASCII);
+    return id;
+  }
+
+  /**
+   * Computes the checksum of a record, over its origin ID and packet.
+   *
+   * @param buffer The buffer of the record's segment.
+   * @param position The position of the record in the segment.
+   * @param length The byte length of the record's packet.
+   * @return The checksum of the record.
+   */
+  private static int checksum(MappedByteBuffer buffer, int position, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(buffer.slice(position + 2 * Integer.BYTES, Integer.BYTES + length));
+    return (int) crc.getValue();
+  }
+
+  /** A record read from the journal. */
+  static final class Record {
+    final int originId;
+    final byte[] packet;
+    final long offset;
+    final long endOffset;
+
+    private Record(int originId, byte[] packet, long offset, long endOffset) {
+      this.originId = originId;
+      this.packet = packet;
+      this.offset = offset;
+      this.endOffset = endOffset;
+    }
+  }
+
+  /** A mapped segment file. */
+  private static final class Segment {
+    private final long baseOffset;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private int committedPosition;
+
+    private Segment(long baseOffset, MappedByteBuffer buffer) {
+      this.baseOffset = baseOffset;
+      this.buffer = buffer;
+    }
+
+    /** Finds the end of the segment's intact records (a torn record ends the segment). */
+    private void recover() {
+      position = 0;
+      while (position + HEADER_SIZE <= SEGMENT_SIZE) {
+        int length = buffer.getInt(position);
+        if (length <= 0
+            || length > SEGMENT_SIZE - position - HEADER_SIZE
+            || buffer.getInt(position + Integer.BYTES) != checksum(buffer, position, length)) {
+          break;
+        }
+        position += HEADER_SIZE + length;
+      }
+      committedPosition = position;
+    }
+  }
+}
@@ -0,0 +1,523 @@
+package com.rivelbop.dossio.networking;
+
+import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.io.ByteLine;
+import com.rivelbop.dossio.io.ByteLines;
+import com.rivelbop.dossio.io.EditInterpreter;
+import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
+import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
+import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
+import com.rivelbop.dossio.networking.Packet.EditPacket;
+import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import javax.annotation.CheckForNull;
+
+/**
+ * The content of the files changed in a session, materialized from the file packets of the edit
+ * journal up to an offset. A late joiner is sent the snapshot (as a tree archive of the whole
+ * project) and only the journal's tail after it, instead of the session's whole history.
+ *
+ * <p>Only files whose whole content went through the server are kept (created or transferred in
+ * the session), the edits of other files can't be applied without their content. The names of
+ * deleted (and moved) files are kept as well, so a late joiner deletes its stale copies.
+ *
+ * <p>The sequences in progress are tracked by the client that sent them, the sequences of a client
+ * that left (its leave is journaled as well) are dropped, and so is a transfer that received no
+ * chunk for {@link #STALLED_TRANSFER_BYTES} of the journal. Otherwise the snapshot would never
+ * settle again.
+ *
+ * <p>NOTE: This isn't thread-safe, it is only used by the {@link JournalCompactor}'s thread.
+ */
+final class EditSnapshot {
+  /** The largest file that is materialized from a chunked transfer (larger files are dropped). */
+  static final int MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The most bytes held by the transfers in progress (of the snapshot's room), a transfer that
+   * doesn't fit is dropped like a file that is too large.
+   */
+  static final long MAX_TRANSFER_BYTES = 2L * MAX_FILE_SIZE;
+
+  /** The journal bytes after a transfer's last chunk at which the transfer is dropped. */
+  static final long STALLED_TRANSFER_BYTES = 4L * EditJournal.SEGMENT_SIZE;
+
+  private static final String LOG_TAG = "EditSnapshot";
+
+  private final TreeMap<String, ArrayList<ByteLine>> files = new TreeMap<>();
+  private final TreeSet<String> deletedFiles = new TreeSet<>();
+  private long offset;
+
+  // The state of the packet sequences that are still in progress, it isn't saved
+  private final EditInterpreter editInterpreter = new EditInterpreter();
+  private final HashMap<String, Integer> editedFiles = new HashMap<>(); // To their sender's ID
+  private final HashMap<Long, Transfer> transfers = new HashMap<>();
+  private final HashMap<String, Integer> receivingTrees = new HashMap<>(); // To their sender's ID
+
+  /**
+   * Creates an empty snapshot.
+   *
+   * @param offset The journal offset that the snapshot is materialized from.
+   */
+  EditSnapshot(long offset) {
+    this.offset = offset;
+  }
+
+  /**
+   * Loads a snapshot saved by {@link #save(Path, long)}.
+   *
+   * @param path The path to the snapshot file.
+   * @param journalId The ID of the journal that the snapshot must be materialized from.
+   * @return The loaded snapshot, null if there is no snapshot file.
+   * @throws IOException If the snapshot fails to be read, or is of another journal.
+   */
+  @CheckForNull
+  static EditSnapshot load(Path path, long journalId) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readLong() != journalId) {
+        throw new IOException("Snapshot is of another journal: " + path);
+      }
+      EditSnapshot snapshot = new EditSnapshot(in.readLong());
+      for (int i = in.readInt(); i > 0; i--) {
+        String fileName = in.readUTF();
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        snapshot.files.put(fileName, new ByteLines(content).toList());
+      }
+      for (int i = in.readInt(); i > 0; i--) {
+        snapshot.deletedFiles.add(in.readUTF());
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * Returns the journal offset that the snapshot is materialized up to.
+   *
+   * @return The end offset of the last applied record.
+   */
+  long getOffset() {
+    return offset;
+  }
+
+  void setOffset(long offset) {
+    this.offset = offset;
+  }
+
+  /**
+   * Returns the amount of materialized files.
+   *
+   * @return The snapshot's file count.
+   */
+  int size() {
+    return files.size();
+  }
+
+  /**
+   * Returns the names of the materialized files.
+   *
+   * @return The materialized file names, in order.
+   */
+  Set<String> getFileNames() {
+    return files.keySet();
+  }
+
+  /**
+   * Returns the names of the files that were deleted (and not created again).
+   *
+   * @return The deleted file names, in order.
+   */
+  Set<String> getDeletedFiles() {
+    return deletedFiles;
+  }
+
+  /**
+   * Checks if the snapshot includes a file, its content (or its deletion) is sent with the
+   * snapshot. A directory (or tree) is included if any of its files are.
+   *
+   * @param fileName The name of the file.
+   * @return Whether the file is materialized or deleted in the snapshot.
+   */
+  boolean contains(String fileName) {
+    if (files.containsKey(fileName) || deletedFiles.contains(fileName)) {
+      return true;
+    }
+    String treeFileName = files.ceilingKey(fileName + "/");
+    return treeFileName != null && isInTree(treeFileName, fileName);
+  }
+
+  /**
+   * Checks if no edit sequence or transfer is in progress, a snapshot is only saved when it is
+   * settled (the state of the sequences in progress isn't saved).
+   *
+   * @return Whether the snapshot is settled.
+   */
+  boolean isSettled() {
+    return editedFiles.isEmpty() && transfers.isEmpty() && receivingTrees.isEmpty();
+  }
+
+  /**
+   * Applies a journaled packet to the materialized files (packets of other files are ignored).
+   *
+   * @param originId The connection ID of the client that sent the packet.
+   * @param journalOffset The journal offset of the packet's record.
+   * @param packet The packet to apply, a relay packet is decoded first.
+   */
+  void apply(int originId, long journalOffset, Object packet) {
+    transfers.values().removeIf(t -> journalOffset - t.chunkOffset > STALLED_TRANSFER_BYTES);
+
+    Object o = packet instanceof RelayPacket p ? PacketCodec.decode(p.payload) : packet;
+    if (o instanceof DisconnectClientPacket) {
+      leave(originId);
+    } else if (o instanceof CreateFilePacket p) {
+      deletedFiles.remove(p.fileName);
+      files.putIfAbsent(p.fileName, new ArrayList<>());
+    } else if (o instanceof DeleteFilePacket p) {
+      delete(p.fileName);
+    } else if (o instanceof MoveFilePacket p) {
+      move(p.fileName, p.newFileName);
+    } else if (o instanceof CreateTreePacket p) {
+      receivingTrees.put(p.fileName, originId);
+    } else if (o instanceof BeginEditPacket p) {
+      editInterpreter.begin(p);
+      editedFiles.put(p.fileName, originId);
+    } else if (o instanceof EditPacket p) {
+      editInterpreter.insert(p);
+    } else if (o instanceof EndEditPacket p) {
+      editedFiles.remove(p.fileName);
+      applyEdits(p.fileName, editInterpreter.end(p));
+    } else if (o instanceof EditBatchPacket p) {
+      applyEdits(p.fileName, editInterpreter.interpret(p));
+    } else if (o instanceof ChangesetPacket p) {
+      for (EditBatchPacket batch : p.batches) {
+        applyEdits(batch.fileName, editInterpreter.interpret(batch));
+      }
+    } else if (o instanceof FileChunkPacket p) {
+      receive(originId, journalOffset, p);
+    }
+  }
+
+  /**
+   * Drops every edit sequence and transfer in progress, such as the ones of the clients of a
+   * previous server run (which left without a leave record).
+   */
+  void clearSequences() {
+    for (String fileName : editedFiles.keySet()) {
+      editInterpreter.discard(fileName);
+    }
+    editedFiles.clear();
+    transfers.clear();
+    receivingTrees.clear();
+  }
+
+  /**
+   * Writes the materialized files as a tree archive of the project directory (the format of {@code
+   * TreeArchive}).
+   *
+   * @param filter Tests whether a file (by name) is written to the archive.
+   * @return The archive's bytes, null if there are no files to write.
+   * @throws IOException If the archive fails to be written.
+   */
+  @CheckForNull
+  byte[] toArchive(Predicate<String> filter) throws IOException {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    int fileCount = 0;
+    try (ZipOutputStream out = new ZipOutputStream(archive)) {
+      out.setLevel(Deflater.BEST_SPEED);
+      for (Map.Entry<String, ArrayList<ByteLine>> file : files.entrySet()) {
+        if (!filter.test(file.getKey())) {
+          continue;
+        }
+        out.putNextEntry(new ZipEntry(file.getKey()));
+        for (ByteLine line : file.getValue()) {
+          out.write(line.getBuffer(), line.getOffset(), line.length());
+        }
+        out.closeEntry();
+        fileCount++;
+      }
+    }
+    return fileCount > 0 ? archive.toByteArray() : null;
+  }
+
+  /**
+   * Saves the snapshot to a file, replacing it atomically (a crash leaves the previous snapshot).
+   *
+   * <p>The file is the journal's ID, the snapshot's offset, the file count followed by each file's
+   * name, byte length and content, and the deleted file count followed by their names.
+   *
+   * @param path The path to the snapshot file.
+   * @param journalId The ID of the journal that the snapshot is materialized from.
+   * @throws IOException If the snapshot fails to be written.
+   */
+  void save(Path path, long journalId) throws IOException {
+    Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeLong(journalId);
+      out.writeLong(offset);
+      out.writeInt(files.size());
+      for (Map.Entry<String, ArrayList<ByteLine>> file : files.entrySet()) {
+        out.writeUTF(file.getKey());
+        int length = 0;
+        for (ByteLine line : file.getValue()) {
+          length += line.length();
+        }
+        out.writeInt(length);
+        for (ByteLine line : file.getValue()) {
+          out.write(line.getBuffer(), line.getOffset(), line.length());
+        }
+      }
+      out.writeInt(deletedFiles.size());
+      for (String fileName : deletedFiles) {
+        out.writeUTF(fileName);
+      }
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(tempPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /**
+   * Applies edits to a materialized file, a file whose edits don't fit its lines is dropped.
+   *
+   * @param fileName The name of the edited file.
+   * @param edits The consolidated edits of the file.
+   */
+  private void applyEdits(String fileName, List<EditPacket> edits) {
+    ArrayList<ByteLine> lines = files.get(fileName);
+    if (lines == null) {
+      return; // The file's content is unknown
+    }
+
+    try {
+      editInterpreter.apply(edits, lines);
+    } catch (IndexOutOfBoundsException e) {
+      files.remove(fileName);
+      Log.warn(LOG_TAG, "Dropped " + fileName + " from the snapshot, its edits don't fit it");
+    }
+  }
+
+  /**
+   * Writes a chunk of a transfer into its content, the transfer's file is materialized once all
+   * of its chunks are received. Chunks of transfers that started before the snapshot are ignored.
+   *
+   * @param originId The connection ID of the client that sent the chunk.
+   * @param journalOffset The journal offset of the chunk's record.
+   * @param packet The chunk to write.
+   */
+  private void receive(int originId, long journalOffset, FileChunkPacket packet) {
+    Transfer transfer = transfers.get(packet.transferId);
+    if (transfer == null) {
+      if (packet.offset > 0) {
+        return;
+      }
+      transfers.values().removeIf(t -> t.fileName.equals(packet.fileName)); // Replaced
+      if (packet.fileSize > MAX_FILE_SIZE
+          || getTransferBytes() + packet.fileSize > MAX_TRANSFER_BYTES) {
+        files.remove(packet.fileName);
+        receivingTrees.remove(packet.fileName);
+        return;
+      }
+      transfer = new Transfer(packet.fileName, originId, new byte[(int) packet.fileSize]);
+      transfers.put(packet.transferId, transfer);
+    }
+    transfer.chunkOffset = journalOffset;
+
+    // Resent chunks are skipped, a corrupted chunk is resent by its sender
+    if (packet.offset != transfer.receivedOffset
+        || packet.offset + packet.data.length > transfer.content.length
+        || Network.checksum(packet.data) != packet.checksum) {
+      return;
+    }
+    System.arraycopy(packet.data, 0, transfer.content, transfer.receivedOffset, packet.data.length);
+    transfer.receivedOffset += packet.data.length;
+
+    if (transfer.receivedOffset == transfer.content.length) {
+      transfers.remove(packet.transferId);
+      if (receivingTrees.remove(packet.fileName) != null) {
+        extractTree(packet.fileName, transfer.content);
+      } else {
+        deletedFiles.remove(packet.fileName);
+        files.put(packet.fileName, new ByteLines(transfer.content).toList());
+      }
+    }
+  }
+
+  private long getTransferBytes() {
+    long transferBytes = 0;
+    for (Transfer transfer : transfers.values()) {
+      transferBytes += transfer.content.length;
+    }
+    return transferBytes;
+  }
+
+  /**
+   * Materializes the files of a received tree archive.
+   *
+   * @param treeName The name of the tree's directory.
+   * @param archive The tree's archive.
+   */
+  private void extractTree(String treeName, byte[] archive) {
+    try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(archive))) {
+      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        if (entry.isDirectory()) {
+          continue;
+        }
+        String fileName = treeName.isEmpty() ? entry.getName() : treeName + "/" + entry.getName();
+        deletedFiles.remove(fileName);
+        files.put(fileName, new ByteLines(in.readAllBytes()).toList());
+      }
+    } catch (IOException e) {
+      Log.warn(LOG_TAG, "Failed to extract tree " + treeName + " into the snapshot", e);
+    }
+  }
+
+  /**
+   * Removes a deleted file (or the files of a deleted directory), dropping its sequences in
+   * progress.
+   *
+   * @param fileName The name of the deleted file.
+   */
+  private void delete(String fileName) {
+    deletedFiles.addAll(removeTree(fileName).keySet());
+    deletedFiles.add(fileName);
+    dropSequences(fileName);
+  }
+
+  /**
+   * Renames a moved file (or the files of a moved directory). Only the materialized files are
+   * deleted from their old names, a late joiner keeps the other files where they were.
+   *
+   * @param fileName The name the file was moved from.
+   * @param newFileName The name the file was moved to.
+   */
+  private void move(String fileName, String newFileName) {
+    NavigableMap<String, ArrayList<ByteLine>> movedFiles = removeTree(fileName);
+    dropSequences(fileName);
+    if (movedFiles.isEmpty()) {
+      return;
+    }
+
+    removeTree(newFileName); // Replaced by the moved file
+    dropSequences(newFileName);
+    deletedFiles.addAll(movedFiles.keySet());
+    for (Map.Entry<String, ArrayList<ByteLine>> file : movedFiles.entrySet()) {
+      String name = newFileName + file.getKey().substring(fileName.length());
+      deletedFiles.remove(name);
+      files.put(name, file.getValue());
+    }
+  }
+
+  /**
+   * Drops the edit sequences and transfers in progress of a client that left.
+   *
+   * @param originId The connection ID of the client.
+   */
+  private void leave(int originId) {
+    for (String fileName : List.copyOf(editedFiles.keySet())) {
+      if (editedFiles.get(fileName) == originId) {
+        editedFiles.remove(fileName);
+        editInterpreter.discard(fileName);
+      }
+    }
+    receivingTrees.values().removeIf(id -> id == originId);
+    transfers.values().removeIf(transfer -> transfer.originId == originId);
+  }
+
+  /**
+   * Drops the edit sequences and transfers in progress of a file (or the files in a directory).
+   *
+   * @param fileName The name of the file.
+   */
+  private void dropSequences(String fileName) {
+    for (String name : List.copyOf(editedFiles.keySet())) {
+      if (isInTree(name, fileName)) {
+        editedFiles.remove(name);
+        editInterpreter.discard(name);
+      }
+    }
+    receivingTrees.keySet().removeIf(name -> isInTree(name, fileName));
+    transfers.values().removeIf(transfer -> isInTree(transfer.fileName, fileName));
+  }
+
+  /**
+   * Removes a file and the files in it (if it is a directory).
+   *
+   * @param fileName The name of the file.
+   * @return The removed files, by their names.
+   */
+  private NavigableMap<String, ArrayList<ByteLine>> removeTree(String fileName) {
+    TreeMap<String, ArrayList<ByteLine>> removedFiles = new TreeMap<>();
+    ArrayList<ByteLine> lines = files.remove(fileName);
+    if (lines != null) {
+      removedFiles.put(fileName, lines);
+    }
+
+    // The names of a directory's files are between "name/" and "name0" ('0' follows '/')
+    SortedMap<String, ArrayList<ByteLine>> treeFiles = files.subMap(fileName + "/", fileName + "0");
+    removedFiles.putAll(treeFiles);
+    treeFiles.clear();
+    return removedFiles;
+  }
+
+  private static boolean isInTree(String fileName, String treeName) {
+    return fileName.equals(treeName) || fileName.startsWith(treeName + "/");
+  }
+
+  /** A chunked transfer whose chunks are still being received. */
+  private static final class Transfer {
+    private final String fileName;
+    private final int originId;
+    private final byte[] content;
+    private int receivedOffset;
+    private long chunkOffset; // The journal offset of the last chunk
+
+    private Transfer(String fileName, int originId, byte[] content) {
+      this.fileName = fileName;
+      this.originId = originId;
+      this.content = content;
+    }
+  }
+}
@@ -0,0 +1,617 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryonet.Client;
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.minlog.Log;
+import com.google.common.hash.Hashing;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
+import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.rivelbop.dossio.networking.Packet.NodeAckPacket;
+import com.rivelbop.dossio.networking.Packet.NodeHelloPacket;
+import com.rivelbop.dossio.networking.Packet.NodePacket;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import javax.annotation.CheckForNull;
+
+/**
+ * Links the relay server to the other nodes of a relay mesh, so clients attach to the nearest node
+ * and still share their rooms with the clients of every other node.
+ *
+ * <p>Each node dials every other node (a full mesh of one-way links, each a Kryonet client). A
+ * link sends its {@link NodePacket}s in order, keeps them until the other node acknowledges them,
+ * and resends the rest after reconnecting. The receiving node drops the packets it already
+ * received (by their sequence number on the link).
+ *
+ * <p>Every room has an owner node, picked by rendezvous hashing over the linked nodes. The packets
+ * of a room are relayed by its owner first, which sequences them for every other node, so each
+ * node delivers the room's packets (and each file's edits) in the same order.
+ *
+ * <p>Connection IDs are only unique per node, so client IDs are made global between nodes: the
+ * node's ID is put above the lower {@link #NODE_ID_SHIFT} bits of the connection ID.
+ */
+final class Federation implements Closeable {
+  /** The maximum ID of a node (node IDs start at 1). */
+  static final int MAX_NODE_ID = 2047;
+
+  /** The bits of a global client ID taken by the client's connection ID. */
+  private static final int NODE_ID_SHIFT = 20;
+
+  private static final int LOCAL_ID_MASK = (1 << NODE_ID_SHIFT) - 1;
+
+  /** The amount of packets received over a link between acknowledgements. */
+  private static final int ACK_INTERVAL = 64;
+
+  /** The maximum amount of packets kept for a link until they are acknowledged. */
+  private static final int MAX_UNACKED_PACKETS = 65536;
+
+  /** The timeout for connecting to another node (milliseconds). */
+  private static final int TIMEOUT = 5000;
+
+  /** The time between attempts to reconnect a link (milliseconds). */
+  private static final int RECONNECT_INTERVAL = 1000;
+
+  private static final String LOG_TAG = "Federation";
+
+  private static final String LINKS_METRIC = "dossio_node_links_connected";
+  private static final String UNACKED_METRIC = "dossio_node_unacked_packets";
+
+  private static final Counter SENT_PACKETS =
+      Metrics.counter("dossio_node_packets_sent_total", "Packets sent to other relay nodes.");
+  private static final Counter RECEIVED_PACKETS =
+      Metrics.counter(
+          "dossio_node_packets_received_total", "Packets received from other relay nodes.");
+  private static final Counter DUPLICATE_PACKETS =
+      Metrics.counter(
+          "dossio_node_packets_duplicate_total",
+          "Packets received again from another relay node (after its link reconnected).");
+  private static final Counter DROPPED_PACKETS =
+      Metrics.counter(
+          "dossio_node_packets_dropped_total",
+          "Packets dropped for an unreachable relay node (past the unacknowledged limit).");
+
+  private final int nodeId;
+  private final Function<String, Room> roomOpener;
+  private final ArrayList<Link> links = new ArrayList<>();
+
+  // Only used on the server's update thread
+  private final HashMap<Integer, Session> inboundSessions = new HashMap<>(); // By connection ID
+  private final HashMap<Integer, Session> sessions = new HashMap<>(); // By node ID
+
+  /**
+   * Creates the links to the other nodes (they are connected by {@link #start()}).
+   *
+   * @param nodeId The ID of this node (1-{@link #MAX_NODE_ID}).
+   * @param peers The addresses of the other nodes, by their node IDs.
+   * @param roomOpener Returns the open room of a name (or opens it), null if it can't be opened.
+   * @throws IllegalArgumentException If a node ID is out of range or the same as this node's.
+   */
+  Federation(int nodeId, Map<Integer, InetSocketAddress> peers, Function<String, Room> roomOpener) {
+    checkNodeId(nodeId);
+    this.nodeId = nodeId;
+    this.roomOpener = roomOpener;
+    for (Map.Entry<Integer, InetSocketAddress> peer : peers.entrySet()) {
+      checkNodeId(peer.getKey());
+      if (peer.getKey() == nodeId) {
+        throw new IllegalArgumentException("A peer has this node's ID: " + nodeId);
+      }
+      links.add(new Link(peer.getKey(), peer.getValue()));
+    }
+
+    Metrics.gauge(
+        LINKS_METRIC,
+        "Links to other relay nodes that are connected.",
+        () -> links.stream().filter(Link::isConnected).count(),
+        "node",
+        String.valueOf(nodeId));
+    Metrics.gauge(
+        UNACKED_METRIC,
+        "Packets sent to other relay nodes that are not acknowledged yet.",
+        () -> links.stream().mapToLong(Link::getUnackedCount).sum(),
+        "node",
+        String.valueOf(nodeId));
+  }
+
+  /** Starts connecting the links to the other nodes. */
+  void start() {
+    for (Link link : links) {
+      link.start();
+    }
+  }
+
+  /**
+   * Returns the amount of other nodes that are linked.
+   *
+   * @return The amount of connected links.
+   */
+  int getLinkedNodeCount() {
+    return (int) links.stream().filter(Link::isConnected).count();
+  }
+
+  /**
+   * Handles a packet if it was received over a link from another node, a link is accepted once
+   * its hello packet is received (only on the server's update thread).
+   *
+   * @param connection The connection that the packet was received from.
+   * @param object The received packet.
+   * @return Whether the connection is a link from another node (and the packet was handled).
+   */
+  boolean receive(Connection connection, Object object) {
+    Session session = inboundSessions.get(connection.getID());
+    if (session == null) {
+      if (!(object instanceof NodeHelloPacket p)) {
+        return false;
+      }
+      accept(connection, p);
+      return true;
+    }
+
+    if (object instanceof NodePacket p) {
+      receive(connection, session, p);
+    }
+    return true;
+  }
+
+  /**
+   * Forgets a closed connection (if it was a link from another node).
+   *
+   * @param connection The closed connection.
+   */
+  void remove(Connection connection) {
+    inboundSessions.remove(connection.getID());
+  }
+
+  /**
+   * Routes a packet of a room's local client through the room's owner node.
+   *
+   * @param room The name of the room.
+   * @param originId The connection ID of the sending client (0 if the server sent it).
+   * @param packet The packet to route.
+   * @return Whether another node owns the room, the packet is then relayed locally once the owner
+   *     sequenced it (otherwise this node relays it right away).
+   */
+  boolean forward(String room, int originId, Object packet) {
+    Link owner = getOwner(room);
+    int globalOriginId = toGlobal(originId);
+    Object globalPacket = translate(packet, this::toGlobal);
+    if (owner == null) {
+      sequence(room, globalOriginId, globalPacket);
+      return false;
+    }
+    owner.send(room, globalOriginId, 0, false, globalPacket);
+    return true;
+  }
+
+  /**
+   * Sends a packet of a room's local client to every other node, without sequencing it (for
+   * packets whose order doesn't matter, like presence).
+   *
+   * @param room The name of the room.
+   * @param originId The connection ID of the sending client.
+   * @param packet The packet to send.
+   */
+  void broadcast(String room, int originId, Object packet) {
+    sequence(room, toGlobal(originId), translate(packet, this::toGlobal));
+  }
+
+  /**
+   * Sends a packet to a single client of another node.
+   *
+   * @param room The name of the room.
+   * @param originId The connection ID of the sending client.
+   * @param targetId The global ID of the receiving client.
+   * @param packet The packet to send.
+   * @return Whether the client's node is linked (the packet was sent).
+   */
+  boolean sendDirect(String room, int originId, int targetId, Object packet) {
+    int targetNodeId = targetId >>> NODE_ID_SHIFT;
+    for (Link link : links) {
+      if (link.nodeId == targetNodeId) {
+        link.send(room, toGlobal(originId), targetId, true, translate(packet, this::toGlobal));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Stops and closes the links to the other nodes, and removes the node's link metrics. */
+  @Override
+  public void close() {
+    for (Link link : links) {
+      link.close();
+    }
+    inboundSessions.clear();
+
+    Metrics.remove(LINKS_METRIC, "node", String.valueOf(nodeId));
+    Metrics.remove(UNACKED_METRIC, "node", String.valueOf(nodeId));
+  }
+
+  /**
+   * Accepts a link from another node, and tells the node the last packet received from it (so it
+   * resends only the rest after reconnecting).
+   *
+   * @param connection The connection of the link.
+   * @param packet The link's hello packet.
+   */
+  private void accept(Connection connection, NodeHelloPacket packet) {
+    Session session = sessions.get(packet.nodeId);
+    if (session == null || session.sessionId != packet.sessionId) {
+      session = new Session(packet.sessionId);
+      sessions.put(packet.nodeId, session);
+    }
+    inboundSessions.put(connection.getID(), session);
+    Log.info(LOG_TAG, "Accepted link from node " + packet.nodeId);
+
+    NodeAckPacket ackPacket = new NodeAckPacket();
+    ackPacket.sequence = session.lastSequence;
+    connection.sendTCP(ackPacket);
+  }
+
+  /**
+   * Delivers a packet received from another node to the local clients of its room. A packet that
+   * isn't sequenced yet is sent on to every other node, this node owns its room.
+   *
+   * @param connection The connection of the link.
+   * @param session The link's session.
+   * @param packet The received node packet.
+   */
+  private void receive(Connection connection, Session session, NodePacket packet) {
+    if (packet.sequence <= session.lastSequence) {
+      DUPLICATE_PACKETS.inc();
+      return;
+    }
+    session.lastSequence = packet.sequence;
+    RECEIVED_PACKETS.inc();
+    if (packet.sequence % ACK_INTERVAL == 0) {
+      NodeAckPacket ackPacket = new NodeAckPacket();
+      ackPacket.sequence = packet.sequence;
+      connection.sendTCP(ackPacket);
+    }
+
+    Room room = roomOpener.apply(packet.room);
+    if (room == null) {
+      Log.warn(LOG_TAG, "Dropped a packet of room '" + packet.room + "', it can't be opened");
+      return;
+    }
+
+    Object localPacket = translate(packet.packet, this::toLocal);
+    if (packet.targetId != 0) {
+      room.deliverDirect(toLocal(packet.targetId), localPacket);
+      return;
+    }
+    room.deliver(toLocal(packet.originId), localPacket);
+    if (!packet.isSequenced) {
+      sequence(packet.room, packet.originId, packet.packet);
+    }
+  }
+
+  /**
+   * Sends a sequenced packet to every other node.
+   *
+   * @param room The name of the room.
+   * @param globalOriginId The global ID of the sending client.
+   * @param globalPacket The packet (with global client IDs).
+   */
+  private void sequence(String room, int globalOriginId, Object globalPacket) {
+    for (Link link : links) {
+      link.send(room, globalOriginId, 0, true, globalPacket);
+    }
+  }
+
+  /**
+   * Picks the owner of a room among this node and the linked nodes, the node with the highest
+   * hash of its ID and the room's name (so a room only moves when its owner is unlinked).
+   *
+   * @param room The name of the room.
+   * @return The link to the owner node, null if this node owns the room.
+   */
+  @CheckForNull
+  private Link getOwner(String room) {
+    Link owner = null;
+    long ownerHash = hash(nodeId, room);
+    for (Link link : links) {
+      if (link.isConnected()) {
+        long linkHash = hash(link.nodeId, room);
+        if (linkHash > ownerHash) {
+          owner = link;
+          ownerHash = linkHash;
+        }
+      }
+    }
+    return owner;
+  }
+
+  private static long hash(int nodeId, String room) {
+    return Hashing.murmur3_128()
+        .newHasher()
+        .putInt(nodeId)
+        .putString(room, StandardCharsets.UTF_8)
+        .hash()
+        .asLong();
+  }
+
+  /**
+   * Makes a connection ID of this node global (global IDs and 0 are kept as is).
+   *
+   * @param id The ID to make global.
+   * @return The global ID.
+   */
+  private int toGlobal(int id) {
+    return id == 0 || id > LOCAL_ID_MASK ? id : nodeId << NODE_ID_SHIFT | id;
+  }
+
+  /**
+   * Makes a global ID of this node's client a connection ID (other IDs are kept as is).
+   *
+   * @param id The ID to make local.
+   * @return The local ID.
+   */
+  private int toLocal(int id) {
+    return id >>> NODE_ID_SHIFT == nodeId ? id & LOCAL_ID_MASK : id;
+  }
+
+  /**
+   * Maps the client IDs of a packet. A packet with client IDs is copied (packets are shared by the
+   * queues of every client), and any other packet is returned as is.
+   *
+   * @param packet The packet to map the client IDs of.
+   * @param mapping The mapping of the client IDs.
+   * @return The packet with the mapped client IDs.
+   */
+  private static Object translate(Object packet, IntUnaryOperator mapping) {
+    if (packet instanceof ClientDataPacket p) {
+      ClientDataPacket copy = new ClientDataPacket();
+      copy.username = p.username;
+      copy.id = mapping.applyAsInt(p.id);
+      return copy;
+    } else if (packet instanceof DisconnectClientPacket p) {
+      DisconnectClientPacket copy = new DisconnectClientPacket();
+      copy.id = mapping.applyAsInt(p.id);
+      return copy;
+    } else if (packet instanceof PresencePacket p) {
+      PresencePacket copy = new PresencePacket();
+      copy.id = mapping.applyAsInt(p.id);
+      copy.sequence = p.sequence;
+      copy.fileHash = p.fileHash;
+      copy.line = p.line;
+      copy.lineCount = p.lineCount;
+      copy.idleTime = p.idleTime;
+      return copy;
+    } else if (packet instanceof ResyncPacket p) {
+      ResyncPacket copy = new ResyncPacket();
+      copy.fileNames = p.fileNames;
+      copy.targetId = mapping.applyAsInt(p.targetId);
+      return copy;
+    }
+    return packet;
+  }
+
+  /**
+   * Checks that a node ID is in range.
+   *
+   * @param nodeId The node ID to check.
+   * @throws IllegalArgumentException If the node ID is out of range.
+   */
+  static void checkNodeId(int nodeId) {
+    if (nodeId < 1 || nodeId > MAX_NODE_ID) {
+      throw new IllegalArgumentException("Invalid node ID: " + nodeId);
+    }
+  }
+
+  /** The receiving state of a link from another node (kept while the node reconnects). */
+  private static final class Session {
+    private final long sessionId;
+    private long lastSequence;
+
+    private Session(long sessionId) {
+      this.sessionId = sessionId;
+    }
+  }
+
+  /**
+   * A link to another node. Its packets are sent in order by its own thread (which also
+   * reconnects it), and kept until the other node acknowledges them.
+   */
+  private final class Link {
+    private final int nodeId;
+    private final InetSocketAddress address;
+    private final long sessionId = ThreadLocalRandom.current().nextLong();
+    private final Client client = new Client(Network.BUFFER_SIZE, Network.BUFFER_SIZE);
+    private final Thread thread;
+
+    // Guarded by the link's lock
+    private final ArrayDeque<NodePacket> unsentPackets = new ArrayDeque<>();
+    private final ArrayDeque<NodePacket> sentPackets = new ArrayDeque<>(); // Not acknowledged
+    private long nextSequence = 1;
+    private long ackedSequence;
+    private boolean isClosed;
+
+    private Link(int nodeId, InetSocketAddress address) {
+      this.nodeId = nodeId;
+      this.address = address;
+      thread = new Thread(this::run, "NodeLink-" + nodeId);
+      thread.setDaemon(true);
+
+      Network.registerClasses(client.getKryo());
+      client.addListener(
+          new Listener() {
+            @Override
+            public void received(Connection connection, Object object) {
+              if (object instanceof NodeAckPacket p) {
+                ack(p.sequence);
+              }
+            }
+
+            @Override
+            public void disconnected(Connection connection) {
+              Log.warn(LOG_TAG, "Lost link to node " + nodeId);
+            }
+          });
+    }
+
+    private void start() {
+      client.start();
+      thread.start();
+    }
+
+    private boolean isConnected() {
+      return client.isConnected();
+    }
+
+    private synchronized long getUnackedCount() {
+      return unsentPackets.size() + sentPackets.size();
+    }
+
+    /**
+     * Queues a packet for the other node.
+     *
+     * @param room The name of the packet's room.
+     * @param originId The global ID of the sending client.
+     * @param targetId The global ID of the receiving client (0 for the whole room).
+     * @param isSequenced Whether the room's owner sequenced the packet.
+     * @param packet The packet to send (with global client IDs).
+     */
+    private synchronized void send(
+        String room, int originId, int targetId, boolean isSequenced, Object packet) {
+      NodePacket nodePacket = new NodePacket();
+      nodePacket.sequence = nextSequence++;
+      nodePacket.room = room;
+      nodePacket.originId = originId;
+      nodePacket.targetId = targetId;
+      nodePacket.isSequenced = isSequenced;
+      nodePacket.packet = packet;
+      unsentPackets.add(nodePacket);
+
+      // A node that is unreachable for too long misses the oldest packets
+      if (getUnackedCount() > MAX_UNACKED_PACKETS) {
+        if (!sentPackets.isEmpty()) {
+          sentPackets.removeFirst();
+        } else {
+          unsentPackets.removeFirst();
+        }
+        DROPPED_PACKETS.inc();
+      }
+      notifyAll();
+    }
+
+    /**
+     * Forgets the packets that the other node acknowledged.
+     *
+     * @param sequence The sequence number of the last received packet.
+     */
+    private synchronized void ack(long sequence) {
+      ackedSequence = Math.max(ackedSequence, sequence);
+      while (!sentPackets.isEmpty() && sentPackets.getFirst().sequence <= ackedSequence) {
+        sentPackets.removeFirst();
+      }
+      while (!unsentPackets.isEmpty() && unsentPackets.getFirst().sequence <= ackedSequence) {
+        unsentPackets.removeFirst();
+      }
+    }
+
+    /**
+     * Waits for the next unsent packet.
+     *
+     * @return The packet to send, null if the link closed or no packet was queued in time.
+     * @throws InterruptedException If the link's thread is interrupted while waiting.
+     */
+    @CheckForNull
+    private synchronized NodePacket nextPacket() throws InterruptedException {
+      if (unsentPackets.isEmpty() && !isClosed) {
+        wait(RECONNECT_INTERVAL);
+      }
+      if (unsentPackets.isEmpty() || isClosed) {
+        return null;
+      }
+      NodePacket packet = unsentPackets.removeFirst();
+      sentPackets.add(packet);
+      return packet;
+    }
+
+    /** Resends every packet that wasn't acknowledged (after reconnecting). */
+    private synchronized void resend() {
+      while (!sentPackets.isEmpty()) {
+        unsentPackets.addFirst(sentPackets.removeLast());
+      }
+    }
+
+    /** Connects the link (again) whenever it is disconnected, and sends its queued packets. */
+    private void run() {
+      while (!isClosed()) {
+        try {
+          if (!client.isConnected()) {
+            connect();
+            continue;
+          }
+
+          NodePacket packet = nextPacket();
+          if (packet == null) {
+            continue;
+          }
+
+          // Avoid overflowing the link's write buffer
+          while (client.getTcpWriteBufferSize() > Network.BUFFER_SIZE / 2
+              && client.isConnected()) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+          }
+          client.sendTCP(packet);
+          SENT_PACKETS.inc();
+        } catch (InterruptedException e) {
+          return;
+        } catch (RuntimeException e) {
+          Log.warn(LOG_TAG, "Failed to send a packet to node " + nodeId, e);
+        }
+      }
+    }
+
+    /**
+     * Connects the link, then sends its hello packet and queues its unacknowledged packets again.
+     *
+     * @throws InterruptedException If the link's thread is interrupted while waiting to retry.
+     */
+    private void connect() throws InterruptedException {
+      try {
+        client.connect(TIMEOUT, address.getHostString(), address.getPort());
+      } catch (IOException e) {
+        Log.debug(LOG_TAG, "Failed to link to node " + nodeId + " at " + address, e);
+        Thread.sleep(RECONNECT_INTERVAL);
+        return;
+      }
+
+      NodeHelloPacket helloPacket = new NodeHelloPacket();
+      helloPacket.nodeId = Federation.this.nodeId;
+      helloPacket.sessionId = sessionId;
+      client.sendTCP(helloPacket);
+      resend();
+      Log.info(LOG_TAG, "Linked to node " + nodeId + " at " + address);
+    }
+
+    private synchronized boolean isClosed() {
+      return isClosed;
+    }
+
+    private void close() {
+      synchronized (this) {
+        isClosed = true;
+        notifyAll();
+      }
+      thread.interrupt();
+      client.stop();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.EditJournal.Record;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Materializes the edit journal into an {@link EditSnapshot} in the background, and compacts the
+ * journal's older segments into the snapshot. The journal's disk usage and a late joiner's catch
+ * up are then bounded by the size of the project, instead of the length of the session.
+ *
+ * <p>The snapshot follows the committed records of the journal (so a crash never loses records
+ * that the snapshot includes). It is saved whenever it moved a segment past its last save, and the
+ * segments it covers are deleted (except for the journal's tail).
+ *
+ * <p>Catch ups are run on the compactor's thread as well, which is the only thread that uses the
+ * snapshot.
+ */
+final class JournalCompactor implements Closeable {
+  /** The time between materializations of the committed records (milliseconds). */
+  static final int COMPACT_INTERVAL = 1000;
+
+  private static final String LOG_TAG = "JournalCompactor";
+
+  private static final String SNAPSHOT_FILE = "journal.snapshot";
+
+  private static final Counter SNAPSHOT_SAVES =
+      Metrics.counter("dossio_server_snapshot_saves_total", "Snapshots of the journal saved.");
+  private static final Histogram SNAPSHOT_SAVE_SECONDS =
+      Metrics.histogram(
+          "dossio_server_snapshot_save_seconds",
+          "Time spent saving snapshots of the journal.",
+          Histogram.DURATION_BUCKETS);
+  private static final Counter COMPACTED_SEGMENTS =
+      Metrics.counter(
+          "dossio_server_journal_compacted_segments_total",
+          "Journal segments deleted after being compacted into a snapshot.");
+
+  private final EditJournal journal;
+  private final Path snapshotPath;
+  private final EditSnapshot snapshot;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "JournalCompactor");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private long savedOffset;
+
+  private JournalCompactor(EditJournal journal, Path snapshotPath, EditSnapshot snapshot) {
+    this.journal = journal;
+    this.snapshotPath = snapshotPath;
+    this.snapshot = snapshot;
+    this.savedOffset = snapshot.getOffset();
+  }
+
+  /**
+   * Loads the journal's snapshot (or starts an empty one) and starts compacting the journal.
+   *
+   * @param journal The journal to compact.
+   * @param directory The directory of the journal, the snapshot is saved in it.
+   * @return The started compactor.
+   */
+  static JournalCompactor start(EditJournal journal, Path directory) {
+    Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+    EditSnapshot snapshot = null;
+    try {
+      snapshot = EditSnapshot.load(snapshotPath, journal.getId());
+    } catch (IOException e) {
+      Log.warn(LOG_TAG, "Failed to load the journal's snapshot, starting a new one", e);
+    }
+    if (snapshot == null) {
+      snapshot = new EditSnapshot(journal.getStartOffset());
+    }
+
+    JournalCompactor compactor = new JournalCompactor(journal, snapshotPath, snapshot);
+    compactor.executor.scheduleWithFixedDelay(
+        compactor::compact, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+    return compactor;
+  }
+
+  EditJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Runs a task on the compactor's thread, after the tasks before it (nothing runs once closed).
+   *
+   * @param task The task to run, it may use {@link #materialize()}.
+   */
+  void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      Log.debug(LOG_TAG, "Dropped a task of the closed compactor");
+    }
+  }
+
+  /**
+   * Applies the committed records after the snapshot to it (only on the compactor's thread).
+   *
+   * @return The snapshot, materialized up to the journal's committed offset.
+   */
+  EditSnapshot materialize() {
+    long offset = snapshot.getOffset();
+    long committedOffset = journal.getCommittedOffset();
+    if (offset < committedOffset && !journal.isReadable(offset)) {
+      Log.warn(
+          LOG_TAG,
+          "Journal records were deleted before being compacted, the snapshot may be stale");
+      offset = journal.getStartOffset();
+    }
+
+    long openOffset = journal.getOpenOffset();
+    Record record;
+    while ((record = journal.read(offset)) != null && record.endOffset <= committedOffset) {
+      // The clients of the previous server run left without journaling it
+      if (offset < openOffset && record.offset >= openOffset) {
+        snapshot.clearSequences();
+      }
+      try {
+        snapshot.apply(record.originId, record.offset, PacketCodec.decode(record.packet));
+      } catch (RuntimeException e) {
+        Log.warn(LOG_TAG, "Failed to apply journal record at " + record.offset, e);
+      }
+      offset = record.endOffset;
+    }
+    snapshot.setOffset(offset);
+    return snapshot;
+  }
+
+  /** Stops compacting the journal, and saves the snapshot (the journal isn't closed). */
+  @Override
+  public void close() {
+    executor.shutdown();
+    boolean isTerminated = false;
+    try {
+      isTerminated = executor.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (isTerminated && snapshot.isSettled() && snapshot.getOffset() > savedOffset) {
+      save();
+    }
+  }
+
+  /**
+   * Materializes the committed records, then saves the snapshot and deletes the segments it covers
+   * once it moved a segment past its last save.
+   */
+  private void compact() {
+    materialize();
+    if (snapshot.isSettled() && snapshot.getOffset() - savedOffset >= EditJournal.SEGMENT_SIZE) {
+      if (save()) {
+        COMPACTED_SEGMENTS.add(journal.compact(savedOffset));
+      }
+    }
+  }
+
+  /**
+   * Saves the snapshot.
+   *
+   * @return Whether the snapshot was saved.
+   */
+  private boolean save() {
+    long startTime = System.nanoTime();
+    try {
+      snapshot.save(snapshotPath, journal.getId());
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to save the journal's snapshot!", e);
+      return false;
+    }
+    savedOffset = snapshot.getOffset();
+    SNAPSHOT_SAVES.inc();
+    SNAPSHOT_SAVE_SECONDS.observeSince(startTime);
+    Log.debug(
+        LOG_TAG, "Saved snapshot of " + snapshot.size() + " files at offset " + savedOffset);
+    return true;
+  }
+}
@@ -2,19 +2,63 @@ package com.rivelbop.dossio.networking;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.io.EditBatchSerializer;
 import com.rivelbop.dossio.io.EditSerializer;
 import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
 import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
 import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
 import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.DirectPacket;
 import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
 import com.rivelbop.dossio.networking.Packet.EditPacket;
 import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkAckPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import com.rivelbop.dossio.networking.Packet.JoinedPacket;
+import com.rivelbop.dossio.networking.Packet.JournalPacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.NodeAckPacket;
+import com.rivelbop.dossio.networking.Packet.NodeHelloPacket;
+import com.rivelbop.dossio.networking.Packet.NodePacket;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import com.rivelbop.dossio.networking.Packet.ProbePacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import com.rivelbop.dossio.networking.Packet.SubscribePacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import com.rivelbop.dossio.networking.PacketSerializers.BeginEditSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.CatchUpSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.ChangesetSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.ClientDataSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.CreateFileSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.CreateTreeSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.DeleteFileSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.DirectSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.DisconnectClientSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.EndEditSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.FileChunkAckSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.FileChunkResumeSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.FileChunkSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.JoinedSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.JournalSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.MoveFileSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.NodeAckSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.NodeHelloSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.NodeSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.ProbeSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.ResyncSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.SubscribeSerializer;
+import com.rivelbop.dossio.networking.PacketSerializers.TraceSerializer;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
-import org.eclipse.jgit.diff.Edit;
+import java.util.zip.CRC32C;
 
 /** Stores and maintains both {@link ServerHandler} and {@link ClientHandler}. */
 public final class Network {
@@ -30,6 +74,15 @@ public final class Network {
   /** The default port number (sets if no value provided or value is out of range). */
   public static final int DEFAULT_PORT = 54555;
 
+  /** The name of the default room (joined if no room is provided). */
+  public static final String DEFAULT_ROOM = "";
+
+  /** The maximum length of a room's name. */
+  public static final int MAX_ROOM_NAME_LENGTH = 64;
+
+  /** The byte size of a single chunk of a chunked file transfer. */
+  public static final int CHUNK_SIZE = BUFFER_SIZE / 8;
+
   private static final String LOG_TAG = "Network";
 
   static {
@@ -50,6 +103,18 @@ public final class Network {
     registerClasses(clientHandler.getKryo());
   }
 
+  /**
+   * Calculates the checksum of a file transfer's chunk data.
+   *
+   * @param data The chunk data to calculate the checksum of.
+   * @return The CRC32C checksum of the data.
+   */
+  public static int checksum(byte[] data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
   /**
    * Checks the IP address to make sure it is valid (currently just checks if it is blank).
    *
@@ -65,6 +130,18 @@ public final class Network {
     return ipAddress;
   }
 
+  /**
+   * Checks the room name to make sure it is valid (currently just trims it).
+   *
+   * <p>NOTE: If the room name is blank, the {@link #DEFAULT_ROOM} will be returned.
+   *
+   * @param room The room name to check and validate.
+   * @return The validated room name.
+   */
+  public static String validateRoom(String room) {
+    return room.strip();
+  }
+
   /**
    * Checks the port to make sure it is valid.
    *
@@ -173,20 +250,56 @@ public final class Network {
     return clientHandler;
   }
 
-  private void registerClasses(Kryo kryo) {
+  /**
+   * Registers the shared packet classes (and their serializers) to a Kryo instance.
+   *
+   * <p>Registration IDs are part of the wire format (every packet starts with its ID as a single
+   * byte), so a packet keeps its ID forever and new packets take a free ID in their group. IDs
+   * below 20 are taken by Kryo's default registrations and Kryonet's framework messages, and IDs
+   * above 125 would take a second byte.
+   *
+   * @param kryo The Kryo instance to register the packet classes to.
+   */
+  public static void registerClasses(Kryo kryo) {
     // Client packets
-    kryo.register(ClientDataPacket.class);
-    kryo.register(DisconnectClientPacket.class);
+    kryo.register(ClientDataPacket.class, new ClientDataSerializer(), 20);
+    kryo.register(DisconnectClientPacket.class, new DisconnectClientSerializer(), 21);
+    kryo.register(ProbePacket.class, new ProbeSerializer(), 22);
+    kryo.register(PresencePacket.class, new PresenceSerializer(), 23);
+    kryo.register(SubscribePacket.class, new SubscribeSerializer(), 24);
 
     // File packets
-    kryo.register(CreateFilePacket.class);
-    kryo.register(DeleteFilePacket.class);
+    kryo.register(CreateFilePacket.class, new CreateFileSerializer(), 30);
+    kryo.register(DeleteFilePacket.class, new DeleteFileSerializer(), 31);
+    kryo.register(MoveFilePacket.class, new MoveFileSerializer(), 32);
+    kryo.register(CreateTreePacket.class, new CreateTreeSerializer(), 33);
 
     // Edit packets
-    kryo.register(BeginEditPacket.class);
-    kryo.register(Edit.Type.class);
-    kryo.register(String[].class);
-    kryo.register(EditPacket.class, new EditSerializer());
-    kryo.register(EndEditPacket.class);
+    kryo.register(BeginEditPacket.class, new BeginEditSerializer(), 40);
+    kryo.register(EditPacket.class, new EditSerializer(), 41);
+    kryo.register(EndEditPacket.class, new EndEditSerializer(), 42);
+    kryo.register(EditBatchPacket.class, new EditBatchSerializer(), 43);
+    kryo.register(ChangesetPacket.class, new ChangesetSerializer(), 44);
+    kryo.register(Trace.class, new TraceSerializer(), 45);
+
+    // Transfer packets
+    kryo.register(FileChunkPacket.class, new FileChunkSerializer(), 50);
+    kryo.register(FileChunkAckPacket.class, new FileChunkAckSerializer(), 51);
+    kryo.register(FileChunkResumePacket.class, new FileChunkResumeSerializer(), 52);
+
+    // Relay packets
+    kryo.register(RelayPacket.class, new RelaySerializer(), 60);
+    kryo.register(DirectPacket.class, new DirectSerializer(), 61);
+    kryo.register(ResyncPacket.class, new ResyncSerializer(), 62);
+
+    // Journal packets
+    kryo.register(JournalPacket.class, new JournalSerializer(), 70);
+    kryo.register(CatchUpPacket.class, new CatchUpSerializer(), 71);
+    kryo.register(JoinedPacket.class, new JoinedSerializer(), 72);
+
+    // Node packets (between the relay nodes of a mesh)
+    kryo.register(NodeHelloPacket.class, new NodeHelloSerializer(), 80);
+    kryo.register(NodePacket.class, new NodeSerializer(), 81);
+    kryo.register(NodeAckPacket.class, new NodeAckSerializer(), 82);
   }
 }
@@ -0,0 +1,627 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.CheckForNull;
+
+/**
+ * Schedules outbound TCP packets through separate lanes, so that small interactive packets are not
+ * stuck behind bulk transfers in the Kryonet write buffer.
+ *
+ * <p>Control packets are always sent first. Interactive and bulk packets share the remaining
+ * bandwidth through a deficit round-robin, where interactive packets get a larger byte quantum.
+ * Packets are only written once the write buffer has room for them, so a full buffer delays
+ * packets instead of failing to send them. The sender thread waiting for room is woken up by
+ * {@link #onIdle()}, which the client calls once the write buffer drained below {@link
+ * #WRITE_BUFFER_LIMIT}. While the connection is lost, the packets stay queued until it is
+ * reconnected (see {@link #setConnected(boolean)}).
+ *
+ * <p>Packets of the same file keep their order in every lane: a packet is only sent once the
+ * earlier queued packets of its files are sent. Packets that create, delete, or move a file or
+ * directory are barriers for their paths, they also keep their order with the packets of every file
+ * in the directory (or the directory containing the file). While a file has packets in the bulk
+ * lane, its interactive packets are also queued in the bulk lane, so they don't hold back the
+ * packets of other files in the interactive lane. The queued packets and barriers are indexed by
+ * the directories containing their files, so checking whether a packet waits for another one
+ * only looks at its own path.
+ */
+public final class OutboundScheduler {
+  /** The write buffer byte size that queued packets wait under before being sent. */
+  private static final int WRITE_BUFFER_LIMIT = Network.BUFFER_SIZE / 2;
+
+  /** The bytes the interactive lane can send per round (when both lanes have packets). */
+  private static final int INTERACTIVE_QUANTUM = Network.BUFFER_SIZE / 2;
+
+  /** The bytes the bulk lane can send per round (when both lanes have packets). */
+  private static final int BULK_QUANTUM = Network.BUFFER_SIZE / 8;
+
+  private static final Comparator<QueuedPacket> QUEUED_ORDER =
+      Comparator.comparingLong(queuedPacket -> queuedPacket.sequence);
+
+  private static final ClassValue<Counter> SENT_PACKETS =
+      Metrics.counterPerType("dossio_packets_sent_total", "Packets sent to the server.");
+  private static final ClassValue<Counter> SENT_BYTES =
+      Metrics.counterPerType("dossio_bytes_sent_total", "Serialized bytes sent to the server.");
+
+  private final Connection connection;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final EnumMap<Lane, ArrayDeque<QueuedPacket>> queues = new EnumMap<>(Lane.class);
+  private final HashMap<String, Integer> bulkFileCounts = new HashMap<>();
+  private final HashMap<String, ArrayDeque<QueuedPacket>> filePackets = new HashMap<>();
+
+  // The queued packets of the files in a directory, and the barriers of (or in) a path
+  private final HashMap<String, TreeSet<QueuedPacket>> directoryPackets = new HashMap<>();
+  private final HashMap<String, TreeSet<QueuedPacket>> pathBarriers = new HashMap<>();
+  private final HashMap<String, TreeSet<QueuedPacket>> directoryBarriers = new HashMap<>();
+
+  private long nextSequence;
+  private volatile boolean isConnected;
+  private volatile boolean isAwaitingRoom;
+
+  private int interactiveDeficit;
+  private int bulkDeficit;
+
+  @CheckForNull private Thread senderThread;
+
+  /**
+   * Creates an outbound scheduler for a connection.
+   *
+   * @param connection The connection to send the scheduled packets through.
+   */
+  public OutboundScheduler(Connection connection) {
+    this.connection = connection;
+    for (Lane lane : Lane.values()) {
+      queues.put(lane, new ArrayDeque<>());
+    }
+    connection.setIdleThreshold((float) WRITE_BUFFER_LIMIT / Network.BUFFER_SIZE);
+  }
+
+  /** Starts the sender thread (if it isn't already running). */
+  public void start() {
+    lock.lock();
+    try {
+      if (senderThread != null) {
+        return;
+      }
+      senderThread = new Thread(this::run, "OutboundScheduler");
+      senderThread.setDaemon(true);
+      senderThread.start();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Stops the sender thread and drops all queued packets. */
+  public void stop() {
+    lock.lock();
+    try {
+      clear();
+      isConnected = false;
+      if (senderThread != null) {
+        senderThread.interrupt();
+        senderThread = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets whether the connection is ready to send packets, the queued packets wait while it isn't
+   * (the client is disconnected, or hasn't queued its reconnection packets yet).
+   *
+   * @param connected Whether the connection is ready.
+   */
+  public void setConnected(boolean connected) {
+    lock.lock();
+    try {
+      isConnected = connected;
+      notEmpty.signal();
+      if (senderThread != null) {
+        LockSupport.unpark(senderThread); // It may be waiting for room in the lost connection
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up the sender thread if it is waiting for room in the write buffer, this is called by the
+   * client's update thread while the connection is idle.
+   */
+  public void onIdle() {
+    if (isAwaitingRoom) {
+      lock.lock();
+      try {
+        if (senderThread != null) {
+          LockSupport.unpark(senderThread);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** Drops all queued packets. */
+  public void clear() {
+    lock.lock();
+    try {
+      for (ArrayDeque<QueuedPacket> queue : queues.values()) {
+        queue.clear();
+      }
+      bulkFileCounts.clear();
+      filePackets.clear();
+      directoryPackets.clear();
+      pathBarriers.clear();
+      directoryBarriers.clear();
+      interactiveDeficit = bulkDeficit = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops the queued packets of a lane, for example the control packets of a lost connection
+   * (they are only meaningful to the connection they were queued for).
+   *
+   * @param lane The lane to drop the packets of.
+   */
+  public void clear(Lane lane) {
+    lock.lock();
+    try {
+      ArrayDeque<QueuedPacket> queue = queues.get(lane);
+      for (QueuedPacket queuedPacket : queue) {
+        for (String fileName : queuedPacket.fileNames) {
+          ArrayDeque<QueuedPacket> packets = filePackets.get(fileName);
+          packets.removeIf(p -> p == queuedPacket);
+          if (packets.isEmpty()) {
+            filePackets.remove(fileName);
+          }
+          if (lane == Lane.BULK) {
+            bulkFileCounts.computeIfPresent(
+                fileName, (name, count) -> count > 1 ? count - 1 : null);
+          }
+        }
+        unindex(queuedPacket);
+      }
+      queue.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues a packet to be sent.
+   *
+   * @param packet The packet to send.
+   * @param lane The lane to queue the packet in.
+   * @param fileName The name of the file the packet belongs to (null if it isn't file related).
+   * @param byteSize The estimated serialized byte size of the packet.
+   * @param type The type of the packet before it was wrapped (for relay/direct packets), this is
+   *     used to label the packet's metrics.
+   */
+  public void enqueue(
+      Object packet, Lane lane, @CheckForNull String fileName, int byteSize, Class<?> type) {
+    String[] fileNames = fileName != null ? new String[] {fileName} : new String[0];
+    enqueue(packet, lane, fileNames, false, byteSize, type);
+  }
+
+  /**
+   * Queues a packet to be sent.
+   *
+   * @param packet The packet to send.
+   * @param lane The lane to queue the packet in.
+   * @param fileNames The names of the files the packet belongs to (empty if it isn't file related).
+   * @param barrier Whether the packet creates, deletes, or moves its files (or directories), it
+   *     then keeps its order with the packets of every file in or containing them.
+   * @param byteSize The estimated serialized byte size of the packet.
+   * @param type The type of the packet before it was wrapped (for relay/direct packets), this is
+   *     used to label the packet's metrics.
+   */
+  public void enqueue(
+      Object packet, Lane lane, String[] fileNames, boolean barrier, int byteSize, Class<?> type) {
+    if (fileNames.length > 1) {
+      fileNames = Arrays.stream(fileNames).distinct().toArray(String[]::new);
+    }
+
+    lock.lock();
+    try {
+      // Keep the order of the file's packets that are already queued in the bulk lane
+      if (lane == Lane.INTERACTIVE) {
+        for (String fileName : fileNames) {
+          if (bulkFileCounts.containsKey(fileName)) {
+            lane = Lane.BULK;
+            break;
+          }
+        }
+      }
+      if (lane == Lane.BULK) {
+        for (String fileName : fileNames) {
+          bulkFileCounts.merge(fileName, 1, Integer::sum);
+        }
+      }
+
+      QueuedPacket queuedPacket =
+          new QueuedPacket(packet, lane, fileNames, barrier, nextSequence++, byteSize, type);
+      for (String fileName : fileNames) {
+        filePackets.computeIfAbsent(fileName, f -> new ArrayDeque<>()).add(queuedPacket);
+      }
+      index(queuedPacket);
+      queues.get(lane).add(queuedPacket);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Checks if a file has packets queued in the bulk lane.
+   *
+   * @param fileName The name of the file.
+   * @return Whether the file has queued bulk packets.
+   */
+  public boolean hasQueuedBulk(String fileName) {
+    lock.lock();
+    try {
+      return bulkFileCounts.containsKey(fileName);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the amount of packets queued in a lane.
+   *
+   * @param lane The lane to count the packets of.
+   * @return The amount of queued packets.
+   */
+  public int getQueueSize(Lane lane) {
+    lock.lock();
+    try {
+      return queues.get(lane).size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Takes the next packet and sends it once the write buffer has room for it. */
+  private void run() {
+    Thread currentThread = Thread.currentThread();
+    while (!currentThread.isInterrupted()) {
+      QueuedPacket queuedPacket;
+      lock.lock();
+      try {
+        while (!isConnected || !connection.isConnected() || (queuedPacket = poll()) == null) {
+          notEmpty.await();
+        }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+
+      // Wait for the write buffer to drain enough to hold the packet
+      while (isConnected && !hasRoom(queuedPacket.byteSize)) {
+        isAwaitingRoom = true;
+        if (isConnected && !hasRoom(queuedPacket.byteSize)) {
+          LockSupport.park(this);
+        }
+        isAwaitingRoom = false;
+        if (currentThread.isInterrupted()) {
+          return;
+        }
+      }
+      Trace trace = Tracer.getTrace(queuedPacket.packet);
+      if (trace != null) {
+        trace.sendTime = Tracer.now();
+      }
+      int sentBytes = isConnected ? connection.sendTCP(queuedPacket.packet) : 0;
+      if (sentBytes == 0) {
+        requeue(queuedPacket); // The connection was lost, the packet is sent once it reconnects
+        continue;
+      }
+      SENT_PACKETS.get(queuedPacket.type).inc();
+      SENT_BYTES.get(queuedPacket.type).add(sentBytes);
+    }
+  }
+
+  /**
+   * Checks if the connection's write buffer has room for a packet.
+   *
+   * @param packetByteSize The estimated byte size of the packet.
+   * @return Whether the packet can be sent without waiting.
+   */
+  private boolean hasRoom(int packetByteSize) {
+    int bufferSize = connection.getTcpWriteBufferSize();
+    return !connection.isConnected()
+        || bufferSize <= 0
+        || bufferSize + packetByteSize <= WRITE_BUFFER_LIMIT;
+  }
+
+  /**
+   * Puts a packet that failed to send back in front of the queued packets of its lane and files.
+   *
+   * @param queuedPacket The packet to queue again.
+   */
+  private void requeue(QueuedPacket queuedPacket) {
+    lock.lock();
+    try {
+      if (senderThread != Thread.currentThread() || queuedPacket.lane == Lane.CONTROL) {
+        return; // Stopped while sending, or only meant for the lost connection
+      }
+      queues.get(queuedPacket.lane).addFirst(queuedPacket);
+      for (String fileName : queuedPacket.fileNames) {
+        filePackets.computeIfAbsent(fileName, f -> new ArrayDeque<>()).addFirst(queuedPacket);
+        if (queuedPacket.lane == Lane.BULK) {
+          bulkFileCounts.merge(fileName, 1, Integer::sum);
+        }
+      }
+      index(queuedPacket);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the next packet to send from the lanes.
+   *
+   * <p>NOTE: The caller must hold the lock.
+   *
+   * @return The next packet to send, null if all lanes are empty.
+   */
+  @CheckForNull
+  private QueuedPacket poll() {
+    QueuedPacket control = peekSendable(queues.get(Lane.CONTROL));
+    if (control != null) {
+      return remove(Lane.CONTROL, control);
+    }
+
+    // The oldest queued packet can always be sent, so one of the lanes has a sendable packet
+    QueuedPacket interactive = peekSendable(queues.get(Lane.INTERACTIVE));
+    QueuedPacket bulk = peekSendable(queues.get(Lane.BULK));
+    if (interactive == null && bulk == null) {
+      interactiveDeficit = bulkDeficit = 0;
+      return null;
+    } else if (bulk == null) {
+      return remove(Lane.INTERACTIVE, interactive);
+    } else if (interactive == null) {
+      return remove(Lane.BULK, bulk);
+    }
+
+    // Both lanes have packets, share the bandwidth with a deficit round-robin
+    while (true) {
+      if (interactive.byteSize <= interactiveDeficit) {
+        interactiveDeficit -= interactive.byteSize;
+        return remove(Lane.INTERACTIVE, interactive);
+      }
+      if (bulk.byteSize <= bulkDeficit) {
+        bulkDeficit -= bulk.byteSize;
+        return remove(Lane.BULK, bulk);
+      }
+      interactiveDeficit += INTERACTIVE_QUANTUM;
+      bulkDeficit += BULK_QUANTUM;
+    }
+  }
+
+  /**
+   * Finds the first packet of a lane that can be sent, the packets that wait for earlier packets
+   * of their files (in other lanes) are skipped.
+   *
+   * <p>NOTE: The caller must hold the lock.
+   *
+   * @param queue The queue of the lane.
+   * @return The first sendable packet of the lane, null if it has none.
+   */
+  @CheckForNull
+  private QueuedPacket peekSendable(ArrayDeque<QueuedPacket> queue) {
+    for (QueuedPacket queuedPacket : queue) {
+      if (isSendable(queuedPacket)) {
+        return queuedPacket;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks if a packet can be sent, it can't while an earlier queued packet belongs to the same
+   * file, or while an earlier barrier packet (or a packet that the packet is a barrier for) belongs
+   * to a file in or containing one of its files. Only the indexes of the packet's paths are looked
+   * at, so the check doesn't grow with the amount of queued packets.
+   *
+   * <p>NOTE: The caller must hold the lock.
+   *
+   * @param queuedPacket The packet to check.
+   * @return Whether the packet can be sent.
+   */
+  private boolean isSendable(QueuedPacket queuedPacket) {
+    for (String fileName : queuedPacket.fileNames) {
+      if (filePackets.get(fileName).peek() != queuedPacket) {
+        return false;
+      }
+    }
+
+    for (String fileName : queuedPacket.fileNames) {
+      // Earlier barriers of the file, of a directory containing it, or of a file in it
+      if (hasEarlier(pathBarriers.get(fileName), queuedPacket)
+          || hasEarlier(directoryBarriers.get(fileName), queuedPacket)) {
+        return false;
+      }
+      for (String directory : getDirectories(fileName)) {
+        if (hasEarlier(pathBarriers.get(directory), queuedPacket)) {
+          return false;
+        }
+      }
+
+      // A barrier also waits for the earlier packets of a directory containing it or a file in it
+      if (queuedPacket.barrier) {
+        if (hasEarlier(directoryPackets.get(fileName), queuedPacket)) {
+          return false;
+        }
+        for (String directory : getDirectories(fileName)) {
+          ArrayDeque<QueuedPacket> packets = filePackets.get(directory);
+          if (packets != null && packets.peek().sequence < queuedPacket.sequence) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean hasEarlier(
+      @CheckForNull TreeSet<QueuedPacket> packets, QueuedPacket queuedPacket) {
+    return packets != null && packets.first().sequence < queuedPacket.sequence;
+  }
+
+  /**
+   * Adds a queued packet to the indexes of its files' directories (and of its paths if it is a
+   * barrier).
+   *
+   * <p>NOTE: The caller must hold the lock.
+   *
+   * @param queuedPacket The packet to index.
+   */
+  private void index(QueuedPacket queuedPacket) {
+    for (String fileName : queuedPacket.fileNames) {
+      if (queuedPacket.barrier) {
+        pathBarriers.computeIfAbsent(fileName, f -> new TreeSet<>(QUEUED_ORDER)).add(queuedPacket);
+      }
+      for (String directory : getDirectories(fileName)) {
+        directoryPackets
+            .computeIfAbsent(directory, d -> new TreeSet<>(QUEUED_ORDER))
+            .add(queuedPacket);
+        if (queuedPacket.barrier) {
+          directoryBarriers
+              .computeIfAbsent(directory, d -> new TreeSet<>(QUEUED_ORDER))
+              .add(queuedPacket);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes a packet from the indexes it was added to by {@link #index(QueuedPacket)}.
+   *
+   * <p>NOTE: The caller must hold the lock.
+   *
+   * @param queuedPacket The packet to remove.
+   */
+  private void unindex(QueuedPacket queuedPacket) {
+    for (String fileName : queuedPacket.fileNames) {
+      if (queuedPacket.barrier) {
+        unindex(pathBarriers, fileName, queuedPacket);
+      }
+      for (String directory : getDirectories(fileName)) {
+        unindex(directoryPackets, directory, queuedPacket);
+        if (queuedPacket.barrier) {
+          unindex(directoryBarriers, directory, queuedPacket);
+        }
+      }
+    }
+  }
+
+  private static void unindex(
+      HashMap<String, TreeSet<QueuedPacket>> index, String path, QueuedPacket queuedPacket) {
+    TreeSet<QueuedPacket> packets = index.get(path);
+    if (packets != null && packets.remove(queuedPacket) && packets.isEmpty()) {
+      index.remove(path);
+    }
+  }
+
+  /**
+   * Returns the directories containing a file, from the outermost one.
+   *
+   * @param fileName The name of the file.
+   * @return The names of the directories containing the file.
+   */
+  private static ArrayList<String> getDirectories(String fileName) {
+    ArrayList<String> directories = new ArrayList<>();
+    for (int i = fileName.indexOf('/'); i > 0; i = fileName.indexOf('/', i + 1)) {
+      directories.add(fileName.substring(0, i));
+    }
+    return directories;
+  }
+
+  /**
+   * Removes a sendable packet from its lane and from the queued packets of its files.
+   *
+   * <p>NOTE: The caller must hold the lock.
+   *
+   * @param lane The lane of the packet.
+   * @param queuedPacket The packet to remove.
+   * @return The removed packet.
+   */
+  private QueuedPacket remove(Lane lane, QueuedPacket queuedPacket) {
+    Iterator<QueuedPacket> iterator = queues.get(lane).iterator();
+    while (iterator.next() != queuedPacket) {
+      // Skip to the packet (usually the first of the lane)
+    }
+    iterator.remove();
+
+    for (String fileName : queuedPacket.fileNames) {
+      ArrayDeque<QueuedPacket> packets = filePackets.get(fileName);
+      packets.poll(); // Sendable packets are the first of their files
+      if (packets.isEmpty()) {
+        filePackets.remove(fileName);
+      }
+      if (lane == Lane.BULK) {
+        bulkFileCounts.computeIfPresent(fileName, (name, count) -> count > 1 ? count - 1 : null);
+      }
+    }
+    unindex(queuedPacket);
+    return queuedPacket;
+  }
+
+  /** The lanes that outbound packets can be queued in (in order of priority). */
+  public enum Lane {
+    /** Small packets that manage the connection and transfers (always sent first). */
+    CONTROL,
+    /** Small file changes that should be seen by other clients as soon as possible. */
+    INTERACTIVE,
+    /** Large file changes and transfers, these are interleaved with interactive packets. */
+    BULK
+  }
+
+  /** Stores a queued packet along with its scheduling data. */
+  private static final class QueuedPacket {
+    private final Object packet;
+    private final Lane lane;
+    private final String[] fileNames;
+    private final boolean barrier;
+    private final long sequence; // The order the packet was queued in
+    private final int byteSize;
+    private final Class<?> type;
+
+    private QueuedPacket(
+        Object packet,
+        Lane lane,
+        String[] fileNames,
+        boolean barrier,
+        long sequence,
+        int byteSize,
+        Class<?> type) {
+      this.packet = packet;
+      this.lane = lane;
+      this.fileNames = fileNames;
+      this.barrier = barrier;
+      this.sequence = sequence;
+      this.byteSize = byteSize;
+      this.type = type;
+    }
+  }
+}
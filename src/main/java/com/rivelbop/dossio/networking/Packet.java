@@ -1,6 +1,8 @@
 package com.rivelbop.dossio.networking;
 
+import com.rivelbop.dossio.io.ByteLine;
 import java.util.Arrays;
+import java.util.BitSet;
 import org.eclipse.jgit.diff.Edit;
 
 /** Stores all packets that will be handled through the network. */
@@ -18,18 +20,35 @@ public final class Packet {
     public int id;
   }
 
+  /**
+   * Subscribes a client to subtrees of the project, the server only relays the packets of files in
+   * (or containing) the subscribed directories to it. An empty array subscribes to the whole
+   * project.
+   */
+  public static final class SubscribePacket {
+    public String[] prefixes; // Relative directory or file names, with '/' separators
+  }
+
   /** Alerts a client of upcoming edit packets for a file. */
   public static final class BeginEditPacket {
     public String fileName;
   }
 
-  /** Stores the file edit data to send. */
+  /**
+   * Stores the file edit data to send.
+   *
+   * <p>NOTE: A line larger than a packet is split into fragments, each sent as the single line of
+   * its own edit packet (all but the last are marked as fragments). The fragments are joined back
+   * into the line when the file's edits are interpreted.
+   */
   public static final class EditPacket {
     public String fileName;
     public Edit.Type type;
-    public String[] lines;
+    public ByteLine[] lines; // Null for a deletion
     public int start;
     public int end;
+    public boolean isFragment; // The last line continues in the file's next edit packet
+    public transient BitSet fragmentedLines; // The merged lines that continue in the next line
 
     @Override
     public String toString() {
@@ -42,6 +61,65 @@ public final class Packet {
   /** Alerts a client when all edit packets are sent for a file. */
   public static final class EndEditPacket {
     public String fileName;
+    public Trace trace; // Null if the change isn't traced
+  }
+
+  /**
+   * Stores all edit packets of a file change (replaces a begin/edit/end sequence).
+   *
+   * <p>NOTE: The trace is carried by the relay packet that wraps the batch.
+   */
+  public static final class EditBatchPacket {
+    public String fileName;
+    public EditPacket[] edits;
+    public transient Trace trace;
+  }
+
+  /**
+   * Stores the edit batches of several file changes that were sent close together.
+   *
+   * <p>NOTE: The trace is carried by the relay packet that wraps the changeset.
+   */
+  public static final class ChangesetPacket {
+    public EditBatchPacket[] batches;
+    public transient Trace trace;
+  }
+
+  /**
+   * Stores the timestamps of a file change as it moves from the sender's file watcher to the
+   * receiver's file. Timestamps are in microseconds since the epoch, on the server's clock (clients
+   * correct their clocks with the offset measured by probe packets).
+   */
+  public static final class Trace {
+    public long traceId;
+    public long detectTime;
+    public long diffTime;
+    public long sendTime;
+    public long relayTime;
+    public transient long receiveTime; // Only stamped locally by the receiver
+  }
+
+  /**
+   * Measures the round trip time and clock offset between a client and the server. The client
+   * stamps its send time, and the server stamps its own time before sending the probe back.
+   */
+  public static final class ProbePacket {
+    public long clientTime;
+    public long serverTime;
+  }
+
+  /**
+   * Stores a client's presence: the file it last edited, the line region of that edit, and the
+   * time since. It is sent over UDP with a fixed size, a lost or late packet is replaced by the
+   * next one.
+   */
+  public static final class PresencePacket {
+    public int id; // Set by the server
+    public int sequence;
+    public int fileHash; // 0 if no file was edited yet
+    public int line;
+    public int lineCount;
+    public int idleTime; // Milliseconds since the last edit
   }
 
   /** Alerts clients to create a specific file. */
@@ -53,4 +131,130 @@ public final class Packet {
   public static final class DeleteFilePacket {
     public String fileName;
   }
+
+  /**
+   * Alerts clients of a created directory whose files follow as a single tree archive (a chunked
+   * transfer of the same name), the packets of the directory's files wait until it is extracted.
+   */
+  public static final class CreateTreePacket {
+    public String fileName;
+  }
+
+  /** Alerts clients to move (rename) a specific file or directory, keeping its content. */
+  public static final class MoveFilePacket {
+    public String fileName;
+    public String newFileName;
+  }
+
+  /**
+   * Stores an encoded packet that the server relays without decoding (only the header is read).
+   */
+  public static final class RelayPacket {
+    public String[] fileNames;
+    public Trace trace; // Null if the payload isn't traced
+    public byte[] payload;
+  }
+
+  /** Stores a packet that the server only relays to a single client. */
+  public static final class DirectPacket {
+    public int targetId;
+    public Object packet;
+  }
+
+  /**
+   * Alerts clients that a client's packets for specific files were dropped by the server. The
+   * target client forgets its partially received edits of the files, and the other client that
+   * receives it resends the files to the target client.
+   */
+  public static final class ResyncPacket {
+    public String[] fileNames;
+    public int targetId;
+  }
+
+  /**
+   * Tells a client the offset of the server's edit journal up to which it has received every file
+   * packet (the packets it sent itself are included, they are never sent back to it).
+   */
+  public static final class JournalPacket {
+    public long journalId;
+    public long offset;
+  }
+
+  /**
+   * Acknowledges a client's {@link CatchUpPacket} once the client joined its room, the client only
+   * sends its presence and probes from then on.
+   */
+  public static final class JoinedPacket {}
+
+  /**
+   * Joins a room of the server and asks it to replay the file packets that a reconnecting client
+   * missed, the ones after the last journal offset it received. The server sends its snapshot and
+   * the journal's tail instead if the journal ID doesn't match, or the offset is no longer kept.
+   */
+  public static final class CatchUpPacket {
+    public String room; // The name of the room to join (null for the default room)
+    public long journalId; // 0 if the client never received a journal offset
+    public long offset;
+    public int previousId; // The client's connection ID before it reconnected (0 if none)
+  }
+
+  /** Opens a link from another relay node of the mesh, it is the first packet of the link. */
+  public static final class NodeHelloPacket {
+    public int nodeId;
+    public long sessionId; // Random per link, the link's sequence numbers restart with it
+  }
+
+  /**
+   * Carries a room's packet between relay nodes. The room's owner node sequences its packets, so
+   * every node delivers them in the same order. Client IDs in the packet are global (they include
+   * the ID of the client's node).
+   */
+  public static final class NodePacket {
+    public long sequence; // The packet's position on its link
+    public String room;
+    public int originId; // The global ID of the sending client (0 if the server sent it)
+    public int targetId; // The global ID of the receiving client (0 for the whole room)
+    public boolean isSequenced; // False if the room's owner still has to sequence it
+    public Object packet;
+  }
+
+  /** Acknowledges the node packets received over a link, up to a sequence number. */
+  public static final class NodeAckPacket {
+    public long sequence;
+  }
+
+  /** Stores a checksummed slice of a file's content (part of a chunked file transfer). */
+  public static final class FileChunkPacket {
+    public String fileName;
+    public long transferId;
+    public int senderKey; // The sender's client key (kept while it reconnects)
+    public long offset;
+    public long fileSize;
+    public int checksum;
+    public byte[] data;
+
+    @Override
+    public String toString() {
+      return String.format(
+          "FileChunkPacket[%s]: Transfer[%d], Offset[%d], Length[%d], FileSize[%d]",
+          fileName, transferId, offset, data.length, fileSize);
+    }
+  }
+
+  /** Acknowledges that the server has relayed a file chunk (sent back to the chunk's sender). */
+  public static final class FileChunkAckPacket {
+    public long transferId;
+    public long offset;
+  }
+
+  /**
+   * Requests the sender of a chunked file transfer to resend chunks from a specific offset (the
+   * sender finds the transfer by its ID, or resends the file if it has already finished).
+   */
+  public static final class FileChunkResumePacket {
+    public String fileName;
+    public long transferId;
+    public int senderKey; // The client key of the transfer's sender
+    public long offset;
+  }
 }
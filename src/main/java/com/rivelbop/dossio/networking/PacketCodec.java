@@ -0,0 +1,81 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+
+/**
+ * A utility class that encodes packets into bytes (and back) with pooled Kryo instances, this is
+ * used to send packets that are relayed by the server without being decoded.
+ */
+public final class PacketCodec {
+  /** The initial byte size of a pooled output buffer (grows up to the network buffer size). */
+  private static final int OUTPUT_BUFFER_SIZE = 1024;
+
+  private static final Pool<Kryo> KRYO_POOL =
+      new Pool<>(true, false) {
+        @Override
+        protected Kryo create() {
+          Kryo kryo = new Kryo();
+          Network.registerClasses(kryo);
+          return kryo;
+        }
+      };
+
+  private static final Pool<Output> OUTPUT_POOL =
+      new Pool<>(true, false) {
+        @Override
+        protected Output create() {
+          return new Output(OUTPUT_BUFFER_SIZE, Network.BUFFER_SIZE);
+        }
+      };
+
+  private static final Pool<Input> INPUT_POOL =
+      new Pool<>(true, false) {
+        @Override
+        protected Input create() {
+          return new Input();
+        }
+      };
+
+  private PacketCodec() {}
+
+  /**
+   * Encodes a packet (along with its class) into bytes.
+   *
+   * @param packet The packet to encode.
+   * @return The encoded bytes of the packet.
+   */
+  public static byte[] encode(Object packet) {
+    Kryo kryo = KRYO_POOL.obtain();
+    Output output = OUTPUT_POOL.obtain();
+    try {
+      output.reset();
+      kryo.writeClassAndObject(output, packet);
+      return output.toBytes();
+    } finally {
+      OUTPUT_POOL.free(output);
+      KRYO_POOL.free(kryo);
+    }
+  }
+
+  /**
+   * Decodes a packet from the bytes it was encoded into.
+   *
+   * @param bytes The encoded bytes of the packet.
+   * @return The decoded packet.
+   */
+  public static Object decode(byte[] bytes) {
+    Kryo kryo = KRYO_POOL.obtain();
+    Input input = INPUT_POOL.obtain();
+    try {
+      input.setBuffer(bytes);
+      return kryo.readClassAndObject(input);
+    } finally {
+      input.setBuffer(new byte[0]); // Don't keep the packet bytes alive in the pool
+      INPUT_POOL.free(input);
+      KRYO_POOL.free(kryo);
+    }
+  }
+}
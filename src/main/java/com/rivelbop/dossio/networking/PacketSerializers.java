@@ -0,0 +1,491 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
+import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
+import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
+import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.DirectPacket;
+import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
+import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkAckPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkResumePacket;
+import com.rivelbop.dossio.networking.Packet.JoinedPacket;
+import com.rivelbop.dossio.networking.Packet.JournalPacket;
+import com.rivelbop.dossio.networking.Packet.MoveFilePacket;
+import com.rivelbop.dossio.networking.Packet.NodeAckPacket;
+import com.rivelbop.dossio.networking.Packet.NodeHelloPacket;
+import com.rivelbop.dossio.networking.Packet.NodePacket;
+import com.rivelbop.dossio.networking.Packet.ProbePacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import com.rivelbop.dossio.networking.Packet.SubscribePacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import javax.annotation.CheckForNull;
+
+/**
+ * Stores the hand-written serializers of the packets without file content (the edit, relay, and
+ * presence packets have their own serializers).
+ *
+ * <p>Counts, IDs, offsets, and times are written as variable-length ints, while random IDs and
+ * checksums (which are rarely small) are written with a fixed width. Nothing is written for the
+ * field names or types, unlike Kryo's reflective field serializer.
+ */
+public final class PacketSerializers {
+  private PacketSerializers() {}
+
+  /**
+   * Writes a string array (or null) as its length and its strings.
+   *
+   * @param output The output to write to.
+   * @param strings The strings to write (may be null).
+   */
+  public static void writeStrings(Output output, @CheckForNull String[] strings) {
+    if (strings == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(strings.length + 1, true);
+    for (String string : strings) {
+      output.writeString(string);
+    }
+  }
+
+  /**
+   * Reads a string array written by {@link #writeStrings(Output, String[])}.
+   *
+   * @param input The input to read from.
+   * @return The read strings (may be null).
+   */
+  @CheckForNull
+  public static String[] readStrings(Input input) {
+    int length = input.readInt(true) - 1;
+    if (length < 0) {
+      return null;
+    }
+    String[] strings = new String[length];
+    for (int i = 0; i < length; i++) {
+      strings[i] = input.readString();
+    }
+    return strings;
+  }
+
+  /** Serializes client data packets. */
+  public static final class ClientDataSerializer extends Serializer<ClientDataPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, ClientDataPacket packet) {
+      output.writeString(packet.username);
+      output.writeInt(packet.id, true);
+    }
+
+    @Override
+    public ClientDataPacket read(Kryo kryo, Input input, Class<? extends ClientDataPacket> type) {
+      ClientDataPacket packet = new ClientDataPacket();
+      packet.username = input.readString();
+      packet.id = input.readInt(true);
+      return packet;
+    }
+  }
+
+  /** Serializes disconnect client packets. */
+  public static final class DisconnectClientSerializer
+      extends Serializer<DisconnectClientPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, DisconnectClientPacket packet) {
+      output.writeInt(packet.id, true);
+    }
+
+    @Override
+    public DisconnectClientPacket read(
+        Kryo kryo, Input input, Class<? extends DisconnectClientPacket> type) {
+      DisconnectClientPacket packet = new DisconnectClientPacket();
+      packet.id = input.readInt(true);
+      return packet;
+    }
+  }
+
+  /** Serializes probe packets. */
+  public static final class ProbeSerializer extends Serializer<ProbePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, ProbePacket packet) {
+      output.writeLong(packet.clientTime, true);
+      output.writeLong(packet.serverTime, true);
+    }
+
+    @Override
+    public ProbePacket read(Kryo kryo, Input input, Class<? extends ProbePacket> type) {
+      ProbePacket packet = new ProbePacket();
+      packet.clientTime = input.readLong(true);
+      packet.serverTime = input.readLong(true);
+      return packet;
+    }
+  }
+
+  /** Serializes create file packets. */
+  public static final class CreateFileSerializer extends Serializer<CreateFilePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, CreateFilePacket packet) {
+      output.writeString(packet.fileName);
+    }
+
+    @Override
+    public CreateFilePacket read(Kryo kryo, Input input, Class<? extends CreateFilePacket> type) {
+      CreateFilePacket packet = new CreateFilePacket();
+      packet.fileName = input.readString();
+      return packet;
+    }
+  }
+
+  /** Serializes delete file packets. */
+  public static final class DeleteFileSerializer extends Serializer<DeleteFilePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, DeleteFilePacket packet) {
+      output.writeString(packet.fileName);
+    }
+
+    @Override
+    public DeleteFilePacket read(Kryo kryo, Input input, Class<? extends DeleteFilePacket> type) {
+      DeleteFilePacket packet = new DeleteFilePacket();
+      packet.fileName = input.readString();
+      return packet;
+    }
+  }
+
+  /** Serializes move file packets. */
+  public static final class MoveFileSerializer extends Serializer<MoveFilePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, MoveFilePacket packet) {
+      output.writeString(packet.fileName);
+      output.writeString(packet.newFileName);
+    }
+
+    @Override
+    public MoveFilePacket read(Kryo kryo, Input input, Class<? extends MoveFilePacket> type) {
+      MoveFilePacket packet = new MoveFilePacket();
+      packet.fileName = input.readString();
+      packet.newFileName = input.readString();
+      return packet;
+    }
+  }
+
+  /** Serializes create tree packets. */
+  public static final class CreateTreeSerializer extends Serializer<CreateTreePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, CreateTreePacket packet) {
+      output.writeString(packet.fileName);
+    }
+
+    @Override
+    public CreateTreePacket read(Kryo kryo, Input input, Class<? extends CreateTreePacket> type) {
+      CreateTreePacket packet = new CreateTreePacket();
+      packet.fileName = input.readString();
+      return packet;
+    }
+  }
+
+  /** Serializes begin edit packets. */
+  public static final class BeginEditSerializer extends Serializer<BeginEditPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, BeginEditPacket packet) {
+      output.writeString(packet.fileName);
+    }
+
+    @Override
+    public BeginEditPacket read(Kryo kryo, Input input, Class<? extends BeginEditPacket> type) {
+      BeginEditPacket packet = new BeginEditPacket();
+      packet.fileName = input.readString();
+      return packet;
+    }
+  }
+
+  /** Serializes end edit packets. */
+  public static final class EndEditSerializer extends Serializer<EndEditPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, EndEditPacket packet) {
+      output.writeString(packet.fileName);
+      kryo.writeObjectOrNull(output, packet.trace, Trace.class);
+    }
+
+    @Override
+    public EndEditPacket read(Kryo kryo, Input input, Class<? extends EndEditPacket> type) {
+      EndEditPacket packet = new EndEditPacket();
+      packet.fileName = input.readString();
+      packet.trace = kryo.readObjectOrNull(input, Trace.class);
+      return packet;
+    }
+  }
+
+  /** Serializes changeset packets, each batch is written without its class. */
+  public static final class ChangesetSerializer extends Serializer<ChangesetPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, ChangesetPacket packet) {
+      output.writeInt(packet.batches.length, true);
+      for (EditBatchPacket batch : packet.batches) {
+        kryo.writeObject(output, batch);
+      }
+    }
+
+    @Override
+    public ChangesetPacket read(Kryo kryo, Input input, Class<? extends ChangesetPacket> type) {
+      ChangesetPacket packet = new ChangesetPacket();
+      packet.batches = new EditBatchPacket[input.readInt(true)];
+      for (int i = 0; i < packet.batches.length; i++) {
+        packet.batches[i] = kryo.readObject(input, EditBatchPacket.class);
+      }
+      return packet;
+    }
+  }
+
+  /** Serializes traces (the receive time is only stamped locally, it isn't written). */
+  public static final class TraceSerializer extends Serializer<Trace> {
+    @Override
+    public void write(Kryo kryo, Output output, Trace trace) {
+      output.writeLong(trace.traceId);
+      output.writeLong(trace.detectTime, true);
+      output.writeLong(trace.diffTime, true);
+      output.writeLong(trace.sendTime, true);
+      output.writeLong(trace.relayTime, true);
+    }
+
+    @Override
+    public Trace read(Kryo kryo, Input input, Class<? extends Trace> type) {
+      Trace trace = new Trace();
+      trace.traceId = input.readLong();
+      trace.detectTime = input.readLong(true);
+      trace.diffTime = input.readLong(true);
+      trace.sendTime = input.readLong(true);
+      trace.relayTime = input.readLong(true);
+      return trace;
+    }
+  }
+
+  /** Serializes file chunk packets, the chunk's data is copied as raw bytes. */
+  public static final class FileChunkSerializer extends Serializer<FileChunkPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, FileChunkPacket packet) {
+      output.writeString(packet.fileName);
+      output.writeLong(packet.transferId);
+      output.writeInt(packet.senderKey);
+      output.writeLong(packet.offset, true);
+      output.writeLong(packet.fileSize, true);
+      output.writeInt(packet.checksum);
+      output.writeInt(packet.data.length, true);
+      output.writeBytes(packet.data);
+    }
+
+    @Override
+    public FileChunkPacket read(Kryo kryo, Input input, Class<? extends FileChunkPacket> type) {
+      FileChunkPacket packet = new FileChunkPacket();
+      packet.fileName = input.readString();
+      packet.transferId = input.readLong();
+      packet.senderKey = input.readInt();
+      packet.offset = input.readLong(true);
+      packet.fileSize = input.readLong(true);
+      packet.checksum = input.readInt();
+      packet.data = input.readBytes(input.readInt(true));
+      return packet;
+    }
+  }
+
+  /** Serializes file chunk acknowledgement packets. */
+  public static final class FileChunkAckSerializer extends Serializer<FileChunkAckPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, FileChunkAckPacket packet) {
+      output.writeLong(packet.transferId);
+      output.writeLong(packet.offset, true);
+    }
+
+    @Override
+    public FileChunkAckPacket read(
+        Kryo kryo, Input input, Class<? extends FileChunkAckPacket> type) {
+      FileChunkAckPacket packet = new FileChunkAckPacket();
+      packet.transferId = input.readLong();
+      packet.offset = input.readLong(true);
+      return packet;
+    }
+  }
+
+  /** Serializes file chunk resume packets. */
+  public static final class FileChunkResumeSerializer extends Serializer<FileChunkResumePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, FileChunkResumePacket packet) {
+      output.writeString(packet.fileName);
+      output.writeLong(packet.transferId);
+      output.writeInt(packet.senderKey);
+      output.writeLong(packet.offset, true);
+    }
+
+    @Override
+    public FileChunkResumePacket read(
+        Kryo kryo, Input input, Class<? extends FileChunkResumePacket> type) {
+      FileChunkResumePacket packet = new FileChunkResumePacket();
+      packet.fileName = input.readString();
+      packet.transferId = input.readLong();
+      packet.senderKey = input.readInt();
+      packet.offset = input.readLong(true);
+      return packet;
+    }
+  }
+
+  /** Serializes direct packets, the wrapped packet is written along with its class. */
+  public static final class DirectSerializer extends Serializer<DirectPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, DirectPacket packet) {
+      output.writeInt(packet.targetId, true);
+      kryo.writeClassAndObject(output, packet.packet);
+    }
+
+    @Override
+    public DirectPacket read(Kryo kryo, Input input, Class<? extends DirectPacket> type) {
+      DirectPacket packet = new DirectPacket();
+      packet.targetId = input.readInt(true);
+      packet.packet = kryo.readClassAndObject(input);
+      return packet;
+    }
+  }
+
+  /** Serializes resync packets. */
+  public static final class ResyncSerializer extends Serializer<ResyncPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, ResyncPacket packet) {
+      writeStrings(output, packet.fileNames);
+      output.writeInt(packet.targetId, true);
+    }
+
+    @Override
+    public ResyncPacket read(Kryo kryo, Input input, Class<? extends ResyncPacket> type) {
+      ResyncPacket packet = new ResyncPacket();
+      packet.fileNames = readStrings(input);
+      packet.targetId = input.readInt(true);
+      return packet;
+    }
+  }
+
+  /** Serializes subscribe packets. */
+  public static final class SubscribeSerializer extends Serializer<SubscribePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, SubscribePacket packet) {
+      writeStrings(output, packet.prefixes);
+    }
+
+    @Override
+    public SubscribePacket read(Kryo kryo, Input input, Class<? extends SubscribePacket> type) {
+      SubscribePacket packet = new SubscribePacket();
+      packet.prefixes = readStrings(input);
+      return packet;
+    }
+  }
+
+  /** Serializes journal packets (the journal ID is random, so it is written with a fixed width). */
+  public static final class JournalSerializer extends Serializer<JournalPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, JournalPacket packet) {
+      output.writeLong(packet.journalId);
+      output.writeLong(packet.offset, true);
+    }
+
+    @Override
+    public JournalPacket read(Kryo kryo, Input input, Class<? extends JournalPacket> type) {
+      JournalPacket packet = new JournalPacket();
+      packet.journalId = input.readLong();
+      packet.offset = input.readLong(true);
+      return packet;
+    }
+  }
+
+  /** Serializes joined packets (they have no fields). */
+  public static final class JoinedSerializer extends Serializer<JoinedPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, JoinedPacket packet) {}
+
+    @Override
+    public JoinedPacket read(Kryo kryo, Input input, Class<? extends JoinedPacket> type) {
+      return new JoinedPacket();
+    }
+  }
+
+  /** Serializes catch up packets (the offset is -1 if the client never received one). */
+  public static final class CatchUpSerializer extends Serializer<CatchUpPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, CatchUpPacket packet) {
+      output.writeLong(packet.journalId);
+      output.writeLong(packet.offset + 1, true);
+      output.writeInt(packet.previousId, true);
+      output.writeString(packet.room);
+    }
+
+    @Override
+    public CatchUpPacket read(Kryo kryo, Input input, Class<? extends CatchUpPacket> type) {
+      CatchUpPacket packet = new CatchUpPacket();
+      packet.journalId = input.readLong();
+      packet.offset = input.readLong(true) - 1;
+      packet.previousId = input.readInt(true);
+      packet.room = input.readString();
+      return packet;
+    }
+  }
+
+  /** Serializes node hello packets (the session ID is random). */
+  public static final class NodeHelloSerializer extends Serializer<NodeHelloPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, NodeHelloPacket packet) {
+      output.writeInt(packet.nodeId, true);
+      output.writeLong(packet.sessionId);
+    }
+
+    @Override
+    public NodeHelloPacket read(Kryo kryo, Input input, Class<? extends NodeHelloPacket> type) {
+      NodeHelloPacket packet = new NodeHelloPacket();
+      packet.nodeId = input.readInt(true);
+      packet.sessionId = input.readLong();
+      return packet;
+    }
+  }
+
+  /** Serializes node packets, the carried packet is written along with its class. */
+  public static final class NodeSerializer extends Serializer<NodePacket> {
+    @Override
+    public void write(Kryo kryo, Output output, NodePacket packet) {
+      output.writeLong(packet.sequence, true);
+      output.writeString(packet.room);
+      output.writeInt(packet.originId, true);
+      output.writeInt(packet.targetId, true);
+      output.writeBoolean(packet.isSequenced);
+      kryo.writeClassAndObject(output, packet.packet);
+    }
+
+    @Override
+    public NodePacket read(Kryo kryo, Input input, Class<? extends NodePacket> type) {
+      NodePacket packet = new NodePacket();
+      packet.sequence = input.readLong(true);
+      packet.room = input.readString();
+      packet.originId = input.readInt(true);
+      packet.targetId = input.readInt(true);
+      packet.isSequenced = input.readBoolean();
+      packet.packet = kryo.readClassAndObject(input);
+      return packet;
+    }
+  }
+
+  /** Serializes node ack packets. */
+  public static final class NodeAckSerializer extends Serializer<NodeAckPacket> {
+    @Override
+    public void write(Kryo kryo, Output output, NodeAckPacket packet) {
+      output.writeLong(packet.sequence, true);
+    }
+
+    @Override
+    public NodeAckPacket read(Kryo kryo, Input input, Class<? extends NodeAckPacket> type) {
+      NodeAckPacket packet = new NodeAckPacket();
+      packet.sequence = input.readLong(true);
+      return packet;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+
+/**
+ * Relays the presence packets of clients over UDP to the other clients of their room, outside the
+ * clients' queues, so presence never waits behind file packets.
+ *
+ * <p>Each client's presence is relayed at most once per {@link #MIN_INTERVAL}. A packet received
+ * sooner is held until the interval ends, replacing any packet already held (the latest value
+ * wins), and late packets (with an older sequence number) are dropped.
+ */
+final class PresenceRelay {
+  /** The minimum time between relayed presence packets of a client (nanoseconds). */
+  static final long MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private static final String LOG_TAG = "PresenceRelay";
+
+  private static final Counter RELAYED_PRESENCES =
+      Metrics.counter(
+          "dossio_server_presence_relayed_total", "Presence packets relayed by the server.");
+  private static final Counter DROPPED_PRESENCES =
+      Metrics.counter(
+          "dossio_server_presence_dropped_total",
+          "Presence packets replaced by a newer one (or late) before being relayed.");
+
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "PresenceRelay");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  // Guarded by the relay's lock
+  private final HashMap<Integer, Slot> slots = new HashMap<>();
+
+  /**
+   * Relays a client's presence to the other clients of its room, or holds it if the client's last
+   * presence was relayed too recently.
+   *
+   * @param id The connection ID of the client (the packet's ID is overwritten with it).
+   * @param packet The presence packet of the client.
+   * @param peers The queues of the clients in the client's room (a live view).
+   */
+  synchronized void offer(int id, PresencePacket packet, Collection<ClientQueue> peers) {
+    packet.id = id;
+    Slot slot = slots.computeIfAbsent(id, key -> new Slot());
+    slot.peers = peers;
+    if (slot.hasSequence && packet.sequence - slot.lastSequence <= 0) {
+      DROPPED_PRESENCES.inc();
+      return;
+    }
+    slot.hasSequence = true;
+    slot.lastSequence = packet.sequence;
+
+    long waitTime = slot.lastRelayTime + MIN_INTERVAL - System.nanoTime();
+    if (waitTime <= 0 && slot.heldPacket == null) {
+      relay(slot, packet);
+      return;
+    }
+
+    if (slot.heldPacket != null) {
+      DROPPED_PRESENCES.inc();
+    } else {
+      executor.schedule(() -> relayHeld(id), Math.max(waitTime, 0), TimeUnit.NANOSECONDS);
+    }
+    slot.heldPacket = packet;
+  }
+
+  /**
+   * Forgets the presence of a disconnected client.
+   *
+   * @param id The connection ID of the client.
+   */
+  synchronized void remove(int id) {
+    slots.remove(id);
+  }
+
+  /** Forgets the presence of every client (when the server stops). */
+  synchronized void clear() {
+    slots.clear();
+  }
+
+  private synchronized void relayHeld(int id) {
+    Slot slot = slots.get(id);
+    if (slot != null && slot.heldPacket != null) {
+      relay(slot, slot.heldPacket);
+      slot.heldPacket = null;
+    }
+  }
+
+  private void relay(Slot slot, PresencePacket packet) {
+    slot.lastRelayTime = System.nanoTime();
+    try {
+      for (ClientQueue peer : slot.peers) {
+        if (peer.getConnection().getID() != packet.id) {
+          peer.getConnection().sendUDP(packet);
+        }
+      }
+      RELAYED_PRESENCES.inc();
+    } catch (RuntimeException e) {
+      Log.debug(LOG_TAG, "Failed to relay presence of client " + packet.id, e);
+    }
+  }
+
+  /** The relay state of a client's presence. */
+  private static final class Slot {
+    private long lastRelayTime = System.nanoTime() - MIN_INTERVAL;
+    private boolean hasSequence;
+    private int lastSequence;
+    private Collection<ClientQueue> peers = List.of();
+    @CheckForNull private PresencePacket heldPacket;
+  }
+}
@@ -0,0 +1,35 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+
+/**
+ * Serializes presence packets as fixed-width ints, so every presence datagram has the same size
+ * (24 bytes) no matter the client, line, or idle time.
+ */
+public final class PresenceSerializer extends Serializer<PresencePacket> {
+  @Override
+  public void write(Kryo kryo, Output output, PresencePacket packet) {
+    output.writeInt(packet.id);
+    output.writeInt(packet.sequence);
+    output.writeInt(packet.fileHash);
+    output.writeInt(packet.line);
+    output.writeInt(packet.lineCount);
+    output.writeInt(packet.idleTime);
+  }
+
+  @Override
+  public PresencePacket read(Kryo kryo, Input input, Class<? extends PresencePacket> type) {
+    PresencePacket packet = new PresencePacket();
+    packet.id = input.readInt();
+    packet.sequence = input.readInt();
+    packet.fileHash = input.readInt();
+    packet.line = input.readInt();
+    packet.lineCount = input.readInt();
+    packet.idleTime = input.readInt();
+    return packet;
+  }
+}
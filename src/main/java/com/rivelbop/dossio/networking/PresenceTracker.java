@@ -0,0 +1,93 @@
+package com.rivelbop.dossio.networking;
+
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+
+/**
+ * Tracks the latest presence of each client. Presence packets are sent over UDP, so they may be
+ * lost or arrive out of order: only a packet newer than the client's last one is kept (the latest
+ * value wins).
+ *
+ * <p>Presence packets only carry the hash of the edited file's name, which is resolved from the
+ * file names of the packets received over TCP (the edits themselves).
+ */
+public final class PresenceTracker {
+  private final ConcurrentHashMap<Integer, PresencePacket> presences = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, String> fileNames = new ConcurrentHashMap<>();
+
+  /**
+   * Hashes a file name for a presence packet.
+   *
+   * @param fileName The network name of the file.
+   * @return The hash of the file name (never 0, which means no file).
+   */
+  public static int hash(String fileName) {
+    int hash = fileName.hashCode(); // Specified, so it is the same on every client
+    return hash != 0 ? hash : 1;
+  }
+
+  /**
+   * Gets the latest presence of a client.
+   *
+   * @param id The ID of the client.
+   * @return The client's latest presence packet, null if none was received.
+   */
+  @CheckForNull
+  public PresencePacket get(int id) {
+    return presences.get(id);
+  }
+
+  /**
+   * Resolves the hash of a file name in a presence packet.
+   *
+   * @param fileHash The hash of the file name.
+   * @return The file name, null if no packet of the file was received yet.
+   */
+  @CheckForNull
+  public String getFileName(int fileHash) {
+    return fileHash != 0 ? fileNames.get(fileHash) : null;
+  }
+
+  /**
+   * Keeps a received presence packet if it is newer than the client's last one.
+   *
+   * <p>NOTE: This must only be called by the client's update thread.
+   *
+   * @param packet The received presence packet.
+   * @return Whether the packet is the client's latest presence.
+   */
+  boolean update(PresencePacket packet) {
+    PresencePacket lastPacket = presences.get(packet.id);
+    if (lastPacket != null && packet.sequence - lastPacket.sequence <= 0) {
+      return false; // Late (the sequence may wrap around)
+    }
+    presences.put(packet.id, packet);
+    return true;
+  }
+
+  /**
+   * Remembers the file names of a received packet, to resolve the hashes of presence packets.
+   *
+   * @param names The file names of the received packet.
+   */
+  void learn(String[] names) {
+    for (String name : names) {
+      fileNames.put(hash(name), name);
+    }
+  }
+
+  /**
+   * Forgets the presence of a disconnected client.
+   *
+   * @param id The ID of the client.
+   */
+  void remove(int id) {
+    presences.remove(id);
+  }
+
+  /** Forgets the presence of every client (after disconnecting). */
+  void clear() {
+    presences.clear();
+  }
+}
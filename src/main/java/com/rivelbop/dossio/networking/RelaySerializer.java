@@ -0,0 +1,37 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+
+/**
+ * Serializes relay packets, the header is written as fields and the payload is copied as raw
+ * bytes (it is never decoded by the server).
+ */
+public final class RelaySerializer extends Serializer<RelayPacket> {
+  @Override
+  public void write(Kryo kryo, Output output, RelayPacket packet) {
+    output.writeInt(packet.fileNames.length, true);
+    for (String fileName : packet.fileNames) {
+      output.writeString(fileName);
+    }
+    kryo.writeObjectOrNull(output, packet.trace, Trace.class);
+    output.writeInt(packet.payload.length, true);
+    output.writeBytes(packet.payload);
+  }
+
+  @Override
+  public RelayPacket read(Kryo kryo, Input input, Class<? extends RelayPacket> type) {
+    RelayPacket packet = new RelayPacket();
+    packet.fileNames = new String[input.readInt(true)];
+    for (int i = 0; i < packet.fileNames.length; i++) {
+      packet.fileNames[i] = input.readString();
+    }
+    packet.trace = kryo.readObjectOrNull(input, Trace.class);
+    packet.payload = input.readBytes(input.readInt(true));
+    return packet;
+  }
+}
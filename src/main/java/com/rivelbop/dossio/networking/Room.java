@@ -0,0 +1,790 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.minlog.Log;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.EditJournal.Record;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
+import com.rivelbop.dossio.networking.Packet.CreateTreePacket;
+import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
+import com.rivelbop.dossio.networking.Packet.DirectPacket;
+import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkAckPacket;
+import com.rivelbop.dossio.networking.Packet.FileChunkPacket;
+import com.rivelbop.dossio.networking.Packet.JoinedPacket;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
+import com.rivelbop.dossio.networking.Packet.ProbePacket;
+import com.rivelbop.dossio.networking.Packet.ResyncPacket;
+import com.rivelbop.dossio.networking.Packet.SubscribePacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.CheckForNull;
+
+/**
+ * An isolated session of the relay server: its own clients, their queues, and its own edit
+ * journal. Packets are only relayed between the clients of the same room, so a single server
+ * hosts many projects on one port. A file packet is only relayed to the clients subscribed to its
+ * file (see {@link SubscriptionTrie}), every client is subscribed to the whole project until it
+ * sends its own subscriptions.
+ *
+ * <p>In a relay mesh, the room's packets are routed through the {@link Federation} (the room's
+ * owner node sequences them), and the packets of other nodes' clients are delivered to the room by
+ * it.
+ *
+ * <p>NOTE: Everything but the catch ups (which run on the compactor's thread) and the metrics is
+ * called from the server's update thread.
+ */
+final class Room {
+  private static final String LOG_TAG = "Room";
+
+  /** The queued byte size at which a client is considered too slow and gets resynced. */
+  private static final long RESYNC_BYTE_THRESHOLD = 64L * Network.BUFFER_SIZE;
+
+  /** The byte size of replayed packets past which a client's other missed files are resynced. */
+  private static final long MAX_CATCH_UP_BYTES = RESYNC_BYTE_THRESHOLD / 2;
+
+  /** The tree name of the project directory, a snapshot is sent as its tree. */
+  private static final String PROJECT_TREE = "";
+
+  private static final String CLIENTS_METRIC = "dossio_room_clients";
+  private static final String QUEUED_BYTES_METRIC = "dossio_room_queued_bytes";
+  private static final String ROOM_RELAYED_METRIC = "dossio_room_packets_relayed_total";
+
+  private static final ClassValue<Counter> RECEIVED_PACKETS =
+      Metrics.counterPerType(
+          "dossio_server_packets_received_total", "Packets received by the server.");
+  private static final Counter RELAYED_PACKETS =
+      Metrics.counter(
+          "dossio_server_packets_queued_total", "Packets queued for clients by the server.");
+  private static final Counter FILTERED_PACKETS =
+      Metrics.counter(
+          "dossio_server_packets_filtered_total",
+          "File packets not queued for clients that aren't subscribed to their files.");
+  private static final Counter RESYNCS =
+      Metrics.counter("dossio_server_resyncs_total", "Slow clients resynced by the server.");
+  private static final Counter QUOTA_EXCEEDED =
+      Metrics.counter(
+          "dossio_server_room_quota_exceeded_total",
+          "Times a room's queued bytes went past its quota (its slowest clients are resynced).");
+  private static final Counter CATCH_UPS =
+      Metrics.counter(
+          "dossio_server_catch_ups_total", "Reconnecting clients caught up from the journal.");
+  private static final Counter CATCH_UP_MISSES =
+      Metrics.counter(
+          "dossio_server_catch_up_misses_total",
+          "Reconnecting clients whose journal offset is no longer kept.");
+  private static final Counter SNAPSHOTS_SENT =
+      Metrics.counter("dossio_server_snapshots_sent_total", "Journal snapshots sent to clients.");
+  private static final Counter REPLAYED_PACKETS =
+      Metrics.counter(
+          "dossio_server_packets_replayed_total", "Journaled packets replayed to clients.");
+
+  private final String name;
+  private final String node; // The node ID label of the room's metrics
+  private final long maxQueuedBytes;
+  private final PresenceRelay presenceRelay;
+  @CheckForNull private final Federation federation;
+  private final HashMap<Integer, ClientDataPacket> clients = new HashMap<>();
+  private final ConcurrentHashMap<Integer, ClientQueue> clientQueues = new ConcurrentHashMap<>();
+  private final SubscriptionTrie subscriptions = new SubscriptionTrie();
+  private final Counter roomRelayedPackets;
+
+  @CheckForNull private Path tempJournalDirectory;
+  @CheckForNull private EditJournal journal;
+  @CheckForNull private JournalCompactor compactor;
+
+  private long activeTime = System.nanoTime(); // When the last client left (or a node relayed)
+
+  /**
+   * Creates a room, opens its edit journal and registers its metrics.
+   *
+   * @param name The name of the room.
+   * @param nodeId The ID of the server's node (labels the room's metrics).
+   * @param presenceRelay The server's presence relay.
+   * @param federation The server's links to the other relay nodes (null if it isn't in a mesh).
+   * @param journalDirectory The directory of the room's journal (null for a temporary directory).
+   * @param maxQueuedBytes The bytes that can be queued for all of the room's clients at once.
+   */
+  Room(
+      String name,
+      int nodeId,
+      PresenceRelay presenceRelay,
+      @CheckForNull Federation federation,
+      @CheckForNull Path journalDirectory,
+      long maxQueuedBytes) {
+    this.name = name;
+    this.node = String.valueOf(nodeId);
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.presenceRelay = presenceRelay;
+    this.federation = federation;
+    openJournal(journalDirectory);
+
+    roomRelayedPackets =
+        Metrics.counter(
+            ROOM_RELAYED_METRIC,
+            "Packets queued for the clients of a room.",
+            "node",
+            node,
+            "room",
+            name);
+    Metrics.gauge(
+        CLIENTS_METRIC,
+        "Clients connected to a room.",
+        () -> clientQueues.size(),
+        "node",
+        node,
+        "room",
+        name);
+    Metrics.gauge(
+        QUEUED_BYTES_METRIC,
+        "Estimated bytes queued for the clients of a room.",
+        this::getByteSize,
+        "node",
+        node,
+        "room",
+        name);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the queues of the room's clients.
+   *
+   * @return A live view of the client queues.
+   */
+  Collection<ClientQueue> getQueues() {
+    return clientQueues.values();
+  }
+
+  /**
+   * Returns the estimated byte size queued for all clients of the room.
+   *
+   * @return The queued byte size.
+   */
+  long getByteSize() {
+    return clientQueues.values().stream().mapToLong(ClientQueue::getByteSize).sum();
+  }
+
+  /**
+   * Checks if the room has been empty for a while (without any packets relayed by other nodes).
+   *
+   * @param timeout The time the room must have been empty for (nanoseconds).
+   * @return Whether the room has no clients, and had none for the timeout.
+   */
+  boolean isIdle(long timeout) {
+    return clientQueues.isEmpty() && System.nanoTime() - activeTime >= timeout;
+  }
+
+  /**
+   * Adds a client to the room, its journaled packets are held until it asks to catch up.
+   *
+   * @param connection The connection of the client.
+   */
+  void join(Connection connection) {
+    int id = connection.getID();
+    EditJournal journal = this.journal;
+    ClientQueue queue = new ClientQueue(connection, journal != null ? journal.getId() : 0);
+    if (journal != null) {
+      queue.hold(journal.getEndOffset()); // Until the client asks to catch up
+    }
+    clientQueues.put(id, queue);
+    subscriptions.subscribe(id, null);
+    queue.start();
+    send(queue, new JoinedPacket());
+
+    // Send all of the room's clients to the newly joined client
+    for (ClientDataPacket c : clients.values()) {
+      if (c.id != id) {
+        send(queue, c);
+      }
+    }
+  }
+
+  /**
+   * Wakes up the queue of a client whose connection is idle (its write buffer has room).
+   *
+   * @param connection The connection of the client.
+   */
+  void idle(Connection connection) {
+    ClientQueue queue = clientQueues.get(connection.getID());
+    if (queue != null) {
+      queue.onIdle();
+    }
+  }
+
+  /**
+   * Handles a packet of one of the room's clients.
+   *
+   * @param connection The connection of the client.
+   * @param object The received packet (not a framework message).
+   */
+  void received(Connection connection, Object object) {
+    // The client's packets are held back until its catch up request is received
+    ClientQueue senderQueue = clientQueues.get(connection.getID());
+    if (object instanceof CatchUpPacket p) {
+      if (senderQueue != null && senderQueue.beginCatchUp()) {
+        JournalCompactor compactor = this.compactor;
+        if (compactor != null) {
+          compactor.execute(() -> catchUp(senderQueue, p, compactor));
+        } else {
+          senderQueue.release();
+        }
+      }
+      return;
+    }
+    RECEIVED_PACKETS.get(object.getClass()).inc();
+
+    // Subscriptions only change which file packets are relayed to the client from now on
+    if (object instanceof SubscribePacket p) {
+      subscriptions.subscribe(connection.getID(), p.prefixes);
+      return;
+    }
+
+    // Probes are sent back right away (outside the client's queue) to measure the round trip time
+    // without any queueing
+    if (object instanceof ProbePacket p) {
+      p.serverTime = Tracer.localNow();
+      connection.sendTCP(p);
+      return;
+    }
+
+    // Presence is relayed over UDP right away (or held by the rate limit), outside the client's
+    // queue
+    if (object instanceof PresencePacket p) {
+      presenceRelay.offer(connection.getID(), p, clientQueues.values());
+      if (federation != null) {
+        federation.broadcast(name, connection.getID(), p);
+      }
+      return;
+    }
+
+    // Stamp traced changes with the time they are relayed
+    Trace trace = Tracer.getTrace(object);
+    if (trace != null) {
+      trace.relayTime = Tracer.localNow();
+    }
+
+    if (object instanceof ClientDataPacket p) {
+      clients.put(p.id, p);
+    }
+
+    // Relay packets only have their header decoded, their payload is copied as is
+    Object packet = object;
+    if (object instanceof DirectPacket p) {
+      packet = p.packet;
+      ClientQueue targetQueue = clientQueues.get(p.targetId);
+      if (targetQueue != null) {
+        send(targetQueue, packet);
+      } else if (federation != null) {
+        federation.sendDirect(name, connection.getID(), p.targetId, packet);
+      }
+    } else {
+      relay(connection.getID(), packet);
+    }
+
+    // Acknowledge relayed file chunks, this lets the sender move its transfer window
+    if (packet instanceof FileChunkPacket p && senderQueue != null) {
+      FileChunkAckPacket ackPacket = new FileChunkAckPacket();
+      ackPacket.transferId = p.transferId;
+      ackPacket.offset = p.offset + p.data.length;
+      send(senderQueue, ackPacket);
+    }
+  }
+
+  /**
+   * Removes a disconnected client from the room, and tells the room's other clients.
+   *
+   * @param connection The connection of the client.
+   */
+  void leave(Connection connection) {
+    clients.remove(connection.getID());
+    subscriptions.unsubscribe(connection.getID());
+    ClientQueue queue = clientQueues.remove(connection.getID());
+    if (queue != null) {
+      queue.stop();
+    }
+    if (clientQueues.isEmpty()) {
+      activeTime = System.nanoTime();
+    }
+
+    DisconnectClientPacket disconnectClientPacket = new DisconnectClientPacket();
+    disconnectClientPacket.id = connection.getID();
+    relay(connection.getID(), disconnectClientPacket);
+  }
+
+  /**
+   * Relays a packet of another node's client (sequenced by the room's owner) to the room's
+   * clients, other than its sender.
+   *
+   * @param originId The ID of the sending client (a connection ID if it is one of this node's).
+   * @param packet The packet to relay.
+   */
+  void deliver(int originId, Object packet) {
+    activeTime = System.nanoTime();
+    if (packet instanceof ClientDataPacket p) {
+      clients.put(p.id, p);
+    } else if (packet instanceof DisconnectClientPacket p) {
+      clients.remove(p.id);
+    } else if (packet instanceof PresencePacket p) {
+      presenceRelay.offer(originId, p, clientQueues.values());
+      return;
+    }
+    relayLocally(originId, packet);
+  }
+
+  /**
+   * Sends a packet of another node's client to one of the room's clients.
+   *
+   * @param targetId The connection ID of the receiving client.
+   * @param packet The packet to send.
+   */
+  void deliverDirect(int targetId, Object packet) {
+    ClientQueue targetQueue = clientQueues.get(targetId);
+    if (targetQueue != null) {
+      send(targetQueue, packet);
+    }
+  }
+
+  /** Stops the queues of the room's clients, closes its journal and removes its metrics. */
+  void close() {
+    for (ClientQueue queue : clientQueues.values()) {
+      queue.stop();
+    }
+    clientQueues.clear();
+    clients.clear();
+    closeJournal();
+
+    Metrics.remove(ROOM_RELAYED_METRIC, "node", node, "room", name);
+    Metrics.remove(CLIENTS_METRIC, "node", node, "room", name);
+    Metrics.remove(QUEUED_BYTES_METRIC, "node", node, "room", name);
+  }
+
+  /**
+   * Relays a packet of one of the room's clients, through the room's owner node if another node
+   * owns it.
+   *
+   * @param exceptId The connection ID of the client to not send the packet to (the sender).
+   * @param packet The packet to relay.
+   */
+  private void relay(int exceptId, Object packet) {
+    if (federation == null || !federation.forward(name, exceptId, packet)) {
+      relayLocally(exceptId, packet);
+    }
+  }
+
+  /**
+   * Queues a packet for every client except one, file packets are appended to the journal first
+   * and only queued for the clients subscribed to their files.
+   *
+   * @param exceptId The connection ID of the client to not send the packet to (the sender).
+   * @param packet The packet to relay.
+   */
+  private void relayLocally(int exceptId, Object packet) {
+    String[] fileNames = ClientQueue.getFileNames(packet);
+    long journalOffset = -1;
+
+    // A client's leave is journaled, so the snapshot drops the sequences it left in progress
+    if (journal != null && (fileNames.length > 0 || packet instanceof DisconnectClientPacket)) {
+      try {
+        journalOffset = journal.append(exceptId, PacketCodec.encode(packet));
+      } catch (IOException e) {
+        Log.error(LOG_TAG, "Failed to append packet to the edit journal!", e);
+      }
+    }
+
+    Set<Integer> subscribers =
+        fileNames.length > 0 ? subscriptions.getSubscribers(fileNames) : null;
+    long queuedBytes = 0;
+    for (ClientQueue queue : clientQueues.values()) {
+      int id = queue.getConnection().getID();
+      if (id == exceptId) {
+        if (journalOffset >= 0) {
+          queue.skip(journalOffset);
+        }
+      } else if (subscribers == null || subscribers.contains(id)) {
+        send(queue, packet, journalOffset);
+      } else {
+        FILTERED_PACKETS.inc();
+        if (journalOffset >= 0) {
+          queue.skip(journalOffset); // The client's journal offset still moves past it
+        }
+      }
+      queuedBytes += queue.getByteSize();
+    }
+    if (queuedBytes > maxQueuedBytes) {
+      enforceQuota(queuedBytes);
+    }
+  }
+
+  /**
+   * Resyncs the room's slowest clients (the largest queues first) until the room's queued bytes are
+   * back under its quota, so a room can't take the memory of the server's other rooms.
+   *
+   * @param queuedBytes The bytes queued for all of the room's clients.
+   */
+  private void enforceQuota(long queuedBytes) {
+    QUOTA_EXCEEDED.inc();
+    HashSet<ClientQueue> resyncedQueues = new HashSet<>();
+    while (queuedBytes > maxQueuedBytes) {
+      ClientQueue slowestQueue = null;
+      for (ClientQueue queue : clientQueues.values()) {
+        if (!resyncedQueues.contains(queue)
+            && (slowestQueue == null || queue.getByteSize() > slowestQueue.getByteSize())) {
+          slowestQueue = queue;
+        }
+      }
+      if (slowestQueue == null) {
+        return; // Every client was resynced, the rest of the queued packets aren't of files
+      }
+      resyncedQueues.add(slowestQueue);
+      long byteSize = slowestQueue.getByteSize();
+      resync(slowestQueue);
+      queuedBytes -= byteSize - slowestQueue.getByteSize();
+    }
+  }
+
+  private void send(ClientQueue queue, Object packet) {
+    send(queue, packet, -1);
+  }
+
+  /**
+   * Queues a packet for a client. A client whose queue grows past {@link #RESYNC_BYTE_THRESHOLD}
+   * is resynced.
+   *
+   * @param queue The queue of the client to send the packet to.
+   * @param packet The packet to send.
+   * @param journalOffset The journal's end offset after the packet, -1 if it isn't journaled.
+   */
+  private void send(ClientQueue queue, Object packet, long journalOffset) {
+    queue.add(packet, journalOffset);
+    RELAYED_PACKETS.inc();
+    roomRelayedPackets.inc();
+    if (queue.getByteSize() > RESYNC_BYTE_THRESHOLD) {
+      resync(queue);
+    }
+  }
+
+  /**
+   * Drops the queued file packets of a slow client. The client is told to forget the partially
+   * received edits of those files, and a healthy client is asked to resend the files to it.
+   *
+   * @param queue The queue of the slow client.
+   */
+  private void resync(ClientQueue queue) {
+    Set<String> fileNames = queue.removeFilePackets();
+    if (fileNames.isEmpty()) {
+      return;
+    }
+
+    RESYNCS.inc();
+    Log.warn(
+        LOG_TAG,
+        "Client "
+            + queue.getConnection().getID()
+            + " is too slow, resyncing "
+            + fileNames.size()
+            + " files");
+    requestResync(queue, fileNames);
+  }
+
+  /**
+   * Replays the journaled packets that a reconnecting client missed, then releases the packets
+   * held since it connected. A late joiner (or a client whose journal offset is no longer kept) is
+   * sent the snapshot and the journal's tail after it instead. Only the files that the client is
+   * subscribed to are sent. This runs on the compactor's thread.
+   *
+   * @param queue The held queue of the client.
+   * @param packet The client's catch up request.
+   * @param compactor The compactor of the journal.
+   */
+  private void catchUp(ClientQueue queue, CatchUpPacket packet, JournalCompactor compactor) {
+    EditJournal journal = compactor.getJournal();
+    long heldOffset = queue.getHeldOffset();
+    if (packet.journalId == journal.getId()
+        && packet.offset <= heldOffset
+        && journal.isReadable(packet.offset)) {
+      CATCH_UPS.inc();
+      replay(queue, journal, packet, packet.offset, 0);
+      queue.release();
+      return;
+    }
+    if (packet.journalId != 0) {
+      CATCH_UP_MISSES.inc();
+      Log.info(
+          LOG_TAG,
+          "Client " + queue.getConnection().getID() + " can't catch up, sending the snapshot");
+    }
+
+    int id = queue.getConnection().getID();
+    EditSnapshot snapshot = compactor.materialize();
+    byte[] archive;
+    try {
+      archive = snapshot.toArchive(fileName -> subscriptions.isSubscribed(id, fileName));
+    } catch (IOException e) {
+      Log.error(LOG_TAG, "Failed to write the snapshot's archive!", e);
+      resyncSnapshot(queue, snapshot);
+      return;
+    }
+    if (archive != null && archive.length > MAX_CATCH_UP_BYTES) {
+      Log.warn(LOG_TAG, "Snapshot is too large to send: " + archive.length + " bytes");
+      resyncSnapshot(queue, snapshot);
+      return;
+    }
+
+    sendSnapshot(queue, snapshot, archive);
+    if (snapshot.getOffset() < heldOffset) {
+      replay(queue, journal, packet, snapshot.getOffset(), archive != null ? archive.length : 0);
+    }
+    queue.release(
+        snapshot.getOffset(),
+        fileName -> subscriptions.isSubscribed(id, fileName) && snapshot.contains(fileName));
+  }
+
+  /**
+   * Catches up a client on a snapshot that can't be sent, the deleted files are still deleted but
+   * the materialized files are resent by a client that is keeping up (they are resynced). The
+   * resent files arrive after the released packets, so they overwrite them with the current
+   * content.
+   *
+   * @param queue The held queue of the client.
+   * @param snapshot The snapshot that couldn't be sent.
+   */
+  private void resyncSnapshot(ClientQueue queue, EditSnapshot snapshot) {
+    sendDeletedFiles(queue, snapshot);
+
+    int id = queue.getConnection().getID();
+    LinkedHashSet<String> resyncFileNames = new LinkedHashSet<>();
+    for (String fileName : snapshot.getFileNames()) {
+      if (subscriptions.isSubscribed(id, fileName)) {
+        resyncFileNames.add(fileName);
+      }
+    }
+    if (!resyncFileNames.isEmpty()) {
+      RESYNCS.inc();
+      requestResync(queue, resyncFileNames);
+    }
+    queue.release();
+  }
+
+  /**
+   * Replays the journaled packets from an offset up to a held queue's held offset, except for the
+   * client's own packets and the packets of files it isn't subscribed to. The files of the packets
+   * past {@link #MAX_CATCH_UP_BYTES} are resynced instead.
+   *
+   * @param queue The held queue of the client.
+   * @param journal The journal to replay the packets of.
+   * @param packet The client's catch up request.
+   * @param fromOffset The offset of the first replayed packet.
+   * @param byteSize The byte size already sent to the client while catching up.
+   */
+  private void replay(
+      ClientQueue queue,
+      EditJournal journal,
+      CatchUpPacket packet,
+      long fromOffset,
+      long byteSize) {
+    // The client's own packets were never sent to it, its previous ID is only unique among the
+    // packets of the server run that it was connected to
+    long openOffset = journal.getOpenOffset();
+    boolean isCurrentRun = packet.offset >= openOffset;
+
+    int id = queue.getConnection().getID();
+    long heldOffset = queue.getHeldOffset();
+    LinkedHashSet<String> resyncFileNames = new LinkedHashSet<>();
+    long offset = fromOffset;
+    Record record;
+    while ((record = journal.read(offset)) != null && record.offset < heldOffset) {
+      offset = record.endOffset;
+      if (record.originId == packet.previousId && isCurrentRun == (record.offset >= openOffset)) {
+        continue;
+      }
+
+      Object replayedPacket = PacketCodec.decode(record.packet);
+      if (!isSubscribed(id, ClientQueue.getFileNames(replayedPacket))) {
+        continue;
+      }
+      if (byteSize > MAX_CATCH_UP_BYTES) {
+        Collections.addAll(resyncFileNames, ClientQueue.getFileNames(replayedPacket));
+        continue;
+      }
+      byteSize += record.packet.length;
+      queue.addReplayed(replayedPacket, record.endOffset);
+      REPLAYED_PACKETS.inc();
+    }
+
+    if (!resyncFileNames.isEmpty()) {
+      RESYNCS.inc();
+      requestResync(queue, resyncFileNames);
+    }
+  }
+
+  /**
+   * Deletes the snapshot's deleted files on a client (the files it is subscribed to).
+   *
+   * @param queue The held queue of the client.
+   * @param snapshot The snapshot of the deleted files.
+   */
+  private void sendDeletedFiles(ClientQueue queue, EditSnapshot snapshot) {
+    int id = queue.getConnection().getID();
+    for (String fileName : snapshot.getDeletedFiles()) {
+      if (!subscriptions.isSubscribed(id, fileName)) {
+        continue;
+      }
+      DeleteFilePacket deletePacket = new DeleteFilePacket();
+      deletePacket.fileName = fileName;
+      queue.addReplayed(deletePacket, -1);
+    }
+  }
+
+  /**
+   * Sends a snapshot to a client, the deleted files are deleted first and the materialized files
+   * are sent as a tree archive of the project directory.
+   *
+   * @param queue The held queue of the client.
+   * @param snapshot The snapshot to send.
+   * @param archive The snapshot's archive (null if it has no files).
+   */
+  private void sendSnapshot(
+      ClientQueue queue, EditSnapshot snapshot, @CheckForNull byte[] archive) {
+    SNAPSHOTS_SENT.inc();
+    sendDeletedFiles(queue, snapshot);
+    if (archive == null) {
+      return;
+    }
+
+    // The tree is the project directory, the client holds the tail's packets until it is extracted
+    CreateTreePacket treePacket = new CreateTreePacket();
+    treePacket.fileName = PROJECT_TREE;
+    queue.addReplayed(treePacket, -1);
+
+    long transferId = ThreadLocalRandom.current().nextLong();
+    for (int offset = 0; offset < archive.length; offset += Network.CHUNK_SIZE) {
+      FileChunkPacket chunkPacket = new FileChunkPacket();
+      chunkPacket.fileName = PROJECT_TREE;
+      chunkPacket.transferId = transferId;
+      chunkPacket.offset = offset;
+      chunkPacket.fileSize = archive.length;
+      int end = Math.min(offset + Network.CHUNK_SIZE, archive.length);
+      chunkPacket.data = Arrays.copyOfRange(archive, offset, end);
+      chunkPacket.checksum = Network.checksum(chunkPacket.data);
+      queue.addReplayed(chunkPacket, -1);
+    }
+  }
+
+  /**
+   * Tells a client to forget the partially received edits of files, and asks a healthy client to
+   * resend the files to it.
+   *
+   * @param queue The queue of the client to resync.
+   * @param fileNames The names of the files to resync.
+   */
+  private void requestResync(ClientQueue queue, Set<String> fileNames) {
+    int targetId = queue.getConnection().getID();
+    ResyncPacket resyncPacket = new ResyncPacket();
+    resyncPacket.fileNames = fileNames.toArray(new String[0]);
+    resyncPacket.targetId = targetId;
+    queue.add(resyncPacket);
+
+    // Ask a client that is keeping up to resend the files (one that has all of them, a client
+    // tells the target to delete the files it doesn't have)
+    for (ClientQueue peerQueue : clientQueues.values()) {
+      if (peerQueue != queue
+          && peerQueue.getByteSize() < RESYNC_BYTE_THRESHOLD / 2
+          && hasAll(peerQueue.getConnection().getID(), fileNames)) {
+        peerQueue.add(resyncPacket);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Checks if a client is subscribed to any of a packet's files.
+   *
+   * @param id The connection ID of the client.
+   * @param fileNames The names of the packet's files.
+   * @return Whether the client is subscribed to one of the files.
+   */
+  private boolean isSubscribed(int id, String[] fileNames) {
+    for (String fileName : fileNames) {
+      if (subscriptions.isSubscribed(id, fileName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if a client is subscribed to all of the files, so it can resend them.
+   *
+   * @param id The connection ID of the client.
+   * @param fileNames The names of the files.
+   * @return Whether the client is subscribed to every file.
+   */
+  private boolean hasAll(int id, Set<String> fileNames) {
+    for (String fileName : fileNames) {
+      if (!subscriptions.isSubscribed(id, fileName)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Opens the edit journal (the room relays without one if it fails to open).
+   *
+   * @param journalDirectory The directory of the journal (null for a temporary directory).
+   */
+  private void openJournal(@CheckForNull Path journalDirectory) {
+    try {
+      Path directory = journalDirectory;
+      if (directory == null) {
+        tempJournalDirectory = Files.createTempDirectory("dossio-journal");
+        directory = tempJournalDirectory;
+      }
+      journal = EditJournal.open(directory);
+      compactor = JournalCompactor.start(journal, directory);
+    } catch (IOException e) {
+      Log.error(
+          LOG_TAG,
+          "Failed to open the edit journal of room '" + name + "', clients can't catch up!",
+          e);
+    }
+  }
+
+  /** Closes the edit journal, and deletes it if it was kept in a temporary directory. */
+  private void closeJournal() {
+    if (compactor != null) {
+      compactor.close();
+      compactor = null;
+    }
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+    if (tempJournalDirectory != null) {
+      try {
+        MoreFiles.deleteRecursively(tempJournalDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+      } catch (IOException e) {
+        Log.warn(LOG_TAG, "Failed to delete the temporary edit journal", e);
+      }
+      tempJournalDirectory = null;
+    }
+  }
+}
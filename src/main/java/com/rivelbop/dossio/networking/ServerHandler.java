@@ -2,25 +2,101 @@ package com.rivelbop.dossio.networking;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.FrameworkMessage;
 import com.esotericsoftware.kryonet.Listener;
 import com.esotericsoftware.kryonet.Server;
 import com.esotericsoftware.minlog.Log;
-import com.rivelbop.dossio.app.Main;
-import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
-import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
+import com.google.common.io.BaseEncoding;
+import com.rivelbop.dossio.metrics.Counter;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.Packet.CatchUpPacket;
+import com.rivelbop.dossio.networking.Packet.NodeHelloPacket;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
 
-/** Handles Kryonet {@link Server} - starting, stopping, sending/receiving packets. */
+/**
+ * Handles Kryonet {@link Server} - starting, stopping, sending/receiving packets.
+ *
+ * <p>NOTE: This doesn't depend on JavaFX (it also runs headless through {@code ServerLauncher}),
+ * failures are logged and thrown for the caller to report.
+ *
+ * <p>The server hosts many independent sessions on one port, each in its own {@link Room}. A
+ * client joins the room named by its {@link CatchUpPacket} (the packets it sends before joining
+ * are dropped), and packets are only relayed between the clients of the same room. Each room's
+ * queued bytes are limited, the slowest clients of a room past its limit are resynced.
+ *
+ * <p>Several servers can form a relay mesh (see {@link Federation}), each is a node that its
+ * nearest clients attach to, and the nodes relay the packets of each room to each other.
+ *
+ * <p>The server's update thread only reads packets and hands them to the {@link ClientQueue} of
+ * each receiving client, the queues wait for room in their client's write buffer on their own
+ * virtual threads. Reading, deserialization, and serialization still go through Kryonet's single
+ * update thread and shared serialization, so the relay doesn't scale with cores.
+ *
+ * <p>Every relayed file packet is appended to the room's {@link EditJournal}, so a reconnecting
+ * client catches up by replaying the packets it missed (instead of having all of its files
+ * resent). The journal is compacted into a snapshot in the background, which late joiners are sent
+ * along with the journal's tail.
+ */
 public final class ServerHandler {
   private static final String LOG_TAG = "ServerHandler";
 
+  /** The maximum ID of a node in a relay mesh (node IDs start at 1). */
+  public static final int MAX_NODE_ID = Federation.MAX_NODE_ID;
+
+  /** The default maximum amount of rooms hosted at once. */
+  public static final int DEFAULT_MAX_ROOMS = 64;
+
+  /** The default maximum amount of clients in a room (unlimited, the quota is opt-in). */
+  public static final int DEFAULT_MAX_ROOM_CLIENTS = Integer.MAX_VALUE;
+
+  /** The default maximum bytes queued for all of a room's clients at once. */
+  public static final int DEFAULT_MAX_ROOM_QUEUED_BYTES = 256 * Network.BUFFER_SIZE;
+
+  /** The time an empty room is kept open (for its clients to reconnect) before it is closed. */
+  private static final long ROOM_IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(10);
+
+  /** The directory of the rooms' journals (other than the default room's) in the journal's. */
+  private static final String ROOMS_DIRECTORY = "rooms";
+
+  private static final String ROOMS_METRIC = "dossio_server_rooms";
+  private static final String CLIENTS_METRIC = "dossio_server_clients";
+  private static final String QUEUED_PACKETS_METRIC = "dossio_server_queued_packets";
+  private static final String QUEUED_BYTES_METRIC = "dossio_server_queued_bytes";
+
+  private static final Counter REJECTED_JOINS =
+      Metrics.counter(
+          "dossio_server_rejected_joins_total",
+          "Clients disconnected for joining a full room (or a new room past the room limit).");
+
+  private static final Counter DROPPED_PACKETS =
+      Metrics.counter(
+          "dossio_server_dropped_packets_total",
+          "Packets dropped for being sent by a client that hasn't joined a room.");
+
   private final Server server = new Server(Network.BUFFER_SIZE, Network.BUFFER_SIZE);
-  private final HashMap<Integer, ClientDataPacket> clients = new HashMap<>();
+  private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, Room> clientRooms = new ConcurrentHashMap<>();
+  private final PresenceRelay presenceRelay = new PresenceRelay();
 
   private String ipAddress = Network.DEFAULT_IP_ADDRESS;
   private int port = Network.DEFAULT_PORT;
+  private int maxRooms = DEFAULT_MAX_ROOMS;
+  private int maxRoomClients = DEFAULT_MAX_ROOM_CLIENTS;
+  private long maxRoomQueuedBytes = DEFAULT_MAX_ROOM_QUEUED_BYTES;
+
+  @CheckForNull private Path journalDirectory;
+
+  private int nodeId = 1;
+  private Map<Integer, InetSocketAddress> peers = Map.of();
+  @CheckForNull private Federation federation;
 
   /**
    * Sets the listener, binds the IP address, and starts the server. Throws exception if fails.
@@ -28,38 +104,69 @@ public final class ServerHandler {
    * @throws RuntimeException If the server fails to bind to IP address and port.
    */
   public void start() {
-    // If the server was previously running, clear any remaining client data
-    clients.clear();
+    // If the server was previously running, clear any remaining rooms
+    presenceRelay.clear();
+    closeRooms();
+    closeFederation();
+    if (!peers.isEmpty()) {
+      federation = new Federation(nodeId, peers, this::openRoom);
+    }
+    registerGauges();
 
     // Set listener
     server.addListener(
         new Listener() {
           @Override
-          public void connected(Connection connection) {
-            // Send all current server client's to the newly connected client
-            int id = connection.getID();
-            for (ClientDataPacket c : clients.values()) {
-              if (c.id != id) {
-                server.sendToTCP(id, c);
+          public void received(Connection connection, Object object) {
+            if (object instanceof FrameworkMessage) {
+              return;
+            }
+
+            // Links from the other nodes of the mesh don't join a room
+            if (federation != null && federation.receive(connection, object)) {
+              return;
+            }
+            if (federation == null && object instanceof NodeHelloPacket) {
+              Log.warn(LOG_TAG, "Disconnecting a relay node, this server isn't in a mesh");
+              connection.close();
+              return;
+            }
+
+            // A client joins a room with its catch up packet, it is sent first over TCP but the
+            // client's UDP packets (its presence) can arrive before it
+            Room room = clientRooms.get(connection.getID());
+            if (room == null) {
+              if (!(object instanceof CatchUpPacket p)) {
+                DROPPED_PACKETS.inc();
+                return;
+              }
+              room = join(connection, p.room);
+              if (room == null) {
+                return;
               }
             }
+            room.received(connection, object);
           }
 
           @Override
-          public void received(Connection connection, Object object) {
-            if (object instanceof ClientDataPacket p) {
-              clients.put(p.id, p);
+          public void idle(Connection connection) {
+            Room room = clientRooms.get(connection.getID());
+            if (room != null) {
+              room.idle(connection);
             }
-            server.sendToAllExceptTCP(connection.getID(), object);
           }
 
           @Override
           public void disconnected(Connection connection) {
-            clients.remove(connection.getID());
-
-            DisconnectClientPacket disconnectClientPacket = new DisconnectClientPacket();
-            disconnectClientPacket.id = connection.getID();
-            server.sendToAllExceptTCP(connection.getID(), disconnectClientPacket);
+            if (federation != null) {
+              federation.remove(connection);
+            }
+            presenceRelay.remove(connection.getID());
+            Room room = clientRooms.remove(connection.getID());
+            if (room != null) {
+              room.leave(connection);
+            }
+            closeIdleRooms();
           }
         });
 
@@ -68,17 +175,14 @@ public final class ServerHandler {
       server.bind(new InetSocketAddress(ipAddress, port), new InetSocketAddress(ipAddress, port));
     } catch (IOException e) {
       Log.error(LOG_TAG, "Failed to bind server to socket address!", e);
-
-      Main.showErrorAlert(
-          "Server Error",
-          "Failed to Start Server",
-          "The server could not bind to the specified IP address and port.");
-
       throw new RuntimeException(e);
     }
 
     // Start
     server.start();
+    if (federation != null) {
+      federation.start();
+    }
   }
 
   /**
@@ -94,6 +198,10 @@ public final class ServerHandler {
   /** Stops the Kryonet server from running. */
   public void stop() {
     server.stop();
+    closeFederation();
+    presenceRelay.clear();
+    closeRooms();
+    removeGauges();
   }
 
   /**
@@ -106,12 +214,6 @@ public final class ServerHandler {
       server.dispose();
     } catch (IOException e) {
       Log.error(LOG_TAG, "Failed to free resources from the server!", e);
-
-      Main.showErrorAlert(
-          "Server Error",
-          "Failed to Dispose Server",
-          "The server could not free its resources properly.");
-
       throw new RuntimeException(e);
     }
   }
@@ -142,7 +244,267 @@ public final class ServerHandler {
     this.port = Network.validatePort(port);
   }
 
+  @CheckForNull
+  public Path getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  /**
+   * Sets the directory that the edit journals are kept in, temporary directories (deleted when
+   * their rooms close) are used if none is set. The default room's journal is kept in the
+   * directory itself, and every other room's in its own subdirectory.
+   *
+   * @param journalDirectory The journals' directory (null for temporary directories).
+   */
+  public void setJournalDirectory(@CheckForNull Path journalDirectory) {
+    this.journalDirectory = journalDirectory;
+  }
+
+  public int getMaxRooms() {
+    return maxRooms;
+  }
+
+  /**
+   * Sets the maximum amount of rooms hosted at once, a client joining a new room past it is
+   * disconnected.
+   *
+   * @param maxRooms The maximum amount of rooms (at least 1).
+   */
+  public void setMaxRooms(int maxRooms) {
+    this.maxRooms = Math.max(maxRooms, 1);
+  }
+
+  public int getMaxRoomClients() {
+    return maxRoomClients;
+  }
+
+  /**
+   * Sets the maximum amount of clients in a room, a client joining a full room is disconnected.
+   *
+   * @param maxRoomClients The maximum amount of clients per room (at least 1).
+   */
+  public void setMaxRoomClients(int maxRoomClients) {
+    this.maxRoomClients = Math.max(maxRoomClients, 1);
+  }
+
+  public long getMaxRoomQueuedBytes() {
+    return maxRoomQueuedBytes;
+  }
+
+  /**
+   * Sets the maximum bytes queued for all of a room's clients at once, the slowest clients of a
+   * room past it are resynced (only rooms opened after this use the new quota).
+   *
+   * @param maxRoomQueuedBytes The maximum queued bytes per room (at least {@link
+   *     Network#BUFFER_SIZE}).
+   */
+  public void setMaxRoomQueuedBytes(long maxRoomQueuedBytes) {
+    this.maxRoomQueuedBytes = Math.max(maxRoomQueuedBytes, Network.BUFFER_SIZE);
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Sets the ID of this server in a relay mesh, unique among the mesh's nodes.
+   *
+   * @param nodeId The node's ID (1-{@link #MAX_NODE_ID}).
+   * @throws IllegalArgumentException If the node ID is out of range.
+   */
+  public void setNodeId(int nodeId) {
+    Federation.checkNodeId(nodeId);
+    this.nodeId = nodeId;
+  }
+
+  public Map<Integer, InetSocketAddress> getPeers() {
+    return peers;
+  }
+
+  /**
+   * Sets the other nodes of the relay mesh, the server links to them when it starts (and relays
+   * alone if there are none). Every node of the mesh must list every other node.
+   *
+   * @param peers The addresses of the other nodes, by their node IDs.
+   */
+  public void setPeers(Map<Integer, InetSocketAddress> peers) {
+    this.peers = Map.copyOf(peers);
+  }
+
+  /**
+   * Returns the amount of other nodes of the relay mesh that the server is linked to.
+   *
+   * @return The amount of linked nodes, 0 if the server isn't in a mesh (or not running).
+   */
+  public int getLinkedNodeCount() {
+    Federation federation = this.federation;
+    return federation != null ? federation.getLinkedNodeCount() : 0;
+  }
+
   public Kryo getKryo() {
     return server.getKryo();
   }
+
+  /**
+   * Returns the amount of packets queued for each connected client.
+   *
+   * @return The queue depth of each client (by connection ID).
+   */
+  public Map<Integer, Integer> getQueueDepths() {
+    HashMap<Integer, Integer> queueDepths = new HashMap<>();
+    for (Room room : rooms.values()) {
+      for (ClientQueue queue : room.getQueues()) {
+        queueDepths.put(queue.getConnection().getID(), queue.size());
+      }
+    }
+    return queueDepths;
+  }
+
+  /**
+   * Adds a client to a room, opening the room if it isn't hosted yet. A client past the room
+   * quotas (or with an invalid room name) is disconnected.
+   *
+   * @param connection The connection of the client.
+   * @param roomName The name of the room to join (null for the default room).
+   * @return The joined room, null if the client was disconnected.
+   */
+  @CheckForNull
+  private Room join(Connection connection, @CheckForNull String roomName) {
+    String name = roomName != null ? roomName : Network.DEFAULT_ROOM;
+    Room room = null;
+    String rejectReason = null;
+    if (name.length() > Network.MAX_ROOM_NAME_LENGTH) {
+      rejectReason = "its room name is too long";
+    } else if ((room = openRoom(name)) == null) {
+      rejectReason = "the server hosts " + maxRooms + " rooms";
+    } else if (room.getQueues().size() >= maxRoomClients) {
+      rejectReason = "room '" + name + "' is full";
+    }
+    if (room == null || rejectReason != null) {
+      REJECTED_JOINS.inc();
+      Log.warn(LOG_TAG, "Disconnecting client " + connection.getID() + ", " + rejectReason);
+      connection.close();
+      return null;
+    }
+
+    clientRooms.put(connection.getID(), room);
+    room.join(connection);
+    return room;
+  }
+
+  /**
+   * Registers the server's queue metrics, labeled by its node ID so that several servers in the
+   * same process (like the nodes of a local mesh) keep separate metrics.
+   */
+  private void registerGauges() {
+    String node = String.valueOf(nodeId);
+    Metrics.gauge(ROOMS_METRIC, "Rooms hosted by the server.", () -> rooms.size(), "node", node);
+    Metrics.gauge(
+        CLIENTS_METRIC,
+        "Clients connected to the server.",
+        () -> clientRooms.size(),
+        "node",
+        node);
+    Metrics.gauge(
+        QUEUED_PACKETS_METRIC,
+        "Packets queued for all clients by the server.",
+        () ->
+            rooms.values().stream()
+                .flatMap(room -> room.getQueues().stream())
+                .mapToLong(ClientQueue::size)
+                .sum(),
+        "node",
+        node);
+    Metrics.gauge(
+        QUEUED_BYTES_METRIC,
+        "Estimated bytes queued for all clients by the server.",
+        () -> rooms.values().stream().mapToLong(Room::getByteSize).sum(),
+        "node",
+        node);
+  }
+
+  private void removeGauges() {
+    String node = String.valueOf(nodeId);
+    Metrics.remove(ROOMS_METRIC, "node", node);
+    Metrics.remove(CLIENTS_METRIC, "node", node);
+    Metrics.remove(QUEUED_PACKETS_METRIC, "node", node);
+    Metrics.remove(QUEUED_BYTES_METRIC, "node", node);
+  }
+
+  /**
+   * Returns a hosted room, or opens it if the server hosts less than {@link #maxRooms} rooms.
+   *
+   * @param name The name of the room.
+   * @return The room, null if it isn't hosted and can't be opened.
+   */
+  @CheckForNull
+  private Room openRoom(String name) {
+    Room room = rooms.get(name);
+    if (room != null) {
+      return room;
+    }
+    if (rooms.size() >= maxRooms) {
+      closeIdleRooms();
+      if (rooms.size() >= maxRooms) {
+        return null;
+      }
+    }
+
+    room =
+        new Room(
+            name, nodeId, presenceRelay, federation, getRoomDirectory(name), maxRoomQueuedBytes);
+    rooms.put(name, room);
+    Log.info(LOG_TAG, "Opened room '" + name + "'");
+    return room;
+  }
+
+  /**
+   * Returns the journal directory of a room.
+   *
+   * @param name The name of the room.
+   * @return The room's journal directory, null if the journals are kept in temporary directories.
+   */
+  @CheckForNull
+  private Path getRoomDirectory(String name) {
+    if (journalDirectory == null || name.equals(Network.DEFAULT_ROOM)) {
+      return journalDirectory;
+    }
+
+    // Room names are hex encoded, so any name is a valid (and distinct) directory name
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    String directoryName = BaseEncoding.base16().lowerCase().encode(nameBytes);
+    return journalDirectory.resolve(ROOMS_DIRECTORY).resolve(directoryName);
+  }
+
+  /** Closes the rooms that have been empty for longer than {@link #ROOM_IDLE_TIMEOUT}. */
+  private void closeIdleRooms() {
+    rooms
+        .values()
+        .removeIf(
+            room -> {
+              if (!room.isIdle(ROOM_IDLE_TIMEOUT)) {
+                return false;
+              }
+              room.close();
+              Log.info(LOG_TAG, "Closed idle room '" + room.getName() + "'");
+              return true;
+            });
+  }
+
+  /** Closes the links to the other nodes of the relay mesh. */
+  private void closeFederation() {
+    if (federation != null) {
+      federation.close();
+      federation = null;
+    }
+  }
+
+  /** Closes every room, stopping the queues of their clients. */
+  private void closeRooms() {
+    for (Room room : rooms.values()) {
+      room.close();
+    }
+    rooms.clear();
+    clientRooms.clear();
+  }
 }
@@ -0,0 +1,151 @@
+package com.rivelbop.dossio.networking;
+
+import com.esotericsoftware.minlog.Log;
+import com.rivelbop.dossio.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+/**
+ * Indexes the subscriptions of a room's clients by path prefix, so a file packet is only relayed to
+ * the clients that are subscribed to its file. Each path segment of a prefix is a node of the trie,
+ * a client subscribed to the whole project is kept at the root.
+ *
+ * <p>A client is subscribed to a file as defined by {@link FileFilter#isSubscribed(String[],
+ * String)}: one of its prefixes is the file, a directory containing it, or a file in it.
+ *
+ * <p>NOTE: The trie is used by the server's update thread and the compactor's thread (catch ups).
+ */
+final class SubscriptionTrie {
+  private static final String LOG_TAG = "SubscriptionTrie";
+
+  private final Node root = new Node();
+  private final HashMap<Integer, String[]> clientPrefixes = new HashMap<>();
+
+  /**
+   * Replaces the subscriptions of a client.
+   *
+   * @param id The connection ID of the client.
+   * @param prefixes The names of the subscribed directories and files (null or empty to subscribe
+   *     to the whole project).
+   */
+  synchronized void subscribe(int id, @CheckForNull String[] prefixes) {
+    unsubscribe(id);
+    String[] normalizedPrefixes = FileFilter.normalizeSubscriptions(prefixes);
+    if (prefixes != null && prefixes.length > FileFilter.MAX_SUBSCRIPTIONS) {
+      Log.warn(LOG_TAG, "Client " + id + " subscribed to too many prefixes: " + prefixes.length);
+    }
+    clientPrefixes.put(id, normalizedPrefixes);
+
+    for (String prefix : normalizedPrefixes) {
+      Node node = root;
+      for (String segment : split(prefix)) {
+        node = node.children.computeIfAbsent(segment, s -> new Node());
+      }
+      node.ids.add(id);
+    }
+  }
+
+  /**
+   * Removes the subscriptions of a client (it is no longer subscribed to any file).
+   *
+   * @param id The connection ID of the client.
+   */
+  synchronized void unsubscribe(int id) {
+    String[] prefixes = clientPrefixes.remove(id);
+    if (prefixes == null) {
+      return;
+    }
+
+    ArrayDeque<Node> path = new ArrayDeque<>();
+    for (String prefix : prefixes) {
+      String[] segments = split(prefix);
+      Node node = root;
+      for (String segment : segments) {
+        path.push(node);
+        node = node.children.get(segment);
+      }
+      node.ids.remove(id);
+
+      // Remove the nodes that no longer lead to a subscription
+      for (int i = segments.length - 1; i >= 0 && node.isEmpty(); i--) {
+        Node parent = path.pop();
+        parent.children.remove(segments[i]);
+        node = parent;
+      }
+      path.clear();
+    }
+  }
+
+  /**
+   * Collects the clients that are subscribed to any of the files.
+   *
+   * @param fileNames The names of the files.
+   * @return The connection IDs of the subscribed clients.
+   */
+  synchronized Set<Integer> getSubscribers(String[] fileNames) {
+    HashSet<Integer> ids = new HashSet<>();
+    for (String fileName : fileNames) {
+      // The clients subscribed to the file or a directory containing it
+      Node node = root;
+      ids.addAll(node.ids);
+      for (String segment : split(fileName)) {
+        node = node.children.get(segment);
+        if (node == null) {
+          break;
+        }
+        ids.addAll(node.ids);
+      }
+
+      // The clients subscribed to a file in it
+      if (node != null) {
+        collect(node, ids);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Checks if a client is subscribed to a file.
+   *
+   * @param id The connection ID of the client.
+   * @param fileName The name of the file.
+   * @return Whether the client is subscribed to the file.
+   */
+  synchronized boolean isSubscribed(int id, String fileName) {
+    String[] prefixes = clientPrefixes.get(id);
+    if (prefixes == null) {
+      return false;
+    }
+    return FileFilter.isSubscribed(prefixes, fileName);
+  }
+
+  private static String[] split(String fileName) {
+    return fileName.isEmpty() ? new String[0] : fileName.split("/");
+  }
+
+  /**
+   * Adds the clients subscribed to the prefixes below a node.
+   *
+   * @param node The node to collect the subscribers below.
+   * @param ids The set to add the connection IDs of the subscribers to.
+   */
+  private static void collect(Node node, Set<Integer> ids) {
+    for (Node child : node.children.values()) {
+      ids.addAll(child.ids);
+      collect(child, ids);
+    }
+  }
+
+  /** A path segment of the subscribed prefixes. */
+  private static final class Node {
+    private final HashMap<String, Node> children = new HashMap<>();
+    private final HashSet<Integer> ids = new HashSet<>(); // Subscribed to the node's path
+
+    private boolean isEmpty() {
+      return children.isEmpty() && ids.isEmpty();
+    }
+  }
+}
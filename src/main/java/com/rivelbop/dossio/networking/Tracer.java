@@ -0,0 +1,200 @@
+package com.rivelbop.dossio.networking;
+
+import com.rivelbop.dossio.metrics.Histogram;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.Packet.ChangesetPacket;
+import com.rivelbop.dossio.networking.Packet.DirectPacket;
+import com.rivelbop.dossio.networking.Packet.EditBatchPacket;
+import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.ProbePacket;
+import com.rivelbop.dossio.networking.Packet.RelayPacket;
+import com.rivelbop.dossio.networking.Packet.Trace;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+
+/**
+ * Stamps and records the latency of file changes (from the sender's file watcher to the receiver's
+ * file), along with the round trip time and clock offset to the server.
+ *
+ * <p>All trace timestamps are on the server's clock, the offset is estimated NTP-style from the
+ * probe with the lowest round trip time out of the last {@link #PROBE_WINDOW} probes (the probe
+ * least affected by queueing).
+ */
+public final class Tracer {
+  /** The amount of recent probes that the clock offset is estimated from. */
+  public static final int PROBE_WINDOW = 8;
+
+  private static final String STAGE_NAME = "dossio_trace_stage_seconds";
+  private static final String STAGE_HELP = "Latency of each stage of a traced file change.";
+  private static final Histogram DIFF_STAGE = stageHistogram("diff");
+  private static final Histogram QUEUE_STAGE = stageHistogram("queue");
+  private static final Histogram UPLOAD_STAGE = stageHistogram("upload");
+  private static final Histogram RELAY_STAGE = stageHistogram("relay");
+  private static final Histogram APPLY_STAGE = stageHistogram("apply");
+  private static final Histogram WRITE_STAGE = stageHistogram("write");
+  private static final Histogram END_TO_END =
+      Metrics.histogram(
+          "dossio_trace_end_to_end_seconds",
+          "Latency from a local file change until a peer wrote it (clock offset corrected).",
+          Histogram.DURATION_BUCKETS);
+  private static final Histogram PROBE_RTT =
+      Metrics.histogram(
+          "dossio_probe_rtt_seconds",
+          "Round trip time of probes to the server.",
+          Histogram.DURATION_BUCKETS);
+
+  private static final long[] probeRtts = new long[PROBE_WINDOW];
+  private static final long[] probeOffsets = new long[PROBE_WINDOW];
+  private static int probeCount;
+  private static volatile long clockOffset;
+  private static volatile long lastRtt = -1;
+
+  static {
+    Metrics.gauge(
+        "dossio_clock_offset_micros",
+        "Estimated offset of the server's clock from the local clock.",
+        () -> clockOffset);
+  }
+
+  private Tracer() {}
+
+  /**
+   * Returns the current time on the local clock.
+   *
+   * @return The microseconds since the epoch.
+   */
+  public static long localNow() {
+    Instant now = Instant.now();
+    return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+  }
+
+  /**
+   * Returns the current time on the server's clock (the local clock corrected by the offset).
+   *
+   * @return The microseconds since the epoch.
+   */
+  public static long now() {
+    return localNow() + clockOffset;
+  }
+
+  /**
+   * Starts a trace for a file change that was just detected.
+   *
+   * @param detectTime The time the change was detected, from {@link #now()}.
+   * @return The new trace.
+   */
+  public static Trace begin(long detectTime) {
+    Trace trace = new Trace();
+    trace.traceId = ThreadLocalRandom.current().nextLong();
+    trace.detectTime = detectTime;
+    return trace;
+  }
+
+  /**
+   * Gets the trace of a packet (unwrapping direct packets).
+   *
+   * @param packet The packet to get the trace of.
+   * @return The packet's trace, null if the packet isn't traced.
+   */
+  @CheckForNull
+  public static Trace getTrace(Object packet) {
+    if (packet instanceof DirectPacket p) {
+      return getTrace(p.packet);
+    } else if (packet instanceof RelayPacket p) {
+      return p.trace;
+    } else if (packet instanceof EndEditPacket p) {
+      return p.trace;
+    } else if (packet instanceof EditBatchPacket p) {
+      return p.trace;
+    } else if (packet instanceof ChangesetPacket p) {
+      return p.trace;
+    }
+    return null;
+  }
+
+  /**
+   * Creates a probe to send to the server.
+   *
+   * @return The probe stamped with the local time.
+   */
+  public static ProbePacket createProbe() {
+    ProbePacket probe = new ProbePacket();
+    probe.clientTime = localNow();
+    return probe;
+  }
+
+  /**
+   * Updates the round trip time and clock offset from a probe that the server sent back.
+   *
+   * @param probe The probe stamped by both the client and the server.
+   */
+  public static synchronized void receiveProbe(ProbePacket probe) {
+    long rtt = Math.max(localNow() - probe.clientTime, 0);
+    PROBE_RTT.observe(rtt / 1e6);
+    lastRtt = rtt;
+
+    // Assume the server stamped the probe halfway through the round trip
+    int index = probeCount++ % PROBE_WINDOW;
+    probeRtts[index] = rtt;
+    probeOffsets[index] = probe.serverTime - (probe.clientTime + rtt / 2);
+
+    int best = 0;
+    for (int i = 1; i < Math.min(probeCount, PROBE_WINDOW); i++) {
+      if (probeRtts[i] < probeRtts[best]) {
+        best = i;
+      }
+    }
+    clockOffset = probeOffsets[best];
+  }
+
+  /**
+   * Returns the round trip time of the last probe.
+   *
+   * @return The round trip time (microseconds), -1 if no probe was received yet.
+   */
+  public static long getLastRtt() {
+    return lastRtt;
+  }
+
+  /**
+   * Returns the estimated offset of the server's clock from the local clock.
+   *
+   * @return The clock offset (microseconds).
+   */
+  public static long getClockOffset() {
+    return clockOffset;
+  }
+
+  /**
+   * Records the stage latencies of a received change once it was written to the file.
+   *
+   * @param trace The trace of the change (stamped up to its receive time).
+   * @param applyTime The time the edits were applied to the file's lines, from {@link #now()}.
+   * @param writeTime The time the file was written, from {@link #now()}.
+   */
+  public static void record(Trace trace, long applyTime, long writeTime) {
+    observe(DIFF_STAGE, trace.detectTime, trace.diffTime);
+    observe(QUEUE_STAGE, trace.diffTime, trace.sendTime);
+    observe(UPLOAD_STAGE, trace.sendTime, trace.relayTime);
+    observe(RELAY_STAGE, trace.relayTime, trace.receiveTime);
+    observe(APPLY_STAGE, trace.receiveTime, applyTime);
+    observe(WRITE_STAGE, applyTime, writeTime);
+    observe(END_TO_END, trace.detectTime, writeTime);
+  }
+
+  /**
+   * Observes the time between two stamps, a negative time (from clock offset error) counts as 0.
+   */
+  private static void observe(Histogram histogram, long startTime, long endTime) {
+    if (startTime != 0 && endTime != 0) {
+      histogram.observe(Math.max(endTime - startTime, 0) / 1e6);
+    }
+  }
+
+  private static Histogram stageHistogram(String stage) {
+    return Metrics.histogram(
+        STAGE_NAME, STAGE_HELP, Histogram.DURATION_BUCKETS, "stage", stage);
+  }
+}
@@ -6,13 +6,9 @@ import com.rivelbop.dossio.app.Main;
 import com.rivelbop.dossio.io.FileHandler;
 import com.rivelbop.dossio.networking.ClientHandler;
 import com.rivelbop.dossio.networking.ClientListener;
-import com.rivelbop.dossio.networking.Packet.BeginEditPacket;
 import com.rivelbop.dossio.networking.Packet.ClientDataPacket;
-import com.rivelbop.dossio.networking.Packet.CreateFilePacket;
-import com.rivelbop.dossio.networking.Packet.DeleteFilePacket;
 import com.rivelbop.dossio.networking.Packet.DisconnectClientPacket;
-import com.rivelbop.dossio.networking.Packet.EditPacket;
-import com.rivelbop.dossio.networking.Packet.EndEditPacket;
+import com.rivelbop.dossio.networking.Packet.PresencePacket;
 import com.rivelbop.dossio.networking.ServerHandler;
 import java.io.File;
 import javafx.application.Platform;
@@ -30,12 +26,17 @@ import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.scene.text.Text;
 import javafx.stage.DirectoryChooser;
+import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
 import javax.annotation.CheckForNull;
 
 /** Shows clients and selection of directory to sync. */
 public final class ProjectScene extends Scene {
   private static final String LOG_TAG = "ProjectScene";
 
+  /** The time since a client's last edit that it is shown as editing a file (milliseconds). */
+  private static final int ACTIVE_TIME = 30000;
+
   private final Main main;
   private final VBox verticalBox;
 
@@ -60,6 +61,7 @@ public final class ProjectScene extends Scene {
   private boolean directorySelected;
 
   @CheckForNull private FileHandler fileHandler;
+  @CheckForNull private Stage statsStage;
 
   /**
    * Creates UI elements and button event handlers.
@@ -108,6 +110,11 @@ public final class ProjectScene extends Scene {
           public void connected(Connection connection) {
             // Add yourself to the client list
             clientList.getItems().add(clientHandler.getUsername() + "[" + connection.getID() + "]");
+
+            // Continue any transfers that were interrupted by a disconnect
+            if (fileHandler != null) {
+              fileHandler.resumeTransfers();
+            }
           }
 
           @Override
@@ -118,23 +125,12 @@ public final class ProjectScene extends Scene {
             } else if (object instanceof DisconnectClientPacket p) {
               // Remove client from list
               clientList.getItems().remove(p.id - 1);
-            } else if (object instanceof CreateFilePacket p) {
-              // Create the specified file
-              if (fileHandler != null) {
-                fileHandler.createFile(p.fileName);
-              }
-            } else if (object instanceof BeginEditPacket
-                || object instanceof EditPacket
-                || object instanceof EndEditPacket) {
-              // Interpret received edit packet data
-              if (fileHandler != null) {
-                fileHandler.interpretEdit(object);
-              }
-            } else if (object instanceof DeleteFilePacket p) {
-              // Delete the specified file
-              if (fileHandler != null) {
-                fileHandler.deleteFile(p.fileName);
-              }
+            } else if (object instanceof PresencePacket p) {
+              // Show the file the client is editing
+              showPresence(clientHandler, p);
+            } else if (fileHandler != null) {
+              // Handle file creations, edits, transfers, deletions, and resyncs
+              fileHandler.receive(object);
             }
           }
 
@@ -144,10 +140,42 @@ public final class ProjectScene extends Scene {
           }
         });
 
+    // Save the project's state when the window is closed
+    main.getPrimaryStage().addEventHandler(WindowEvent.WINDOW_HIDDEN, event -> closeProject());
+
     // Choose directory at start
     showFinder(true);
   }
 
+  /**
+   * Shows the file (and line) a client is editing next to its name in the client list.
+   *
+   * @param clientHandler The client handler that received the presence.
+   * @param presence The latest presence of the client.
+   */
+  private void showPresence(ClientHandler clientHandler, PresencePacket presence) {
+    ClientDataPacket client = clientHandler.getClients().get(presence.id);
+    if (client == null) {
+      return;
+    }
+    String name = client.username + "[" + presence.id + "]";
+    String item = name;
+    if (presence.fileHash != 0 && presence.idleTime < ACTIVE_TIME) {
+      String fileName = clientHandler.getPresenceTracker().getFileName(presence.fileHash);
+      item += fileName != null ? " - " + fileName + ":" + (presence.line + 1) : " - editing";
+    }
+
+    for (int i = 0; i < clientList.getItems().size(); i++) {
+      String listedItem = clientList.getItems().get(i);
+      if (listedItem.equals(name) || listedItem.startsWith(name + " - ")) {
+        if (!listedItem.equals(item)) {
+          clientList.getItems().set(i, item);
+        }
+        return;
+      }
+    }
+  }
+
   /** Create menu bar (file, help, etc.). */
   private void menuBarInit() {
     // File Menu
@@ -157,7 +185,11 @@ public final class ProjectScene extends Scene {
             showFinder(true);
           }
         });
-    closeMenuItem.setOnAction(event -> Platform.exit());
+    closeMenuItem.setOnAction(
+        event -> {
+          closeProject();
+          Platform.exit();
+        });
     fileMenu.getItems().addAll(openMenuItem, closeMenuItem);
 
     // Help Menu
@@ -194,8 +226,7 @@ public final class ProjectScene extends Scene {
           }
 
           if (event.getCode() == KeyCode.I) {
-            // Intentionally left empty
-            // TODO: Make info window about networking like ping, amount of players in, and more
+            showStats();
           }
 
           if (event.getCode() == KeyCode.H) {
@@ -204,6 +235,35 @@ public final class ProjectScene extends Scene {
         });
   }
 
+  /** Show the stats window (networking info and runtime metrics), or focus it if it is open. */
+  private void showStats() {
+    if (statsStage != null) {
+      statsStage.toFront();
+      return;
+    }
+
+    StatsScene statsScene = new StatsScene();
+    Stage stage = new Stage();
+    stage.setTitle("DossIO - Stats");
+    stage.initOwner(main.getPrimaryStage());
+    stage.setScene(statsScene);
+    stage.setOnHidden(
+        event -> {
+          statsScene.stop();
+          statsStage = null;
+        });
+    stage.show();
+    statsStage = stage;
+  }
+
+  /** Closes the open project's file handler (if a project is open). */
+  private void closeProject() {
+    if (fileHandler != null) {
+      fileHandler.close();
+      fileHandler = null;
+    }
+  }
+
   /**
    * Show finder and allow directory selection.
    *
@@ -212,9 +272,7 @@ public final class ProjectScene extends Scene {
   private void showFinder(boolean checkGitignore) {
     File selectedFile = directoryChooser.showDialog(main.getPrimaryStage());
     if (selectedFile != null) {
-      if (fileHandler != null) {
-        fileHandler.close();
-      }
+      closeProject();
       directorySelected = true;
       verticalBox.getChildren().remove(enterText);
       clientList.setDisable(false);
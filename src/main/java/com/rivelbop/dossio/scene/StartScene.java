@@ -78,7 +78,7 @@ public final class StartScene extends Scene {
 
   /** Create UI that helps with hosting. */
   private void hostUiInit() {
-    hostTextField.setPromptText(Network.DEFAULT_IP_ADDRESS + ":" + Network.DEFAULT_PORT);
+    hostTextField.setPromptText(Network.DEFAULT_IP_ADDRESS + ":" + Network.DEFAULT_PORT + "/room");
     grid.add(hostTextField, 1, 6);
 
     ServerHandler serverHandler = Main.NETWORK.getServerHandler();
@@ -87,17 +87,28 @@ public final class StartScene extends Scene {
     hostButton.setText("Host");
     hostButton.setOnAction(
         event -> {
-          List<String> ipText = Splitter.on(':').splitToList(hostTextField.getText());
+          // The address is "ip:port/room", the room and port are optional
+          List<String> roomText = Splitter.on('/').limit(2).splitToList(hostTextField.getText());
+          List<String> ipText = Splitter.on(':').splitToList(roomText.get(0));
           boolean hasPort = ipText.size() > 1;
 
           serverHandler.setIpAddress(ipText.get(0));
           if (hasPort) {
             serverHandler.setPort(Integer.parseInt(ipText.get(1)));
           }
-          serverHandler.start();
+          try {
+            serverHandler.start();
+          } catch (RuntimeException e) {
+            Main.showErrorAlert(
+                "Server Error",
+                "Failed to Start Server",
+                "The server could not bind to the specified IP address and port.");
+            return;
+          }
 
           clientHandler.setIpAddress(ipText.get(0));
           clientHandler.setPort(serverHandler.getPort());
+          clientHandler.setRoom(roomText.size() > 1 ? roomText.get(1) : Network.DEFAULT_ROOM);
           clientHandler.setUsername(usernameTextField.getText());
 
           // Switch scene first to set client handler listener before connecting
@@ -113,7 +124,7 @@ public final class StartScene extends Scene {
 
   /** Create UI that helps with connecting. */
   private void joinUiInit() {
-    joinTextField.setPromptText(Network.DEFAULT_IP_ADDRESS + ":" + Network.DEFAULT_PORT);
+    joinTextField.setPromptText(Network.DEFAULT_IP_ADDRESS + ":" + Network.DEFAULT_PORT + "/room");
     grid.add(joinTextField, 1, 8);
 
     ClientHandler clientHandler = Main.NETWORK.getClientHandler();
@@ -121,13 +132,16 @@ public final class StartScene extends Scene {
     joinButton.setText("Join");
     joinButton.setOnAction(
         event -> {
-          List<String> ipText = Splitter.on(':').splitToList(joinTextField.getText());
+          // The address is "ip:port/room", the room and port are optional
+          List<String> roomText = Splitter.on('/').limit(2).splitToList(joinTextField.getText());
+          List<String> ipText = Splitter.on(':').splitToList(roomText.get(0));
           boolean hasPort = ipText.size() > 1;
 
           clientHandler.setIpAddress(ipText.get(0));
           if (hasPort) {
             clientHandler.setPort(Integer.parseInt(ipText.get(1)));
           }
+          clientHandler.setRoom(roomText.size() > 1 ? roomText.get(1) : Network.DEFAULT_ROOM);
           clientHandler.setUsername(usernameTextField.getText());
 
           // Switch scene first to set client handler listener before connecting
@@ -0,0 +1,85 @@
+package com.rivelbop.dossio.scene;
+
+import com.rivelbop.dossio.app.Main;
+import com.rivelbop.dossio.metrics.Metrics;
+import com.rivelbop.dossio.networking.ClientHandler;
+import com.rivelbop.dossio.networking.Tracer;
+import java.util.ArrayList;
+import java.util.Map;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.Text;
+import javafx.util.Duration;
+
+/**
+ * Shows networking info (ping, clock offset, clients) and the runtime metrics (including the
+ * latency of each stage of traced file changes), refreshed every second.
+ */
+public final class StatsScene extends Scene {
+  /** The default stats window width. */
+  public static final int WINDOW_WIDTH = 480;
+
+  /** The default stats window height. */
+  public static final int WINDOW_HEIGHT = 480;
+
+  private final ClientHandler clientHandler = Main.NETWORK.getClientHandler();
+
+  private final Text pingText = new Text();
+  private final Text offsetText = new Text();
+  private final Text clientsText = new Text();
+  private final ListView<String> metricList = new ListView<>();
+
+  private final Timeline refreshTimeline =
+      new Timeline(new KeyFrame(Duration.seconds(1), event -> refresh()));
+
+  /** Creates UI elements and starts refreshing them. */
+  public StatsScene() {
+    super(new VBox(10), WINDOW_WIDTH, WINDOW_HEIGHT);
+
+    pingText.setFont(Font.font("Tahoma", FontWeight.SEMI_BOLD, 16));
+    offsetText.setFont(Font.font("Tahoma", FontWeight.SEMI_BOLD, 16));
+    clientsText.setFont(Font.font("Tahoma", FontWeight.SEMI_BOLD, 16));
+    metricList.setFocusTraversable(false);
+    VBox.setVgrow(metricList, Priority.ALWAYS);
+
+    VBox verticalBox = (VBox) this.getRoot();
+    verticalBox.setAlignment(Pos.TOP_LEFT);
+    verticalBox.setPadding(new Insets(10, 10, 10, 10));
+    verticalBox.getChildren().addAll(pingText, offsetText, clientsText, metricList);
+
+    refresh();
+    refreshTimeline.setCycleCount(Timeline.INDEFINITE);
+    refreshTimeline.play();
+  }
+
+  /** Stops refreshing the stats (call when the window is closed). */
+  public void stop() {
+    refreshTimeline.stop();
+  }
+
+  /** Updates the networking info and metric values. */
+  private void refresh() {
+    long rtt = Tracer.getLastRtt();
+    pingText.setText("Ping: " + (rtt < 0 ? "-" : String.format("%.2f ms", rtt / 1000.0)));
+    offsetText.setText(
+        "Clock Offset: " + String.format("%.2f ms", Tracer.getClockOffset() / 1000.0));
+    clientsText.setText("Clients: " + clientHandler.getClients().size());
+
+    ArrayList<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Double> entry : Metrics.getValues().entrySet()) {
+      double value = entry.getValue();
+      String valueText =
+          value == Math.rint(value) ? Long.toString((long) value) : String.format("%.6f", value);
+      lines.add(entry.getKey() + " = " + valueText);
+    }
+    metricList.getItems().setAll(lines);
+  }
+}